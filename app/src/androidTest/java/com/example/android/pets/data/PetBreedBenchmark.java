@@ -0,0 +1,245 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link PetBreedBenchmark} measures what the breeds dictionary saves. It builds two scratch
+ * databases with the same pets:
+ *
+ * <ul>
+ * <li>free text: every pet row holds its breed label, with an index on it for grouping</li>
+ * <li>dictionary: labels live once in the breeds table and pet rows hold breed_id, the way
+ * the provider stores them since schema version 3</li>
+ * </ul>
+ *
+ * and reports the size of each database and the time to count pets by breed: on the free text
+ * column, through pets_view the way a provider query groups, and on breed_id with the labels
+ * joined in afterwards.
+ *
+ * The scratch databases are deleted at the end, and the provider's own database is never
+ * touched, so it can run on any device.
+ */
+public class PetBreedBenchmark {
+
+    /** Label of the run that groups the free text column */
+    public static final String FREE_TEXT = "free text";
+
+    /** Label of the run that groups pets_view, whose breed is the dictionary label */
+    public static final String DICTIONARY_VIEW = "dictionary, view";
+
+    /** Label of the run that groups breed_id and joins the labels to the groups */
+    public static final String DICTIONARY_KEY = "dictionary, key";
+
+    private static final String TEXT_DATABASE = "breed-benchmark-text.db";
+    private static final String DICTIONARY_DATABASE = "breed-benchmark-dictionary.db";
+
+    /** Index the free text layout needs to group without sorting every row */
+    private static final String SQL_CREATE_BREED_INDEX = "CREATE INDEX pets_breed ON " +
+            PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_NAME_BREED + ")";
+
+    private static final String[] BREED_NAMES = {
+            "Labrador Retriever", "German Shepherd", "Golden Retriever", "French Bulldog",
+            "Yorkshire Terrier", "Domestic Shorthair", "Domestic Longhair", "Maine Coon",
+            "Staffordshire Bull Terrier", "Border Collie"};
+
+    private final Context mContext;
+    private int mIterations = 20;
+
+    /**
+     * Constructs a new {@link PetBreedBenchmark}.
+     *
+     * @param context where the scratch databases are created
+     */
+    public PetBreedBenchmark(Context context) {
+        mContext = context;
+    }
+
+    /** Queries timed per run */
+    public PetBreedBenchmark setIterations(int iterations) {
+        mIterations = iterations;
+        return this;
+    }
+
+    /**
+     * Build both layouts and time the grouping queries on them. Blocks until done, so don't
+     * call it on the main thread.
+     *
+     * @param rows   pets in each database
+     * @param breeds distinct breeds among them
+     */
+    public List<Run> runAll(int rows, int breeds) {
+        List<Run> runs = new ArrayList<>();
+        SQLiteDatabase text = create(TEXT_DATABASE);
+        try {
+            fillFreeText(text, rows, breeds);
+            long bytes = sizeOf(text);
+            runs.add(time(FREE_TEXT, text, bytes, "SELECT " + PetEntry.COLUMN_NAME_BREED +
+                    ", COUNT(*) FROM " + PetEntry.TABLE_NAME +
+                    " GROUP BY " + PetEntry.COLUMN_NAME_BREED));
+        } finally {
+            text.close();
+            mContext.deleteDatabase(TEXT_DATABASE);
+        }
+
+        SQLiteDatabase dictionary = create(DICTIONARY_DATABASE);
+        try {
+            fillDictionary(dictionary, rows, breeds);
+            long bytes = sizeOf(dictionary);
+            runs.add(time(DICTIONARY_VIEW, dictionary, bytes, "SELECT " +
+                    PetEntry.COLUMN_NAME_BREED + ", COUNT(*) FROM " + PetEntry.VIEW_NAME +
+                    " GROUP BY " + PetEntry.COLUMN_NAME_BREED));
+            runs.add(time(DICTIONARY_KEY, dictionary, bytes, "SELECT " +
+                    BreedEntry.COLUMN_NAME_LABEL + ", n FROM (SELECT " +
+                    PetEntry.COLUMN_NAME_BREED_ID + ", COUNT(*) AS n FROM " +
+                    PetEntry.TABLE_NAME + " GROUP BY " + PetEntry.COLUMN_NAME_BREED_ID + ")" +
+                    " JOIN " + BreedEntry.TABLE_NAME + " ON " + BreedEntry.TABLE_NAME + "." +
+                    BreedEntry._ID + " = " + PetEntry.COLUMN_NAME_BREED_ID));
+        } finally {
+            dictionary.close();
+            mContext.deleteDatabase(DICTIONARY_DATABASE);
+        }
+        return runs;
+    }
+
+    private SQLiteDatabase create(String name) {
+        mContext.deleteDatabase(name);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        db.execSQL(PetEntry.SQL_CREATE_PETS_TABLE);
+        return db;
+    }
+
+    /**
+     * Bytes in the database's pages, which is what the file holds once any write-ahead log
+     * has been checkpointed into it
+     */
+    private static long sizeOf(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) * db.getPageSize();
+    }
+
+    private static void fillFreeText(SQLiteDatabase db, int rows, int breeds) {
+        insertPets(db, rows, breeds, PetEntry.COLUMN_NAME_BREED);
+        db.execSQL(SQL_CREATE_BREED_INDEX);
+    }
+
+    private static void fillDictionary(SQLiteDatabase db, int rows, int breeds) {
+        db.execSQL(BreedEntry.SQL_CREATE_BREEDS_TABLE);
+        db.execSQL(PetEntry.SQL_CREATE_PETS_VIEW);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + BreedEntry.TABLE_NAME +
+                " (" + BreedEntry._ID + ", " + BreedEntry.COLUMN_NAME_LABEL + ") VALUES (?, ?)");
+        try {
+            for (int breed = 0; breed < breeds; breed++) {
+                insert.bindLong(1, breed + 1);
+                insert.bindString(2, breedLabel(breed));
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+        insertPets(db, rows, breeds, PetEntry.COLUMN_NAME_BREED_ID);
+        db.execSQL(PetEntry.SQL_CREATE_BREED_ID_INDEX);
+    }
+
+    /**
+     * Insert the pets in one transaction. Pet i has breed i % breeds, stored in the given
+     * column: as its label in breed, or as its dictionary key in breed_id.
+     */
+    private static void insertPets(SQLiteDatabase db, int rows, int breeds, String breedColumn) {
+        boolean byKey = PetEntry.COLUMN_NAME_BREED_ID.equals(breedColumn);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME +
+                " (" + PetEntry.COLUMN_NAME_NAME + ", " + breedColumn + ", " +
+                PetEntry.COLUMN_NAME_GENDER + ", " + PetEntry.COLUMN_NAME_WEIGHT +
+                ") VALUES (?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                int breed = i % breeds;
+                insert.bindString(1, "pet-" + i);
+                if (byKey) {
+                    insert.bindLong(2, breed + 1);
+                } else {
+                    insert.bindString(2, breedLabel(breed));
+                }
+                insert.bindLong(3, i % 3);
+                insert.bindLong(4, i % 50);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * The label of breed number b: a real breed name, with a suffix once the names run out
+     */
+    private static String breedLabel(int b) {
+        String name = BREED_NAMES[b % BREED_NAMES.length];
+        return b < BREED_NAMES.length ? name : name + " mix " + (b / BREED_NAMES.length);
+    }
+
+    /**
+     * Time the grouping query, reading every group each time
+     */
+    private Run time(String label, SQLiteDatabase db, long fileBytes, String sql) {
+        long[] latencies = new long[mIterations];
+        int groups = 0;
+        long pets = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < mIterations; i++) {
+            long queryStart = System.nanoTime();
+            Cursor cursor = db.rawQuery(sql, null);
+            try {
+                groups = 0;
+                pets = 0;
+                while (cursor.moveToNext()) {
+                    groups++;
+                    pets += cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            latencies[i] = System.nanoTime() - queryStart;
+        }
+
+        Run run = new Run(label, fileBytes, groups, pets);
+        run.latencies = new PetLatencySummary(latencies, System.nanoTime() - start);
+        return run;
+    }
+
+    /**
+     * The outcome of one grouping run. The size is that of the database the run queried.
+     */
+    public static class Run {
+        public final String label;
+        public final long fileBytes;
+        /** Breeds the query returned, and the pets counted over all of them */
+        public final int groups;
+        public final long pets;
+        public PetLatencySummary latencies;
+
+        Run(String label, long fileBytes, int groups, long pets) {
+            this.label = label;
+            this.fileBytes = fileBytes;
+            this.groups = groups;
+            this.pets = pets;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d KiB, %d breeds, %d pets; %s",
+                    label, fileBytes / 1024, groups, pets, latencies);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.android.pets.data;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link PetBreedBenchmark} on 200,000 pets of 40 breeds, logs every run under the tag of
+ * this class, and checks that each layout counts the same pets and that the dictionary file is
+ * the smaller one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetBreedBenchmarkTest {
+
+    private static final String LOG_TAG = PetBreedBenchmarkTest.class.getSimpleName();
+
+    private static final int ROWS = 200000;
+    private static final int BREEDS = 40;
+
+    @Test
+    public void groupByBreed() {
+        List<PetBreedBenchmark.Run> runs = new PetBreedBenchmark(
+                InstrumentationRegistry.getTargetContext())
+                .runAll(ROWS, BREEDS);
+        for (PetBreedBenchmark.Run run : runs) {
+            Log.i(LOG_TAG, run.toString());
+            assertEquals(run.toString(), BREEDS, run.groups);
+            assertEquals(run.toString(), ROWS, run.pets);
+        }
+
+        // free text, dictionary through the view, dictionary by key
+        PetBreedBenchmark.Run text = runs.get(0);
+        PetBreedBenchmark.Run dictionary = runs.get(1);
+        assertTrue(text + " vs " + dictionary, dictionary.fileBytes < text.fileBytes);
+    }
+}
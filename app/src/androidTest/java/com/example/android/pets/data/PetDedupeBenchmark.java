@@ -0,0 +1,208 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link PetDedupeBenchmark} measures bulk intake with duplicate detection. Every run feeds the
+ * same stream of pets, a given fraction of which repeat an earlier pet, through one intake
+ * path:
+ *
+ * <ul>
+ * <li>no dedupe: bulk upserts that store every row</li>
+ * <li>{@link PetContract#DEDUPE_FLAG} and {@link PetContract#DEDUPE_MERGE}: bulk upserts
+ * that probe the fingerprint index for every row</li>
+ * <li>query first: a name and breed query before every single insert, the way callers had to
+ * detect duplicates before</li>
+ * </ul>
+ *
+ * Rows are tagged through their name and deleted at the end of each run, so it can run on a
+ * shelter that holds real pets, though a test device is the better place.
+ */
+public class PetDedupeBenchmark {
+
+    /** Label of the run that checks for duplicates with a query before each insert */
+    public static final String QUERY_FIRST = "query-first";
+
+    private final ContentResolver mContentResolver;
+    private int mBatchSize = 200;
+
+    /**
+     * Constructs a new {@link PetDedupeBenchmark}.
+     *
+     * @param contentResolver the resolver used for every operation
+     */
+    public PetDedupeBenchmark(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /** Rows per bulkInsert call */
+    public PetDedupeBenchmark setBatchSize(int batchSize) {
+        mBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Run every intake path on the same stream. Blocks until done, so don't call it on the
+     * main thread.
+     *
+     * @param rows pets fed to each run
+     * @param duplicateFraction share of the rows, between 0 and 1, that repeat an earlier pet
+     */
+    public List<Run> runAll(int rows, double duplicateFraction) {
+        List<Run> runs = new ArrayList<>();
+        runs.add(runBulk(null, rows, duplicateFraction));
+        runs.add(runBulk(PetContract.DEDUPE_FLAG, rows, duplicateFraction));
+        runs.add(runBulk(PetContract.DEDUPE_MERGE, rows, duplicateFraction));
+        runs.add(runQueryFirst(rows, duplicateFraction));
+        return runs;
+    }
+
+    /**
+     * Feed the stream through bulk upserts with the given dedupe mode, or none if null
+     */
+    public Run runBulk(String mode, int rows, double duplicateFraction) {
+        String tag = "dedupe-" + System.nanoTime() + "-";
+        Uri uri = mode == null ? PetContract.PetEntry.UPSERT_URI
+                : PetContract.PetEntry.buildDedupeUri(PetContract.PetEntry.UPSERT_URI, mode);
+        int distinct = distinctPets(rows, duplicateFraction);
+
+        long[] latencies = new long[(rows + mBatchSize - 1) / mBatchSize];
+        long start = System.nanoTime();
+        for (int batch = 0; batch < latencies.length; batch++) {
+            int first = batch * mBatchSize;
+            ContentValues[] values = new ContentValues[Math.min(mBatchSize, rows - first)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = pet(tag, (first + i) % distinct);
+            }
+            long batchStart = System.nanoTime();
+            mContentResolver.bulkInsert(uri, values);
+            latencies[batch] = System.nanoTime() - batchStart;
+        }
+        return finish(mode == null ? "no dedupe" : mode, tag, rows, latencies,
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Feed the stream one insert at a time, each after a query for a pet with the same name
+     * and breed
+     */
+    public Run runQueryFirst(int rows, double duplicateFraction) {
+        String tag = "dedupe-" + System.nanoTime() + "-";
+        int distinct = distinctPets(rows, duplicateFraction);
+
+        long[] latencies = new long[rows];
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            ContentValues values = pet(tag, i % distinct);
+            long opStart = System.nanoTime();
+            PetQuery query = new PetQuery.Builder()
+                    .whereEquals(PetContract.PetEntry.COLUMN_NAME_NAME,
+                            values.getAsString(PetContract.PetEntry.COLUMN_NAME_NAME))
+                    .whereEquals(PetContract.PetEntry.COLUMN_NAME_BREED,
+                            values.getAsString(PetContract.PetEntry.COLUMN_NAME_BREED))
+                    .build();
+            Cursor cursor = mContentResolver.query(PetContract.PetEntry.CONTENT_URI,
+                    new String[] {PetContract.PetEntry._ID}, query.getSelection(),
+                    query.getSelectionArgs(), null);
+            boolean exists;
+            try {
+                exists = cursor != null && cursor.moveToFirst();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            if (!exists) {
+                mContentResolver.insert(PetContract.PetEntry.CONTENT_URI, values);
+            }
+            latencies[i] = System.nanoTime() - opStart;
+        }
+        return finish(QUERY_FIRST, tag, rows, latencies, System.nanoTime() - start);
+    }
+
+    private static int distinctPets(int rows, double duplicateFraction) {
+        return Math.max(1, (int) Math.round(rows * (1 - duplicateFraction)));
+    }
+
+    /**
+     * The values of one pet of the stream. The same animal number always gives the same pet.
+     */
+    private static ContentValues pet(String tag, int animal) {
+        ContentValues values = new ContentValues();
+        values.put(PetContract.PetEntry.COLUMN_NAME_NAME, tag + "pet-" + animal);
+        values.put(PetContract.PetEntry.COLUMN_NAME_BREED, "breed-" + (animal % 16));
+        values.put(PetContract.PetEntry.COLUMN_NAME_GENDER, animal % 3);
+        values.put(PetContract.PetEntry.COLUMN_NAME_WEIGHT, animal % 50);
+        return values;
+    }
+
+    /**
+     * Count what the run stored, then delete it
+     */
+    private Run finish(String label, String tag, int rows, long[] latencies, long elapsed) {
+        PetQuery tagged = new PetQuery.Builder()
+                .whereLike(PetContract.PetEntry.COLUMN_NAME_NAME, tag + "%")
+                .build();
+        PetQuery flagged = new PetQuery.Builder()
+                .whereLike(PetContract.PetEntry.COLUMN_NAME_NAME, tag + "%")
+                .whereNotNull(PetContract.PetEntry.COLUMN_NAME_DUPLICATE_OF)
+                .build();
+
+        Run run = new Run(label, rows);
+        run.latencies = new PetLatencySummary(latencies, elapsed);
+        run.rowsPerSecond = elapsed > 0 ? rows * 1e9 / elapsed : 0;
+        run.stored = count(tagged);
+        run.flagged = count(flagged);
+
+        mContentResolver.delete(PetContract.PetEntry.CONTENT_URI, tagged.getSelection(),
+                tagged.getSelectionArgs());
+        return run;
+    }
+
+    private int count(PetQuery query) {
+        Cursor cursor = mContentResolver.query(PetContract.PetEntry.CONTENT_URI,
+                new String[] {PetContract.PetEntry._ID}, query.getSelection(),
+                query.getSelectionArgs(), null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The outcome of one run. Latencies are per bulkInsert batch for the bulk runs and per
+     * row for {@link #QUERY_FIRST}.
+     */
+    public static class Run {
+        public final String label;
+        public final int rows;
+        public double rowsPerSecond;
+        public PetLatencySummary latencies;
+        /** Rows the run left in the table, and how many of them were flagged as duplicates */
+        public int stored;
+        public int flagged;
+
+        Run(String label, int rows) {
+            this.label = label;
+            this.rows = rows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s: %d rows at %.0f rows/s, %d stored, %d flagged; %s",
+                    label, rows, rowsPerSecond, stored, flagged, latencies);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.android.pets.data;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs {@link PetDedupeBenchmark} on a stream where 30% of the pets repeat an earlier one,
+ * logs every run under the tag of this class, and checks what each intake path stored.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetDedupeBenchmarkTest {
+
+    private static final String LOG_TAG = PetDedupeBenchmarkTest.class.getSimpleName();
+
+    private static final int ROWS = 2000;
+    private static final int DISTINCT = 1400;
+
+    @Test
+    public void intakeWithDuplicates() {
+        List<PetDedupeBenchmark.Run> runs = new PetDedupeBenchmark(
+                InstrumentationRegistry.getTargetContext().getContentResolver())
+                .runAll(ROWS, 0.3);
+        for (PetDedupeBenchmark.Run run : runs) {
+            Log.i(LOG_TAG, run.toString());
+        }
+
+        // no dedupe, flag, merge, query first
+        assertStored(runs.get(0), ROWS, 0);
+        assertStored(runs.get(1), ROWS, ROWS - DISTINCT);
+        assertStored(runs.get(2), DISTINCT, 0);
+        assertStored(runs.get(3), DISTINCT, 0);
+    }
+
+    private static void assertStored(PetDedupeBenchmark.Run run, int stored, int flagged) {
+        assertEquals(run.toString(), stored, run.stored);
+        assertEquals(run.toString(), flagged, run.flagged);
+    }
+}
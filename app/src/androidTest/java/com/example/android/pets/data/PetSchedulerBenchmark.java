@@ -0,0 +1,232 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link PetSchedulerBenchmark} measures how a large import affects what the user sees. The
+ * calling thread plays the catalog: it scrolls through a list of pets a row per frame,
+ * querying the visible window each time the way the list does. Meanwhile a second thread
+ * imports rows through bulk upserts, once as {@link PetContract#PRIORITY_BACKGROUND} (short
+ * transactions that give way to the list) and once as {@link PetContract#PRIORITY_INTERACTIVE}
+ * (one transaction per batch, as before the scheduler). A round without an import gives the
+ * baseline.
+ *
+ * Consecutive queries ask for different windows, and the list only comes back to a window
+ * after a full pass, so the query cache answers few of them. Rows are tagged through their
+ * external ID and deleted at the end of each round, so it can run on a shelter that holds
+ * real pets, though a test device is the better place.
+ */
+public class PetSchedulerBenchmark {
+
+    /** Pets the list windows are taken from */
+    private static final int LIST_SIZE = 1000;
+
+    /** Pets in one window, like the prefetcher asks for */
+    private static final int WINDOW_SIZE = 40;
+
+    /** Time between two list queries, one frame at 60 frames per second */
+    static final long FRAME_MILLIS = 16;
+
+    private final ContentResolver mContentResolver;
+    private int mBatchSize = 5000;
+
+    /**
+     * Constructs a new {@link PetSchedulerBenchmark}.
+     *
+     * @param contentResolver the resolver used for every operation
+     */
+    public PetSchedulerBenchmark(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /** Rows per bulkInsert call of the import */
+    public PetSchedulerBenchmark setBatchSize(int batchSize) {
+        mBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Run the baseline and both imports. Blocks until done, so don't call it on the main
+     * thread.
+     *
+     * @param importRows rows imported in each round, e.g. a million
+     */
+    public List<Round> runAll(int importRows) throws InterruptedException {
+        List<Round> rounds = new ArrayList<>();
+        rounds.add(runRound(null, 0));
+        rounds.add(runRound(PetContract.PRIORITY_BACKGROUND, importRows));
+        rounds.add(runRound(PetContract.PRIORITY_INTERACTIVE, importRows));
+        return rounds;
+    }
+
+    /**
+     * Query windows of the list while importing rows with the given priority. With no
+     * priority, the list is queried as often as it would be during a 5 second import.
+     */
+    public Round runRound(String priority, final int importRows) throws InterruptedException {
+        final String tag = "scheduler-" + System.nanoTime() + "-";
+        long[] list = seedList(tag);
+
+        Uri importUri = PetContract.PetEntry.UPSERT_URI;
+        if (priority != null) {
+            importUri = importUri.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_PRIORITY, priority)
+                    .build();
+        }
+        final Uri uri = importUri;
+        final AtomicBoolean importing = new AtomicBoolean(priority != null);
+        final long[] importNanos = new long[1];
+        final int[] imported = new int[1];
+        Thread importer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    imported[0] = importRows(uri, tag, importRows);
+                } finally {
+                    importNanos[0] = System.nanoTime() - start;
+                    importing.set(false);
+                }
+            }
+        }, "PetSchedulerImport");
+        if (priority != null) {
+            importer.start();
+        }
+
+        int windows = list.length - WINDOW_SIZE + 1;
+        PetLoadGenerator.LatencyLog latencies = new PetLoadGenerator.LatencyLog();
+        int failedQueries = 0;
+        long start = System.nanoTime();
+        long baselineEnd = start + 5000 * 1000000L;
+        for (int frame = 0;
+             priority != null ? importing.get() : System.nanoTime() < baselineEnd; frame++) {
+            int offset = frame % windows;
+            Uri window = PetContract.PetEntry.buildIdsUri(
+                    Arrays.copyOfRange(list, offset, offset + WINDOW_SIZE));
+            long queryStart = System.nanoTime();
+            Cursor cursor = mContentResolver.query(window, null, null, null, null);
+            if (cursor == null) {
+                failedQueries++;
+            } else {
+                // Force the whole window into memory, as the list would
+                if (cursor.getCount() != WINDOW_SIZE) {
+                    failedQueries++;
+                }
+                cursor.close();
+            }
+            latencies.add(System.nanoTime() - queryStart);
+            Thread.sleep(FRAME_MILLIS);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (priority != null) {
+            importer.join();
+        }
+
+        Round round = new Round(priority != null ? priority : "no import", importRows);
+        round.listQueries = new PetLatencySummary(latencies.toArray(), elapsed);
+        round.failedQueries = failedQueries;
+        round.rowsImported = imported[0];
+        round.importRowsPerSecond = importNanos[0] > 0 ? importRows * 1e9 / importNanos[0] : 0;
+        Bundle stats = mContentResolver.call(PetContract.PetEntry.CONTENT_URI,
+                PetContract.METHOD_SCHEDULER_STATS, null, null);
+        if (stats != null) {
+            round.maxQueueDepth = stats.getInt(PetContract.KEY_MAX_QUEUE_DEPTH);
+            round.interactiveWaitP99Micros =
+                    stats.getLong(PetContract.KEY_INTERACTIVE_WAIT_P99_MICROS);
+        }
+
+        mContentResolver.delete(PetContract.PetEntry.CONTENT_URI,
+                PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID + " LIKE ?", new String[] {tag + "%"});
+        return round;
+    }
+
+    /**
+     * Insert the pets the list shows, and return their IDs
+     */
+    private long[] seedList(String tag) {
+        Random random = new Random(7);
+        ContentValues[] values = new ContentValues[LIST_SIZE];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = PetLoadGenerator.randomPet(random);
+            values[i].put(PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID, tag + "list-" + i);
+        }
+        mContentResolver.bulkInsert(PetContract.PetEntry.UPSERT_URI, values);
+
+        Cursor cursor = mContentResolver.query(PetContract.PetEntry.CONTENT_URI,
+                new String[] {PetContract.PetEntry._ID},
+                PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID + " LIKE ?",
+                new String[] {tag + "list-%"}, PetContract.PetEntry._ID);
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Import the rows in batches, and return how many the provider wrote
+     */
+    private int importRows(Uri uri, String tag, int rows) {
+        Random random = new Random(42);
+        int written = 0;
+        for (int first = 0; first < rows; first += mBatchSize) {
+            ContentValues[] values = new ContentValues[Math.min(mBatchSize, rows - first)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = PetLoadGenerator.randomPet(random);
+                values[i].put(PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID,
+                        tag + "import-" + (first + i));
+            }
+            written += mContentResolver.bulkInsert(uri, values);
+        }
+        return written;
+    }
+
+    /**
+     * The outcome of one round
+     */
+    public static class Round {
+        public final String label;
+        public final int importRows;
+        public int rowsImported;
+        public double importRowsPerSecond;
+        /** The list's window queries while the import ran */
+        public PetLatencySummary listQueries;
+        /** Window queries that returned no cursor or not the whole window */
+        public int failedQueries;
+        /** From {@link PetContract#METHOD_SCHEDULER_STATS}, over the provider's lifetime */
+        public int maxQueueDepth;
+        public long interactiveWaitP99Micros;
+
+        Round(String label, int importRows) {
+            this.label = label;
+            this.importRows = importRows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s: %d of %d rows imported at %.0f rows/s; list %s, %d failed; " +
+                            "max queue %d, interactive wait p99 %d us",
+                    label, rowsImported, importRows, importRowsPerSecond, listQueries,
+                    failedQueries, maxQueueDepth, interactiveWaitP99Micros);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.android.pets.data;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link PetSchedulerBenchmark} with an import of a million pets and logs every round
+ * under the tag of this class. Pass {@code -e petsImportRows <rows>} to the instrumentation
+ * for a shorter run.
+ *
+ * During the background import the list must keep up: its p99 stays within two frames, and
+ * no worse than during an import that doesn't give way, and the provider's p99 of the time
+ * queries waited for an import chunk stays within one frame.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetSchedulerBenchmarkTest {
+
+    private static final String LOG_TAG = PetSchedulerBenchmarkTest.class.getSimpleName();
+
+    /** Rows imported in each round unless the instrumentation says otherwise */
+    private static final int DEFAULT_IMPORT_ROWS = 1000000;
+
+    /** Slowest the list's window queries may be at the 99th percentile during the import */
+    private static final double MAX_BACKGROUND_P99_MILLIS = 2 * PetSchedulerBenchmark.FRAME_MILLIS;
+
+    /** Longest the provider may hold a query for an import chunk, at the 99th percentile */
+    private static final long MAX_INTERACTIVE_WAIT_P99_MICROS =
+            PetSchedulerBenchmark.FRAME_MILLIS * 1000;
+
+    @Test
+    public void listWhileImporting() throws InterruptedException {
+        String rows = InstrumentationRegistry.getArguments().getString("petsImportRows");
+        int importRows = rows != null ? Integer.parseInt(rows) : DEFAULT_IMPORT_ROWS;
+
+        PetSchedulerBenchmark benchmark = new PetSchedulerBenchmark(
+                InstrumentationRegistry.getTargetContext().getContentResolver());
+        List<PetSchedulerBenchmark.Round> rounds = benchmark.runAll(importRows);
+        for (PetSchedulerBenchmark.Round round : rounds) {
+            Log.i(LOG_TAG, round.toString());
+            assertTrue(round.toString(), round.listQueries.operations > 0);
+            assertEquals(round.toString(), 0, round.failedQueries);
+            assertEquals(round.toString(), round.importRows, round.rowsImported);
+        }
+
+        // runAll gives the baseline, then the background import, then the interactive one
+        PetSchedulerBenchmark.Round background = rounds.get(1);
+        PetSchedulerBenchmark.Round interactive = rounds.get(2);
+        assertTrue(background.toString(),
+                background.listQueries.p99Millis <= MAX_BACKGROUND_P99_MILLIS);
+        assertTrue(background + " vs " + interactive,
+                background.listQueries.p99Millis <= interactive.listQueries.p99Millis);
+        // Taken right after the background round, so its samples are mostly that round's
+        assertTrue(background.toString(),
+                background.interactiveWaitP99Micros <= MAX_INTERACTIVE_WAIT_P99_MICROS);
+    }
+}
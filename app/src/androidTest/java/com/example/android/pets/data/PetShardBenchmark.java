@@ -0,0 +1,214 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link PetShardBenchmark} measures how intake scales with the number of shelters. Every
+ * round runs the same writer threads for the same time, spread evenly over the shelters, while
+ * one reader keeps querying the pets URI, which merges all shelters. Writers in different
+ * shelters don't share a database lock, so write throughput should grow with the number of
+ * shelters until storage is the limit, while each merged query pays a little for every extra
+ * shelter it reads.
+ *
+ * Rows are tagged through their external ID and deleted at the end of each round. The shelter
+ * databases themselves stay behind, so run it on a test device.
+ */
+public class PetShardBenchmark {
+
+    private final ContentResolver mContentResolver;
+    private long mRoundMillis = 5000;
+    private int mWriterThreads = 4;
+
+    /**
+     * Constructs a new {@link PetShardBenchmark}.
+     *
+     * @param contentResolver the resolver used for every operation
+     */
+    public PetShardBenchmark(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /** How long each round runs */
+    public PetShardBenchmark setRoundMillis(long roundMillis) {
+        mRoundMillis = roundMillis;
+        return this;
+    }
+
+    /** Writer threads in every round, whatever the number of shelters */
+    public PetShardBenchmark setWriterThreads(int writerThreads) {
+        mWriterThreads = writerThreads;
+        return this;
+    }
+
+    /**
+     * Run one round for every shelter count from 1 to maxShelters. Blocks until done, so
+     * don't call it on the main thread.
+     */
+    public List<Round> runScaling(int maxShelters) throws InterruptedException {
+        List<Round> rounds = new ArrayList<>();
+        for (int shelters = 1; shelters <= maxShelters; shelters++) {
+            rounds.add(runRound(shelters));
+        }
+        return rounds;
+    }
+
+    /**
+     * Run a single round with the writers spread over shelters 0 to shelters - 1.
+     */
+    public Round runRound(final int shelters) throws InterruptedException {
+        final String tag = "shards-" + System.nanoTime() + "-";
+        final long deadline = System.nanoTime() + mRoundMillis * 1000000;
+        final List<long[]> writeLatencies = Collections.synchronizedList(new ArrayList<long[]>());
+        final List<long[]> readLatencies = Collections.synchronizedList(new ArrayList<long[]>());
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(mWriterThreads + 1);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < mWriterThreads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Uri shelterUri = PetContract.PetEntry.buildShelterUri(thread % shelters);
+                        writeLatencies.add(write(shelterUri, tag + thread + "-", deadline));
+                    } catch (RuntimeException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "PetShardWriter-" + t).start();
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readLatencies.add(read(tag, deadline));
+                } catch (RuntimeException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, "PetShardReader").start();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        Round round = new Round(shelters);
+        round.writes = new PetLatencySummary(merge(writeLatencies), elapsed);
+        round.reads = new PetLatencySummary(merge(readLatencies), elapsed);
+        round.errors = errors.get();
+
+        // A delete on the pets URI reaches every shelter
+        PetQuery tagged = new PetQuery.Builder()
+                .whereLike(PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID, tag + "%")
+                .build();
+        mContentResolver.delete(PetContract.PetEntry.CONTENT_URI, tagged.getSelection(),
+                tagged.getSelectionArgs());
+        return round;
+    }
+
+    /**
+     * Insert into one shelter until the deadline. Returns each insert's latency in nanoseconds.
+     */
+    private long[] write(Uri shelterUri, String tag, long deadline) {
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; System.nanoTime() < deadline; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetContract.PetEntry.COLUMN_NAME_NAME, "pet-" + i);
+            values.put(PetContract.PetEntry.COLUMN_NAME_BREED, "breed-" + (i % 16));
+            values.put(PetContract.PetEntry.COLUMN_NAME_GENDER,
+                    PetContract.PetEntry.GENDER_UNKNOWN);
+            values.put(PetContract.PetEntry.COLUMN_NAME_WEIGHT, i % 50);
+            values.put(PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID, tag + i);
+            long opStart = System.nanoTime();
+            mContentResolver.insert(shelterUri, values);
+            latencies.add(System.nanoTime() - opStart);
+        }
+        return toArray(latencies);
+    }
+
+    /**
+     * Query this round's pets across every shelter, sorted by name, until the deadline. Returns
+     * each query's latency in nanoseconds, including reading every row.
+     */
+    private long[] read(String tag, long deadline) {
+        PetQuery query = new PetQuery.Builder()
+                .whereLike(PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID, tag + "%")
+                .orderBy(PetContract.PetEntry.COLUMN_NAME_NAME)
+                .build();
+        List<Long> latencies = new ArrayList<>();
+        while (System.nanoTime() < deadline) {
+            long opStart = System.nanoTime();
+            Cursor cursor = mContentResolver.query(PetContract.PetEntry.CONTENT_URI,
+                    new String[] {PetContract.PetEntry._ID, PetContract.PetEntry.COLUMN_NAME_NAME},
+                    query.getSelection(), query.getSelectionArgs(), query.getSortOrder());
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            latencies.add(System.nanoTime() - opStart);
+        }
+        return toArray(latencies);
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    private static long[] merge(List<long[]> parts) {
+        synchronized (parts) {
+            int size = 0;
+            for (long[] part : parts) {
+                size += part.length;
+            }
+            long[] merged = new long[size];
+            int offset = 0;
+            for (long[] part : parts) {
+                System.arraycopy(part, 0, merged, offset, part.length);
+                offset += part.length;
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * The outcome of one round
+     */
+    public static class Round {
+        public final int shelters;
+        public PetLatencySummary writes;
+        public PetLatencySummary reads;
+        public int errors;
+
+        Round(int shelters) {
+            this.shelters = shelters;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d shelters: writes %s; merged reads %s; %d errors",
+                    shelters, writes, reads, errors);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.android.pets.data;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link PetShardBenchmark} from one to four shelters and logs every round under
+ * the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetShardBenchmarkTest {
+
+    private static final String LOG_TAG = PetShardBenchmarkTest.class.getSimpleName();
+
+    @Test
+    public void intakeAcrossShelters() throws InterruptedException {
+        PetShardBenchmark benchmark = new PetShardBenchmark(
+                InstrumentationRegistry.getTargetContext().getContentResolver());
+        for (PetShardBenchmark.Round round : benchmark.runScaling(4)) {
+            Log.i(LOG_TAG, round.toString());
+            assertEquals(round.toString(), 0, round.errors);
+            assertTrue(round.toString(), round.writes.operations > 0);
+            assertTrue(round.toString(), round.reads.operations > 0);
+        }
+    }
+}
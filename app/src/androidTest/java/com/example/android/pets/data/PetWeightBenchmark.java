@@ -0,0 +1,179 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * {@link PetWeightBenchmark} measures weight trend queries. It gives a new pet years of
+ * measurements, rolls them up, and then queries the last month, the last year and the whole
+ * history twice each:
+ *
+ * <ul>
+ * <li>with the default number of points, which long ranges take from the daily and weekly
+ * rollups</li>
+ * <li>with as many points as possible, which forces every measurement to be read</li>
+ * </ul>
+ *
+ * The pet is deleted at the end along with its history, so it can run on a shelter that holds
+ * real pets, though a test device is the better place.
+ */
+public class PetWeightBenchmark {
+
+    private static final long HOUR = 60L * 60 * 1000;
+
+    private final ContentResolver mContentResolver;
+    private int mBatchSize = 1000;
+    private int mIterations = 20;
+
+    /**
+     * Constructs a new {@link PetWeightBenchmark}.
+     *
+     * @param contentResolver the resolver used for every operation
+     */
+    public PetWeightBenchmark(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /** Measurements per bulkInsert call */
+    public PetWeightBenchmark setBatchSize(int batchSize) {
+        mBatchSize = batchSize;
+        return this;
+    }
+
+    /** Queries timed per range and resolution */
+    public PetWeightBenchmark setIterations(int iterations) {
+        mIterations = iterations;
+        return this;
+    }
+
+    /**
+     * Record the history and time the queries. Blocks until done, so don't call it on the
+     * main thread.
+     *
+     * @param years  how far back the history goes
+     * @param perDay measurements per day
+     */
+    public List<Range> run(int years, int perDay) {
+        ContentValues pet = new ContentValues();
+        pet.put(PetContract.PetEntry.COLUMN_NAME_NAME, "weights-" + System.nanoTime());
+        pet.put(PetContract.PetEntry.COLUMN_NAME_GENDER, PetContract.PetEntry.GENDER_UNKNOWN);
+        Uri petUri = mContentResolver.insert(PetContract.PetEntry.CONTENT_URI, pet);
+        if (petUri == null) {
+            throw new IllegalStateException("Could not insert the benchmark pet");
+        }
+        long id = ContentUris.parseId(petUri);
+        Uri weightsUri = PetContract.PetEntry.buildWeightsUri(id);
+
+        try {
+            long now = System.currentTimeMillis();
+            long start = now - years * 365L * PetContract.WeightEntry.RESOLUTION_DAY;
+            record(weightsUri, start, now, perDay);
+            mContentResolver.call(PetContract.PetEntry.CONTENT_URI,
+                    PetContract.METHOD_ROLL_UP_WEIGHTS, null, null);
+
+            List<Range> ranges = new ArrayList<>();
+            long[][] spans = {
+                    {now - 30 * PetContract.WeightEntry.RESOLUTION_DAY, now},
+                    {now - 365 * PetContract.WeightEntry.RESOLUTION_DAY, now},
+                    {start, now}};
+            String[] labels = {"month", "year", "all"};
+            for (int i = 0; i < spans.length; i++) {
+                ranges.add(time(labels[i] + ", rollups", weightsUri, spans[i][0], spans[i][1],
+                        PetContract.WeightEntry.DEFAULT_POINTS));
+                ranges.add(time(labels[i] + ", raw", weightsUri, spans[i][0], spans[i][1],
+                        Integer.MAX_VALUE));
+            }
+            return ranges;
+        } finally {
+            mContentResolver.delete(petUri, null, null);
+        }
+    }
+
+    /**
+     * Add perDay measurements a day from start to end, spread over the day, in batches
+     */
+    private void record(Uri weightsUri, long start, long end, int perDay) {
+        Random random = new Random(42);
+        long step = Math.max(1, PetContract.WeightEntry.RESOLUTION_DAY / perDay);
+        int weight = 20;
+        List<ContentValues> batch = new ArrayList<>(mBatchSize);
+        for (long measuredAt = start; measuredAt <= end; measuredAt += step) {
+            weight = Math.max(1, weight + random.nextInt(3) - 1);
+            ContentValues values = new ContentValues();
+            // Not always on the hour, so the buckets don't line up with the steps
+            values.put(PetContract.WeightEntry.COLUMN_NAME_MEASURED_AT,
+                    measuredAt + random.nextInt((int) Math.min(step, HOUR)));
+            values.put(PetContract.WeightEntry.COLUMN_NAME_WEIGHT, weight);
+            batch.add(values);
+            if (batch.size() == mBatchSize) {
+                mContentResolver.bulkInsert(weightsUri,
+                        batch.toArray(new ContentValues[batch.size()]));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            mContentResolver.bulkInsert(weightsUri, batch.toArray(new ContentValues[batch.size()]));
+        }
+    }
+
+    /**
+     * Time the query of one range. The end moves by a millisecond every iteration, so none
+     * of them is answered by the provider's query cache.
+     */
+    private Range time(String label, Uri weightsUri, long from, long to, int points) {
+        long[] latencies = new long[mIterations];
+        int rows = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < mIterations; i++) {
+            Uri uri = weightsUri.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_FROM, String.valueOf(from))
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_TO, String.valueOf(to - i))
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_POINTS,
+                            String.valueOf(points))
+                    .build();
+            long queryStart = System.nanoTime();
+            Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+            if (cursor != null) {
+                try {
+                    rows = cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            }
+            latencies[i] = System.nanoTime() - queryStart;
+        }
+
+        Range range = new Range(label, rows);
+        range.latencies = new PetLatencySummary(latencies,
+                System.nanoTime() - start);
+        return range;
+    }
+
+    /**
+     * The outcome of the queries of one range at one resolution
+     */
+    public static class Range {
+        public final String label;
+        /** Rows the query returned */
+        public final int rows;
+        public PetLatencySummary latencies;
+
+        Range(String label, int rows) {
+            this.label = label;
+            this.rows = rows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d rows; %s", label, rows, latencies);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.android.pets.data;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link PetWeightBenchmark} over two years of hourly measurements and logs every range
+ * under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetWeightBenchmarkTest {
+
+    private static final String LOG_TAG = PetWeightBenchmarkTest.class.getSimpleName();
+
+    @Test
+    public void trendQueries() {
+        List<PetWeightBenchmark.Range> ranges = new PetWeightBenchmark(
+                InstrumentationRegistry.getTargetContext().getContentResolver())
+                .run(2, 24);
+        for (PetWeightBenchmark.Range range : ranges) {
+            Log.i(LOG_TAG, range.toString());
+        }
+
+        // Ranges come in pairs: from the rollups, then from every measurement
+        for (int i = 0; i < ranges.size(); i += 2) {
+            PetWeightBenchmark.Range rollups = ranges.get(i);
+            PetWeightBenchmark.Range raw = ranges.get(i + 1);
+            assertTrue(rollups.toString(), rollups.rows > 0);
+            assertTrue(rollups + " vs " + raw, rollups.rows <= raw.rows);
+        }
+    }
+}
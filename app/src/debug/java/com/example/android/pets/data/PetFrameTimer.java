@@ -0,0 +1,101 @@
+package com.example.android.pets.data;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+import android.widget.AbsListView;
+
+import java.util.Arrays;
+
+/**
+ * {@link PetFrameTimer} measures frame times while a list scrolls, e.g. to see what photo
+ * thumbnails cost the catalog. It times the interval between consecutive frames from the
+ * moment the list starts moving until it comes to rest, and logs percentiles for each
+ * scroll. Frames are timed with {@link Choreographer}, so nothing is measured before API 16.
+ *
+ * It passes every scroll event on to the listener it wraps, since a list only takes one.
+ * Only debug builds have it; in release builds {@link #wrap} returns the listener as it is.
+ */
+public class PetFrameTimer implements AbsListView.OnScrollListener {
+
+    /** Tag for any log messages */
+    private static final String LOG_TAG = PetFrameTimer.class.getSimpleName();
+
+    /** Frames kept per scroll; a fling rarely lasts this long */
+    private static final int MAX_FRAMES = 1024;
+
+    private final AbsListView.OnScrollListener mDelegate;
+    private final long[] mIntervals = new long[MAX_FRAMES];
+    private int mFrameCount;
+    private long mLastFrameNanos;
+    private long mStartNanos;
+    private boolean mRunning;
+    private Object mFrameCallback;
+
+    private PetFrameTimer(AbsListView.OnScrollListener delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * The listener to give the list: the delegate, with frame times logged while scrolling
+     */
+    public static AbsListView.OnScrollListener wrap(AbsListView.OnScrollListener delegate) {
+        return new PetFrameTimer(delegate);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (scrollState != SCROLL_STATE_IDLE && !mRunning) {
+                start();
+            } else if (scrollState == SCROLL_STATE_IDLE && mRunning) {
+                stop();
+            }
+        }
+        mDelegate.onScrollStateChanged(view, scrollState);
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void start() {
+        mRunning = true;
+        mFrameCount = 0;
+        mLastFrameNanos = 0;
+        mStartNanos = System.nanoTime();
+        Choreographer.FrameCallback callback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (!mRunning) {
+                    return;
+                }
+                if (mLastFrameNanos != 0 && mFrameCount < MAX_FRAMES) {
+                    mIntervals[mFrameCount++] = frameTimeNanos - mLastFrameNanos;
+                }
+                mLastFrameNanos = frameTimeNanos;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        };
+        mFrameCallback = callback;
+        Choreographer.getInstance().postFrameCallback(callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void stop() {
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(
+                (Choreographer.FrameCallback) mFrameCallback);
+        mFrameCallback = null;
+        if (mFrameCount == 0) {
+            return;
+        }
+        PetLatencySummary frames = new PetLatencySummary(
+                Arrays.copyOf(mIntervals, mFrameCount), System.nanoTime() - mStartNanos);
+        Log.i(LOG_TAG, "Scroll frames: " + frames);
+    }
+}
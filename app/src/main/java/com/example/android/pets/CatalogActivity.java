@@ -17,24 +17,44 @@ package com.example.android.pets;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
 
+import com.example.android.pets.data.PetCatalogSnapshot;
 import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetCursorAdapter;
+import com.example.android.pets.data.PetFrameTimer;
+import com.example.android.pets.data.PetLoadGenerator;
+import com.example.android.pets.data.PetLoadGeneratorLoader;
+import com.example.android.pets.data.PetPrefetcher;
+import com.example.android.pets.data.PetQuery;
+import com.example.android.pets.data.PetTrace;
+import com.example.android.pets.data.TracedCursorLoader;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Displays list of pets that were entered and stored in the app.
@@ -43,12 +63,107 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
     private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
     private static final int UNIQUE_ID_FOR_LOADER = 0;
+    private static final int LOAD_GENERATOR_LOADER_ID = 1;
+    /** Keys of the dummy data settings passed to the generator's loader */
+    private static final String ARG_PET_COUNT = "pet_count";
+    private static final String ARG_WRITER_THREADS = "writer_threads";
+    private static final String ARG_READER_THREADS = "reader_threads";
+    private static final String ARG_TARGET_OPS_PER_SECOND = "target_ops_per_second";
+    private static final String ARG_DURATION_MILLIS = "duration_millis";
+    private static final String ARG_SEED = "seed";
+    /** Most writer or reader threads the "Insert dummy data" dialog starts */
+    private static final int MAX_LOAD_THREADS = 16;
+    /** Name of the timeline file written by the "Export trace" menu option */
+    private static final String TRACE_FILE_NAME = "pets-trace.json";
+    /** Name of the first-page snapshot in the cache directory */
+    private static final String SNAPSHOT_FILE_NAME = "catalog_snapshot.bin";
+    /** Rows kept in the snapshot; comfortably more than one screen */
+    private static final int SNAPSHOT_ROWS = 50;
     /** This is the adapter being used to display the list of pets */
     private PetCursorAdapter mPetCursorAdapter;
+    /** Loads the rows around the visible window so the editor can open without a query */
+    private PetPrefetcher mPetPrefetcher;
+    /** Whether the adapter still shows the snapshot rather than a live cursor */
+    private boolean mShowingSnapshot;
+    /** When onCreate started, for the time-to-first-row log */
+    private long mCreatedAtMillis;
+    /** Whether the loader has delivered since onCreate */
+    private boolean mLiveRowsShown;
+    /** Set while the dummy data generator runs, so the menu option can't start another */
+    private boolean mGeneratingLoad = false;
+    /** Shows the generator's progress above the list */
+    private View mLoadProgressView;
+    private TextView mLoadProgressText;
+    private ProgressBar mLoadProgressBar;
+
+    /**
+     * Shows the progress of the dummy data generator. The run goes on through a rotation,
+     * and the recreated catalog picks up where it is.
+     */
+    private final PetLoadGenerator.ProgressListener mLoadProgress =
+            new PetLoadGenerator.ProgressListener() {
+                @Override
+                public void onSeedProgress(int inserted, int petCount) {
+                    showLoadProgress(R.string.load_progress_seeding, inserted, petCount);
+                }
+
+                @Override
+                public void onLoadProgress(long elapsedMillis, long durationMillis) {
+                    showLoadProgress(R.string.load_progress_running,
+                            (int) (elapsedMillis / 1000), (int) (durationMillis / 1000));
+                }
+            };
+
+    /**
+     * Callbacks of the dummy data generator's loader. The report ends the run.
+     */
+    private LoaderManager.LoaderCallbacks<PetLoadGenerator.Report> mLoadCallbacks =
+            new LoaderManager.LoaderCallbacks<PetLoadGenerator.Report>() {
+                @Override
+                public Loader<PetLoadGenerator.Report> onCreateLoader(int id, Bundle args) {
+                    PetLoadGenerator generator = new PetLoadGenerator(
+                            getApplicationContext().getContentResolver())
+                            .setPetCount(args.getInt(ARG_PET_COUNT))
+                            .setWriterThreads(args.getInt(ARG_WRITER_THREADS))
+                            .setReaderThreads(args.getInt(ARG_READER_THREADS))
+                            .setTargetOpsPerSecond(args.getInt(ARG_TARGET_OPS_PER_SECOND))
+                            .setDurationMillis(args.getLong(ARG_DURATION_MILLIS))
+                            .setSeed(args.getLong(ARG_SEED));
+                    return new PetLoadGeneratorLoader(getApplicationContext(), generator);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<PetLoadGenerator.Report> loader,
+                                           PetLoadGenerator.Report report) {
+                    mGeneratingLoad = false;
+                    mLoadProgressView.setVisibility(View.GONE);
+                    // Drop the finished run, so it isn't reported again after a rotation
+                    getSupportLoaderManager().destroyLoader(LOAD_GENERATOR_LOADER_ID);
+                    invalidateOptionsMenu();
+                    if (report == null) {
+                        Toast.makeText(getApplicationContext(), R.string.toast_dummy_data_failed,
+                                Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    Log.v(LOG_TAG, "Dummy data: " + report);
+                    Toast.makeText(getApplicationContext(),
+                            getString(R.string.toast_dummy_data_inserted, report.petsInserted),
+                            Toast.LENGTH_SHORT).show();
+                }
+
+                @Override
+                public void onLoaderReset(Loader<PetLoadGenerator.Report> loader) {
+                }
+            };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mCreatedAtMillis = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
+        // Debug builds record trace sections from launch, ready for "Export trace"
+        if (BuildConfig.DEBUG && !PetTrace.isRecording()) {
+            PetTrace.startRecording();
+        }
         setContentView(R.layout.activity_catalog);
 
         // Setup FAB to open EditorActivity
@@ -61,8 +176,17 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
+        mLoadProgressView = findViewById(R.id.load_progress);
+        mLoadProgressText = (TextView) findViewById(R.id.load_progress_text);
+        mLoadProgressBar = (ProgressBar) findViewById(R.id.load_progress_bar);
+        // A catalog recreated during a dummy data run reconnects to it rather than allowing
+        // another one
+        if (getSupportLoaderManager().getLoader(LOAD_GENERATOR_LOADER_ID) != null) {
+            startLoadGenerator(null);
+        }
+
         // Find the ListView which will be populated with the pet data
-        ListView listView = (ListView)findViewById(R.id.list);
+        final ListView listView = (ListView)findViewById(R.id.list);
 
         // Find and set empty view on the ListView, so that it only shows when the list has 0 items
         View emptyView = findViewById(R.id.empty_view);
@@ -73,6 +197,16 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         mPetCursorAdapter = new PetCursorAdapter(this, null);
         listView.setAdapter(mPetCursorAdapter);
 
+        // Whenever the list comes to rest, cache the rows the user is likely to tap next
+        mPetPrefetcher = new PetPrefetcher(this);
+        // Debug builds also log scroll frame times, e.g. to check the cost of thumbnails
+        listView.setOnScrollListener(PetFrameTimer.wrap(mPetPrefetcher));
+
+        // On a cold start, show the rows from last time while the loader opens the database.
+        // A loader kept across a configuration change delivers right away anyway.
+        if (getSupportLoaderManager().getLoader(UNIQUE_ID_FOR_LOADER) == null) {
+            showSnapshot();
+        }
 
         // Prepare the loader. Either re-connect with an existing one,
         // or start a new one.
@@ -95,6 +229,107 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 Log.v(LOG_TAG, "URI: " + currentPetUri);
             }
         });
+
+        // A long press starts multi-select mode, where the checked pets can be deleted together
+        listView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        listView.setMultiChoiceModeListener(new AbsListView.MultiChoiceModeListener() {
+            @Override
+            public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                                  boolean checked) {
+                mode.setTitle(getString(R.string.catalog_selected_count,
+                        listView.getCheckedItemCount()));
+            }
+
+            @Override
+            public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                // Inflate the menu options from the res/menu/menu_catalog_selection.xml file.
+                mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+                return true;
+            }
+
+            @Override
+            public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                return false;
+            }
+
+            @Override
+            public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                switch (item.getItemId()) {
+                    case R.id.action_delete_selected:
+                        deletePets(listView.getCheckedItemIds());
+                        mode.finish();
+                        return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void onDestroyActionMode(ActionMode mode) {
+            }
+        });
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        saveSnapshot();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // The generator keeps running for the next catalog, which mustn't keep this one alive
+        Loader<PetLoadGenerator.Report> loader =
+                getSupportLoaderManager().getLoader(LOAD_GENERATOR_LOADER_ID);
+        if (loader != null) {
+            ((PetLoadGeneratorLoader) loader).setProgressListener(null);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Show the first-page snapshot saved the last time the catalog went to the background
+     */
+    private void showSnapshot() {
+        PetTrace.beginSection("Catalog.showSnapshot");
+        try {
+            Cursor snapshot = PetCatalogSnapshot.read(new File(getCacheDir(), SNAPSHOT_FILE_NAME));
+            if (snapshot == null) {
+                return;
+            }
+            mPetCursorAdapter.swapCursor(snapshot);
+            mShowingSnapshot = true;
+            logTimeToFirstRow("snapshot", snapshot);
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+
+    /**
+     * Keep the first page of the live catalog for the next cold start
+     */
+    private void saveSnapshot() {
+        Cursor cursor = mPetCursorAdapter.getCursor();
+        if (cursor == null || mShowingSnapshot) {
+            // Nothing new since the snapshot was read
+            return;
+        }
+        final PetCatalogSnapshot snapshot = PetCatalogSnapshot.capture(cursor, SNAPSHOT_ROWS);
+        final File file = new File(getCacheDir(), SNAPSHOT_FILE_NAME);
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.writeTo(file);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to save the catalog snapshot", e);
+                }
+            }
+        });
+    }
+
+    private void logTimeToFirstRow(String source, Cursor cursor) {
+        Log.v(LOG_TAG, "First " + cursor.getCount() + " rows from " + source + " after "
+                + (SystemClock.uptimeMillis() - mCreatedAtMillis) + " ms");
     }
 
     @Override
@@ -102,6 +337,15 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_export_trace).setVisible(BuildConfig.DEBUG);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // One dummy data run at a time
+        menu.findItem(R.id.action_insert_dummy_data).setEnabled(!mGeneratingLoad);
         return true;
     }
 
@@ -111,7 +355,7 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         switch (item.getItemId()) {
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
-                insertPet();
+                showLoadGeneratorDialog();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_andy_is_cool:
@@ -120,23 +364,116 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             case R.id.action_delete_all_entries:
                 deletePets();
                 return true;
+            case R.id.action_export_trace:
+                exportTrace();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
-    private void insertPet() {
-        // Create a new map of values, where column names are the keys
-        // This will contain the new values to insert
-        ContentValues values = new ContentValues();
-        values.put(PetContract.PetEntry.COLUMN_NAME_NAME, "Andy");
-        values.put(PetContract.PetEntry.COLUMN_NAME_BREED, "Terrier");
-        values.put(PetContract.PetEntry.COLUMN_NAME_GENDER, PetContract.PetEntry.GENDER_MALE);
-        values.put(PetContract.PetEntry.COLUMN_NAME_WEIGHT, 7);
+    /**
+     * Ask how many pets to generate, and how hard to drive the provider with writers and
+     * readers afterwards, before anything is written
+     */
+    private void showLoadGeneratorDialog() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_load_generator, null);
+        final EditText petCount = (EditText) view.findViewById(R.id.edit_load_pet_count);
+        final EditText writerThreads = (EditText) view.findViewById(R.id.edit_load_writer_threads);
+        final EditText readerThreads = (EditText) view.findViewById(R.id.edit_load_reader_threads);
+        final EditText rate = (EditText) view.findViewById(R.id.edit_load_rate);
+        final EditText duration = (EditText) view.findViewById(R.id.edit_load_duration);
+        petCount.setText(String.valueOf(PetLoadGenerator.DEFAULT_PET_COUNT));
+        writerThreads.setText("0");
+        readerThreads.setText("0");
+        rate.setText(String.valueOf(PetLoadGenerator.DEFAULT_TARGET_OPS_PER_SECOND));
+        duration.setText(String.valueOf(PetLoadGenerator.DEFAULT_DURATION_MILLIS / 1000));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.load_dialog_title);
+        builder.setView(view);
+        builder.setPositiveButton(R.string.load_dialog_start,
+                new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                Bundle args = new Bundle();
+                args.putInt(ARG_PET_COUNT,
+                        readNumber(petCount, PetLoadGenerator.DEFAULT_PET_COUNT));
+                args.putInt(ARG_WRITER_THREADS,
+                        Math.min(MAX_LOAD_THREADS, readNumber(writerThreads, 0)));
+                args.putInt(ARG_READER_THREADS,
+                        Math.min(MAX_LOAD_THREADS, readNumber(readerThreads, 0)));
+                args.putInt(ARG_TARGET_OPS_PER_SECOND, Math.max(1, readNumber(rate,
+                        PetLoadGenerator.DEFAULT_TARGET_OPS_PER_SECOND)));
+                args.putLong(ARG_DURATION_MILLIS, 1000L * readNumber(duration,
+                        (int) (PetLoadGenerator.DEFAULT_DURATION_MILLIS / 1000)));
+                args.putLong(ARG_SEED, System.currentTimeMillis());
+                startLoadGenerator(args);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * The number in a field of the dummy data dialog, or the default if it holds none
+     */
+    private static int readNumber(EditText field, int defaultValue) {
+        try {
+            return Integer.parseInt(field.getText().toString());
+        } catch (NumberFormatException e) {
+            // Empty, or too big for an int
+            return defaultValue;
+        }
+    }
 
-        // Defines a new Uri object that receives the result of the insertion
-        Uri mNewUri = getContentResolver().insert(PetContract.PetEntry.CONTENT_URI, values);
+    /**
+     * Run the generator off the main thread in a loader, showing how far it has got above the
+     * list. Null settings reconnect to the run already in flight.
+     */
+    private void startLoadGenerator(Bundle args) {
+        mGeneratingLoad = true;
+        invalidateOptionsMenu();
+        mLoadProgressText.setText(R.string.load_progress_seeding);
+        mLoadProgressBar.setProgress(0);
+        mLoadProgressView.setVisibility(View.VISIBLE);
+        LoaderManager loaderManager = getSupportLoaderManager();
+        Loader<PetLoadGenerator.Report> loader = args == null
+                ? loaderManager.initLoader(LOAD_GENERATOR_LOADER_ID, null, mLoadCallbacks)
+                : loaderManager.restartLoader(LOAD_GENERATOR_LOADER_ID, args, mLoadCallbacks);
+        ((PetLoadGeneratorLoader) loader).setProgressListener(mLoadProgress);
+    }
 
-        Log.v("CatalogActivity", "new row created: " + mNewUri);
+    private void showLoadProgress(int messageRes, int done, int total) {
+        mLoadProgressText.setText(messageRes);
+        mLoadProgressBar.setMax(total);
+        mLoadProgressBar.setProgress(done);
+    }
+
+    /**
+     * Write the sections recorded so far to a timeline file that chrome://tracing can open
+     */
+    private void exportTrace() {
+        final File file = new File(getExternalFilesDir(null), TRACE_FILE_NAME);
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    PetTrace.exportChromeTrace(file);
+                    return true;
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to export trace to " + file, e);
+                    return false;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean exported) {
+                Toast.makeText(getApplicationContext(), exported
+                                ? getString(R.string.toast_trace_exported, file.getPath())
+                                : getString(R.string.toast_trace_export_failed),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }.execute();
     }
 
     private void updatePet() {
@@ -144,32 +481,64 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         ContentValues values = new ContentValues();
         values.put(PetContract.PetEntry.COLUMN_NAME_BREED, "Danger");
         // Defines selection criteria for the rows you want to update
-        String selection = PetContract.PetEntry.COLUMN_NAME_NAME + "=?";
-        String[] selectionArgs = {"Andy"};
+        PetQuery query = new PetQuery.Builder()
+                .whereEquals(PetContract.PetEntry.COLUMN_NAME_NAME, "Andy")
+                .build();
 
-        int rowsAffected = getContentResolver().update(PetContract.PetEntry.CONTENT_URI,
+        int rowsAffected = getContentResolver().update(
+                interactive(PetContract.PetEntry.CONTENT_URI),
                 values,
-                selection,
-                selectionArgs);
+                query.getSelection(),
+                query.getSelectionArgs());
     }
 
     private void deletePets() {
-        int rowsAffected = getContentResolver().delete(PetContract.PetEntry.CONTENT_URI,
+        // Archived pets too, or they would come back with the next upsert of their key
+        int rowsAffected = getContentResolver().delete(interactive(
+                PetContract.PetEntry.buildIncludeArchiveUri(PetContract.PetEntry.CONTENT_URI)),
                 null, null);
     }
 
+    /**
+     * Delete the given pets with one statement per chunk of IDs instead of one call per pet.
+     */
+    private void deletePets(long[] ids) {
+        int rowsAffected = getContentResolver().delete(
+                interactive(PetContract.PetEntry.buildIdsUri(ids)), null, null);
+
+        Log.v(LOG_TAG, "rows deleted: " + rowsAffected);
+    }
+
+    /**
+     * These calls run on the main thread, so they must not queue behind a background import
+     * or archive pass in the provider.
+     */
+    private static Uri interactive(Uri uri) {
+        return PetContract.PetEntry.buildPriorityUri(uri, PetContract.PRIORITY_INTERACTIVE);
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        PetTrace.beginSection("Catalog.onCreateLoader");
+        try {
+            return createCatalogLoader();
+        } finally {
+            PetTrace.endSection();
+        }
+    }
 
+    private Loader<Cursor> createCatalogLoader() {
         // Projection used to perform query
         String[] projection = {
                 PetContract.PetEntry._ID,
                 PetContract.PetEntry.COLUMN_NAME_BREED,
                 PetContract.PetEntry.COLUMN_NAME_NAME,
                 PetContract.PetEntry.COLUMN_NAME_GENDER,
-                PetContract.PetEntry.COLUMN_NAME_WEIGHT};
+                PetContract.PetEntry.COLUMN_NAME_WEIGHT,
+                PetContract.PetEntry.COLUMN_NAME_PHOTO};
 
-        return new CursorLoader(getApplicationContext(),
+        return new TracedCursorLoader(getApplicationContext(),
+                "Catalog.loadInBackground",
                 PetContract.PetEntry.CONTENT_URI,
                 projection,
                 null,
@@ -179,11 +548,41 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        PetTrace.beginSection("Catalog.onLoadFinished");
+        try {
+            // Swap the new cursor in. Note: The framework will take care of closing
+            // the old cursor once we return.
+            PetTrace.beginSection("Catalog.swapCursor");
+            try {
+                Cursor previous = mPetCursorAdapter.swapCursor(data);
+                if (mShowingSnapshot) {
+                    // The live rows replace the snapshot; stable IDs keep the scroll position
+                    mShowingSnapshot = false;
+                    if (previous != null) {
+                        previous.close();
+                    }
+                }
+                if (!mLiveRowsShown) {
+                    // Compare with the snapshot's time to see what it saves
+                    mLiveRowsShown = true;
+                    logTimeToFirstRow("provider", data);
+                }
+            } finally {
+                PetTrace.endSection();
+            }
 
-        // Swap the new cursor in. Note: The framework will take care of closing
-        // the old cursor once we return.
-        mPetCursorAdapter.swapCursor(data);
-
+            // Prefetch once the list has laid out the new rows. The layout pass in between
+            // is where newView and bindView run.
+            final ListView listView = (ListView) findViewById(R.id.list);
+            listView.post(new Runnable() {
+                @Override
+                public void run() {
+                    mPetPrefetcher.prefetch(listView);
+                }
+            });
+        } finally {
+            PetTrace.endSection();
+        }
     }
 
     @Override
@@ -16,18 +16,24 @@
 package com.example.android.pets;
 
 import android.app.Dialog;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.NavUtils;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -40,6 +46,18 @@ import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetDraftJournal;
+import com.example.android.pets.data.PetPrefetcher;
+import com.example.android.pets.data.PetRowCache;
+import com.example.android.pets.data.PetSaveLoader;
+import com.example.android.pets.data.PetTrace;
+import com.example.android.pets.data.TracedCursorLoader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -50,6 +68,15 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     private static final int UNIQUE_ID_FOR_LOADER = 0;
 
+    /** Loader that writes the pet, kept across configuration changes while a save is pending */
+    private static final int SAVE_LOADER_ID = 1;
+
+    /** Key of the form's values in the save loader's arguments */
+    private static final String ARG_VALUES = "values";
+
+    /** Request code for picking the pet's photo */
+    private static final int REQUEST_PICK_PHOTO = 1;
+
     /**
      * Boolean to listen for whether the user has changed anything
      */
@@ -72,6 +99,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private Uri mCurrentPetUri;
 
+    /**
+     * The {@link PetRowCache} generation when the loader was created, so a row it loads isn't
+     * cached as current after a write that raced with the load. -1 for a loader kept across a
+     * configuration change, whose rows are then not cached.
+     */
+    private long mLoadGeneration = -1;
+
     /**
      * EditText field to enter the pet's name
      */
@@ -98,9 +132,69 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private int mGender = 0;
 
+    /**
+     * Uptime at which onCreate started, used to log how long the form took to populate
+     */
+    private long mCreatedAtMillis;
+
+    /**
+     * Whether the form has been populated for the current pet, from the cache or the loader
+     */
+    private boolean mFormPopulated = false;
+
+    /**
+     * Unsaved edits, kept on disk so they survive the process being killed
+     */
+    private PetDraftJournal mDraftJournal;
+
+    /**
+     * Set while the form is filled in from stored values, so that isn't taken for user edits
+     */
+    private boolean mPopulating = false;
+
+    /**
+     * Set while a save is pending, so the Save menu item can't start a second one
+     */
+    private boolean mSaving = false;
+
+    /**
+     * Callbacks of the save loader. The result closes the editor once the pet has been written.
+     */
+    private LoaderManager.LoaderCallbacks<Boolean> mSaveCallbacks =
+            new LoaderManager.LoaderCallbacks<Boolean>() {
+                @Override
+                public Loader<Boolean> onCreateLoader(int id, Bundle args) {
+                    return new PetSaveLoader(getApplicationContext(), mCurrentPetUri,
+                            (ContentValues) args.getParcelable(ARG_VALUES));
+                }
+
+                @Override
+                public void onLoadFinished(Loader<Boolean> loader, Boolean saved) {
+                    mSaving = false;
+                    Toast.makeText(getApplicationContext(), saved
+                                    ? R.string.toast_success
+                                    : R.string.toast_error,
+                            Toast.LENGTH_SHORT).show();
+                    // Only a pet that was written closes the editor; otherwise the user can fix it
+                    if (saved) {
+                        mDraftJournal.discard();
+                        finish();
+                    } else {
+                        // Drop the failed save, so it isn't reported again after a rotation
+                        getSupportLoaderManager().destroyLoader(SAVE_LOADER_ID);
+                        invalidateOptionsMenu();
+                    }
+                }
+
+                @Override
+                public void onLoaderReset(Loader<Boolean> loader) {
+                }
+            };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreatedAtMillis = SystemClock.uptimeMillis();
         setContentView(R.layout.activity_editor);
 
         // Use getIntent() and getData() to get the associated URI
@@ -135,6 +229,114 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mGenderSpinner.setOnTouchListener(mTouchListener);
 
         setupSpinner();
+
+        mDraftJournal = new PetDraftJournal(this, mCurrentPetUri);
+
+        // An editor recreated during a save reconnects to it rather than allowing another one
+        if (getSupportLoaderManager().getLoader(SAVE_LOADER_ID) != null) {
+            mSaving = true;
+            getSupportLoaderManager().initLoader(SAVE_LOADER_ID, null, mSaveCallbacks);
+        }
+        if (savedInstanceState == null) {
+            // Bring back anything typed before the process was killed
+            mDraftJournal.load(new PetDraftJournal.Callback() {
+                @Override
+                public void onDraftLoaded(Map<String, String> draft) {
+                    if (!draft.isEmpty() && !mPetHasChanged && !isFinishing()) {
+                        applyDraft(draft);
+                    }
+                }
+            });
+        }
+
+        // If the catalog prefetched this pet, show it right away. The loader started above still
+        // runs and verifies the row in the background.
+        if (mCurrentPetUri != null && savedInstanceState == null) {
+            ContentValues cachedPet =
+                    PetRowCache.getInstance().get(ContentUris.parseId(mCurrentPetUri));
+            if (cachedPet != null) {
+                populateForm(cachedPet, "cache");
+            }
+        }
+    }
+
+    @Override
+    protected void onPostCreate(Bundle savedInstanceState) {
+        super.onPostCreate(savedInstanceState);
+        // Added after the EditTexts restored their own state, so that doesn't count as an edit
+        mNameEditText.addTextChangedListener(
+                new DraftWatcher(PetContract.PetEntry.COLUMN_NAME_NAME));
+        mBreedEditText.addTextChangedListener(
+                new DraftWatcher(PetContract.PetEntry.COLUMN_NAME_BREED));
+        mWeightEditText.addTextChangedListener(
+                new DraftWatcher(PetContract.PetEntry.COLUMN_NAME_WEIGHT));
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mDraftJournal.flush();
+        if (isFinishing()) {
+            Log.v(LOG_TAG, "Draft journal: " + mDraftJournal.getStats());
+        }
+    }
+
+    /**
+     * Records every change the user makes to a text field in the draft journal
+     */
+    private class DraftWatcher implements TextWatcher {
+        private final String mField;
+
+        DraftWatcher(String field) {
+            mField = field;
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            if (mPopulating) {
+                return;
+            }
+            mPetHasChanged = true;
+            mDraftJournal.record(mField, s.toString());
+        }
+    }
+
+    /**
+     * Fill the form with a draft left behind by an earlier editor
+     */
+    private void applyDraft(Map<String, String> draft) {
+        mPopulating = true;
+        try {
+            String name = draft.get(PetContract.PetEntry.COLUMN_NAME_NAME);
+            String breed = draft.get(PetContract.PetEntry.COLUMN_NAME_BREED);
+            String weight = draft.get(PetContract.PetEntry.COLUMN_NAME_WEIGHT);
+            String gender = draft.get(PetContract.PetEntry.COLUMN_NAME_GENDER);
+            if (name != null) {
+                mNameEditText.setText(name);
+            }
+            if (breed != null) {
+                mBreedEditText.setText(breed);
+            }
+            if (weight != null) {
+                mWeightEditText.setText(weight);
+            }
+            if (gender != null) {
+                mGenderSpinner.setSelection(Integer.parseInt(gender));
+            }
+        } finally {
+            mPopulating = false;
+        }
+        // The draft differs from what is stored, so leaving now should ask first
+        mPetHasChanged = true;
+        Toast.makeText(this, R.string.editor_draft_restored, Toast.LENGTH_SHORT).show();
     }
 
     @Override
@@ -144,7 +346,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         if (mCurrentPetUri == null) {
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
+            // A photo can only be attached once the pet has been saved
+            menu.findItem(R.id.action_choose_photo).setVisible(false);
         }
+        // A pending save has to land or fail before the pet can be saved again
+        menu.findItem(R.id.action_save).setEnabled(!mSaving);
         return true;
     }
 
@@ -215,6 +421,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         // User clicked "Discard" button, close the current activity
+                        mDraftJournal.discard();
                         finish();
                     }
                 };
@@ -252,6 +459,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                         mGender = PetContract.PetEntry.GENDER_UNKNOWN; // Unknown
                     }
                 }
+                // Selections made while populating the form arrive here later, but only
+                // after the user touched the form can this be an edit
+                if (mPetHasChanged) {
+                    mDraftJournal.record(PetContract.PetEntry.COLUMN_NAME_GENDER,
+                            Integer.toString(mGender));
+                }
             }
 
             // Because AdapterView is an abstract class, onNothingSelected must be defined
@@ -275,6 +488,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 TextUtils.isEmpty(mNameEditText.getText()) &&
                 TextUtils.isEmpty(mBreedEditText.getText()) &&
                 TextUtils.isEmpty(Integer.toString(mGender))) {
+            finish();
             return;
         }
         // If the user forgets to add a weight, the default value is '0'
@@ -288,27 +502,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         value.put(PetContract.PetEntry.COLUMN_NAME_GENDER, mGender);
         value.put(PetContract.PetEntry.COLUMN_NAME_WEIGHT, weightInteger);
 
-        // Used to see whether the pet has been successfully saved
-        int rowsAffected = 0;
-        // Defines a new Uri Object that receives the result of the insertion
-        // and insert new data into the database
-        if (mCurrentPetUri == null) {
-            // If mCurrentPetUri == null, then we are creating a new pet
-            Uri mNewUri = getContentResolver().insert(PetContract.PetEntry.CONTENT_URI, value);
-            rowsAffected = 1;
-        } else {
-            // if mCurrentPetUri != null, then we are editing an existing pet
-            rowsAffected = getContentResolver().update(mCurrentPetUri, value, null, null);
-        }
-
-        String toastMessage;
-        if (rowsAffected == 0) {
-            toastMessage = getString(R.string.toast_error);
-        } else {
-            toastMessage = getString(R.string.toast_success);
-        }
-
-        Toast.makeText(getApplicationContext(), toastMessage, Toast.LENGTH_SHORT).show();
+        // The pet is written in one provider transaction by a loader, so the save survives a
+        // configuration change. The draft is only dropped once the write has landed.
+        Bundle args = new Bundle();
+        args.putParcelable(ARG_VALUES, value);
+        mSaving = true;
+        invalidateOptionsMenu();
+        getSupportLoaderManager().restartLoader(SAVE_LOADER_ID, args, mSaveCallbacks);
     }
 
     /**
@@ -321,6 +521,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         // Show a toast message
         String toastMessage;
         if (numberOfPetsAffected == 1) {
+            // The draft only goes with the pet; a failed delete keeps it for another try
+            mDraftJournal.discard();
             toastMessage = getString(R.string.editor_delete_pet_successful);
         } else {
             toastMessage = getString(R.string.editor_delete_pet_failed);
@@ -358,12 +560,16 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
+                if (mSaving) {
+                    // A tap that arrived before the menu was updated
+                    return true;
+                }
                 if (checkFields()) {
-                    // Save pet to database
+                    // Save pet to database; the editor closes once the save has landed
                     savePet();
-                    // Exit activity
-                    finish();
                 } else {
+                    // Nothing worth saving, so nothing worth keeping as a draft either
+                    mDraftJournal.discard();
                     finish();
                 }
                 return true;
@@ -372,6 +578,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 // Show the delete confirmation dialog
                 showDeleteConfirmationDialog();
                 return true;
+            // Respond to a click on the "Choose photo" menu option
+            case R.id.action_choose_photo:
+                Intent pickPhoto = new Intent(Intent.ACTION_GET_CONTENT);
+                pickPhoto.setType("image/*");
+                startActivityForResult(pickPhoto, REQUEST_PICK_PHOTO);
+                return true;
             // Respond to a click on the "Up" arrow button in the app bar
             case android.R.id.home:
                 // If the pet hasn't changed, continue with navigating up to parent activity
@@ -390,6 +602,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
                                 // User clicked "Discard" button, navigate to parent activity
+                                mDraftJournal.discard();
                                 NavUtils.navigateUpFromSameTask(EditorActivity.this);
                             }
                         };
@@ -401,8 +614,84 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_PICK_PHOTO) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                savePhoto(data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /**
+     * Copy the picked image into the provider as this pet's photo, off the main thread
+     */
+    private void savePhoto(final Uri source) {
+        final Uri photoUri = PetContract.PetEntry.buildPhotoUri(
+                ContentUris.parseId(mCurrentPetUri));
+        final ContentResolver resolver = getContentResolver();
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    in = resolver.openInputStream(source);
+                    out = resolver.openOutputStream(photoUri);
+                    if (in == null || out == null) {
+                        return false;
+                    }
+                    byte[] buffer = new byte[16 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                    return true;
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to save photo from " + source, e);
+                    return false;
+                } finally {
+                    closeQuietly(in);
+                    closeQuietly(out);
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean saved) {
+                Toast.makeText(getApplicationContext(), saved
+                                ? R.string.editor_photo_saved
+                                : R.string.editor_photo_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        }.execute();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to close " + closeable, e);
+        }
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        PetTrace.beginSection("Editor.onCreateLoader");
+        try {
+            return createPetLoader();
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+
+    private Loader<Cursor> createPetLoader() {
+        mLoadGeneration = PetRowCache.getInstance().getGeneration();
+
         // Projection used to perform query
         String[] projection = {
                 PetContract.PetEntry._ID,
@@ -411,7 +700,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 PetContract.PetEntry.COLUMN_NAME_GENDER,
                 PetContract.PetEntry.COLUMN_NAME_WEIGHT};
 
-        return new CursorLoader(getApplicationContext(),
+        return new TracedCursorLoader(getApplicationContext(),
+                "Editor.loadInBackground",
                 mCurrentPetUri,
                 projection,
                 null,
@@ -421,35 +711,76 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        PetTrace.beginSection("Editor.onLoadFinished");
+        try {
+            // Proceed with moving to the first row of the cursor and reading data from it
+            // This this be the only row in the cursor
+            if (data.moveToFirst()) {
+                ContentValues pet = PetPrefetcher.readRow(data);
+                PetRowCache.getInstance().put(ContentUris.parseId(mCurrentPetUri), pet,
+                        mLoadGeneration);
+
+                // Don't overwrite anything the user has already typed over the cached values
+                if (!mPetHasChanged) {
+                    populateForm(pet, "loader");
+                }
+            }
+        } finally {
+            PetTrace.endSection();
+        }
+    }
 
-        // Proceed with moving to the first row of the cursor and reading data from it
-        // This this be the only row in the cursor
-        if (data.moveToFirst()) {
-            int nameColumnIndex = data.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME_NAME);
-            int breedColumnIndex = data.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME_BREED);
-            int genderColumnIndex = data.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME_GENDER);
-            int weightColumnIndex = data.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME_WEIGHT);
-
-            mNameEditText.setText(data.getString(nameColumnIndex));
-            mBreedEditText.setText(data.getString(breedColumnIndex));
-            mWeightEditText.setText(Integer.toString(data.getInt(weightColumnIndex)));
+    /**
+     * Fill the form with the pet's values. Fields that already show the same value are left
+     * alone, so verifying a cached row doesn't disturb the cursor position in the EditTexts.
+     *
+     * @param source where the values came from, for the time-to-populated-form log
+     */
+    private void populateForm(ContentValues pet, String source) {
+        PetTrace.beginSection("Editor.populateForm");
+        mPopulating = true;
+        try {
+            String name = pet.getAsString(PetContract.PetEntry.COLUMN_NAME_NAME);
+            String breed = pet.getAsString(PetContract.PetEntry.COLUMN_NAME_BREED);
+            String weight = Integer.toString(
+                    pet.getAsInteger(PetContract.PetEntry.COLUMN_NAME_WEIGHT));
+            int gender = pet.getAsInteger(PetContract.PetEntry.COLUMN_NAME_GENDER);
+
+            if (!TextUtils.equals(mNameEditText.getText(), name)) {
+                mNameEditText.setText(name);
+            }
+            if (!TextUtils.equals(mBreedEditText.getText(), breed)) {
+                mBreedEditText.setText(breed);
+            }
+            if (!TextUtils.equals(mWeightEditText.getText(), weight)) {
+                mWeightEditText.setText(weight);
+            }
             // If the gender is know, set the spinner to that value. If not, set it to unknown
-            if (data.getInt(genderColumnIndex) == PetContract.PetEntry.GENDER_MALE ||
-                    data.getInt(genderColumnIndex) == PetContract.PetEntry.GENDER_FEMALE) {
-                mGenderSpinner.setSelection(data.getInt(genderColumnIndex));
+            if (gender == PetContract.PetEntry.GENDER_MALE ||
+                    gender == PetContract.PetEntry.GENDER_FEMALE) {
+                mGenderSpinner.setSelection(gender);
             } else {
                 mGenderSpinner.setSelection(PetContract.PetEntry.GENDER_UNKNOWN);
             }
 
-            Log.v(LOG_TAG, "********************************Let's see what we got: " + data.getInt(genderColumnIndex));
+            if (!mFormPopulated) {
+                mFormPopulated = true;
+                Log.v(LOG_TAG, "Form populated from " + source + " in "
+                        + (SystemClock.uptimeMillis() - mCreatedAtMillis) + " ms");
+            }
+        } finally {
+            mPopulating = false;
+            PetTrace.endSection();
         }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
 
+        mPopulating = true;
         mNameEditText.setText("");
         mBreedEditText.setText("");
+        mPopulating = false;
 
     }
 }
\ No newline at end of file
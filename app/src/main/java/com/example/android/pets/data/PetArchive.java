@@ -0,0 +1,344 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+
+/**
+ * {@link PetArchive} keeps pets nobody works with any more out of the pets table, so the
+ * catalog's queries and the table's indexes only cover the pets a shelter still has. Every
+ * shelter database attaches a second file as the {@link #SCHEMA} schema, and {@link #archive}
+ * moves pets into it in batches: adopted pets once they haven't been written for
+ * {@link #ADOPTED_AGE_MILLIS}, and any pet that hasn't been written for
+ * {@link #INACTIVE_AGE_MILLIS}.
+ *
+ * An archived pet keeps its _id, its photo and its weight history, which stays in the
+ * shelter database. Its breed is stored as the label, so it doesn't depend on the ids of a
+ * breeds table that a restore may replace. Queries see archived pets through the temporary
+ * view {@link #VIEW_NAME}, which adds them to pets_view; a write to a single archived pet
+ * moves it back with {@link #restore} first.
+ *
+ * SQLite hands out the highest _id plus one, which may be the _id of a pet that was archived
+ * after it, so inserts take their _id from {@link #SQL_RESERVED_ID} instead.
+ */
+final class PetArchive {
+
+    /** Name the archive database is attached under */
+    static final String SCHEMA = "archive";
+
+    /**
+     * Temporary view with the columns of pets_view, over the pets of both tiers. A view in
+     * the main schema can't refer to an attached database, so every connection creates it
+     * when it opens.
+     */
+    static final String VIEW_NAME = "pets_all";
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /** How long an adopted pet stays in the pets table after its last write */
+    static final long ADOPTED_AGE_MILLIS = 30 * DAY_MILLIS;
+
+    /** How long any pet stays in the pets table after its last write */
+    static final long INACTIVE_AGE_MILLIS = 2 * 365 * DAY_MILLIS;
+
+    /** Pets moved per transaction */
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** When the pet was moved to the archive, in milliseconds since the epoch */
+    private static final String COLUMN_ARCHIVED_AT = "archived_at";
+
+    /** Index backing upserts of archived pets on their external ID */
+    private static final String INDEX_EXTERNAL_ID = "pets_archive_external_id";
+
+    private static final String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + SCHEMA +
+            "." + PetEntry.TABLE_NAME +
+            " (" +
+            PetEntry._ID + " INTEGER PRIMARY KEY," +
+            PetEntry.COLUMN_NAME_NAME + " TEXT NOT NULL," +
+            PetEntry.COLUMN_NAME_BREED + " TEXT," +
+            PetEntry.COLUMN_NAME_GENDER + " INTEGER NOT NULL," +
+            PetEntry.COLUMN_NAME_WEIGHT + " INTEGER NOT NULL DEFAULT 0," +
+            PetEntry.COLUMN_NAME_EXTERNAL_ID + " TEXT," +
+            PetEntry.COLUMN_NAME_PHOTO + " TEXT," +
+            PetEntry.COLUMN_NAME_FINGERPRINT + " INTEGER," +
+            PetEntry.COLUMN_NAME_DUPLICATE_OF + " INTEGER," +
+            PetEntry.COLUMN_NAME_ADOPTED + " INTEGER NOT NULL DEFAULT 0," +
+            PetEntry.COLUMN_NAME_LAST_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
+            COLUMN_ARCHIVED_AT + " INTEGER NOT NULL)";
+
+    private static final String SQL_CREATE_EXTERNAL_ID_INDEX = "CREATE INDEX IF NOT EXISTS " +
+            SCHEMA + "." + INDEX_EXTERNAL_ID + " ON " + PetEntry.TABLE_NAME +
+            " (" + PetEntry.COLUMN_NAME_EXTERNAL_ID + ")";
+
+    /** Columns the archive shares with pets_view */
+    private static final String VIEW_COLUMNS = PetEntry._ID + ", " +
+            PetEntry.COLUMN_NAME_NAME + ", " +
+            PetEntry.COLUMN_NAME_BREED + ", " +
+            PetEntry.COLUMN_NAME_GENDER + ", " +
+            PetEntry.COLUMN_NAME_WEIGHT + ", " +
+            PetEntry.COLUMN_NAME_EXTERNAL_ID + ", ";
+
+    private static final String VIEW_COLUMNS_AFTER_BREED_ID = PetEntry.COLUMN_NAME_PHOTO + ", " +
+            PetEntry.COLUMN_NAME_DUPLICATE_OF + ", " +
+            PetEntry.COLUMN_NAME_ADOPTED + ", " +
+            PetEntry.COLUMN_NAME_LAST_MODIFIED + ", ";
+
+    private static final String SQL_CREATE_VIEW = "CREATE TEMP VIEW IF NOT EXISTS " +
+            VIEW_NAME + " AS SELECT " +
+            VIEW_COLUMNS + PetEntry.COLUMN_NAME_BREED_ID + ", " + VIEW_COLUMNS_AFTER_BREED_ID +
+            PetEntry.COLUMN_NAME_ARCHIVED + " FROM main." + PetEntry.VIEW_NAME;
+
+    /** The archive's pets, in the columns of pets_view; archived pets have no breed key */
+    private static final String SQL_ARCHIVED_ROWS = " UNION ALL SELECT " +
+            VIEW_COLUMNS + "NULL, " + VIEW_COLUMNS_AFTER_BREED_ID + "1 FROM " + SCHEMA + "." +
+            PetEntry.TABLE_NAME;
+
+    /**
+     * The _id the next new pet must take, or 0 if SQLite's own choice is safe: that is, if no
+     * archived pet has an _id above every pet in the pets table.
+     */
+    static final String SQL_RESERVED_ID = "SELECT CASE WHEN archived > hot THEN archived + 1 " +
+            "ELSE 0 END FROM (SELECT IFNULL(MAX(" + PetEntry._ID + "), 0) AS archived FROM " +
+            SCHEMA + "." + PetEntry.TABLE_NAME + "), (SELECT IFNULL(MAX(" + PetEntry._ID +
+            "), 0) AS hot FROM main." + PetEntry.TABLE_NAME + ")";
+
+    /**
+     * Pets due for the archive, oldest write first within each rule. Both halves read a
+     * range of the (adopted, last_modified) index.
+     */
+    private static final String SQL_DUE = "SELECT " + PetEntry._ID + " FROM main." +
+            PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_NAME_ADOPTED + " = 1 AND " +
+            PetEntry.COLUMN_NAME_LAST_MODIFIED + " < ? UNION ALL SELECT " + PetEntry._ID +
+            " FROM main." + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_NAME_ADOPTED +
+            " = 0 AND " + PetEntry.COLUMN_NAME_LAST_MODIFIED + " < ? LIMIT ?";
+
+    private static final String SQL_ARCHIVE_ONE = "INSERT OR REPLACE INTO " + SCHEMA + "." +
+            PetEntry.TABLE_NAME + " (" + PetEntry._ID + ", " +
+            PetEntry.COLUMN_NAME_NAME + ", " +
+            PetEntry.COLUMN_NAME_BREED + ", " +
+            PetEntry.COLUMN_NAME_GENDER + ", " +
+            PetEntry.COLUMN_NAME_WEIGHT + ", " +
+            PetEntry.COLUMN_NAME_EXTERNAL_ID + ", " +
+            PetEntry.COLUMN_NAME_PHOTO + ", " +
+            PetEntry.COLUMN_NAME_FINGERPRINT + ", " +
+            PetEntry.COLUMN_NAME_DUPLICATE_OF + ", " +
+            PetEntry.COLUMN_NAME_ADOPTED + ", " +
+            PetEntry.COLUMN_NAME_LAST_MODIFIED + ", " +
+            COLUMN_ARCHIVED_AT + ") SELECT pets." + PetEntry._ID + ", " +
+            PetEntry.COLUMN_NAME_NAME + ", " +
+            "COALESCE(" + BreedEntry.TABLE_NAME + "." + BreedEntry.COLUMN_NAME_LABEL + ", pets." +
+            PetEntry.COLUMN_NAME_BREED + "), " +
+            PetEntry.COLUMN_NAME_GENDER + ", " +
+            PetEntry.COLUMN_NAME_WEIGHT + ", " +
+            PetEntry.COLUMN_NAME_EXTERNAL_ID + ", " +
+            PetEntry.COLUMN_NAME_PHOTO + ", " +
+            PetEntry.COLUMN_NAME_FINGERPRINT + ", " +
+            PetEntry.COLUMN_NAME_DUPLICATE_OF + ", " +
+            PetEntry.COLUMN_NAME_ADOPTED + ", " +
+            PetEntry.COLUMN_NAME_LAST_MODIFIED + ", ?" +
+            " FROM main." + PetEntry.TABLE_NAME + " AS pets LEFT JOIN main." +
+            BreedEntry.TABLE_NAME + " ON pets." + PetEntry.COLUMN_NAME_BREED_ID + " = " +
+            BreedEntry.TABLE_NAME + "." + BreedEntry._ID + " WHERE pets." + PetEntry._ID + " = ?";
+
+    /**
+     * Copy archived pets back, with the breed key looked up again. A label the dictionary
+     * doesn't have is kept in the breed column, which pets_view falls back to. A pet whose
+     * _id or external ID is taken in the pets table is left where it is.
+     */
+    private static final String SQL_RESTORE = "INSERT OR IGNORE INTO main." +
+            PetEntry.TABLE_NAME + " (" + PetEntry._ID + ", " +
+            PetEntry.COLUMN_NAME_NAME + ", " +
+            PetEntry.COLUMN_NAME_BREED + ", " +
+            PetEntry.COLUMN_NAME_GENDER + ", " +
+            PetEntry.COLUMN_NAME_WEIGHT + ", " +
+            PetEntry.COLUMN_NAME_EXTERNAL_ID + ", " +
+            PetEntry.COLUMN_NAME_BREED_ID + ", " +
+            PetEntry.COLUMN_NAME_PHOTO + ", " +
+            PetEntry.COLUMN_NAME_FINGERPRINT + ", " +
+            PetEntry.COLUMN_NAME_DUPLICATE_OF + ", " +
+            PetEntry.COLUMN_NAME_ADOPTED + ", " +
+            PetEntry.COLUMN_NAME_LAST_MODIFIED + ") SELECT " + PetEntry._ID + ", " +
+            PetEntry.COLUMN_NAME_NAME + ", " +
+            "CASE WHEN EXISTS (SELECT 1 FROM main." + BreedEntry.TABLE_NAME + " WHERE " +
+            BreedEntry.COLUMN_NAME_LABEL + " = " + PetEntry.COLUMN_NAME_BREED + ") THEN NULL " +
+            "ELSE " + PetEntry.COLUMN_NAME_BREED + " END, " +
+            PetEntry.COLUMN_NAME_GENDER + ", " +
+            PetEntry.COLUMN_NAME_WEIGHT + ", " +
+            PetEntry.COLUMN_NAME_EXTERNAL_ID + ", " +
+            "(SELECT " + BreedEntry._ID + " FROM main." + BreedEntry.TABLE_NAME + " WHERE " +
+            BreedEntry.COLUMN_NAME_LABEL + " = " + PetEntry.COLUMN_NAME_BREED + "), " +
+            PetEntry.COLUMN_NAME_PHOTO + ", " +
+            PetEntry.COLUMN_NAME_FINGERPRINT + ", " +
+            PetEntry.COLUMN_NAME_DUPLICATE_OF + ", " +
+            PetEntry.COLUMN_NAME_ADOPTED + ", ? FROM " + SCHEMA + "." + PetEntry.TABLE_NAME;
+
+    private PetArchive() {
+    }
+
+    /**
+     * The file name of the archive that goes with a shelter database, e.g.
+     * shelter_archive.db for shelter.db
+     */
+    static String fileName(String databaseName) {
+        String base = databaseName.endsWith(".db")
+                ? databaseName.substring(0, databaseName.length() - 3) : databaseName;
+        return base + "_archive.db";
+    }
+
+    /**
+     * Attach the archive, creating it on first use, and create {@link #VIEW_NAME}. Call
+     * whenever a writable connection is opened, outside any transaction.
+     */
+    static void attach(SQLiteDatabase db, File file) {
+        db.execSQL("ATTACH DATABASE ? AS " + SCHEMA, new Object[] {file.getPath()});
+        db.execSQL(SQL_CREATE_TABLE);
+        db.execSQL(SQL_CREATE_EXTERNAL_ID_INDEX);
+        db.execSQL(SQL_CREATE_VIEW + SQL_ARCHIVED_ROWS);
+    }
+
+    /**
+     * Create {@link #VIEW_NAME} over the pets table alone, for a read-only connection that
+     * can't attach the archive
+     */
+    static void createHotView(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_VIEW);
+    }
+
+    /**
+     * The _id a new pet has to be inserted with, or 0 to let SQLite choose; see
+     * {@link #SQL_RESERVED_ID}. Call inside the transaction that inserts it.
+     */
+    static long reservedId(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, SQL_RESERVED_ID, null);
+    }
+
+    /**
+     * Move every pet that is due into the archive, batchSize pets per transaction. Blocks
+     * until done, so call it from a background thread.
+     *
+     * @param now       the time the ages are counted back from
+     * @param scheduler each batch is run as one of the calling operation's chunks
+     * @return the number of pets archived
+     */
+    static int archive(SQLiteDatabase db, long now, int batchSize, PetScheduler scheduler) {
+        String[] dueArgs = {String.valueOf(now - ADOPTED_AGE_MILLIS),
+                String.valueOf(now - INACTIVE_AGE_MILLIS), String.valueOf(batchSize)};
+        int archived = 0;
+        while (true) {
+            scheduler.beginChunk();
+            db.beginTransaction();
+            try {
+                long[] ids = readIds(db.rawQuery(SQL_DUE, dueArgs));
+                if (ids.length == 0) {
+                    db.setTransactionSuccessful();
+                    return archived;
+                }
+                SQLiteStatement copy = db.compileStatement(SQL_ARCHIVE_ONE);
+                SQLiteStatement delete = db.compileStatement("DELETE FROM main." +
+                        PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = ?");
+                try {
+                    for (long id : ids) {
+                        copy.bindLong(1, now);
+                        copy.bindLong(2, id);
+                        copy.executeInsert();
+                        delete.bindLong(1, id);
+                        archived += delete.executeUpdateDelete();
+                    }
+                } finally {
+                    copy.close();
+                    delete.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                scheduler.endChunk();
+            }
+        }
+    }
+
+    /**
+     * Move the archived pets the selection matches back to the pets table, as written now so
+     * they aren't archived again straight away. The selection is on the archive's own columns,
+     * which are those of pets_view without breed_id. Runs in a transaction of its own, or
+     * the caller's.
+     *
+     * @return the number of pets restored
+     */
+    static int restore(SQLiteDatabase db, String selection, String[] selectionArgs, long now) {
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = String.valueOf(now);
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        db.beginTransaction();
+        try {
+            db.execSQL(SQL_RESTORE + " WHERE " + selection, args);
+            int restored = db.delete(SCHEMA + "." + PetEntry.TABLE_NAME,
+                    "(" + selection + ") AND " + PetEntry._ID + " IN (SELECT " + PetEntry._ID +
+                            " FROM main." + PetEntry.TABLE_NAME + ")", selectionArgs);
+            db.setTransactionSuccessful();
+            return restored;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Delete the archived pets a selection on pets_view matches, along with their weight
+     * history, in one transaction
+     *
+     * @return the number of pets deleted
+     */
+    static int delete(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String archived = PetEntry.COLUMN_NAME_ARCHIVED + " = 1";
+        if (selection != null && !selection.isEmpty()) {
+            archived += " AND (" + selection + ")";
+        }
+        db.beginTransaction();
+        try {
+            long[] ids = readIds(db.query(VIEW_NAME, new String[] {PetEntry._ID}, archived,
+                    selectionArgs, null, null, null));
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + SCHEMA + "." +
+                    PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = ?");
+            int deleted = 0;
+            try {
+                for (long id : ids) {
+                    delete.bindLong(1, id);
+                    deleted += delete.executeUpdateDelete();
+                }
+            } finally {
+                delete.close();
+            }
+            PetWeightHistory.deletePets(db, ids);
+            db.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drop the archived copies of pets the pets table holds too. That only happens after a
+     * backup from before they were archived is restored; the restored copy wins.
+     */
+    static void dropRestored(SQLiteDatabase db) {
+        db.delete(SCHEMA + "." + PetEntry.TABLE_NAME, PetEntry._ID + " IN (SELECT " +
+                PetEntry._ID + " FROM main." + PetEntry.TABLE_NAME + ")", null);
+    }
+
+    private static long[] readIds(Cursor cursor) {
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
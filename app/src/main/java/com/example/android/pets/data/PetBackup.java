@@ -0,0 +1,444 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.WeightEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * {@link PetBackup} snapshots shelter.db while the provider keeps serving, and stages a
+ * snapshot so it can be swapped back in with a single rename.
+ *
+ * Copying the database file directly could catch it halfway through a transaction. Instead
+ * the snapshot is attached to the live connection and filled in small transactions, a chunk
+ * of rows at a time. Temporary triggers on the live tables record every row written while the
+ * copy runs, and those rows are copied again at the end. The last of these steps commits
+ * together with dropping the triggers, so the snapshot is exactly the database as of that
+ * commit. Each step is a chunk of the calling background operation and holds the provider's
+ * database lock for that step only, so readers, writers and a restore only ever wait for one
+ * step, never for the whole copy. A restore that gets in between two steps closes the
+ * connection the copy was using, and the backup gives up.
+ */
+class PetBackup {
+
+    /** Tag for any log messages */
+    private static final String LOG_TAG = PetBackup.class.getSimpleName();
+
+    /** Rows copied per transaction */
+    static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /** Time between two steps, so other work gets the connection in between */
+    static final long DEFAULT_THROTTLE_MILLIS = 20;
+
+    /** Catch-up rounds before the rest of the changes are copied in one final step */
+    private static final int MAX_CATCH_UP_ROUNDS = 16;
+
+    /** Every table a snapshot holds. The migration table is always empty in a snapshot. */
+    private static final String[] TABLES = {BreedEntry.TABLE_NAME, PetEntry.TABLE_NAME,
+            WeightEntry.TABLE_NAME, PetWeightHistory.ROLLUPS_TABLE, PetWeightHistory.STATE_TABLE};
+
+    /** Name the snapshot is attached under */
+    private static final String SNAPSHOT_SCHEMA = "pet_backup";
+
+    /** Temporary table of the rows written since the copy started */
+    private static final String CHANGES_TABLE = "pet_backup_changes";
+
+    // This class only has static methods
+    private PetBackup() {}
+
+    /**
+     * Copy the live database to the snapshot file. The snapshot is written next to the
+     * destination and renamed into place once complete, so the destination is never a
+     * half-written file. Blocks until done, so call it from a background thread.
+     *
+     * @param db the provider's writable database
+     * @param scheduler each step is run as one of the calling operation's chunks
+     * @param lock held for each step; whoever closes the database must hold it exclusively
+     * @throws IllegalStateException if a schema migration hasn't finished yet, or the database
+     *                               was closed by a restore before the copy was done
+     */
+    static Report backup(SQLiteDatabase db, File destination, int chunkSize,
+                         long throttleMillis, PetScheduler scheduler, Lock lock)
+            throws IOException {
+        long start = System.nanoTime();
+        List<Long> pauses = new ArrayList<>();
+        Report report = new Report();
+
+        File partial = new File(destination.getPath() + ".partial");
+        boolean attached = false;
+        boolean copied = false;
+        try {
+            beginStep(db, scheduler, lock);
+            long stepStart = System.nanoTime();
+            try {
+                if (PetMigrator.hasPendingSteps(db)) {
+                    throw new IllegalStateException(
+                            "Can't back up while a schema migration is running");
+                }
+                createSnapshot(partial, db.getVersion());
+                startTracking(db);
+                db.execSQL("ATTACH DATABASE ? AS " + SNAPSHOT_SCHEMA,
+                        new Object[] {partial.getPath()});
+                attached = true;
+            } finally {
+                pauses.add(System.nanoTime() - stepStart);
+                endStep(scheduler, lock);
+            }
+
+            // Bulk copy: each chunk is the live rows as of that step
+            for (String table : TABLES) {
+                String columns = null;
+                long checkpoint = 0;
+                while (true) {
+                    throttle(throttleMillis);
+                    beginStep(db, scheduler, lock);
+                    stepStart = System.nanoTime();
+                    long last;
+                    db.beginTransaction();
+                    try {
+                        if (columns == null) {
+                            columns = columnList(db, table);
+                        }
+                        last = PetMigration.lastRowIdOfChunk(db, "main." + table, checkpoint,
+                                chunkSize);
+                        if (last != PetMigration.DONE) {
+                            db.execSQL("INSERT OR REPLACE INTO " + SNAPSHOT_SCHEMA + "." + table +
+                                    " (" + columns + ") SELECT " + columns + " FROM main." + table +
+                                    " WHERE rowid > ? AND rowid <= ?",
+                                    new Object[] {checkpoint, last});
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        pauses.add(System.nanoTime() - stepStart);
+                        endStep(scheduler, lock);
+                    }
+                    if (last == PetMigration.DONE) {
+                        break;
+                    }
+                    checkpoint = last;
+                }
+            }
+
+            // Catch up with the rows written behind the copy. Each round takes the oldest
+            // chunk of changes; once writers are outpacing it, the rest go in one step.
+            int rounds = 0;
+            boolean done = false;
+            while (!done) {
+                throttle(throttleMillis);
+                rounds++;
+                beginStep(db, scheduler, lock);
+                stepStart = System.nanoTime();
+                db.beginTransaction();
+                try {
+                    long bound = rounds < MAX_CATCH_UP_ROUNDS
+                            ? PetMigration.lastRowIdOfChunk(db, "temp." + CHANGES_TABLE, 0,
+                                    chunkSize)
+                            : Long.MAX_VALUE;
+                    if (bound != PetMigration.DONE) {
+                        copyChanges(db, bound);
+                    }
+                    done = bound == PetMigration.DONE || bound == Long.MAX_VALUE
+                            || !hasChanges(db);
+                    if (done) {
+                        // Nothing can be written between the last copy and this, so the
+                        // snapshot is consistent as of this commit
+                        stopTracking(db);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    pauses.add(System.nanoTime() - stepStart);
+                    endStep(scheduler, lock);
+                }
+            }
+            report.catchUpRounds = rounds;
+
+            beginStep(db, scheduler, lock);
+            try {
+                db.execSQL("DETACH DATABASE " + SNAPSHOT_SCHEMA);
+            } finally {
+                endStep(scheduler, lock);
+            }
+            copied = true;
+        } finally {
+            if (!copied) {
+                discard(db, partial, attached, lock);
+            }
+        }
+
+        if (!partial.renameTo(destination)) {
+            deleteDatabaseFiles(partial);
+            throw new IOException("Could not move the snapshot to " + destination);
+        }
+
+        long[] pauseNanos = new long[pauses.size()];
+        long totalPauseNanos = 0;
+        for (int i = 0; i < pauseNanos.length; i++) {
+            pauseNanos[i] = pauses.get(i);
+            totalPauseNanos += pauseNanos[i];
+        }
+        long elapsed = System.nanoTime() - start;
+        report.pauses = new PetLatencySummary(pauseNanos, elapsed);
+        report.totalPauseMillis = totalPauseNanos / 1000000;
+        report.elapsedMillis = elapsed / 1000000;
+        report.bytes = destination.length();
+        Log.i(LOG_TAG, "Backed up to " + destination + ": " + report);
+        return report;
+    }
+
+    /**
+     * Wait for the scheduler to admit one step of the copy, then take the lock for it. Pair
+     * with {@link #endStep} in a finally block.
+     *
+     * @throws IllegalStateException if the database was closed since the last step
+     */
+    private static void beginStep(SQLiteDatabase db, PetScheduler scheduler, Lock lock) {
+        scheduler.beginChunk();
+        lock.lock();
+        if (!db.isOpen()) {
+            endStep(scheduler, lock);
+            throw new IllegalStateException("The database was restored during the backup");
+        }
+    }
+
+    /**
+     * Let other operations, and a restore, in until the next step
+     */
+    private static void endStep(PetScheduler scheduler, Lock lock) {
+        lock.unlock();
+        scheduler.endChunk();
+    }
+
+    /**
+     * Leave the live connection the way it was after a failed copy, unless a restore has
+     * already closed it and its triggers with it, and delete the partial snapshot
+     */
+    private static void discard(SQLiteDatabase db, File partial, boolean attached, Lock lock) {
+        lock.lock();
+        try {
+            if (db.isOpen()) {
+                stopTracking(db);
+                if (attached) {
+                    db.execSQL("DETACH DATABASE " + SNAPSHOT_SCHEMA);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        deleteDatabaseFiles(partial);
+    }
+
+    /**
+     * Check a snapshot and copy it next to the live database, ready for {@link #swapIn}. This
+     * is the slow part of a restore and doesn't touch the live database.
+     *
+     * @return the staged copy
+     * @throws IllegalArgumentException if the snapshot isn't a shelter database this version
+     *                                  of the app can open
+     */
+    static File stageRestore(File snapshot, File database) throws IOException {
+        SQLiteDatabase check = SQLiteDatabase.openDatabase(snapshot.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            int version = check.getVersion();
+            if (version < 1 || version > PetDbHelper.DATABASE_VERSION) {
+                throw new IllegalArgumentException("Snapshot " + snapshot +
+                        " has unsupported schema version " + version);
+            }
+            Cursor cursor = check.rawQuery("PRAGMA quick_check", null);
+            try {
+                if (!cursor.moveToFirst() || !"ok".equals(cursor.getString(0))) {
+                    throw new IllegalArgumentException("Snapshot " + snapshot + " is damaged");
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            check.close();
+        }
+
+        File staged = new File(database.getPath() + ".restore");
+        FileInputStream in = new FileInputStream(snapshot);
+        FileOutputStream out = new FileOutputStream(staged);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            // The rename in swapIn must never expose a file that isn't fully on disk
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+        return staged;
+    }
+
+    /**
+     * Replace the live database with a staged snapshot. Every connection to the live database
+     * must be closed first. The rename is atomic, so a crash leaves either the old or the new
+     * database in place.
+     */
+    static void swapIn(File staged, File database) throws IOException {
+        // Any journal left now belongs to the old file and must not be replayed into the new one
+        new File(database.getPath() + "-journal").delete();
+        if (!staged.renameTo(database)) {
+            throw new IOException("Could not move " + staged + " over " + database);
+        }
+    }
+
+    /**
+     * Create an empty database with the live schema, at the live version
+     */
+    private static void createSnapshot(File file, int version) {
+        deleteDatabaseFiles(file);
+        SQLiteDatabase snapshot = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            PetDbHelper.createSchema(snapshot);
+            snapshot.setVersion(version);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Start recording every row written to the copied tables
+     */
+    private static void startTracking(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TEMP TABLE " + CHANGES_TABLE +
+                    " (table_name TEXT NOT NULL, row_id INTEGER NOT NULL," +
+                    " UNIQUE (table_name, row_id))");
+            for (String table : TABLES) {
+                String record = "INSERT OR IGNORE INTO " + CHANGES_TABLE + " VALUES ('" +
+                        table + "', %s.rowid);";
+                db.execSQL("CREATE TEMP TRIGGER " + triggerName(table, "insert") +
+                        " AFTER INSERT ON main." + table + " BEGIN " +
+                        String.format(Locale.US, record, "NEW") + " END");
+                // An update can change the rowid, so both the old and the new row are stale
+                db.execSQL("CREATE TEMP TRIGGER " + triggerName(table, "update") +
+                        " AFTER UPDATE ON main." + table + " BEGIN " +
+                        String.format(Locale.US, record, "OLD") +
+                        String.format(Locale.US, record, "NEW") + " END");
+                db.execSQL("CREATE TEMP TRIGGER " + triggerName(table, "delete") +
+                        " AFTER DELETE ON main." + table + " BEGIN " +
+                        String.format(Locale.US, record, "OLD") + " END");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void stopTracking(SQLiteDatabase db) {
+        for (String table : TABLES) {
+            db.execSQL("DROP TRIGGER IF EXISTS temp." + triggerName(table, "insert"));
+            db.execSQL("DROP TRIGGER IF EXISTS temp." + triggerName(table, "update"));
+            db.execSQL("DROP TRIGGER IF EXISTS temp." + triggerName(table, "delete"));
+        }
+        db.execSQL("DROP TABLE IF EXISTS temp." + CHANGES_TABLE);
+    }
+
+    private static String triggerName(String table, String event) {
+        return "pet_backup_" + table + "_" + event;
+    }
+
+    /**
+     * Bring the snapshot's copy of every recorded row up to date, for the changes up to and
+     * including the bound, and forget those changes. Called inside a transaction.
+     */
+    private static void copyChanges(SQLiteDatabase db, long bound) {
+        for (String table : TABLES) {
+            String columns = columnList(db, table);
+            String changed = "rowid IN (SELECT row_id FROM " + CHANGES_TABLE +
+                    " WHERE table_name = ? AND rowid <= ?)";
+            Object[] args = {table, bound};
+            db.execSQL("DELETE FROM " + SNAPSHOT_SCHEMA + "." + table + " WHERE " + changed, args);
+            // REPLACE may drop a snapshot row that still holds a unique value this row now has.
+            // That row was written too, so a later round copies it back.
+            db.execSQL("INSERT OR REPLACE INTO " + SNAPSHOT_SCHEMA + "." + table +
+                    " (" + columns + ") SELECT " + columns + " FROM main." + table +
+                    " WHERE " + changed, args);
+        }
+        db.execSQL("DELETE FROM " + CHANGES_TABLE + " WHERE rowid <= ?", new Object[] {bound});
+    }
+
+    private static boolean hasChanges(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT 1 FROM " + CHANGES_TABLE + " LIMIT 1", null);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The live table's columns, comma separated, so the copy doesn't depend on column order
+     */
+    private static String columnList(SQLiteDatabase db, String table) {
+        Cursor cursor = db.rawQuery("PRAGMA main.table_info(" + table + ")", null);
+        try {
+            int nameColumn = cursor.getColumnIndexOrThrow("name");
+            StringBuilder columns = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (columns.length() > 0) {
+                    columns.append(", ");
+                }
+                columns.append(cursor.getString(nameColumn));
+            }
+            return columns.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void throttle(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deleteDatabaseFiles(File file) {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+    }
+
+    /**
+     * What a {@link #backup} did, and how long it held up the provider
+     */
+    static class Report {
+        /** Time each step held the connection and the lock; a restore had to wait meanwhile */
+        public PetLatencySummary pauses;
+        public long totalPauseMillis;
+        public int catchUpRounds;
+        public long elapsedMillis;
+        public long bytes;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d bytes in %d ms, %d catch-up rounds; paused %d ms in total, steps: %s",
+                    bytes, elapsedMillis, catchUpRounds, totalPauseMillis, pauses);
+        }
+    }
+}
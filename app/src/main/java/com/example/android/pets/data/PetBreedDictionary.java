@@ -0,0 +1,97 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link PetBreedDictionary} turns breed labels into keys of the breeds table, creating a
+ * dictionary row the first time a label is seen. Keys are interned in memory, so after warm-up
+ * writing a pet costs no extra statements for its breed.
+ *
+ * A new label is inserted with the caller's database, so it commits or rolls back together
+ * with the pet that uses it. Keys created inside a transaction are only visible to the calling
+ * thread until {@link #onTransactionEnd} reports that the transaction committed, so no other
+ * writer can pick up the key of a breed row that is later rolled back.
+ */
+class PetBreedDictionary {
+
+    private final ConcurrentHashMap<String, Long> mIds = new ConcurrentHashMap<>();
+
+    /** Keys created by this thread's open transaction */
+    private final ThreadLocal<HashMap<String, Long>> mPendingIds =
+            new ThreadLocal<HashMap<String, Long>>() {
+                @Override
+                protected HashMap<String, Long> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    /**
+     * Return the key for the label, or null if the label is empty (unknown breed).
+     */
+    Long idFor(SQLiteDatabase db, String label) {
+        if (TextUtils.isEmpty(label)) {
+            return null;
+        }
+        Long id = mIds.get(label);
+        if (id == null) {
+            id = mPendingIds.get().get(label);
+        }
+        if (id != null) {
+            return id;
+        }
+
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " +
+                BreedEntry.TABLE_NAME + " (" + BreedEntry.COLUMN_NAME_LABEL + ") VALUES (?)");
+        SQLiteStatement find = db.compileStatement("SELECT " + BreedEntry._ID + " FROM " +
+                BreedEntry.TABLE_NAME + " WHERE " + BreedEntry.COLUMN_NAME_LABEL + " = ?");
+        try {
+            insert.bindString(1, label);
+            insert.executeInsert();
+            find.bindString(1, label);
+            id = find.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            throw new IllegalStateException("Breed " + label + " was not stored", e);
+        } finally {
+            insert.close();
+            find.close();
+        }
+        if (db.inTransaction()) {
+            mPendingIds.get().put(label, id);
+        } else {
+            mIds.put(label, id);
+        }
+        return id;
+    }
+
+    /**
+     * Publish or drop the keys this thread created during its transaction. Call after every
+     * transaction in which {@link #idFor} may have been used. Nothing happens while the
+     * transaction is nested in another one, which decides the outcome and reports it in turn.
+     */
+    void onTransactionEnd(SQLiteDatabase db, boolean committed) {
+        if (db.inTransaction()) {
+            return;
+        }
+        HashMap<String, Long> pending = mPendingIds.get();
+        if (committed) {
+            mIds.putAll(pending);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Forget every interned key, e.g. after the database file was replaced. Keys are read back
+     * from the breeds table on demand.
+     */
+    void clear() {
+        mIds.clear();
+    }
+}
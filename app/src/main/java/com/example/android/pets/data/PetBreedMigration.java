@@ -0,0 +1,70 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link PetBreedMigration} moves breed labels out of every pet row into the breeds dictionary
+ * (schema version 3).
+ *
+ * The quick part adds the breeds table, the breed_id column and the pets_view the provider
+ * reads from. The chunked part interns each chunk's labels and then swaps the row's text for
+ * the label's key. The view shows the dictionary label when a row has been converted and the
+ * old text otherwise, so reads are correct at every point of the backfill.
+ */
+class PetBreedMigration extends PetMigration {
+
+    /** pets_view as of version 3; later versions recreate it with their own columns */
+    private static final String SQL_CREATE_VIEW_V3 = PetEntry.sqlCreatePetsView(
+            PetEntry.VIEW_COLUMN_ID,
+            PetEntry.COLUMN_NAME_NAME,
+            PetEntry.VIEW_COLUMN_BREED,
+            PetEntry.COLUMN_NAME_GENDER,
+            PetEntry.COLUMN_NAME_WEIGHT,
+            PetEntry.COLUMN_NAME_EXTERNAL_ID,
+            PetEntry.COLUMN_NAME_BREED_ID);
+
+    PetBreedMigration() {
+        super(3);
+    }
+
+    @Override
+    void onUpgrade(SQLiteDatabase db) {
+        db.execSQL(BreedEntry.SQL_CREATE_BREEDS_TABLE);
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_NAME_BREED_ID + " INTEGER");
+        db.execSQL(PetEntry.SQL_CREATE_BREED_ID_INDEX);
+        db.execSQL(SQL_CREATE_VIEW_V3);
+    }
+
+    @Override
+    boolean hasBackgroundWork() {
+        return true;
+    }
+
+    @Override
+    long runChunk(SQLiteDatabase db, long checkpoint, int chunkSize) {
+        long last = lastRowIdOfChunk(db, PetEntry.TABLE_NAME, checkpoint, chunkSize);
+        if (last == DONE) {
+            return DONE;
+        }
+
+        String chunk = " WHERE rowid > ? AND rowid <= ? AND " +
+                PetEntry.COLUMN_NAME_BREED + " IS NOT NULL AND " +
+                PetEntry.COLUMN_NAME_BREED + " != ''";
+        Object[] bounds = {checkpoint, last};
+        db.execSQL("INSERT OR IGNORE INTO " + BreedEntry.TABLE_NAME +
+                " (" + BreedEntry.COLUMN_NAME_LABEL + ")" +
+                " SELECT DISTINCT " + PetEntry.COLUMN_NAME_BREED +
+                " FROM " + PetEntry.TABLE_NAME + chunk, bounds);
+        db.execSQL("UPDATE " + PetEntry.TABLE_NAME +
+                " SET " + PetEntry.COLUMN_NAME_BREED_ID + " = (SELECT " + BreedEntry._ID +
+                " FROM " + BreedEntry.TABLE_NAME +
+                " WHERE " + BreedEntry.COLUMN_NAME_LABEL + " = " + PetEntry.TABLE_NAME + "." +
+                PetEntry.COLUMN_NAME_BREED + "), " +
+                PetEntry.COLUMN_NAME_BREED + " = NULL" + chunk, bounds);
+        return last;
+    }
+}
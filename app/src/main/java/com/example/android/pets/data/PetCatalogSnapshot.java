@@ -0,0 +1,200 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * {@link PetCatalogSnapshot} is a copy of the first screen of catalog rows, kept in a small
+ * binary file so the catalog can show something the moment it starts, before shelter.db is
+ * even opened. The live cursor replaces it as soon as the loader delivers.
+ *
+ * The file is a header (magic, format version, row count) followed by one record per row:
+ * _id, gender and weight as fixed-size numbers, then name, breed and photo as length-prefixed
+ * UTF-8.
+ * It is memory-mapped when read, so loading it is a single system call plus parsing.
+ */
+public class PetCatalogSnapshot {
+
+    /** Tag for any log messages */
+    private static final String LOG_TAG = PetCatalogSnapshot.class.getSimpleName();
+
+    /** "PETS" */
+    private static final int MAGIC = 0x50455453;
+
+    /** Bump whenever the record layout changes; older files are then ignored */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Length written in place of a NULL string */
+    private static final int NULL_LENGTH = -1;
+
+    /** Size of a record whose strings are all NULL: _id, gender, weight and three lengths */
+    private static final int MIN_RECORD_BYTES = 8 + 4 + 4 + 4 + 4 + 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Columns of the cursor returned by {@link #read} */
+    public static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_NAME_NAME,
+            PetEntry.COLUMN_NAME_BREED,
+            PetEntry.COLUMN_NAME_GENDER,
+            PetEntry.COLUMN_NAME_WEIGHT,
+            PetEntry.COLUMN_NAME_PHOTO};
+
+    private final long[] mIds;
+    private final String[] mNames;
+    private final String[] mBreeds;
+    private final int[] mGenders;
+    private final int[] mWeights;
+    private final String[] mPhotos;
+
+    private PetCatalogSnapshot(int count) {
+        mIds = new long[count];
+        mNames = new String[count];
+        mBreeds = new String[count];
+        mGenders = new int[count];
+        mWeights = new int[count];
+        mPhotos = new String[count];
+    }
+
+    /**
+     * Copy up to maxRows rows from the start of a catalog cursor. Cheap enough for the main
+     * thread; write the result out with {@link #writeTo} on a background thread.
+     */
+    public static PetCatalogSnapshot capture(Cursor cursor, int maxRows) {
+        int idColumn = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_NAME_NAME);
+        int breedColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_NAME_BREED);
+        int genderColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_NAME_GENDER);
+        int weightColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_NAME_WEIGHT);
+        int photoColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_NAME_PHOTO);
+
+        // CursorAdapter relies on the position, so put it back afterwards
+        int position = cursor.getPosition();
+        PetCatalogSnapshot snapshot =
+                new PetCatalogSnapshot(Math.min(maxRows, cursor.getCount()));
+        for (int i = 0; i < snapshot.mIds.length && cursor.moveToPosition(i); i++) {
+            snapshot.mIds[i] = cursor.getLong(idColumn);
+            snapshot.mNames[i] = cursor.getString(nameColumn);
+            snapshot.mBreeds[i] = cursor.getString(breedColumn);
+            snapshot.mGenders[i] = cursor.getInt(genderColumn);
+            snapshot.mWeights[i] = cursor.getInt(weightColumn);
+            snapshot.mPhotos[i] = cursor.getString(photoColumn);
+        }
+        cursor.moveToPosition(position);
+        return snapshot;
+    }
+
+    /**
+     * Write the snapshot to the file. A temporary file is renamed over it at the end, so a
+     * reader never sees a partial snapshot.
+     */
+    public void writeTo(File file) throws IOException {
+        File partial = new File(file.getPath() + ".partial");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(partial)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mIds.length);
+            for (int i = 0; i < mIds.length; i++) {
+                out.writeLong(mIds[i]);
+                out.writeInt(mGenders[i]);
+                out.writeInt(mWeights[i]);
+                writeString(out, mNames[i]);
+                writeString(out, mBreeds[i]);
+                writeString(out, mPhotos[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!partial.renameTo(file)) {
+            partial.delete();
+            throw new IOException("Could not move the catalog snapshot to " + file);
+        }
+    }
+
+    /**
+     * Map the snapshot file and return its rows as a cursor with {@link #COLUMNS}, or null if
+     * there is no usable snapshot.
+     */
+    public static Cursor read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / MIN_RECORD_BYTES) {
+                return null;
+            }
+            MatrixCursor cursor = new MatrixCursor(COLUMNS, count);
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                int gender = buffer.getInt();
+                int weight = buffer.getInt();
+                String name = readString(buffer);
+                String breed = readString(buffer);
+                String photo = readString(buffer);
+                cursor.addRow(new Object[] {id, name, breed, gender, weight, photo});
+            }
+            return cursor;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // A damaged snapshot only costs the head start; the loader still delivers
+            Log.e(LOG_TAG, "Ignoring unreadable catalog snapshot " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to close " + file, e);
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
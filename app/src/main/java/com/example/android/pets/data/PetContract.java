@@ -1,6 +1,7 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -32,6 +33,177 @@ public final class PetContract {
      */
     public static final String PATH_PETS = "pets";
 
+    /**
+     * Path appended to the pets path for "create or update" requests. An insert on
+     * content://com.example.android.pets/pets/upsert updates the existing row with the same
+     * external ID (or _id) instead of creating a second one.
+     */
+    public static final String PATH_UPSERT = "upsert";
+
+    /**
+     * Query parameter holding a comma separated list of _id values. Update, delete and query on
+     * content://com.example.android.pets/pets?ids=1,2,3 only touch those rows.
+     */
+    public static final String QUERY_PARAMETER_IDS = "ids";
+
+    /**
+     * Query parameters that narrow a query on the pets URI (or the weight histogram) to a
+     * weight range, inclusive at both ends, and/or a single gender. For instance
+     * content://com.example.android.pets/pets?gender=1&minWeight=5&maxWeight=20
+     */
+    public static final String QUERY_PARAMETER_MIN_WEIGHT = "minWeight";
+    public static final String QUERY_PARAMETER_MAX_WEIGHT = "maxWeight";
+    public static final String QUERY_PARAMETER_GENDER = "gender";
+
+    /**
+     * Path appended to the pets path for the weight histogram. A query on
+     * content://com.example.android.pets/pets/weight_histogram?bucketSize=5 returns one row
+     * per non-empty bucket of 5 weight units.
+     */
+    public static final String PATH_WEIGHT_HISTOGRAM = "weight_histogram";
+
+    /**
+     * Path appended to a single pet's URI for its photo, e.g.
+     * content://com.example.android.pets/pets/3/photo. Open it with
+     * {@link ContentResolver#openInputStream} to read the photo and
+     * {@link ContentResolver#openOutputStream} to replace it.
+     */
+    public static final String PATH_PHOTO = "photo";
+
+    /**
+     * Path appended to a single pet's URI for its weight history, e.g.
+     * content://com.example.android.pets/pets/3/weights. Every write of a pet's weight is
+     * recorded as a measurement, and inserts on this URI add measurements with their own
+     * time (see {@link WeightEntry}) without changing the pet's current weight.
+     *
+     * A query returns one row per point of the trend, oldest first. Long ranges are served
+     * from daily or weekly rollups rather than from every measurement: the coarsest
+     * resolution that still gives at least {@link #QUERY_PARAMETER_POINTS} points over the
+     * range. For instance content://com.example.android.pets/pets/3/weights?points=52 over
+     * three years returns weekly points.
+     */
+    public static final String PATH_WEIGHTS = "weights";
+
+    /**
+     * Query parameters of a weight history query: the range, in milliseconds since the epoch
+     * and inclusive at both ends, and the least number of points wanted. A missing bound
+     * defaults to the pet's first or last measurement.
+     */
+    public static final String QUERY_PARAMETER_FROM = "from";
+    public static final String QUERY_PARAMETER_TO = "to";
+    public static final String QUERY_PARAMETER_POINTS = "points";
+
+    /**
+     * Path for the pets of a single shelter, e.g.
+     * content://com.example.android.pets/shelters/2/pets. Every shelter is a database of its
+     * own, so writes there only wait for that shelter, and _id values under it are local to
+     * the shelter. The shelter URIs support the same inserts, upserts, updates, deletes and
+     * "ids" queries as the pets URI.
+     *
+     * The plain pets URI spans every shelter. Queries on it run against all shelters in
+     * parallel and return global _id values, which pets/# and pets/#/photo accept as well.
+     * Inserts and upserts on it go to shelter 0, the original shelter.db.
+     */
+    public static final String PATH_SHELTERS = "shelters";
+
+    /**
+     * Query parameter that makes an insert or upsert check for a pet that is probably the same
+     * animal: same name, breed and gender, and about the same weight (compared
+     * case-insensitively, ignoring extra spaces). With {@link #DEDUPE_MERGE} the existing pet
+     * is updated with the new values instead of adding a second one; an external ID it already
+     * has is kept. With {@link #DEDUPE_FLAG} the new pet is added anyway, with
+     * {@link PetEntry#COLUMN_NAME_DUPLICATE_OF} pointing at the existing one. For instance
+     * content://com.example.android.pets/pets/upsert?dedupe=merge
+     *
+     * Without the parameter nothing is checked.
+     */
+    public static final String QUERY_PARAMETER_DEDUPE = "dedupe";
+    public static final String DEDUPE_MERGE = "merge";
+    public static final String DEDUPE_FLAG = "flag";
+
+    /**
+     * Query parameter that adds archived pets to a query or delete on the pets or a shelter's
+     * pets URI, e.g. content://com.example.android.pets/pets?includeArchive=true. Pets are
+     * archived in the background once they are adopted and haven't been written for a while,
+     * or haven't been written for much longer (see {@link PetEntry#COLUMN_NAME_ADOPTED}).
+     * Without the parameter, queries and deletes only cover the pets that aren't archived,
+     * which keeps the catalog small however many pets came through the shelter. Updates of
+     * those URIs never touch archived pets.
+     *
+     * A pet's own URI always finds it, archived or not. Writing to it there, through its
+     * photo or weight history, or with an upsert on its external ID or _id moves it back
+     * out of the archive.
+     */
+    public static final String QUERY_PARAMETER_INCLUDE_ARCHIVE = "includeArchive";
+
+    /** Query parameter holding the width of each histogram bucket */
+    public static final String QUERY_PARAMETER_BUCKET_SIZE = "bucketSize";
+
+    /**
+     * Provider methods for {@link android.content.ContentResolver#call}. The argument is the
+     * absolute path of the snapshot file. Backup copies shelter.db there while the provider
+     * keeps serving; it is a background operation, and fails with an IllegalStateException if
+     * a restore happens before it is done. Restore replaces shelter.db with it. Cursors still
+     * open on a large result from before a restore throw
+     * {@link android.database.StaleDataException} if it was too big to keep in memory.
+     */
+    public static final String METHOD_BACKUP = "backup";
+    public static final String METHOD_RESTORE = "restore";
+
+    /**
+     * Provider method that folds every pending weight measurement into the rollups right
+     * away, instead of waiting for the background pass. Takes no argument.
+     */
+    public static final String METHOD_ROLL_UP_WEIGHTS = "roll_up_weights";
+
+    /**
+     * Provider method that moves every pet that is due into the archive right away, instead
+     * of waiting for the background pass. Takes no argument; the Bundle holds
+     * {@link #KEY_ARCHIVED_PETS}, the number of pets moved.
+     */
+    public static final String METHOD_ARCHIVE = "archive";
+    public static final String KEY_ARCHIVED_PETS = "archived_pets";
+
+    /**
+     * Query parameter that sets the priority of an operation: {@link #PRIORITY_INTERACTIVE}
+     * for what a screen is waiting on, {@link #PRIORITY_BACKGROUND} for work that may take a
+     * while. Background writes are committed in short transactions and give way to
+     * interactive operations in between, so a background bulk insert, update or delete is
+     * not atomic: a failure part way leaves the chunks before it written.
+     *
+     * Without the parameter, bulk inserts and updates or deletes of the pets or a shelter's
+     * pets URI run in the background, and everything else is interactive. A background
+     * operation may wait for the one ahead of it to finish, so calls made on the main thread
+     * should ask for interactive.
+     */
+    public static final String QUERY_PARAMETER_PRIORITY = "priority";
+    public static final String PRIORITY_INTERACTIVE = "interactive";
+    public static final String PRIORITY_BACKGROUND = "background";
+
+    /**
+     * Provider method that reports how the provider's operations have been scheduled. Takes
+     * no argument; the Bundle holds the KEY_ values below.
+     */
+    public static final String METHOD_SCHEDULER_STATS = "scheduler_stats";
+
+    /**
+     * Keys of the Bundle returned by {@link #METHOD_SCHEDULER_STATS}: the background
+     * operations waiting now and the most that ever waited at once, and the 99th percentile
+     * (in microseconds) of how long recent interactive and background operations waited to
+     * run.
+     */
+    public static final String KEY_QUEUE_DEPTH = "queue_depth";
+    public static final String KEY_MAX_QUEUE_DEPTH = "max_queue_depth";
+    public static final String KEY_INTERACTIVE_WAIT_P99_MICROS = "interactive_wait_p99_micros";
+    public static final String KEY_BACKGROUND_WAIT_P99_MICROS = "background_wait_p99_micros";
+
+    /**
+     * Keys of the Bundle returned by {@link #METHOD_BACKUP} and {@link #METHOD_RESTORE}: the
+     * longest and total time (in milliseconds) that other readers and writers were held up.
+     */
+    public static final String KEY_MAX_PAUSE_MILLIS = "max_pause_millis";
+    public static final String KEY_TOTAL_PAUSE_MILLIS = "total_pause_millis";
+
     // This class should never be instantiated
     private PetContract(){}
 
@@ -40,6 +212,119 @@ public final class PetContract {
         /** The content URI to access the pet data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI to create or update a pet keyed on external ID or _id. Name and
+         * gender are required. Updating an existing pet leaves its breed, weight and adopted
+         * status alone when the values don't have them; an empty breed clears it.
+         */
+        public static final Uri UPSERT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_UPSERT);
+
+        /** Parent of every shelter's pets URI; see {@link #buildShelterUri} */
+        public static final Uri SHELTERS_CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SHELTERS);
+
+        /** The content URI for counts of pets per weight bucket */
+        public static final Uri WEIGHT_HISTOGRAM_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_WEIGHT_HISTOGRAM);
+
+        /**
+         * Build a content URI for the pets within a weight range. Pass null for any bound (or the
+         * gender) that shouldn't narrow the query.
+         */
+        public static Uri buildFilterUri(Uri baseUri, Integer gender, Integer minWeight,
+                                         Integer maxWeight) {
+            Uri.Builder builder = baseUri.buildUpon();
+            if (gender != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_GENDER, String.valueOf(gender));
+            }
+            if (minWeight != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_MIN_WEIGHT, String.valueOf(minWeight));
+            }
+            if (maxWeight != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_MAX_WEIGHT, String.valueOf(maxWeight));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Build an insert or upsert URI that checks for duplicates; see
+         * {@link PetContract#QUERY_PARAMETER_DEDUPE}
+         *
+         * @param mode {@link PetContract#DEDUPE_MERGE} or {@link PetContract#DEDUPE_FLAG}
+         */
+        public static Uri buildDedupeUri(Uri insertUri, String mode) {
+            return insertUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_DEDUPE, mode)
+                    .build();
+        }
+
+        /**
+         * Build a query or delete URI that covers archived pets too; see
+         * {@link PetContract#QUERY_PARAMETER_INCLUDE_ARCHIVE}
+         */
+        public static Uri buildIncludeArchiveUri(Uri baseUri) {
+            return baseUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_INCLUDE_ARCHIVE, "true")
+                    .build();
+        }
+
+        /**
+         * Build a URI that runs the operation at the given priority; see
+         * {@link PetContract#QUERY_PARAMETER_PRIORITY}
+         *
+         * @param priority {@link PetContract#PRIORITY_INTERACTIVE} or
+         *                 {@link PetContract#PRIORITY_BACKGROUND}
+         */
+        public static Uri buildPriorityUri(Uri baseUri, String priority) {
+            return baseUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_PRIORITY, priority)
+                    .build();
+        }
+
+        /**
+         * Build the content URI for the pets of one shelter
+         */
+        public static Uri buildShelterUri(int shelterId) {
+            return SHELTERS_CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(shelterId))
+                    .appendPath(PATH_PETS)
+                    .build();
+        }
+
+        /**
+         * Build the content URI of a pet's photo
+         */
+        public static Uri buildPhotoUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_PHOTO)
+                    .build();
+        }
+
+        /**
+         * Build the content URI of a pet's weight history
+         */
+        public static Uri buildWeightsUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_WEIGHTS)
+                    .build();
+        }
+
+        /**
+         * Build a content URI that addresses every pet in the given set of IDs at once.
+         */
+        public static Uri buildIdsUri(long[] ids) {
+            StringBuilder joined = new StringBuilder();
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) {
+                    joined.append(',');
+                }
+                joined.append(ids[i]);
+            }
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_IDS, joined.toString())
+                    .build();
+        }
+
         /**
          * The MIME type of the CONTENT_URI for a list of pets
          */
@@ -52,6 +337,16 @@ public final class PetContract {
         public static final String CONTENT_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY
                         + "/" + PATH_PETS;
+        /**
+         * The MIME type of a pet's photo. Photos are stored as they were written.
+         */
+        public static final String CONTENT_PHOTO_TYPE = "image/*";
+        /**
+         * The MIME type of the weight histogram
+         */
+        public static final String CONTENT_HISTOGRAM_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY
+                        + "/" + PATH_WEIGHT_HISTOGRAM;
 
         /** Name of database table for pets */
         public static final String TABLE_NAME = "pets";
@@ -61,6 +356,60 @@ public final class PetContract {
         public static final String COLUMN_NAME_GENDER = "gender";
         public static final String COLUMN_NAME_WEIGHT = "weight";
 
+        /**
+         * Identifier assigned to the pet by an outside system (e.g. an intake partner).
+         * Unique when present, and used as the key for upserts.
+         */
+        public static final String COLUMN_NAME_EXTERNAL_ID = "external_id";
+
+        /**
+         * Key of the pet's breed in the {@link BreedEntry} table. The provider fills this in from
+         * {@link #COLUMN_NAME_BREED} on write and joins the label back on read, so callers keep
+         * reading and writing breed as text.
+         */
+        public static final String COLUMN_NAME_BREED_ID = "breed_id";
+
+        /**
+         * File name of the pet's photo in the provider's photo directory, or NULL if it has
+         * none. The image itself lives outside the database so rows stay small; read it
+         * through {@link #buildPhotoUri}. A new photo always gets a new name, so the name
+         * doubles as a cache key.
+         */
+        public static final String COLUMN_NAME_PHOTO = "photo";
+
+        /**
+         * Hash of the pet's normalized name, breed, gender and approximate weight, kept up to
+         * date by the provider. Pets with the same fingerprint are probably the same animal.
+         * Not part of the view.
+         */
+        public static final String COLUMN_NAME_FINGERPRINT = "fingerprint";
+
+        /**
+         * _id of the pet this one probably duplicates, set by inserts with
+         * {@link PetContract#DEDUPE_FLAG}; NULL otherwise
+         */
+        public static final String COLUMN_NAME_DUPLICATE_OF = "duplicate_of";
+
+        /**
+         * 1 once the pet has been adopted, 0 before. Adopted pets are archived when they
+         * haven't been written for a month, other pets after two years; see
+         * {@link PetContract#QUERY_PARAMETER_INCLUDE_ARCHIVE}.
+         */
+        public static final String COLUMN_NAME_ADOPTED = "adopted";
+
+        /**
+         * When the pet was last written, in milliseconds since the epoch. Kept up to date by
+         * the provider; values from callers are ignored.
+         */
+        public static final String COLUMN_NAME_LAST_MODIFIED = "last_modified";
+
+        /** Read-only: 1 if the row comes from the archive, 0 otherwise */
+        public static final String COLUMN_NAME_ARCHIVED = "archived";
+
+        /** Columns of the weight histogram: the lowest weight in a bucket, and its pet count */
+        public static final String COLUMN_NAME_BUCKET_START = "bucket_start";
+        public static final String COLUMN_NAME_PET_COUNT = "pet_count";
+
         /**
          * Possible values for gender of animal
          */
@@ -80,10 +429,198 @@ public final class PetContract {
                 PetEntry.COLUMN_NAME_NAME + " TEXT NOT NULL," +
                 PetEntry.COLUMN_NAME_BREED + " TEXT," +
                 PetEntry.COLUMN_NAME_GENDER + " INTEGER NOT NULL," +
-                PetEntry.COLUMN_NAME_WEIGHT + " INTEGER NOT NULL DEFAULT 0)";
+                PetEntry.COLUMN_NAME_WEIGHT + " INTEGER NOT NULL DEFAULT 0," +
+                PetEntry.COLUMN_NAME_EXTERNAL_ID + " TEXT," +
+                PetEntry.COLUMN_NAME_BREED_ID + " INTEGER," +
+                PetEntry.COLUMN_NAME_PHOTO + " TEXT," +
+                PetEntry.COLUMN_NAME_FINGERPRINT + " INTEGER," +
+                PetEntry.COLUMN_NAME_DUPLICATE_OF + " INTEGER," +
+                PetEntry.COLUMN_NAME_ADOPTED + " INTEGER NOT NULL DEFAULT 0," +
+                PetEntry.COLUMN_NAME_LAST_MODIFIED + " INTEGER NOT NULL DEFAULT 0)";
+
+        /** Name of the unique index backing upserts on the external ID */
+        public static final String INDEX_EXTERNAL_ID = "pets_external_id";
+
+        public static final String SQL_CREATE_EXTERNAL_ID_INDEX = "CREATE UNIQUE INDEX " +
+                INDEX_EXTERNAL_ID + " ON " + PetEntry.TABLE_NAME +
+                " (" + PetEntry.COLUMN_NAME_EXTERNAL_ID + ")";
+
+        /** Name of the index used to group and filter pets by breed */
+        public static final String INDEX_BREED_ID = "pets_breed_id";
+
+        public static final String SQL_CREATE_BREED_ID_INDEX = "CREATE INDEX " +
+                INDEX_BREED_ID + " ON " + PetEntry.TABLE_NAME +
+                " (" + PetEntry.COLUMN_NAME_BREED_ID + ")";
+
+        /**
+         * Name of the index behind the gender and weight filters. Gender is first so a query
+         * for one gender reads a single contiguous weight range.
+         */
+        public static final String INDEX_GENDER_WEIGHT = "pets_gender_weight";
+
+        public static final String SQL_CREATE_GENDER_WEIGHT_INDEX = "CREATE INDEX " +
+                INDEX_GENDER_WEIGHT + " ON " + PetEntry.TABLE_NAME +
+                " (" + PetEntry.COLUMN_NAME_GENDER + ", " + PetEntry.COLUMN_NAME_WEIGHT + ")";
+
+        /** Name of the index used to look up probable duplicates */
+        public static final String INDEX_FINGERPRINT = "pets_fingerprint";
+
+        public static final String SQL_CREATE_FINGERPRINT_INDEX = "CREATE INDEX " +
+                INDEX_FINGERPRINT + " ON " + PetEntry.TABLE_NAME +
+                " (" + PetEntry.COLUMN_NAME_FINGERPRINT + ")";
+
+        /**
+         * Name of the index the archive uses to find pets that are due. Adopted is first so
+         * each of its rules reads a single contiguous range.
+         */
+        public static final String INDEX_ADOPTED_LAST_MODIFIED = "pets_adopted_last_modified";
+
+        public static final String SQL_CREATE_ADOPTED_LAST_MODIFIED_INDEX = "CREATE INDEX " +
+                INDEX_ADOPTED_LAST_MODIFIED + " ON " + PetEntry.TABLE_NAME +
+                " (" + PetEntry.COLUMN_NAME_ADOPTED + ", " +
+                PetEntry.COLUMN_NAME_LAST_MODIFIED + ")";
+
+        /**
+         * Name of the view the provider reads pets from. It has the columns of the pets table,
+         * with breed resolved back to its label, and archived (always 0 here).
+         */
+        public static final String VIEW_NAME = "pets_view";
+
+        /** pets_view's _id, qualified because breeds has one too */
+        static final String VIEW_COLUMN_ID =
+                PetEntry.TABLE_NAME + "." + PetEntry._ID + " AS " + PetEntry._ID;
+
+        /** pets_view's breed: the dictionary label once a row has a breed_id, else the text */
+        static final String VIEW_COLUMN_BREED = "COALESCE(" + BreedEntry.TABLE_NAME + "." +
+                BreedEntry.COLUMN_NAME_LABEL + ", " + PetEntry.TABLE_NAME + "." +
+                PetEntry.COLUMN_NAME_BREED + ") AS " + PetEntry.COLUMN_NAME_BREED;
+
+        /** pets_view's archived, always 0 since archived pets aren't in the pets table */
+        static final String VIEW_COLUMN_ARCHIVED = "0 AS " + PetEntry.COLUMN_NAME_ARCHIVED;
+
+        public static final String SQL_CREATE_PETS_VIEW = sqlCreatePetsView(
+                VIEW_COLUMN_ID,
+                PetEntry.COLUMN_NAME_NAME,
+                VIEW_COLUMN_BREED,
+                PetEntry.COLUMN_NAME_GENDER,
+                PetEntry.COLUMN_NAME_WEIGHT,
+                PetEntry.COLUMN_NAME_EXTERNAL_ID,
+                PetEntry.COLUMN_NAME_BREED_ID,
+                PetEntry.COLUMN_NAME_PHOTO,
+                PetEntry.COLUMN_NAME_DUPLICATE_OF,
+                PetEntry.COLUMN_NAME_ADOPTED,
+                PetEntry.COLUMN_NAME_LAST_MODIFIED,
+                VIEW_COLUMN_ARCHIVED);
+
+        /**
+         * Builds the statement that creates pets_view with the given columns. Migrations pass
+         * the columns of their own version, so each version's view is spelled out once.
+         */
+        static String sqlCreatePetsView(String... columns) {
+            StringBuilder sql = new StringBuilder("CREATE VIEW ").append(VIEW_NAME)
+                    .append(" AS SELECT ");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(columns[i]);
+            }
+            return sql.append(" FROM ").append(PetEntry.TABLE_NAME)
+                    .append(" LEFT JOIN ").append(BreedEntry.TABLE_NAME)
+                    .append(" ON ").append(PetEntry.TABLE_NAME).append('.')
+                    .append(PetEntry.COLUMN_NAME_BREED_ID).append(" = ")
+                    .append(BreedEntry.TABLE_NAME).append('.').append(BreedEntry._ID)
+                    .toString();
+        }
 
         public static final String SQL_DELETE_ENTRIES =
                 "DROP TABLE IF EXISTS " + PetEntry.TABLE_NAME;
     }
 
+    /**
+     * Every weight measurement of every pet, in the order they were recorded. The table is
+     * only appended to (and cleared along with its pet), so new rows always land at the end.
+     */
+    public static class WeightEntry implements BaseColumns {
+
+        /** Name of database table for weight measurements */
+        public static final String TABLE_NAME = "weight_history";
+
+        /** _id of the pet, local to its shelter */
+        public static final String COLUMN_NAME_PET_ID = "pet_id";
+
+        /** When the pet was weighed, in milliseconds since the epoch. Defaults to now. */
+        public static final String COLUMN_NAME_MEASURED_AT = "measured_at";
+
+        public static final String COLUMN_NAME_WEIGHT = "weight";
+
+        /**
+         * Columns of a weight history query. Each row covers the measurements of one bucket
+         * of the resolution, starting at bucket_start; at {@link #RESOLUTION_RAW} it is a
+         * single measurement taken at bucket_start.
+         */
+        public static final String COLUMN_NAME_BUCKET_START = "bucket_start";
+        public static final String COLUMN_NAME_RESOLUTION = "resolution";
+        public static final String COLUMN_NAME_MEASUREMENT_COUNT = "measurement_count";
+        public static final String COLUMN_NAME_MEAN_WEIGHT = "mean_weight";
+        public static final String COLUMN_NAME_MIN_WEIGHT = "min_weight";
+        public static final String COLUMN_NAME_MAX_WEIGHT = "max_weight";
+
+        /**
+         * Possible resolutions, as bucket widths in milliseconds. Days and weeks are counted
+         * from the epoch in UTC.
+         */
+        public static final long RESOLUTION_RAW = 0;
+        public static final long RESOLUTION_DAY = 24L * 60 * 60 * 1000;
+        public static final long RESOLUTION_WEEK = 7 * RESOLUTION_DAY;
+
+        /** Points asked for when the query doesn't say */
+        public static final int DEFAULT_POINTS = 100;
+
+        /**
+         * The MIME type of a pet's weight history
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY
+                        + "/" + PATH_WEIGHTS;
+
+        /**
+         * AUTOINCREMENT so an _id is never handed out twice, even after the newest rows were
+         * deleted; the rollups rely on new measurements always sorting last.
+         */
+        public static final String SQL_CREATE_WEIGHT_HISTORY_TABLE = "CREATE TABLE " +
+                WeightEntry.TABLE_NAME +
+                " (" +
+                WeightEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                WeightEntry.COLUMN_NAME_PET_ID + " INTEGER NOT NULL," +
+                WeightEntry.COLUMN_NAME_MEASURED_AT + " INTEGER NOT NULL," +
+                WeightEntry.COLUMN_NAME_WEIGHT + " INTEGER NOT NULL)";
+
+        /** Name of the index that reads one pet's measurements in time order */
+        public static final String INDEX_PET_MEASURED_AT = "weight_history_pet_measured_at";
+
+        public static final String SQL_CREATE_PET_MEASURED_AT_INDEX = "CREATE INDEX " +
+                INDEX_PET_MEASURED_AT + " ON " + WeightEntry.TABLE_NAME +
+                " (" + WeightEntry.COLUMN_NAME_PET_ID + ", " +
+                WeightEntry.COLUMN_NAME_MEASURED_AT + ")";
+    }
+
+    /**
+     * Dictionary of breed labels. Each distinct breed is stored once and pets refer to it by
+     * {@link PetEntry#COLUMN_NAME_BREED_ID}.
+     */
+    public static class BreedEntry implements BaseColumns {
+
+        /** Name of database table for breeds */
+        public static final String TABLE_NAME = "breeds";
+
+        public static final String COLUMN_NAME_LABEL = "label";
+
+        public static final String SQL_CREATE_BREEDS_TABLE = "CREATE TABLE " +
+                BreedEntry.TABLE_NAME +
+                " (" +
+                BreedEntry._ID + " INTEGER PRIMARY KEY," +
+                BreedEntry.COLUMN_NAME_LABEL + " TEXT NOT NULL UNIQUE)";
+    }
+
 }
@@ -7,6 +7,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.example.android.pets.R;
@@ -41,7 +42,12 @@ public class PetCursorAdapter extends CursorAdapter {
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
         // TODO: Fill out this method and return the list item view (instead of null)
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        PetTrace.beginSection("PetCursorAdapter.newView");
+        try {
+            return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        } finally {
+            PetTrace.endSection();
+        }
     }
 
     /**
@@ -56,10 +62,20 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
+        PetTrace.beginSection("PetCursorAdapter.bindView");
+        try {
+            bindPet(view, context, cursor);
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+
+    private void bindPet(View view, Context context, Cursor cursor) {
         // TODO: Fill out this method
         // Find fields to populate in the inflated template
         TextView name = (TextView)view.findViewById(R.id.name);
         TextView summary = (TextView)view.findViewById(R.id.summary);
+        ImageView photo = (ImageView) view.findViewById(R.id.photo);
         // Extract the properties from the cursor
         String nameString = cursor.getString(cursor.getColumnIndexOrThrow("name"));
         String summaryString = cursor.getString(cursor.getColumnIndexOrThrow("breed"));
@@ -73,5 +89,11 @@ public class PetCursorAdapter extends CursorAdapter {
         name.setText(nameString);
         summary.setText(summaryString);
 
+        // The thumbnail comes from the cache, or is decoded in the background meanwhile
+        int photoColumn = cursor.getColumnIndex(PetContract.PetEntry.COLUMN_NAME_PHOTO);
+        PetThumbnailCache.getInstance(context).bind(photo,
+                cursor.getLong(cursor.getColumnIndexOrThrow(PetContract.PetEntry._ID)),
+                photoColumn != -1 ? cursor.getString(photoColumn) : null);
+
     }
 }
@@ -4,6 +4,8 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import java.util.concurrent.locks.Lock;
+
 /**
  * Created by osborne on 1/13/2017.
  */
@@ -11,24 +13,203 @@ import android.database.sqlite.SQLiteOpenHelper;
 class PetDbHelper extends SQLiteOpenHelper{
 
     /** Used to change the database version if the database schema changes */
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 8;
 
     /** Name of the database file */
     public static final String DATABASE_NAME = "shelter.db";
 
+    /** pets_view as of version 5, which adds the photo column */
+    private static final String SQL_CREATE_VIEW_V5 = PetContract.PetEntry.sqlCreatePetsView(
+            PetContract.PetEntry.VIEW_COLUMN_ID,
+            PetContract.PetEntry.COLUMN_NAME_NAME,
+            PetContract.PetEntry.VIEW_COLUMN_BREED,
+            PetContract.PetEntry.COLUMN_NAME_GENDER,
+            PetContract.PetEntry.COLUMN_NAME_WEIGHT,
+            PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID,
+            PetContract.PetEntry.COLUMN_NAME_BREED_ID,
+            PetContract.PetEntry.COLUMN_NAME_PHOTO);
+
+    /**
+     * Every schema change since version 1, in order. Add a step here (and bump
+     * DATABASE_VERSION) instead of editing onUpgrade.
+     */
+    static final PetMigrator MIGRATOR = new PetMigrator(
+            // Version 2 adds the external ID used as the upsert key. NULLs don't collide
+            // in a unique index, so existing rows need no backfill.
+            new PetMigration(2) {
+                @Override
+                void onUpgrade(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetContract.PetEntry.TABLE_NAME + " ADD COLUMN " +
+                            PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID + " TEXT");
+                    db.execSQL(PetContract.PetEntry.SQL_CREATE_EXTERNAL_ID_INDEX);
+                }
+            },
+            // Version 3 stores breeds once in a dictionary table and joins them back on read
+            new PetBreedMigration(),
+            // Version 4 indexes the gender and weight filters. Building the index reads every
+            // row, so it is left for the background thread rather than the open call.
+            new PetMigration(4) {
+                @Override
+                void onUpgrade(SQLiteDatabase db) {
+                }
+
+                @Override
+                boolean hasBackgroundWork() {
+                    return true;
+                }
+
+                @Override
+                void onComplete(SQLiteDatabase db) {
+                    db.execSQL(PetContract.PetEntry.SQL_CREATE_GENDER_WEIGHT_INDEX);
+                }
+            },
+            // Version 5 adds the name of the pet's photo file. Existing pets have none, and
+            // the catalog reads the column, so it shouldn't wait behind the breed backfill.
+            new PetMigration(5) {
+                @Override
+                boolean canRunAhead() {
+                    return true;
+                }
+
+                @Override
+                void onUpgrade(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetContract.PetEntry.TABLE_NAME + " ADD COLUMN " +
+                            PetContract.PetEntry.COLUMN_NAME_PHOTO + " TEXT");
+                    db.execSQL("DROP VIEW IF EXISTS " + PetContract.PetEntry.VIEW_NAME);
+                    db.execSQL(SQL_CREATE_VIEW_V5);
+                }
+            },
+            // Version 6 adds the fingerprint used to find duplicate pets, backfilled in chunks
+            new PetFingerprintMigration(),
+            // Version 7 adds the weight history and its rollups. They start out empty and
+            // the provider appends to them straight away, so this doesn't wait either.
+            new PetMigration(7) {
+                @Override
+                boolean canRunAhead() {
+                    return true;
+                }
+
+                @Override
+                void onUpgrade(SQLiteDatabase db) {
+                    PetWeightHistory.createSchema(db);
+                }
+            },
+            // Version 8 adds what the archive goes by. Existing pets count as written at the
+            // upgrade, so nothing is archived before the provider has kept track for a while.
+            // The archive only looks for due pets through the index, which is left for the
+            // background thread.
+            new PetMigration(8) {
+                @Override
+                boolean canRunAhead() {
+                    return true;
+                }
+
+                @Override
+                void onUpgrade(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetContract.PetEntry.TABLE_NAME + " ADD COLUMN " +
+                            PetContract.PetEntry.COLUMN_NAME_ADOPTED +
+                            " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + PetContract.PetEntry.TABLE_NAME + " ADD COLUMN " +
+                            PetContract.PetEntry.COLUMN_NAME_LAST_MODIFIED +
+                            " INTEGER NOT NULL DEFAULT " + System.currentTimeMillis());
+                    db.execSQL("DROP VIEW IF EXISTS " + PetContract.PetEntry.VIEW_NAME);
+                    db.execSQL(PetContract.PetEntry.SQL_CREATE_PETS_VIEW);
+                }
+
+                @Override
+                boolean hasBackgroundWork() {
+                    return true;
+                }
+
+                @Override
+                void onComplete(SQLiteDatabase db) {
+                    db.execSQL(PetContract.PetEntry.SQL_CREATE_ADOPTED_LAST_MODIFIED_INDEX);
+                }
+            });
+
+    private final Context mContext;
+    private final String mName;
+
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * A database with the pets schema under another file name, e.g. one shelter's database
+     */
+    PetDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
+        mName = name;
     }
 
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createSchema(db);
+    }
+
+    /**
+     * Create the latest schema in an empty database. Also used for backup snapshots, which
+     * must match the live database column for column.
+     */
+    static void createSchema(SQLiteDatabase db) {
         db.execSQL(PetContract.PetEntry.SQL_CREATE_PETS_TABLE);
+        db.execSQL(PetContract.PetEntry.SQL_CREATE_EXTERNAL_ID_INDEX);
+        db.execSQL(PetContract.BreedEntry.SQL_CREATE_BREEDS_TABLE);
+        db.execSQL(PetContract.PetEntry.SQL_CREATE_BREED_ID_INDEX);
+        db.execSQL(PetContract.PetEntry.SQL_CREATE_GENDER_WEIGHT_INDEX);
+        db.execSQL(PetContract.PetEntry.SQL_CREATE_FINGERPRINT_INDEX);
+        db.execSQL(PetContract.PetEntry.SQL_CREATE_ADOPTED_LAST_MODIFIED_INDEX);
+        db.execSQL(PetContract.PetEntry.SQL_CREATE_PETS_VIEW);
+        PetWeightHistory.createSchema(db);
+        db.execSQL(PetMigrator.SQL_CREATE_TABLE);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // The default cache of 25 statements per connection is smaller than the number of
+        // statement shapes the provider uses, so they would keep being prepared again
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+        if (!db.isReadOnly() && db.getVersion() >= 7) {
+            PetWeightHistory.keepIdsAhead(db);
+        }
+        // Attaching is per connection; the database isn't in WAL mode, so this is the only one
+        if (db.isReadOnly()) {
+            PetArchive.createHotView(db);
+        } else {
+            PetArchive.attach(db, mContext.getDatabasePath(PetArchive.fileName(mName)));
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         //db.execSQL(PetContract.PetEntry.SQL_DELETE_ENTRIES);
         //onCreate(db);
+        // Steps that touch every row are only started here; PetProvider finishes them on a
+        // background thread with resumeMigrations()
+        MIGRATOR.onUpgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Finish any migration steps left over from onUpgrade, in small transactions. Blocks until
+     * they are done, so call it from a background thread.
+     *
+     * @param scheduler the provider's scheduler, which admits each transaction
+     * @param lock the provider's database lock, held while the database is opened and for each
+     *             transaction
+     * @return false if the helper was closed before they were done
+     */
+    boolean resumeMigrations(PetScheduler scheduler, Lock lock) {
+        SQLiteDatabase db;
+        lock.lock();
+        try {
+            // Opening runs the quick part of an upgrade
+            db = getWritableDatabase();
+        } finally {
+            lock.unlock();
+        }
+        return MIGRATOR.resume(db, PetMigrator.DEFAULT_CHUNK_SIZE, scheduler, lock, null);
     }
 }
@@ -0,0 +1,408 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * {@link PetDraftJournal} keeps the unsaved edits of one editor form on disk, so a draft
+ * survives the process being killed. Recording an edit only touches memory; a background
+ * thread appends the latest value of every changed field at most once per
+ * {@link #FLUSH_INTERVAL_MILLIS}, however fast the user types.
+ *
+ * The journal is append-only. Each record is the length of its payload, the payload (field
+ * and value) and a CRC32 of the payload, and the file is synced after every append. A record
+ * torn by a crash fails its length or checksum, so reading stops there and the file is cut
+ * back to the last good record. Replaying the records in order, the last value of each field
+ * wins. Once the file grows past {@link #COMPACT_BYTES} it is rewritten with one record per
+ * field, through a temporary file renamed over it.
+ */
+public class PetDraftJournal {
+
+    /** Tag for any log messages */
+    private static final String LOG_TAG = PetDraftJournal.class.getSimpleName();
+
+    /** Longest time an edit waits in memory before it is written */
+    public static final long FLUSH_INTERVAL_MILLIS = 500;
+
+    /** Journal size above which it is compacted */
+    private static final long COMPACT_BYTES = 16 * 1024;
+
+    /** Anything longer can only be a torn length */
+    private static final int MAX_PAYLOAD_BYTES = 64 * 1024;
+
+    /** Edit latencies kept for {@link #getStats} */
+    private static final int MAX_SAMPLES = 1024;
+
+    private static ScheduledExecutorService sWriter;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final File mFile;
+    private final long mCreatedNanos = System.nanoTime();
+
+    private final Object mLock = new Object();
+
+    /** Latest value of each field edited since the last flush. Guarded by mLock. */
+    private LinkedHashMap<String, String> mPending = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+    private long mEdits;
+    private long mFlushes;
+    private long mRecordsWritten;
+    private long mBytesWritten;
+    private final long[] mRecordNanos = new long[MAX_SAMPLES];
+    private int mSampleCount;
+
+    /** What the file holds, read on first use. Only touched on the writer thread. */
+    private LinkedHashMap<String, String> mState;
+    private long mFileBytes;
+    private long mCompactedBytes;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * Receives a draft read by {@link #load}
+     */
+    public interface Callback {
+        /**
+         * Called on the main thread with the draft's fields, empty if there is no draft
+         */
+        void onDraftLoaded(Map<String, String> draft);
+    }
+
+    /**
+     * Open the journal for a pet's editor.
+     *
+     * @param petUri the pet being edited, or null for a new pet
+     */
+    public PetDraftJournal(Context context, Uri petUri) {
+        String key = petUri == null ? "new" : "pet_" + ContentUris.parseId(petUri);
+        mFile = new File(new File(context.getFilesDir(), "drafts"), key + ".journal");
+    }
+
+    /**
+     * Record the latest value of a field. Cheap enough to call from a TextWatcher on every
+     * keystroke.
+     */
+    public void record(String field, String value) {
+        long start = System.nanoTime();
+        synchronized (mLock) {
+            mPending.put(field, value == null ? "" : value);
+            mEdits++;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                writer().schedule(mFlushTask, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (mSampleCount < MAX_SAMPLES) {
+                mRecordNanos[mSampleCount++] = System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Write pending edits now rather than at the end of the interval, e.g. in onPause.
+     */
+    public void flush() {
+        writer().execute(mFlushTask);
+    }
+
+    /**
+     * Read the draft in the background and hand it to the callback on the main thread.
+     */
+    public void load(final Callback callback) {
+        writer().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, String> draft = new LinkedHashMap<>(state());
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDraftLoaded(draft);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forget the draft, once it was saved or the user threw it away.
+     */
+    public void discard() {
+        synchronized (mLock) {
+            mPending.clear();
+        }
+        writer().execute(new Runnable() {
+            @Override
+            public void run() {
+                mState = new LinkedHashMap<>();
+                mFileBytes = 0;
+                mCompactedBytes = 0;
+                if (mFile.exists() && !mFile.delete()) {
+                    Log.e(LOG_TAG, "Failed to delete draft " + mFile);
+                }
+            }
+        });
+    }
+
+    /**
+     * Edits recorded and what writing them cost so far
+     */
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(mEdits, mFlushes, mRecordsWritten, mBytesWritten,
+                    new PetLatencySummary(
+                            Arrays.copyOf(mRecordNanos, mSampleCount),
+                            System.nanoTime() - mCreatedNanos));
+        }
+    }
+
+    /**
+     * Append the pending edits. Runs on the writer thread.
+     */
+    private void writePending() {
+        LinkedHashMap<String, String> batch;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = mPending;
+            mPending = new LinkedHashMap<>();
+        }
+
+        LinkedHashMap<String, String> state = state();
+        try {
+            byte[] records = encode(batch);
+            File dir = mFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            FileOutputStream out = new FileOutputStream(mFile, true);
+            try {
+                out.write(records);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            state.putAll(batch);
+            mFileBytes += records.length;
+            synchronized (mLock) {
+                mFlushes++;
+                mRecordsWritten += batch.size();
+                mBytesWritten += records.length;
+            }
+            if (mFileBytes > Math.max(COMPACT_BYTES, 2 * mCompactedBytes)) {
+                compact(state);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write draft " + mFile, e);
+            // Keep the edits for the next flush, unless the field changed again since
+            synchronized (mLock) {
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    if (!mPending.containsKey(entry.getKey())) {
+                        mPending.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with one record per field
+     */
+    private void compact(LinkedHashMap<String, String> state) throws IOException {
+        byte[] records = encode(state);
+        File partial = new File(mFile.getPath() + ".partial");
+        FileOutputStream out = new FileOutputStream(partial);
+        try {
+            out.write(records);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!partial.renameTo(mFile)) {
+            partial.delete();
+            throw new IOException("Could not move the compacted draft to " + mFile);
+        }
+        mFileBytes = records.length;
+        mCompactedBytes = records.length;
+        synchronized (mLock) {
+            mBytesWritten += records.length;
+        }
+    }
+
+    /**
+     * The fields the file holds, reading it on first use. Runs on the writer thread.
+     */
+    private LinkedHashMap<String, String> state() {
+        if (mState == null) {
+            mState = new LinkedHashMap<>();
+            mFileBytes = read(mFile, mState);
+            mCompactedBytes = mFileBytes;
+        }
+        return mState;
+    }
+
+    /**
+     * Replay the journal into the map and return the length of its intact records. A torn
+     * or damaged tail is cut off, so later appends follow the last good record.
+     */
+    private static long read(File file, Map<String, String> state) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        long good = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                String field = record.readUTF();
+                state.put(field, record.readUTF());
+                good += 4 + length + 4;
+            }
+        } catch (EOFException e) {
+            // The end of the file, possibly in the middle of a torn record
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read draft " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to close " + file, e);
+                }
+            }
+        }
+
+        if (good < file.length()) {
+            Log.w(LOG_TAG, "Dropping a damaged tail of " + (file.length() - good) +
+                    " bytes from " + file);
+            try {
+                RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+                try {
+                    truncate.setLength(good);
+                } finally {
+                    truncate.close();
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to truncate " + file, e);
+            }
+        }
+        return good;
+    }
+
+    private static byte[] encode(Map<String, String> fields) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payloadBytes);
+        CRC32 crc = new CRC32();
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            payloadBytes.reset();
+            payloadOut.writeUTF(entry.getKey());
+            payloadOut.writeUTF(entry.getValue());
+            byte[] payload = payloadBytes.toByteArray();
+            crc.reset();
+            crc.update(payload);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static synchronized ScheduledExecutorService writer() {
+        if (sWriter == null) {
+            sWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "PetDrafts");
+                }
+            });
+        }
+        return sWriter;
+    }
+
+    /**
+     * What a journal has done since it was opened. Write amplification is records written per
+     * edit recorded; well below 1 means keystrokes were coalesced.
+     */
+    public static class Stats {
+        public final long edits;
+        public final long flushes;
+        public final long recordsWritten;
+        public final long bytesWritten;
+        /** Time spent in {@link #record}, on the caller's thread */
+        public final PetLatencySummary recordLatency;
+
+        Stats(long edits, long flushes, long recordsWritten, long bytesWritten,
+              PetLatencySummary recordLatency) {
+            this.edits = edits;
+            this.flushes = flushes;
+            this.recordsWritten = recordsWritten;
+            this.bytesWritten = bytesWritten;
+            this.recordLatency = recordLatency;
+        }
+
+        public double writeAmplification() {
+            return edits == 0 ? 0 : (double) recordsWritten / edits;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d edits, %d flushes, %d records (%.2f per edit), %d bytes; record() %s",
+                    edits, flushes, recordsWritten, writeAmplification(), bytesWritten,
+                    recordLatency);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Locale;
+
+/**
+ * {@link PetFingerprint} computes the fingerprint column: a 64-bit FNV-1a hash of a pet's
+ * name and breed (trimmed, lower case, runs of spaces collapsed), its gender and its weight
+ * rounded down to a {@link #WEIGHT_BUCKET}. Two entries of the same animal by different
+ * people hash alike, so finding a probable duplicate is a single probe of the fingerprint
+ * index instead of a query on name and breed.
+ *
+ * A probe trusts the hash. With 64 bits a false match needs billions of pets, far more than
+ * a shelter holds.
+ */
+final class PetFingerprint {
+
+    /** Weights that differ by less than this usually fall in the same bucket */
+    static final int WEIGHT_BUCKET = 5;
+
+    /** Dedupe modes, from {@link PetContract#QUERY_PARAMETER_DEDUPE} */
+    static final int DEDUPE_OFF = 0;
+    static final int DEDUPE_FLAG = 1;
+    static final int DEDUPE_MERGE = 2;
+
+    /** Statement that finds the lowest _id with a given fingerprint */
+    static final String SQL_FIND = "SELECT " + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME +
+            " WHERE " + PetEntry.COLUMN_NAME_FINGERPRINT + " = ? ORDER BY " + PetEntry._ID +
+            " LIMIT 1";
+
+    /** Fingerprints refreshed per SELECT */
+    private static final int REFRESH_CHUNK_SIZE = 256;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private PetFingerprint() {
+    }
+
+    /**
+     * The fingerprint of a pet
+     *
+     * @param breed the breed label, may be null
+     */
+    static long of(String name, String breed, int gender, int weight) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, normalize(name));
+        hash = hash(hash, normalize(breed));
+        hash = hash(hash, Integer.toString(gender));
+        return hash(hash, Integer.toString(Math.max(weight, 0) / WEIGHT_BUCKET));
+    }
+
+    /**
+     * The fingerprint of a new pet's values, which must have passed the provider's checks.
+     * Reads the breed label, so call it before the label is swapped for its key.
+     */
+    static long of(ContentValues values) {
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_NAME_WEIGHT);
+        return of(values.getAsString(PetEntry.COLUMN_NAME_NAME),
+                values.getAsString(PetEntry.COLUMN_NAME_BREED),
+                values.getAsInteger(PetEntry.COLUMN_NAME_GENDER),
+                weight != null ? weight : PetEntry.WEIGHT_DEFAULT);
+    }
+
+    /**
+     * Whether an update with these values can change a pet's fingerprint
+     */
+    static boolean dependsOn(ContentValues changes) {
+        return changes.containsKey(PetEntry.COLUMN_NAME_NAME)
+                || changes.containsKey(PetEntry.COLUMN_NAME_BREED)
+                || changes.containsKey(PetEntry.COLUMN_NAME_GENDER)
+                || changes.containsKey(PetEntry.COLUMN_NAME_WEIGHT);
+    }
+
+    /**
+     * The dedupe mode an insert URI asks for. Throws IllegalArgumentException for an unknown
+     * mode.
+     */
+    static int dedupeMode(Uri uri) {
+        String mode = uri.getQueryParameter(PetContract.QUERY_PARAMETER_DEDUPE);
+        if (mode == null) {
+            return DEDUPE_OFF;
+        }
+        switch (mode) {
+            case PetContract.DEDUPE_FLAG:
+                return DEDUPE_FLAG;
+            case PetContract.DEDUPE_MERGE:
+                return DEDUPE_MERGE;
+            default:
+                throw new IllegalArgumentException("Unknown dedupe mode " + mode);
+        }
+    }
+
+    /**
+     * Probe the index with a statement compiled from {@link #SQL_FIND}. Returns the _id of the
+     * pet with the fingerprint, or -1 if there is none.
+     */
+    static long findDuplicate(SQLiteStatement find, long fingerprint) {
+        find.bindLong(1, fingerprint);
+        try {
+            return find.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Fold a new pet's values into an existing pet found as its duplicate. An external ID the
+     * existing pet already has is kept.
+     *
+     * @param row the new pet's values as they would be inserted
+     */
+    static void merge(SQLiteDatabase db, long id, ContentValues row) {
+        ContentValues changes = new ContentValues(row);
+        changes.remove(PetEntry._ID);
+        changes.remove(PetEntry.COLUMN_NAME_DUPLICATE_OF);
+        String externalId = changes.getAsString(PetEntry.COLUMN_NAME_EXTERNAL_ID);
+        changes.remove(PetEntry.COLUMN_NAME_EXTERNAL_ID);
+        String[] whereArgs = {String.valueOf(id)};
+        db.update(PetEntry.TABLE_NAME, changes, PetEntry._ID + " = ?", whereArgs);
+        if (externalId != null) {
+            db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_NAME_EXTERNAL_ID + " = COALESCE(" +
+                    PetEntry.COLUMN_NAME_EXTERNAL_ID + ", ?) WHERE " + PetEntry._ID + " = ?",
+                    new Object[] {externalId, id});
+        }
+    }
+
+    /**
+     * The _id of every pet a selection on the pets table matches. Used to find the rows of an
+     * update before it runs, since afterwards they may no longer match.
+     */
+    static long[] idsMatching(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[] {PetEntry._ID}, selection,
+                selectionArgs, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Recompute the fingerprints of the given pets from what they hold now. Call inside the
+     * transaction that changed them.
+     */
+    static void refresh(SQLiteDatabase db, long[] ids) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                " SET " + PetEntry.COLUMN_NAME_FINGERPRINT + " = ? WHERE " + PetEntry._ID + " = ?");
+        try {
+            for (int start = 0; start < ids.length; start += REFRESH_CHUNK_SIZE) {
+                int count = Math.min(REFRESH_CHUNK_SIZE, ids.length - start);
+                String[] args = new String[PetQuery.paddedSize(count)];
+                StringBuilder selection = new StringBuilder(PetEntry._ID).append(" IN (");
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = String.valueOf(ids[start + Math.min(i, count - 1)]);
+                    selection.append(i == 0 ? "?" : ",?");
+                }
+                selection.append(')');
+                refreshRows(db, update, selection.toString(), args);
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Recompute the fingerprints of the pets a selection on pets_view matches
+     */
+    static void refreshRows(SQLiteDatabase db, SQLiteStatement update, String selection,
+                            String[] selectionArgs) {
+        // The view has the breed label whether or not the row's breed was moved to the
+        // dictionary yet
+        Cursor cursor = db.query(PetEntry.VIEW_NAME, new String[] {
+                        PetEntry._ID,
+                        PetEntry.COLUMN_NAME_NAME,
+                        PetEntry.COLUMN_NAME_BREED,
+                        PetEntry.COLUMN_NAME_GENDER,
+                        PetEntry.COLUMN_NAME_WEIGHT},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                update.bindLong(1, of(cursor.getString(1), cursor.getString(2),
+                        cursor.getInt(3), cursor.getInt(4)));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Trimmed, lower case, with every run of whitespace turned into a single space
+     */
+    private static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+    }
+
+    /**
+     * Fold the length and then the characters of the value into an FNV-1a hash. With the
+     * length first, "ab" + "c" and "a" + "bc" hash differently.
+     */
+    private static long hash(long hash, String value) {
+        int length = value.length();
+        hash = (hash ^ (length & 0xff)) * FNV_PRIME;
+        hash = (hash ^ (length >>> 8)) * FNV_PRIME;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
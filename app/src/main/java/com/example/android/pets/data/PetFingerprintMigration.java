@@ -0,0 +1,78 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link PetFingerprintMigration} adds duplicate detection (schema version 6).
+ *
+ * The quick part adds the fingerprint and duplicate_of columns and recreates pets_view with
+ * duplicate_of. The provider fills in fingerprints for every pet it writes from then on, so
+ * the step runs ahead of any earlier backfill. The chunked part computes the fingerprints of
+ * the pets that existed before, and the index is only built at the end, when every row has
+ * its value, rather than inside the open call.
+ */
+class PetFingerprintMigration extends PetMigration {
+
+    /** pets_view as of version 6, which adds the duplicate_of column */
+    private static final String SQL_CREATE_VIEW_V6 = PetEntry.sqlCreatePetsView(
+            PetEntry.VIEW_COLUMN_ID,
+            PetEntry.COLUMN_NAME_NAME,
+            PetEntry.VIEW_COLUMN_BREED,
+            PetEntry.COLUMN_NAME_GENDER,
+            PetEntry.COLUMN_NAME_WEIGHT,
+            PetEntry.COLUMN_NAME_EXTERNAL_ID,
+            PetEntry.COLUMN_NAME_BREED_ID,
+            PetEntry.COLUMN_NAME_PHOTO,
+            PetEntry.COLUMN_NAME_DUPLICATE_OF);
+
+    PetFingerprintMigration() {
+        super(6);
+    }
+
+    @Override
+    boolean canRunAhead() {
+        return true;
+    }
+
+    @Override
+    void onUpgrade(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_NAME_FINGERPRINT + " INTEGER");
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_NAME_DUPLICATE_OF + " INTEGER");
+        db.execSQL("DROP VIEW IF EXISTS " + PetEntry.VIEW_NAME);
+        db.execSQL(SQL_CREATE_VIEW_V6);
+    }
+
+    @Override
+    boolean hasBackgroundWork() {
+        return true;
+    }
+
+    @Override
+    long runChunk(SQLiteDatabase db, long checkpoint, int chunkSize) {
+        long last = lastRowIdOfChunk(db, PetEntry.TABLE_NAME, checkpoint, chunkSize);
+        if (last == DONE) {
+            return DONE;
+        }
+
+        SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                " SET " + PetEntry.COLUMN_NAME_FINGERPRINT + " = ? WHERE " + PetEntry._ID + " = ?");
+        try {
+            PetFingerprint.refreshRows(db, update,
+                    PetEntry._ID + " > ? AND " + PetEntry._ID + " <= ?",
+                    new String[] {String.valueOf(checkpoint), String.valueOf(last)});
+        } finally {
+            update.close();
+        }
+        return last;
+    }
+
+    @Override
+    void onComplete(SQLiteDatabase db) {
+        db.execSQL(PetEntry.SQL_CREATE_FINGERPRINT_INDEX);
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.android.pets.data;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * {@link PetLatencySummary} is the throughput and latency percentiles of one kind of
+ * operation, e.g. the scheduler's wait times or the pauses of a backup.
+ */
+public class PetLatencySummary {
+    public final long operations;
+    public final double opsPerSecond;
+    public final double p50Millis;
+    public final double p95Millis;
+    public final double p99Millis;
+    public final double maxMillis;
+
+    /**
+     * @param latencies every operation's latency in nanoseconds; sorted in place
+     * @param elapsedNanos the time the operations were spread over, for the rate
+     */
+    PetLatencySummary(long[] latencies, long elapsedNanos) {
+        Arrays.sort(latencies);
+        operations = latencies.length;
+        opsPerSecond = elapsedNanos > 0 ? latencies.length * 1e9 / elapsedNanos : 0;
+        p50Millis = percentile(latencies, 0.50);
+        p95Millis = percentile(latencies, 0.95);
+        p99Millis = percentile(latencies, 0.99);
+        maxMillis = latencies.length > 0 ? latencies[latencies.length - 1] / 1e6 : 0;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d ops, %.1f ops/s, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+                operations, opsPerSecond, p50Millis, p95Millis, p99Millis, maxMillis);
+    }
+}
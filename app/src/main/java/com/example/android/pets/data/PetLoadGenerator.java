@@ -0,0 +1,445 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDebug;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link PetLoadGenerator} fills the provider with realistic synthetic pets and then drives
+ * concurrent writers and readers against it at a target rate, so problems that only show up
+ * on shelter-sized tables can be reproduced on demand.
+ *
+ * It only talks to a {@link ContentResolver}: the catalog's "Insert dummy data" option runs
+ * it with the settings picked in its dialog, and {@code PetLoadGeneratorTest} runs the
+ * concurrent phase against a provider of its own.
+ */
+public class PetLoadGenerator {
+
+    private static final String[] NAMES = {
+            "Andy", "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Buddy",
+            "Molly", "Rocky", "Sadie", "Bear", "Maggie", "Duke", "Sophie", "Tucker", "Chloe",
+            "Jack", "Bailey", "Oliver", "Lola", "Toby", "Zoe", "Milo", "Penny", "Leo", "Rosie",
+            "Oscar", "Ruby", "Teddy", "Coco", "Winston", "Ginger", "Murphy", "Pepper", "Gus",
+            "Nala", "Louie", "Willow"};
+
+    /** Breeds, their relative frequency in intake and their typical weight in kg */
+    private static final String[] BREEDS = {
+            "Terrier", "Labrador", "Mixed", "Tabby", "German Shepherd", "Beagle",
+            "Siamese", "Chihuahua", "Boxer", "Poodle", "Maine Coon", "Husky"};
+    private static final int[] BREED_FREQUENCIES = {14, 16, 22, 12, 6, 6, 4, 6, 4, 4, 3, 3};
+    private static final int[] BREED_WEIGHTS = {8, 30, 15, 5, 35, 11, 4, 2, 28, 20, 7, 23};
+
+    /** Rows per bulkInsert call while seeding */
+    private static final int SEED_BATCH_SIZE = 500;
+
+    /** Most pets a reader asks for at once, like the prefetcher does for a visible window */
+    private static final int MAX_WINDOW_SIZE = 40;
+
+    /** Defaults of the settings below */
+    public static final int DEFAULT_PET_COUNT = 1000;
+    public static final int DEFAULT_TARGET_OPS_PER_SECOND = 100;
+    public static final long DEFAULT_DURATION_MILLIS = 10000;
+
+    /** How often the concurrent phase reports its progress */
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+
+    private final ContentResolver mContentResolver;
+    private int mPetCount = DEFAULT_PET_COUNT;
+    private int mWriterThreads = 0;
+    private int mReaderThreads = 0;
+    private int mTargetOpsPerSecond = DEFAULT_TARGET_OPS_PER_SECOND;
+    private long mDurationMillis = DEFAULT_DURATION_MILLIS;
+    private long mSeed = 42;
+    private ProgressListener mProgressListener;
+
+    /**
+     * Constructs a new {@link PetLoadGenerator}.
+     *
+     * @param contentResolver the resolver used for every operation
+     */
+    public PetLoadGenerator(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /** Number of pets inserted before the concurrent phase */
+    public PetLoadGenerator setPetCount(int petCount) {
+        mPetCount = petCount;
+        return this;
+    }
+
+    /** Number of threads updating and inserting pets during the concurrent phase */
+    public PetLoadGenerator setWriterThreads(int writerThreads) {
+        mWriterThreads = writerThreads;
+        return this;
+    }
+
+    /** Number of threads querying pets during the concurrent phase */
+    public PetLoadGenerator setReaderThreads(int readerThreads) {
+        mReaderThreads = readerThreads;
+        return this;
+    }
+
+    /** Operations per second each thread aims for during the concurrent phase */
+    public PetLoadGenerator setTargetOpsPerSecond(int targetOpsPerSecond) {
+        mTargetOpsPerSecond = targetOpsPerSecond;
+        return this;
+    }
+
+    /** How long the concurrent phase runs */
+    public PetLoadGenerator setDurationMillis(long durationMillis) {
+        mDurationMillis = durationMillis;
+        return this;
+    }
+
+    /** Seed for every random choice, so runs are reproducible */
+    public PetLoadGenerator setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    /** Told how far the run has got, on the thread that called {@link #run} */
+    public PetLoadGenerator setProgressListener(ProgressListener progressListener) {
+        mProgressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Seed the pets, then run the concurrent phase if any threads were requested. Blocks until
+     * done, so don't call it on the main thread.
+     */
+    public Report run() throws InterruptedException {
+        Report report = new Report();
+
+        long seedStart = System.nanoTime();
+        report.petsInserted = seed(new Random(mSeed));
+        report.seedMillis = (System.nanoTime() - seedStart) / 1000000;
+
+        if (mWriterThreads + mReaderThreads == 0) {
+            return report;
+        }
+
+        // Writers and readers pick pets from the IDs that exist now
+        final long[] ids = loadIds();
+        if (ids.length == 0) {
+            return report;
+        }
+
+        final long deadline = System.nanoTime() + mDurationMillis * 1000000;
+        final long intervalNanos = 1000000000L / Math.max(1, mTargetOpsPerSecond);
+        final AtomicLong failures = new AtomicLong();
+        final List<long[]> writeLatencies = new ArrayList<>();
+        final List<long[]> readLatencies = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(mWriterThreads + mReaderThreads);
+
+        StatementCacheStats cacheBefore = StatementCacheStats.capture();
+        long start = System.nanoTime();
+        for (int i = 0; i < mWriterThreads + mReaderThreads; i++) {
+            final boolean writer = i < mWriterThreads;
+            final Random random = new Random(mSeed + 1 + i);
+            final LatencyLog latencies = new LatencyLog();
+            (writer ? writeLatencies : readLatencies).add(null);
+            final int slot = (writer ? writeLatencies : readLatencies).size() - 1;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long next = System.nanoTime();
+                    try {
+                        while (next < deadline) {
+                            long now = System.nanoTime();
+                            if (now < next) {
+                                Thread.sleep((next - now) / 1000000,
+                                        (int) ((next - now) % 1000000));
+                            }
+                            long opStart = System.nanoTime();
+                            try {
+                                if (writer) {
+                                    write(random, ids);
+                                } else {
+                                    read(random, ids);
+                                }
+                            } catch (RuntimeException e) {
+                                failures.incrementAndGet();
+                            }
+                            latencies.add(System.nanoTime() - opStart);
+                            next += intervalNanos;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        synchronized (done) {
+                            (writer ? writeLatencies : readLatencies)
+                                    .set(slot, latencies.toArray());
+                        }
+                        done.countDown();
+                    }
+                }
+            }, (writer ? "PetLoadWriter-" : "PetLoadReader-") + i).start();
+        }
+        while (!done.await(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (mProgressListener != null) {
+                mProgressListener.onLoadProgress(
+                        Math.min(mDurationMillis, (System.nanoTime() - start) / 1000000),
+                        mDurationMillis);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        synchronized (done) {
+            report.writes = new PetLatencySummary(merge(writeLatencies), elapsed);
+            report.reads = new PetLatencySummary(merge(readLatencies), elapsed);
+        }
+        report.failures = failures.get();
+        report.statementCache = StatementCacheStats.capture().since(cacheBefore);
+        return report;
+    }
+
+    /**
+     * Insert the configured number of pets in batches. Returns the number of rows written.
+     */
+    private int seed(Random random) {
+        int inserted = 0;
+        while (inserted < mPetCount) {
+            int batchSize = Math.min(SEED_BATCH_SIZE, mPetCount - inserted);
+            ContentValues[] batch = new ContentValues[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                batch[i] = randomPet(random);
+            }
+            // The upsert URI writes the whole batch in one transaction; without a key every
+            // row is a plain insert
+            int written = mContentResolver.bulkInsert(PetContract.PetEntry.UPSERT_URI, batch);
+            if (written == 0) {
+                break;
+            }
+            inserted += written;
+            if (mProgressListener != null) {
+                mProgressListener.onSeedProgress(inserted, mPetCount);
+            }
+        }
+        return inserted;
+    }
+
+    private long[] loadIds() {
+        Cursor cursor = mContentResolver.query(PetContract.PetEntry.CONTENT_URI,
+                new String[] {PetContract.PetEntry._ID}, null, null, null);
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * One writer operation: mostly weight updates, with the occasional new intake
+     */
+    private void write(Random random, long[] ids) {
+        if (random.nextInt(10) == 0) {
+            mContentResolver.insert(PetContract.PetEntry.CONTENT_URI, randomPet(random));
+        } else {
+            ContentValues values = new ContentValues();
+            values.put(PetContract.PetEntry.COLUMN_NAME_WEIGHT, 1 + random.nextInt(40));
+            Uri uri = ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI,
+                    ids[random.nextInt(ids.length)]);
+            mContentResolver.update(uri, values, null, null);
+        }
+    }
+
+    /**
+     * One reader operation: mostly single-pet lookups, then windows of pets of varying size,
+     * with the occasional full catalog scan
+     */
+    private void read(Random random, long[] ids) {
+        int roll = random.nextInt(20);
+        Uri uri;
+        if (roll == 0) {
+            uri = PetContract.PetEntry.CONTENT_URI;
+        } else if (roll < 5) {
+            int offset = random.nextInt(ids.length);
+            int size = Math.min(1 + random.nextInt(MAX_WINDOW_SIZE), ids.length - offset);
+            uri = PetContract.PetEntry.buildIdsUri(Arrays.copyOfRange(ids, offset, offset + size));
+        } else {
+            uri = ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI,
+                    ids[random.nextInt(ids.length)]);
+        }
+        Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+        if (cursor != null) {
+            // Force the whole result into memory, as a list or the editor would
+            cursor.getCount();
+            cursor.close();
+        }
+    }
+
+    /**
+     * Make one pet with a realistic name, breed, gender and breed-dependent weight
+     */
+    static ContentValues randomPet(Random random) {
+        int breed = pickBreed(random);
+        ContentValues values = new ContentValues();
+        values.put(PetContract.PetEntry.COLUMN_NAME_NAME, NAMES[random.nextInt(NAMES.length)]);
+        // One in twenty intakes has no known breed
+        if (random.nextInt(20) != 0) {
+            values.put(PetContract.PetEntry.COLUMN_NAME_BREED, BREEDS[breed]);
+        }
+        int genderRoll = random.nextInt(100);
+        values.put(PetContract.PetEntry.COLUMN_NAME_GENDER, genderRoll < 48
+                ? PetContract.PetEntry.GENDER_MALE
+                : genderRoll < 96 ? PetContract.PetEntry.GENDER_FEMALE
+                : PetContract.PetEntry.GENDER_UNKNOWN);
+        double weight = BREED_WEIGHTS[breed] * (1 + 0.2 * random.nextGaussian());
+        values.put(PetContract.PetEntry.COLUMN_NAME_WEIGHT, Math.max(1, (int) Math.round(weight)));
+        return values;
+    }
+
+    private static int pickBreed(Random random) {
+        int total = 0;
+        for (int frequency : BREED_FREQUENCIES) {
+            total += frequency;
+        }
+        int roll = random.nextInt(total);
+        for (int i = 0; i < BREED_FREQUENCIES.length; i++) {
+            roll -= BREED_FREQUENCIES[i];
+            if (roll < 0) {
+                return i;
+            }
+        }
+        return BREED_FREQUENCIES.length - 1;
+    }
+
+    private static long[] merge(List<long[]> parts) {
+        int size = 0;
+        for (long[] part : parts) {
+            size += part.length;
+        }
+        long[] merged = new long[size];
+        int offset = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, merged, offset, part.length);
+            offset += part.length;
+        }
+        return merged;
+    }
+
+    /**
+     * Growable list of latencies, in nanoseconds, owned by one thread
+     */
+    static class LatencyLog {
+        private long[] mValues = new long[1024];
+        private int mSize;
+
+        void add(long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+
+    /**
+     * Hits and misses of SQLite's prepared statement cache on the shelter databases, summed
+     * over every connection. The counters come from {@link SQLiteDebug}, so they only cover
+     * databases this process has open: run the generator in the provider's process.
+     */
+    public static class StatementCacheStats {
+        public final long hits;
+        public final long misses;
+
+        StatementCacheStats(long hits, long misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        static StatementCacheStats capture() {
+            long hits = 0;
+            long misses = 0;
+            for (SQLiteDebug.DbStats stats : SQLiteDebug.getDatabaseInfo().dbStats) {
+                if (stats.dbName == null || !stats.dbName.contains("shelter")
+                        || stats.cache == null) {
+                    continue;
+                }
+                // "hits/misses/size"
+                String[] parts = stats.cache.split("/");
+                try {
+                    hits += Long.parseLong(parts[0].trim());
+                    misses += Long.parseLong(parts[1].trim());
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // Not the format this was written against; leave the connection out
+                }
+            }
+            return new StatementCacheStats(hits, misses);
+        }
+
+        /** The counts accumulated since the earlier snapshot */
+        StatementCacheStats since(StatementCacheStats before) {
+            return new StatementCacheStats(hits - before.hits, misses - before.misses);
+        }
+
+        public double hitRate() {
+            return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d hits, %d misses, %.1f%% hit rate",
+                    hits, misses, 100 * hitRate());
+        }
+    }
+
+    /**
+     * Receives the progress of a {@link #run}
+     */
+    public interface ProgressListener {
+        /** Called after each batch of pets is seeded */
+        void onSeedProgress(int inserted, int petCount);
+
+        /** Called a couple of times a second while the writers and readers run */
+        void onLoadProgress(long elapsedMillis, long durationMillis);
+    }
+
+    /**
+     * What a {@link #run} achieved
+     */
+    public static class Report {
+        public int petsInserted;
+        public long seedMillis;
+        public PetLatencySummary writes;
+        public PetLatencySummary reads;
+        public long failures;
+        public StatementCacheStats statementCache;
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder()
+                    .append("seeded ").append(petsInserted).append(" pets in ")
+                    .append(seedMillis).append(" ms");
+            if (writes != null) {
+                report.append("; writes: ").append(writes)
+                        .append("; reads: ").append(reads)
+                        .append("; failures: ").append(failures)
+                        .append("; statement cache: ").append(statementCache);
+            }
+            return report.toString();
+        }
+    }
+}
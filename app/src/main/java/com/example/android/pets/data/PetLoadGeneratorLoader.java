@@ -0,0 +1,125 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.AsyncTaskLoader;
+
+/**
+ * {@link PetLoadGeneratorLoader} runs a {@link PetLoadGenerator} off the main thread. As a
+ * loader it outlives a configuration change: the recreated catalog reconnects to the run in
+ * flight instead of starting another one, picks up its progress where it is, and gets the
+ * report once it is done.
+ *
+ * Progress is passed on to the main thread. The loader keeps the last of it, so a listener
+ * set after a rotation is told right away.
+ */
+public class PetLoadGeneratorLoader extends AsyncTaskLoader<PetLoadGenerator.Report> {
+
+    private final PetLoadGenerator mGenerator;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Whether the run has been started; it must only ever run once */
+    private boolean mStarted = false;
+
+    /**
+     * Whether the run is done, and its report, null if it was interrupted. Kept for a catalog
+     * that reconnects later.
+     */
+    private boolean mFinished = false;
+    private PetLoadGenerator.Report mReport;
+
+    /** Where progress goes on the main thread, may be null */
+    private PetLoadGenerator.ProgressListener mProgressListener;
+
+    /** The last progress reported, for a listener set later; total is 0 before the first */
+    private boolean mSeeding;
+    private long mDone;
+    private long mTotal;
+
+    /**
+     * Constructs a new {@link PetLoadGeneratorLoader}.
+     *
+     * @param generator the configured run, which must use the application's ContentResolver
+     */
+    public PetLoadGeneratorLoader(Context context, PetLoadGenerator generator) {
+        super(context);
+        mGenerator = generator;
+        mGenerator.setProgressListener(new PetLoadGenerator.ProgressListener() {
+            @Override
+            public void onSeedProgress(int inserted, int petCount) {
+                postProgress(true, inserted, petCount);
+            }
+
+            @Override
+            public void onLoadProgress(long elapsedMillis, long durationMillis) {
+                postProgress(false, elapsedMillis, durationMillis);
+            }
+        });
+    }
+
+    /**
+     * Set who hears about the run's progress, on the main thread, starting with where it is
+     * now. Pass null before the listener goes away, since the loader outlives the activity.
+     */
+    public void setProgressListener(PetLoadGenerator.ProgressListener progressListener) {
+        mProgressListener = progressListener;
+        if (progressListener != null && mTotal > 0) {
+            dispatchProgress();
+        }
+    }
+
+    private void postProgress(final boolean seeding, final long done, final long total) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSeeding = seeding;
+                mDone = done;
+                mTotal = total;
+                if (mProgressListener != null) {
+                    dispatchProgress();
+                }
+            }
+        });
+    }
+
+    private void dispatchProgress() {
+        if (mSeeding) {
+            mProgressListener.onSeedProgress((int) mDone, (int) mTotal);
+        } else {
+            mProgressListener.onLoadProgress(mDone, mTotal);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mFinished) {
+            deliverResult(mReport);
+        } else if (!mStarted) {
+            // forceLoad() again would cancel the running generator and start a second one
+            mStarted = true;
+            forceLoad();
+        }
+    }
+
+    /**
+     * Returns null if the run was interrupted
+     */
+    @Override
+    public PetLoadGenerator.Report loadInBackground() {
+        try {
+            return mGenerator.run();
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void deliverResult(PetLoadGenerator.Report report) {
+        mFinished = true;
+        mReport = report;
+        if (isStarted()) {
+            super.deliverResult(report);
+        }
+    }
+}
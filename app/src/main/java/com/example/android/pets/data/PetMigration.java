@@ -0,0 +1,94 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * {@link PetMigration} is one step in upgrading shelter.db from one schema version to the next.
+ *
+ * Every step has a quick part, {@link #onUpgrade}, for cheap DDL such as adding a column or
+ * creating an empty table. Steps that have to touch every row (rebuilding a table, backfilling
+ * a column) also override {@link #hasBackgroundWork} and {@link #runChunk}. The
+ * {@link PetMigrator} then runs that work in small transactions on a background thread,
+ * recording a checkpoint after each chunk so it can resume after the process dies.
+ */
+abstract class PetMigration {
+
+    /** Result of {@link #runChunk} once there is nothing left to process */
+    static final long DONE = -1;
+
+    private final int mVersion;
+
+    /**
+     * @param version the schema version this step upgrades to
+     */
+    PetMigration(int version) {
+        mVersion = version;
+    }
+
+    /**
+     * The schema version this step upgrades to
+     */
+    final int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Make the quick schema changes for this step. This may run inside SQLiteOpenHelper's
+     * upgrade transaction, so it must not scale with the number of rows.
+     */
+    abstract void onUpgrade(SQLiteDatabase db);
+
+    /**
+     * Whether {@link #onUpgrade} may run while an earlier step's chunked work is still
+     * pending. By default a step waits for every earlier step to finish. Steps that only add
+     * schema (and don't depend on rows an earlier step is still converting) can return true,
+     * so the provider can use the new schema as soon as the database is open.
+     */
+    boolean canRunAhead() {
+        return false;
+    }
+
+    /**
+     * Whether this step has per-row work to run in chunks after {@link #onUpgrade}
+     */
+    boolean hasBackgroundWork() {
+        return false;
+    }
+
+    /**
+     * Process up to chunkSize rows whose rowid is greater than the checkpoint. Called inside a
+     * transaction that also saves the returned checkpoint.
+     *
+     * @param checkpoint the last rowid processed, or 0 to start from the beginning
+     * @return the last rowid processed by this chunk, or {@link #DONE} if there were none
+     */
+    long runChunk(SQLiteDatabase db, long checkpoint, int chunkSize) {
+        return DONE;
+    }
+
+    /**
+     * Finish the step after the last chunk, e.g. by swapping a rebuilt table into place. Called
+     * inside a short transaction.
+     */
+    void onComplete(SQLiteDatabase db) {
+    }
+
+    /**
+     * Find where the next chunk of a table ends: the largest rowid among the first chunkSize
+     * rows after the checkpoint, or {@link #DONE} if no rows are left.
+     */
+    static long lastRowIdOfChunk(SQLiteDatabase db, String table, long checkpoint, int chunkSize) {
+        Cursor cursor = db.rawQuery("SELECT MAX(rowid) FROM (SELECT rowid FROM " + table +
+                " WHERE rowid > ? ORDER BY rowid LIMIT ?)",
+                new String[] {String.valueOf(checkpoint), String.valueOf(chunkSize)});
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return DONE;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * {@link PetMigrator} runs the ordered list of {@link PetMigration} steps that take shelter.db
+ * from any older schema version to {@link PetDbHelper#DATABASE_VERSION}.
+ *
+ * Steps are applied strictly in version order. Quick steps run straight from
+ * {@link PetDbHelper#onUpgrade}. The per-row work of the first step that has any, and every
+ * step after it, are written to the schema_migrations table instead and finished by
+ * {@link #resume} on a background thread: one chunk per transaction, with the checkpoint saved
+ * in the same transaction, so no single transaction grows with the size of the table and an
+ * interrupted migration picks up where it stopped. Each of those transactions is a maintenance
+ * operation of the provider's {@link PetScheduler}, so the upgrade takes turns with background
+ * operations and gives way to interactive ones. The provider's database lock is only held for
+ * one transaction at a time, so a restore waits for a chunk rather than the whole upgrade; if
+ * it closes the database in between, {@link #resume} stops and the restored database is
+ * resumed on its own.
+ */
+class PetMigrator {
+
+    private static final String LOG_TAG = PetMigrator.class.getSimpleName();
+
+    /** Table recording the steps that still have work to do */
+    static final String TABLE_NAME = "schema_migrations";
+    static final String COLUMN_VERSION = "version";
+    static final String COLUMN_STARTED = "started";
+    static final String COLUMN_CHECKPOINT = "checkpoint";
+
+    static final String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+            COLUMN_VERSION + " INTEGER PRIMARY KEY," +
+            COLUMN_STARTED + " INTEGER NOT NULL DEFAULT 0," +
+            COLUMN_CHECKPOINT + " INTEGER NOT NULL DEFAULT 0)";
+
+    /** Rows copied or backfilled per transaction by default */
+    static final int DEFAULT_CHUNK_SIZE = 2000;
+
+    /**
+     * Receives progress reports from {@link #resume}
+     */
+    interface ProgressListener {
+        /**
+         * Called after every committed chunk
+         *
+         * @param version the step being run
+         * @param checkpoint the last rowid processed so far
+         */
+        void onProgress(int version, long checkpoint);
+    }
+
+    private final List<PetMigration> mMigrations = new ArrayList<>();
+
+    /**
+     * @param migrations every step, in increasing version order
+     */
+    PetMigrator(PetMigration... migrations) {
+        int lastVersion = 0;
+        for (PetMigration migration : migrations) {
+            if (migration.getVersion() <= lastVersion) {
+                throw new IllegalArgumentException(
+                        "Migrations must be in increasing version order");
+            }
+            lastVersion = migration.getVersion();
+            mMigrations.add(migration);
+        }
+    }
+
+    /**
+     * Apply or schedule every step between the two versions. Called from inside the
+     * SQLiteOpenHelper upgrade transaction.
+     */
+    void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL(SQL_CREATE_TABLE);
+
+        // Once a step is deferred, every later step has to wait behind it unless it can run
+        // ahead
+        boolean deferring = hasPendingSteps(db);
+        for (PetMigration migration : mMigrations) {
+            int version = migration.getVersion();
+            if (version <= oldVersion || version > newVersion) {
+                continue;
+            }
+            if (deferring && !migration.canRunAhead()) {
+                db.execSQL("INSERT INTO " + TABLE_NAME + " (" + COLUMN_VERSION + ") VALUES (?)",
+                        new Object[] {version});
+                continue;
+            }
+            migration.onUpgrade(db);
+            if (migration.hasBackgroundWork()) {
+                // The quick part is done; the per-row work is left for resume()
+                deferring = true;
+                db.execSQL("INSERT INTO " + TABLE_NAME + " (" + COLUMN_VERSION + ", " +
+                        COLUMN_STARTED + ") VALUES (?, 1)", new Object[] {version});
+            }
+        }
+    }
+
+    /**
+     * Finish every deferred step. Blocks until done, so call it from a background thread.
+     *
+     * @param chunkSize rows per transaction
+     * @param scheduler runs each transaction as a maintenance operation of one chunk
+     * @param lock held for each transaction; whoever closes the database must hold it
+     *             exclusively
+     * @param listener told about progress after each chunk, may be null
+     * @return false if the database was closed before every step was done
+     */
+    boolean resume(SQLiteDatabase db, int chunkSize, PetScheduler scheduler, Lock lock,
+                   ProgressListener listener) {
+        try {
+            resumeSteps(db, chunkSize, scheduler, lock, listener);
+            return true;
+        } catch (DatabaseClosedException e) {
+            Log.i(LOG_TAG, "Database closed during the migration; it resumes on the next open");
+            return false;
+        }
+    }
+
+    private void resumeSteps(SQLiteDatabase db, int chunkSize, PetScheduler scheduler, Lock lock,
+                             ProgressListener listener) {
+        while (true) {
+            int version;
+            boolean started;
+            long checkpoint;
+            beginChunk(db, scheduler, lock);
+            try {
+                db.execSQL(SQL_CREATE_TABLE);
+                db.setTransactionSuccessful();
+                Cursor cursor = db.query(TABLE_NAME,
+                        new String[] {COLUMN_VERSION, COLUMN_STARTED, COLUMN_CHECKPOINT},
+                        null, null, null, null, COLUMN_VERSION, "1");
+                try {
+                    if (!cursor.moveToFirst()) {
+                        return;
+                    }
+                    version = cursor.getInt(0);
+                    started = cursor.getInt(1) != 0;
+                    checkpoint = cursor.getLong(2);
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                endChunk(db, scheduler, lock);
+            }
+
+            PetMigration migration = findMigration(version);
+            if (!started) {
+                beginChunk(db, scheduler, lock);
+                try {
+                    migration.onUpgrade(db);
+                    saveState(db, version, checkpoint);
+                    db.setTransactionSuccessful();
+                } finally {
+                    endChunk(db, scheduler, lock);
+                }
+            }
+
+            if (migration.hasBackgroundWork()) {
+                checkpoint = runChunks(db, migration, checkpoint, chunkSize, scheduler, lock,
+                        listener);
+            }
+
+            beginChunk(db, scheduler, lock);
+            try {
+                migration.onComplete(db);
+                db.delete(TABLE_NAME, COLUMN_VERSION + "=?",
+                        new String[] {String.valueOf(version)});
+                db.setTransactionSuccessful();
+            } finally {
+                endChunk(db, scheduler, lock);
+            }
+            Log.i(LOG_TAG, "Migration to version " + version + " complete at rowid " +
+                    checkpoint);
+        }
+    }
+
+    /**
+     * Whether any step is still waiting for {@link #resume}
+     */
+    static boolean hasPendingSteps(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT 1 FROM " + TABLE_NAME + " LIMIT 1", null);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Run the step's chunks until it reports {@link PetMigration#DONE}, committing the
+     * checkpoint with each one. Returns the final checkpoint.
+     */
+    private static long runChunks(SQLiteDatabase db, PetMigration migration, long checkpoint,
+                                  int chunkSize, PetScheduler scheduler, Lock lock,
+                                  ProgressListener listener) {
+        while (true) {
+            long last;
+            beginChunk(db, scheduler, lock);
+            try {
+                last = migration.runChunk(db, checkpoint, chunkSize);
+                if (last != PetMigration.DONE) {
+                    saveState(db, migration.getVersion(), last);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                endChunk(db, scheduler, lock);
+            }
+            if (last == PetMigration.DONE) {
+                return checkpoint;
+            }
+            checkpoint = last;
+            if (listener != null) {
+                listener.onProgress(migration.getVersion(), checkpoint);
+            }
+        }
+    }
+
+    /**
+     * Wait for the scheduler to admit one chunk of the migration, take the lock, then start
+     * its transaction. Pair with {@link #endChunk} in a finally block.
+     *
+     * @throws DatabaseClosedException if the database was closed since the last chunk
+     */
+    private static void beginChunk(SQLiteDatabase db, PetScheduler scheduler, Lock lock) {
+        scheduler.enterMaintenance();
+        scheduler.beginChunk();
+        lock.lock();
+        try {
+            if (!db.isOpen()) {
+                throw new DatabaseClosedException();
+            }
+            db.beginTransaction();
+        } catch (RuntimeException e) {
+            lock.unlock();
+            scheduler.endChunk();
+            scheduler.exit();
+            throw e;
+        }
+    }
+
+    /**
+     * End the chunk's transaction and let other operations, and a restore, in
+     */
+    private static void endChunk(SQLiteDatabase db, PetScheduler scheduler, Lock lock) {
+        try {
+            db.endTransaction();
+        } finally {
+            lock.unlock();
+            scheduler.endChunk();
+            scheduler.exit();
+        }
+    }
+
+    /**
+     * Thrown by {@link #beginChunk} to stop {@link #resume} once a restore has closed the
+     * database
+     */
+    private static class DatabaseClosedException extends RuntimeException {
+    }
+
+    private static void saveState(SQLiteDatabase db, int version, long checkpoint) {
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_STARTED + "=1, " +
+                COLUMN_CHECKPOINT + "=? WHERE " + COLUMN_VERSION + "=?",
+                new Object[] {checkpoint, version});
+    }
+
+    private PetMigration findMigration(int version) {
+        for (PetMigration migration : mMigrations) {
+            if (migration.getVersion() == version) {
+                return migration;
+            }
+        }
+        throw new IllegalStateException("No migration for version " + version);
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * {@link PetPhotoStore} keeps pet photos as plain files in the app's private storage. The
+ * pets table only holds the file name, so photos never end up in a CursorWindow.
+ *
+ * Every new photo gets a new file name. A reader that opened the old file keeps reading it,
+ * and caches keyed on the name never serve an outdated image.
+ */
+class PetPhotoStore {
+
+    /** Tag for any log messages */
+    private static final String LOG_TAG = PetPhotoStore.class.getSimpleName();
+
+    /** Directory under getFilesDir() that holds the photos */
+    private static final String DIRECTORY_NAME = "pet_photos";
+
+    private final File mDirectory;
+
+    PetPhotoStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * The file behind a photo name from the photo column
+     *
+     * @throws IllegalArgumentException if the name is not one this store handed out
+     */
+    File fileFor(String name) {
+        if (name.isEmpty() || name.indexOf(File.separatorChar) >= 0 || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid photo name " + name);
+        }
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * Pick the name for a new photo of the pet. The file itself isn't created.
+     */
+    String newName(long petId) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + mDirectory);
+        }
+        return "pet_" + petId + "_" + UUID.randomUUID() + ".jpg";
+    }
+
+    /**
+     * Delete the photo file, if there is one
+     */
+    void delete(String name) {
+        if (name != null && !fileFor(name).delete()) {
+            Log.v(LOG_TAG, "Photo " + name + " was already gone");
+        }
+    }
+
+    /**
+     * Delete every photo file that no pet refers to any more, e.g. after the pet was deleted
+     * or the database was restored. Every shelter's pets count, archived or not. Run it on a
+     * background thread.
+     */
+    void deleteOrphans(PetShards shards) {
+        String[] files = mDirectory.list();
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        Set<String> referenced = new HashSet<>();
+        for (PetShards.Shard shard : shards.all()) {
+            SQLiteDatabase db = shard.helper.getWritableDatabase();
+            Cursor cursor = db.query(PetArchive.VIEW_NAME,
+                    new String[] {PetEntry.COLUMN_NAME_PHOTO},
+                    PetEntry.COLUMN_NAME_PHOTO + " IS NOT NULL", null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    referenced.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        int deleted = 0;
+        for (String name : files) {
+            if (!referenced.contains(name) && new File(mDirectory, name).delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            Log.i(LOG_TAG, "Deleted " + deleted + " orphaned photos");
+        }
+    }
+}
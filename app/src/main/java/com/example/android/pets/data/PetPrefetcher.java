@@ -0,0 +1,135 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.widget.AbsListView;
+import android.widget.ListAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link PetPrefetcher} loads the full rows of the pets around the visible part of a list
+ * into the {@link PetRowCache} whenever the list comes to rest, so tapping a row can open the
+ * editor without waiting for a query.
+ */
+public class PetPrefetcher implements AbsListView.OnScrollListener {
+
+    /** Number of rows above and below the visible window to prefetch */
+    private static final int WINDOW_MARGIN = 10;
+
+    /** Columns the editor needs to fill its form */
+    private static final String[] PROJECTION = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_NAME_NAME,
+            PetContract.PetEntry.COLUMN_NAME_BREED,
+            PetContract.PetEntry.COLUMN_NAME_GENDER,
+            PetContract.PetEntry.COLUMN_NAME_WEIGHT};
+
+    private final ContentResolver mContentResolver;
+
+    /**
+     * Constructs a new {@link PetPrefetcher}.
+     *
+     * @param context the context used to reach the provider
+     */
+    public PetPrefetcher(Context context) {
+        mContentResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == SCROLL_STATE_IDLE) {
+            prefetch(view);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        // Nothing to do while the list moves; wait until it is idle
+    }
+
+    /**
+     * Prefetch the rows around the list's current visible window that aren't cached yet.
+     * Call this when new data is loaded as well as on scroll.
+     */
+    public void prefetch(AbsListView view) {
+        ListAdapter adapter = view.getAdapter();
+        if (adapter == null || adapter.getCount() == 0) {
+            return;
+        }
+
+        int first = Math.max(0, view.getFirstVisiblePosition() - WINDOW_MARGIN);
+        int last = Math.min(adapter.getCount() - 1, view.getLastVisiblePosition() + WINDOW_MARGIN);
+
+        PetRowCache cache = PetRowCache.getInstance();
+        List<Long> missing = new ArrayList<>();
+        for (int position = first; position <= last; position++) {
+            long id = adapter.getItemId(position);
+            if (!cache.contains(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        long[] ids = new long[missing.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = missing.get(i);
+        }
+        new PrefetchTask(mContentResolver, cache.getGeneration()).execute(ids);
+    }
+
+    /**
+     * Reads the given pets with a single query and stores them in the cache.
+     */
+    private static class PrefetchTask extends AsyncTask<long[], Void, Void> {
+
+        private final ContentResolver mContentResolver;
+        private final long mGeneration;
+
+        PrefetchTask(ContentResolver contentResolver, long generation) {
+            mContentResolver = contentResolver;
+            mGeneration = generation;
+        }
+
+        @Override
+        protected Void doInBackground(long[]... params) {
+            Cursor cursor = mContentResolver.query(PetContract.PetEntry.buildIdsUri(params[0]),
+                    PROJECTION, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                PetRowCache cache = PetRowCache.getInstance();
+                while (cursor.moveToNext()) {
+                    cache.put(cursor.getLong(0), readRow(cursor), mGeneration);
+                }
+            } finally {
+                cursor.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Copy the current row of a cursor with the {@link #PROJECTION} columns into ContentValues.
+     */
+    public static ContentValues readRow(Cursor cursor) {
+        ContentValues row = new ContentValues();
+        row.put(PetContract.PetEntry.COLUMN_NAME_NAME, cursor.getString(
+                cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME_NAME)));
+        row.put(PetContract.PetEntry.COLUMN_NAME_BREED, cursor.getString(
+                cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME_BREED)));
+        row.put(PetContract.PetEntry.COLUMN_NAME_GENDER, cursor.getInt(
+                cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME_GENDER)));
+        row.put(PetContract.PetEntry.COLUMN_NAME_WEIGHT, cursor.getInt(
+                cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME_WEIGHT)));
+        return row;
+    }
+}
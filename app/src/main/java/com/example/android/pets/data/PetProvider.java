@@ -1,17 +1,48 @@
 package com.example.android.pets.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import static com.example.android.pets.data.PetContract.CONTENT_AUTHORITY;
 import static com.example.android.pets.data.PetContract.PATH_PETS;
 
@@ -24,13 +55,87 @@ public class PetProvider extends ContentProvider {
     /** Tag for any log messages */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
-    /** Create and initialize a PetDbHelper object to gain access to the pets database. */
-    private PetDbHelper mPetDbHelper;
+    /** One database per shelter; shelter 0 is shelter.db */
+    private PetShards mShards;
+
+    /** Recent query results, invalidated by every committed write */
+    private final PetQueryCache mQueryCache = new PetQueryCache();
+
+    /** Photo files referenced from the photo column */
+    private PetPhotoStore mPhotoStore;
+
+    /**
+     * Held for reading by everything that uses the database, and for writing while a restore
+     * swaps the database file, so nothing runs against a half-closed helper.
+     */
+    private final ReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+
+    /** Decides which operations use the database first; see {@link PetScheduler} */
+    private final PetScheduler mScheduler = new PetScheduler();
+
+    /** Rows a background bulk insert writes per transaction */
+    private static final int BACKGROUND_CHUNK_SIZE = 250;
+
+    /** How long new weight measurements wait before they are folded into the rollups */
+    private static final long ROLL_UP_DELAY_MILLIS = 2000;
+
+    /** Time between two passes that move pets which became due into the archive */
+    private static final long ARCHIVE_INTERVAL_HOURS = 6;
+
+    /**
+     * Folds new weight measurements into the rollups in the background, so a burst of
+     * writes is rolled up in one pass, and archives pets now and then
+     */
+    private final ScheduledExecutorService mMaintenanceExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "PetMaintenance");
+                }
+            });
+
+    /** Shelters with a roll-up pass scheduled but not yet started */
+    private final Set<PetShards.Shard> mPendingRollUps =
+            Collections.synchronizedSet(new HashSet<PetShards.Shard>());
+
+    /** The thread finishing the migrations and the first maintenance pass, if one was started */
+    private volatile Thread mMigrationThread;
 
     /** URI matcher code for the content URI for the pets table */
     private static final int PETS = 100;
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int PETS_ID = 101;
+    /** URI matcher code for the content URI that creates or updates a pet */
+    private static final int PETS_UPSERT = 102;
+    /** URI matcher code for the content URI of the weight histogram */
+    private static final int PETS_WEIGHT_HISTOGRAM = 103;
+    /** URI matcher code for the content URI of a single pet's photo */
+    private static final int PETS_PHOTO = 104;
+    /** URI matcher code for the content URI for one shelter's pets */
+    private static final int SHELTER_PETS = 105;
+    /** URI matcher code for the content URI for a single pet of one shelter */
+    private static final int SHELTER_PETS_ID = 106;
+    /** URI matcher code for the content URI that creates or updates a pet of one shelter */
+    private static final int SHELTER_PETS_UPSERT = 107;
+    /** URI matcher code for the content URI of a single pet's weight history */
+    private static final int PETS_WEIGHTS = 108;
+
+    /** Every gender the sanity checks accept, for filters that need a leading gender term */
+    private static final String ALL_GENDERS = PetContract.PetEntry.GENDER_UNKNOWN + "," +
+            PetContract.PetEntry.GENDER_MALE + "," + PetContract.PetEntry.GENDER_FEMALE;
+
+    /**
+     * Largest number of IDs bound into a single IN (...) clause. SQLite refuses statements with
+     * more than 999 parameters; even padded to 512 this leaves room for the caller's own
+     * selection arguments.
+     */
+    private static final int MAX_IDS_PER_STATEMENT = 500;
 
     /** Creates a UriMatcher object - "s" means static variable */
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -39,25 +144,122 @@ public class PetProvider extends ContentProvider {
     static {
         sUriMatcher.addURI(CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PETS_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_UPSERT, PETS_UPSERT);
+        sUriMatcher.addURI(CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_WEIGHT_HISTOGRAM,
+                PETS_WEIGHT_HISTOGRAM);
+        sUriMatcher.addURI(CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO, PETS_PHOTO);
+        sUriMatcher.addURI(CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_WEIGHTS, PETS_WEIGHTS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/#/" + PetContract.PATH_PETS, SHELTER_PETS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/#/" + PetContract.PATH_PETS + "/#", SHELTER_PETS_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY,
+                PetContract.PATH_SHELTERS + "/#/" + PetContract.PATH_PETS + "/" +
+                        PetContract.PATH_UPSERT, SHELTER_PETS_UPSERT);
     }
 
     /**
-     * Initialize the provider and the database helper object
+     * Initialize the provider: open the shelters, start the migrations and schedule the archive
      *
      * Note: A provider is not created until a ContentResolver object tries to access it.
      */
     @Override
     public boolean onCreate() {
-        // TODO: Create and initialize a PetDbHelper object to gain access to the pets database.
-        // Make sure the variable is a global variable, so it can be referenced from other
-        // ContentProvider methods.
-        mPetDbHelper = new PetDbHelper(getContext());
+        mShards = new PetShards(getContext());
+        mPhotoStore = new PetPhotoStore(getContext());
+        startMigrations(false);
+        // The first pass runs once the migrations are done
+        mMaintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                archiveInBackground(mShards.all());
+            }
+        }, ARCHIVE_INTERVAL_HOURS, ARCHIVE_INTERVAL_HOURS, TimeUnit.HOURS);
         return true;
     }
 
     /**
-     * Perform the query for the given URI. Use the given projection, selection, selection arguments,
-     * and sort order.
+     * Stop the background passes and close every shelter's database. The framework never
+     * calls this; tests do, between runs.
+     */
+    @Override
+    public void shutdown() {
+        // The migration thread ends with a pass of its own, outside the executor
+        Thread migrationThread = mMigrationThread;
+        if (migrationThread != null) {
+            try {
+                migrationThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mMaintenanceExecutor.shutdownNow();
+        mDatabaseLock.writeLock().lock();
+        try {
+            for (PetShards.Shard shard : mShards.all()) {
+                shard.helper.close();
+            }
+        } finally {
+            mDatabaseLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Opening the database runs any schema upgrade, and large upgrades continue in chunks
+     * afterwards. Do both off the main thread.
+     *
+     * @param restored whether shelter.db was just replaced by a snapshot
+     */
+    private void startMigrations(final boolean restored) {
+        final Thread previous = mMigrationThread;
+        Thread migrationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                // A restore stops the previous thread at its next chunk; two must not resume
+                // the same shelter
+                if (previous != null) {
+                    try {
+                        previous.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                // Each chunk takes the read lock on its own, so a restore only waits for one
+                for (PetShards.Shard shard : mShards.all()) {
+                    if (!shard.helper.resumeMigrations(mScheduler, mDatabaseLock.readLock())) {
+                        // Restored in the meantime; the restore's own thread starts over
+                        return;
+                    }
+                }
+                mDatabaseLock.readLock().lock();
+                try {
+                    if (restored) {
+                        // The snapshot may hold pets that were archived after it was taken
+                        PetArchive.dropRestored(mShards.get(0).helper.getWritableDatabase());
+                    }
+                    // Deleting or restoring pets leaves their photo files behind
+                    mPhotoStore.deleteOrphans(mShards);
+                } finally {
+                    mDatabaseLock.readLock().unlock();
+                }
+                // Measurements appended before the last shutdown may not be rolled up
+                rollUpInBackground(mShards.all());
+                archiveInBackground(mShards.all());
+            }
+        }, "PetMigrations");
+        mMigrationThread = migrationThread;
+        migrationThread.start();
+    }
+
+    /**
+     * Perform the query for the given URI. Use the given projection, selection, selection
+     * arguments, and sort order.
      */
     @Override
     public Cursor query(Uri uri,
@@ -66,47 +268,156 @@ public class PetProvider extends ContentProvider {
                         String[] selectionArgs,
                         String sortOrder) {
 
-        // Get the readable database
-        SQLiteDatabase database = mPetDbHelper.getReadableDatabase();
-
-        // This cursor will hold the result of the query
+        // A cache hit is still an operation of its priority, so the scheduler's wait times
+        // cover every query the caller made, not only the ones that reached the database
+        mScheduler.enter(PetScheduler.priorityOf(uri, PetScheduler.INTERACTIVE));
+        // Serve repeated queries (e.g. the catalog after a rotation) from the result cache
+        // when nothing has been written since they last ran
+        String cacheKey = PetQueryCache.key(uri, projection, selection, selectionArgs, sortOrder);
         Cursor cursor;
+        try {
+            cursor = mQueryCache.get(cacheKey);
+        } catch (RuntimeException e) {
+            mScheduler.exit();
+            throw e;
+        }
+        if (cursor != null) {
+            mScheduler.exit();
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+            return cursor;
+        }
+        long generation = mQueryCache.getGeneration();
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                // The idea here is to perform a query on the pets table and enable the user to
-                // capture the entire database.
-                // Here the selection and selection arguments are null
-                cursor = database.query(PetContract.PetEntry.TABLE_NAME, projection, selection,
-                        selectionArgs, null, null, sortOrder);
-                break;
-            case PETS_ID:
-                // For the PET_ID code, extract out the ID from the URI
-                // For an example URI such as "content://com.example.android.pets/pets/3",
-                // the selection will be "_id=?" and the selection argument will be a
-                // String array containing the actual ID of 3 in this case
-                //
-                // For every "?" in the selection, we need to have an element in the selection
-                // arguments that will fill in the "?". Since we have 1 question mark in the
-                // selection, we have 1 String in the selection arguments' String array.
-                selection = PetContract.PetEntry._ID + "=?";
-                // See this: https://developer.android.com/reference/android/content/ContentUris.html#parseId(android.net.Uri)
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-
-                // This will perform a query on the pets table where the _id equals 3 to return a
-                // Cursor containing that row of the table
-                cursor = database.query(PetContract.PetEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder);
-                break;
-            default:
-                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        PetTrace.beginSection("PetProvider.query");
+        mDatabaseLock.readLock().lock();
+        try {
+            // Figure out if the URI matcher can match the URI to a specific code
+            int match = sUriMatcher.match(uri);
+            // Null for a shelter that isn't in use, which has no pets to return
+            PetShards.Shard shard = shardForRead(uri);
+
+            // Get the readable database
+            SQLiteDatabase database = shard != null ? shard.helper.getReadableDatabase() : null;
+            List<String> filterArgs = new ArrayList<>();
+            String filter;
+            switch (match) {
+                case PETS:
+                case SHELTER_PETS:
+                    // The idea here is to perform a query on the pets table and enable the user to
+                    // capture the entire database.
+                    // Here the selection and selection arguments are null
+                    if (shard == null) {
+                        cursor = emptyResult(projection);
+                        break;
+                    }
+                    filter = filterSelection(uri, filterArgs);
+                    if (filter != null) {
+                        selection = appendSelection(filter, selection);
+                        selectionArgs = appendSelectionArgs(
+                                filterArgs.toArray(new String[filterArgs.size()]), selectionArgs);
+                    }
+                    long[] ids = parseIds(uri);
+                    if (ids != null && ids.length > MAX_IDS_PER_STATEMENT) {
+                        throw new IllegalArgumentException("Too many ids to query at once: " + uri);
+                    }
+                    String view = includesArchive(uri)
+                            ? PetArchive.VIEW_NAME : PetContract.PetEntry.VIEW_NAME;
+                    if (match == PETS && mShards.size() > 1) {
+                        // Every shelter answers its part at the same time
+                        cursor = mShards.query(targetsFor(match, uri, ids), view, projection,
+                                selection, selectionArgs, sortOrder);
+                        break;
+                    }
+                    if (ids != null) {
+                        // A visible window's worth of IDs fits in one statement
+                        selection = appendSelection(idsSelection(ids.length), selection);
+                        selectionArgs = appendSelectionArgs(idsSelectionArgs(ids, 0, ids.length),
+                                selectionArgs);
+                    }
+                    cursor = database.query(view, projection, selection, selectionArgs, null, null,
+                            sortOrder);
+                    break;
+                case PETS_ID:
+                case SHELTER_PETS_ID:
+                    // For the PET_ID code, extract out the ID from the URI
+                    // For an example URI such as "content://com.example.android.pets/pets/3",
+                    // the selection will be "_id=?" and the selection argument will be a
+                    // String array containing the actual ID of 3 in this case
+                    //
+                    // For every "?" in the selection, we need to have an element in the selection
+                    // arguments that will fill in the "?". Since we have 1 question mark in the
+                    // selection, we have 1 String in the selection arguments' String array.
+                    if (shard == null) {
+                        cursor = emptyResult(projection);
+                        break;
+                    }
+                    selection = PetContract.PetEntry._ID + "=?";
+                    // See ContentUris#parseId(Uri)
+                    long localId = localIdFor(uri, shard);
+                    selectionArgs = new String[] {String.valueOf(localId)};
+
+                    // A single pet is found whether or not it has been archived
+                    if (match == PETS_ID && shard.shelter != 0) {
+                        // Go through the merge, which hands back the global _id
+                        cursor = mShards.query(
+                                Collections.singletonMap(shard, new long[] {localId}),
+                                PetArchive.VIEW_NAME, projection, null, null, sortOrder);
+                        break;
+                    }
+
+                    // This will perform a query on the pets table where the _id equals 3 to return
+                    // a Cursor containing that row of the table
+                    cursor = database.query(PetArchive.VIEW_NAME,
+                            projection,
+                            selection,
+                            selectionArgs,
+                            null,
+                            null,
+                            sortOrder);
+                    break;
+                case PETS_WEIGHT_HISTOGRAM:
+                    // The buckets are counted by SQLite, which only has to walk the
+                    // (gender, weight) index rather than hand every row to Java
+                    String bucketSize = String.valueOf(parseBucketSize(uri));
+                    filterArgs.add(bucketSize);
+                    filterArgs.add(bucketSize);
+                    filter = filterSelection(uri, filterArgs);
+                    if (filter != null) {
+                        selection = appendSelection(filter, selection);
+                    } else if (selection != null && selection.isEmpty()) {
+                        selection = null;
+                    }
+                    selectionArgs = appendSelectionArgs(
+                            filterArgs.toArray(new String[filterArgs.size()]), selectionArgs);
+                    String histogram = "SELECT (" + PetContract.PetEntry.COLUMN_NAME_WEIGHT +
+                            " / ?) * ? AS " + PetContract.PetEntry.COLUMN_NAME_BUCKET_START +
+                            ", COUNT(*) AS " + PetContract.PetEntry.COLUMN_NAME_PET_COUNT +
+                            " FROM " + PetContract.PetEntry.VIEW_NAME +
+                            (selection != null ? " WHERE " + selection : "") +
+                            " GROUP BY " + PetContract.PetEntry.COLUMN_NAME_BUCKET_START +
+                            " ORDER BY " + PetContract.PetEntry.COLUMN_NAME_BUCKET_START;
+                    if (mShards.size() > 1) {
+                        cursor = sumHistograms(histogram, selectionArgs);
+                        break;
+                    }
+                    cursor = database.rawQuery(histogram, selectionArgs);
+                    break;
+                case PETS_WEIGHTS:
+                    // Selections aren't supported; the range and resolution come from the URI
+                    cursor = PetWeightHistory.query(database, localWeightsId(uri, shard),
+                            parseLongParameter(uri, PetContract.QUERY_PARAMETER_FROM),
+                            parseLongParameter(uri, PetContract.QUERY_PARAMETER_TO),
+                            parsePoints(uri));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+            }
+
+            cursor = mQueryCache.put(cacheKey, cursor, generation);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            PetTrace.endSection();
+            mScheduler.exit();
         }
 
         // Set notification URI on the Cursor,
@@ -117,18 +428,133 @@ public class PetProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Run the histogram query in every shelter and add up the counts of each bucket. Each
+     * shelter only returns one row per bucket, so there is little to gain from doing it in
+     * parallel.
+     */
+    private Cursor sumHistograms(String sql, String[] selectionArgs) {
+        TreeMap<Long, Long> counts = new TreeMap<>();
+        for (PetShards.Shard shard : mShards.all()) {
+            Cursor cursor = shard.helper.getReadableDatabase().rawQuery(sql, selectionArgs);
+            try {
+                while (cursor.moveToNext()) {
+                    Long count = counts.get(cursor.getLong(0));
+                    counts.put(cursor.getLong(0), (count != null ? count : 0) + cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        MatrixCursor histogram = new MatrixCursor(new String[] {
+                PetContract.PetEntry.COLUMN_NAME_BUCKET_START,
+                PetContract.PetEntry.COLUMN_NAME_PET_COUNT}, counts.size());
+        for (Map.Entry<Long, Long> bucket : counts.entrySet()) {
+            histogram.addRow(new Object[] {bucket.getKey(), bucket.getValue()});
+        }
+        return histogram;
+    }
+
     /**
      * Insert new data inot the provider with the given ContentValues
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return insertPet(uri, contentValues);
-            default:
-                // We do not want a case with PETS_ID
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        mScheduler.enter(PetScheduler.priorityOf(uri, PetScheduler.INTERACTIVE));
+        mDatabaseLock.readLock().lock();
+        try {
+            final int match = sUriMatcher.match(uri);
+            switch (match) {
+                case PETS:
+                case SHELTER_PETS:
+                    return insertPet(uri, shardFor(uri), contentValues);
+                case PETS_UPSERT:
+                case SHELTER_PETS_UPSERT:
+                    return upsertPet(uri, shardFor(uri), contentValues);
+                case PETS_WEIGHTS:
+                    insertWeights(uri, shardFor(uri), new ContentValues[] {contentValues});
+                    return uri;
+                default:
+                    // We do not want a case with PETS_ID
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            mScheduler.exit();
+        }
+    }
+
+    /**
+     * Insert a batch of rows, in the background unless the URI asks otherwise. Upserts and
+     * weight measurements are run through a single set of compiled statements, in one
+     * transaction or, in the background, one per chunk; everything else falls back to one
+     * insert per row.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        mScheduler.enter(PetScheduler.priorityOf(uri, PetScheduler.BACKGROUND));
+        mDatabaseLock.readLock().lock();
+        try {
+            final int match = sUriMatcher.match(uri);
+            switch (match) {
+                case PETS_UPSERT:
+                case SHELTER_PETS_UPSERT:
+                    return upsertPets(uri, shardFor(uri), values);
+                case PETS_WEIGHTS:
+                    return insertWeights(uri, shardFor(uri), values);
+                default:
+                    return super.bulkInsert(uri, values);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            mScheduler.exit();
+        }
+    }
+
+    /**
+     * Apply a batch of operations. When they all address the same shelter they run in one
+     * transaction, so either every operation lands or none does; a batch that spans shelters
+     * is applied one operation at a time.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        mScheduler.enter(PetScheduler.INTERACTIVE);
+        mDatabaseLock.readLock().lock();
+        try {
+            PetShards.Shard shard = null;
+            for (ContentProviderOperation operation : operations) {
+                PetShards.Shard target = shardFor(operation.getUri());
+                if (shard != null && target != shard) {
+                    return super.applyBatch(operations);
+                }
+                shard = target;
+            }
+            if (shard == null) {
+                return new ContentProviderResult[0];
+            }
+
+            SQLiteDatabase database = shard.helper.getWritableDatabase();
+            boolean committed = false;
+            database.beginTransaction();
+            try {
+                ContentProviderResult[] results = super.applyBatch(operations);
+                database.setTransactionSuccessful();
+                committed = true;
+                return results;
+            } finally {
+                database.endTransaction();
+                shard.breeds.onTransactionEnd(database, committed);
+                // Readers may have cached the old rows while the transaction was open
+                mQueryCache.invalidate();
+                PetRowCache.getInstance().invalidateAll();
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            mScheduler.exit();
         }
     }
 
@@ -143,15 +569,41 @@ public class PetProvider extends ContentProvider {
                       String selection,
                       String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
-            case PETS_ID:
-                selection = PetContract.PetEntry._ID + "=?";
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                return updatePet(uri, contentValues, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException("Update is not supported for " + uri);
+        mScheduler.enter(PetScheduler.priorityOf(uri, defaultPriority(match)));
+        mDatabaseLock.readLock().lock();
+        try {
+            // Selections are written against the columns callers read, which come from the view
+            selection = viewSelection(selection);
+            switch (match) {
+                case PETS:
+                case SHELTER_PETS:
+                    long[] ids = parseIds(uri);
+                    if (ids != null) {
+                        return updatePetsById(contentValues, targetsFor(match, uri, ids),
+                                selection, selectionArgs);
+                    }
+                    if (mScheduler.isBackground()) {
+                        // Found up front, so the pets can be updated a chunk at a time
+                        return updatePetsById(contentValues, matchingTargets(
+                                targetsFor(match, uri, null).keySet(), selection, selectionArgs),
+                                selection, selectionArgs);
+                    }
+                    return updatePet(uri, targetsFor(match, uri, null).keySet(), contentValues,
+                            selection, selectionArgs, false);
+                case PETS_ID:
+                case SHELTER_PETS_ID:
+                    PetShards.Shard shard = shardFor(uri);
+                    selection = PetContract.PetEntry._ID + "=?";
+                    selectionArgs = new String[] {String.valueOf(localIdFor(uri, shard))};
+                    // An archived pet is written in the pets table like any other
+                    return updatePet(uri, Collections.singleton(shard), contentValues, selection,
+                            selectionArgs, true);
+                default:
+                    throw new IllegalArgumentException("Update is not supported for " + uri);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            mScheduler.exit();
         }
     }
 
@@ -161,15 +613,49 @@ public class PetProvider extends ContentProvider {
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return deletePet(uri, selection, selectionArgs);
-            case PETS_ID:
-                selection = PetContract.PetEntry._ID + "=?";
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                return deletePet(uri, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException("Delection is not supported for " + uri);
+        mScheduler.enter(PetScheduler.priorityOf(uri, defaultPriority(match)));
+        mDatabaseLock.readLock().lock();
+        try {
+            // The archive is matched against the caller's own selection
+            String archiveSelection = selection;
+            // Selections are written against the columns callers read, which come from the view
+            selection = viewSelection(selection);
+            switch (match) {
+                case PETS:
+                case SHELTER_PETS:
+                    long[] ids = parseIds(uri);
+                    Map<PetShards.Shard, long[]> targets = targetsFor(match, uri, ids);
+                    int deleted;
+                    if (ids != null) {
+                        deleted = deletePetsById(targets, selection, selectionArgs);
+                    } else if (mScheduler.isBackground()) {
+                        // Found up front, so the pets can be deleted a chunk at a time
+                        deleted = deletePetsById(matchingTargets(targets.keySet(), selection,
+                                selectionArgs), selection, selectionArgs);
+                    } else {
+                        deleted = deletePet(uri, targets.keySet(), selection, selectionArgs);
+                    }
+                    if (includesArchive(uri)) {
+                        for (Map.Entry<PetShards.Shard, long[]> target : targets.entrySet()) {
+                            deleted += deleteArchived(uri, target.getKey(), target.getValue(),
+                                    archiveSelection, selectionArgs);
+                        }
+                    }
+                    return deleted;
+                case PETS_ID:
+                case SHELTER_PETS_ID:
+                    PetShards.Shard shard = shardFor(uri);
+                    long localId = localIdFor(uri, shard);
+                    selection = PetContract.PetEntry._ID + "=?";
+                    selectionArgs = new String[] {String.valueOf(localId)};
+                    return deletePet(uri, Collections.singleton(shard), selection, selectionArgs)
+                            + deleteArchived(uri, shard, new long[] {localId}, null, null);
+                default:
+                    throw new IllegalArgumentException("Delection is not supported for " + uri);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            mScheduler.exit();
         }
     }
 
@@ -182,40 +668,427 @@ public class PetProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
+            case SHELTER_PETS:
                 return PetContract.PetEntry.CONTENT_LIST_TYPE;
             case PETS_ID:
+            case PETS_UPSERT:
+            case SHELTER_PETS_ID:
+            case SHELTER_PETS_UPSERT:
                 return PetContract.PetEntry.CONTENT_TYPE;
+            case PETS_WEIGHT_HISTOGRAM:
+                return PetContract.PetEntry.CONTENT_HISTOGRAM_TYPE;
+            case PETS_PHOTO:
+                return PetContract.PetEntry.CONTENT_PHOTO_TYPE;
+            case PETS_WEIGHTS:
+                return PetContract.WeightEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Open a pet's photo. Reading ("r") opens the current photo file. Any mode that writes
+     * opens a fresh, empty file and points the pet at it straight away, so callers should
+     * write the complete image and close the descriptor.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PETS_PHOTO) {
+            throw new IllegalArgumentException("Cannot open a file for " + uri);
+        }
+        // The pet ID is the segment before "photo"
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+
+        mDatabaseLock.readLock().lock();
+        try {
+            PetShards.Shard shard = mShards.shardOf(id);
+            if (mode.contains("w")) {
+                return openPhotoForWrite(shard, id);
+            }
+            String name = readPhotoName(shard.helper.getReadableDatabase(),
+                    PetShards.localId(shard, id));
+            if (name == null) {
+                throw new FileNotFoundException("Pet " + id + " has no photo");
+            }
+            return ParcelFileDescriptor.open(mPhotoStore.fileFor(name),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
 
     /**
-     * Insert a pet into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Point the pet at a new photo file and open that file for writing
+     *
+     * @param id the pet's global ID
      */
-    private Uri insertPet(Uri uri, ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(PetContract.PetEntry.COLUMN_NAME_NAME);
-        if (name == null || name.equals("")) {
-            throw new IllegalArgumentException("Pet requires a name");
+    private ParcelFileDescriptor openPhotoForWrite(PetShards.Shard shard, long id)
+            throws FileNotFoundException {
+        String name = mPhotoStore.newName(id);
+        String oldName;
+        long localId = PetShards.localId(shard, id);
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        database.beginTransaction();
+        try {
+            PetArchive.restore(database, PetContract.PetEntry._ID + " = ?",
+                    new String[] {String.valueOf(localId)}, now);
+            oldName = readPhotoName(database, localId);
+            ContentValues values = new ContentValues();
+            values.put(PetContract.PetEntry.COLUMN_NAME_PHOTO, name);
+            values.put(PetContract.PetEntry.COLUMN_NAME_LAST_MODIFIED, now);
+            if (database.update(PetContract.PetEntry.TABLE_NAME, values,
+                    PetContract.PetEntry._ID + "=?", new String[] {String.valueOf(localId)}) == 0) {
+                throw new FileNotFoundException("No pet with ID " + id);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
-        String breed = values.getAsString(PetContract.PetEntry.COLUMN_NAME_BREED);
-        //if (breed == null || breed.equals("")) {
-        //    throw new IllegalArgumentException("Pet requires a breed");
-        //}
-        int gender = values.getAsInteger(PetContract.PetEntry.COLUMN_NAME_GENDER);
-        if (gender > 2) {
-            throw new IllegalArgumentException("Pet requires a valid gender or 'unknown' if not known");
+
+        // Readers that already opened the old photo keep their descriptor
+        mPhotoStore.delete(oldName);
+        mQueryCache.invalidate();
+        PetRowCache.getInstance().invalidate(id);
+        final Uri petUri = ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, id);
+        notifyChange(petUri);
+
+        File file = mPhotoStore.fileFor(name);
+        int mode = ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                | ParcelFileDescriptor.MODE_TRUNCATE;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Tell the list again once the image is complete, so it can decode the thumbnail
+            try {
+                return ParcelFileDescriptor.open(file, mode, new Handler(Looper.getMainLooper()),
+                        new ParcelFileDescriptor.OnCloseListener() {
+                            @Override
+                            public void onClose(IOException e) {
+                                notifyChange(petUri);
+                            }
+                        });
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to open photo " + file, e);
+                throw new FileNotFoundException("Could not open photo for pet " + id);
+            }
         }
+        return ParcelFileDescriptor.open(file, mode);
+    }
+
+    /**
+     * The name in the pet's photo column, or null if it has none. Archived pets keep their
+     * photo.
+     */
+    private static String readPhotoName(SQLiteDatabase database, long id) {
+        Cursor cursor = database.query(PetArchive.VIEW_NAME,
+                new String[] {PetContract.PetEntry.COLUMN_NAME_PHOTO},
+                PetContract.PetEntry._ID + "=?", new String[] {String.valueOf(id)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Back up or restore shelter.db, roll up the weight history, archive pets or report the
+     * scheduler's metrics. See {@link PetContract#METHOD_BACKUP},
+     * {@link PetContract#METHOD_ROLL_UP_WEIGHTS}, {@link PetContract#METHOD_ARCHIVE} and
+     * {@link PetContract#METHOD_SCHEDULER_STATS}. Only shelter 0 lives in shelter.db; the
+     * other shelters' databases are left as they are.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (PetContract.METHOD_ROLL_UP_WEIGHTS.equals(method)) {
+            rollUpWeights(mShards.all(), false);
+            return null;
+        }
+        if (PetContract.METHOD_SCHEDULER_STATS.equals(method)) {
+            return schedulerStats();
+        }
+        if (PetContract.METHOD_ARCHIVE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(PetContract.KEY_ARCHIVED_PETS, archivePets(mShards.all(), false));
+            return result;
+        }
+        if (!PetContract.METHOD_BACKUP.equals(method)
+                && !PetContract.METHOD_RESTORE.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        if (arg == null) {
+            throw new IllegalArgumentException("Method " + method + " needs a snapshot path");
+        }
+        File snapshot = new File(arg);
+        try {
+            return PetContract.METHOD_BACKUP.equals(method) ? backup(snapshot) : restore(snapshot);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to " + method + " " + snapshot, e);
+            return null;
+        }
+    }
+
+    /**
+     * The scheduler's queue depth and wait times, and the whole of them in the log
+     */
+    private Bundle schedulerStats() {
+        PetScheduler.Stats stats = mScheduler.getStats();
+        Log.i(LOG_TAG, "Scheduler: " + stats);
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_QUEUE_DEPTH, stats.queueDepth);
+        result.putInt(PetContract.KEY_MAX_QUEUE_DEPTH, stats.maxQueueDepth);
+        result.putLong(PetContract.KEY_INTERACTIVE_WAIT_P99_MICROS,
+                Math.round(stats.interactiveWaits.p99Millis * 1000));
+        result.putLong(PetContract.KEY_BACKGROUND_WAIT_P99_MICROS,
+                Math.round(stats.backgroundWaits.p99Millis * 1000));
+        return result;
+    }
+
+    /**
+     * Fold every pending weight measurement of the shelters into the rollups, as a background
+     * operation. Blocks until done.
+     *
+     * @param maintenance whether the provider runs it of its own accord, outside the callers'
+     *                    queue of background operations
+     */
+    private void rollUpWeights(Collection<PetShards.Shard> shards, boolean maintenance) {
+        enterBackground(maintenance);
+        mDatabaseLock.readLock().lock();
+        try {
+            for (PetShards.Shard shard : shards) {
+                PetWeightHistory.rollUp(shard.helper.getWritableDatabase(),
+                        PetWeightHistory.DEFAULT_CHUNK_SIZE, mScheduler);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            mScheduler.exit();
+        }
+    }
+
+    /**
+     * Enter the scheduler as a background operation: one of the provider's own, or one a
+     * caller asked for, which may be refused when the queue is full
+     */
+    private void enterBackground(boolean maintenance) {
+        if (maintenance) {
+            mScheduler.enterMaintenance();
+        } else {
+            mScheduler.enter(PetScheduler.BACKGROUND);
+        }
+    }
+
+    /**
+     * {@link #rollUpWeights} for the provider's own threads, which have no caller to tell
+     * when it fails
+     */
+    private void rollUpInBackground(Collection<PetShards.Shard> shards) {
+        try {
+            rollUpWeights(shards, true);
+        } catch (RuntimeException e) {
+            // The next write schedules another pass, and queries don't depend on it
+            Log.e(LOG_TAG, "Failed to roll up weights", e);
+        }
+    }
+
+    /**
+     * Roll up the shelter's new weight measurements a little later, unless a pass is already
+     * waiting to
+     */
+    private void scheduleRollUp(final PetShards.Shard shard) {
+        if (!mPendingRollUps.add(shard)) {
+            return;
+        }
+        mMaintenanceExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPendingRollUps.remove(shard);
+                rollUpInBackground(Collections.singleton(shard));
+            }
+        }, ROLL_UP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Move the pets that are due from each of the shelters into its archive, as a background
+     * operation. Blocks until done.
+     *
+     * @param maintenance whether the provider runs it of its own accord, outside the callers'
+     *                    queue of background operations
+     * @return the number of pets archived
+     */
+    private int archivePets(Collection<PetShards.Shard> shards, boolean maintenance) {
+        int archived = 0;
+        enterBackground(maintenance);
+        mDatabaseLock.readLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            for (PetShards.Shard shard : shards) {
+                archived += PetArchive.archive(shard.helper.getWritableDatabase(), now,
+                        PetArchive.DEFAULT_BATCH_SIZE, mScheduler);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            mScheduler.exit();
+            // Also after a failed batch, for the ones committed before it
+            if (archived > 0) {
+                mQueryCache.invalidate();
+                PetRowCache.getInstance().invalidateAll();
+                notifyChange(PetContract.PetEntry.CONTENT_URI);
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * {@link #archivePets} for the provider's own threads
+     */
+    private void archiveInBackground(Collection<PetShards.Shard> shards) {
+        try {
+            archivePets(shards, true);
+        } catch (RuntimeException e) {
+            // Pets that are due stay where they are until the next pass
+            Log.e(LOG_TAG, "Failed to archive pets", e);
+        }
+    }
+
+    /**
+     * Copy the live database to the snapshot as a background operation. The database lock is
+     * only held for each of the copy's steps, so other calls keep being served, and a restore
+     * can get in, in between them.
+     */
+    private Bundle backup(File snapshot) throws IOException {
+        PetBackup.Report report;
+        mScheduler.enter(PetScheduler.BACKGROUND);
+        try {
+            SQLiteDatabase database;
+            mDatabaseLock.readLock().lock();
+            try {
+                database = mShards.get(0).helper.getWritableDatabase();
+            } finally {
+                mDatabaseLock.readLock().unlock();
+            }
+            report = PetBackup.backup(database, snapshot, PetBackup.DEFAULT_CHUNK_SIZE,
+                    PetBackup.DEFAULT_THROTTLE_MILLIS, mScheduler, mDatabaseLock.readLock());
+        } finally {
+            mScheduler.exit();
+        }
+        Bundle result = new Bundle();
+        result.putLong(PetContract.KEY_MAX_PAUSE_MILLIS, Math.round(report.pauses.maxMillis));
+        result.putLong(PetContract.KEY_TOTAL_PAUSE_MILLIS, report.totalPauseMillis);
+        return result;
+    }
+
+    /**
+     * Replace the live database with the snapshot. The snapshot is checked and copied first;
+     * other calls only wait for the helper to close and the copy to be renamed into place.
+     * Results still open from the old database stay readable, as copies in memory, up to
+     * {@link PetQueryCache#MAX_DETACH_BYTES} each; bigger ones have to be queried again.
+     */
+    private Bundle restore(File snapshot) throws IOException {
+        File database = getContext().getDatabasePath(PetDbHelper.DATABASE_NAME);
+        File staged = PetBackup.stageRestore(snapshot, database);
+
+        // Results too big for the cache still read from the old file as they scroll. Copy
+        // them while other calls are still served, so the pause only has the ones opened since.
+        mDatabaseLock.readLock().lock();
+        try {
+            mQueryCache.detachOpenCursors(PetQueryCache.MAX_DETACH_BYTES);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+
+        PetShards.Shard shard = mShards.get(0);
+        long start = System.nanoTime();
+        mDatabaseLock.writeLock().lock();
+        try {
+            mQueryCache.detachOpenCursors(PetQueryCache.MAX_DETACH_BYTES);
+            shard.helper.close();
+            PetBackup.swapIn(staged, database);
+            mQueryCache.invalidate();
+            PetRowCache.getInstance().invalidateAll();
+            shard.breeds.clear();
+        } finally {
+            mDatabaseLock.writeLock().unlock();
+        }
+        long pauseMillis = (System.nanoTime() - start) / 1000000;
+        Log.i(LOG_TAG, "Restored " + snapshot + ", paused for " + pauseMillis + " ms");
+
+        // An older snapshot is upgraded on the next open, which may leave chunked work behind
+        startMigrations(true);
+        notifyChange(PetContract.PetEntry.CONTENT_URI);
+
+        Bundle result = new Bundle();
+        result.putLong(PetContract.KEY_MAX_PAUSE_MILLIS, pauseMillis);
+        result.putLong(PetContract.KEY_TOTAL_PAUSE_MILLIS, pauseMillis);
+        return result;
+    }
+
+
+    /**
+     * Insert a pet into the database with the given content values. Return the new content URI
+     * for that specific row in the database. With a dedupe mode on the URI, the URI of an
+     * existing pet may be returned instead; see {@link PetContract#QUERY_PARAMETER_DEDUPE}.
+     */
+    private Uri insertPet(Uri uri, PetShards.Shard shard, ContentValues values) {
+        sanityCheckNewPet(values);
+        int dedupe = PetFingerprint.dedupeMode(uri);
+        long fingerprint = PetFingerprint.of(values);
 
         // Insert a new pet into the database table with the given ContentValues
-        SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+
+        long id_value;
+        boolean merged = false;
+        boolean committed = false;
+        // The probe and the insert have to see the same rows
+        database.beginTransaction();
+        try {
+            ContentValues row = new ContentValues(internBreed(shard, database, touched(values)));
+            row.put(PetContract.PetEntry.COLUMN_NAME_FINGERPRINT, fingerprint);
+            // An archived pet with the same key collides with the insert as it would have
+            // before it was archived
+            restoreByKey(database, row);
 
-        // Insert the pet into the database with the given ContentValues
-        // Return the ID of the new row
-        long id_value = database.insert(PetContract.PetEntry.TABLE_NAME, null, values);
+            long duplicate = -1;
+            if (dedupe != PetFingerprint.DEDUPE_OFF) {
+                SQLiteStatement find = database.compileStatement(PetFingerprint.SQL_FIND);
+                try {
+                    duplicate = PetFingerprint.findDuplicate(find, fingerprint);
+                } finally {
+                    find.close();
+                }
+            }
+            if (duplicate != -1 && dedupe == PetFingerprint.DEDUPE_MERGE) {
+                PetFingerprint.merge(database, duplicate, row);
+                id_value = duplicate;
+                merged = true;
+            } else {
+                if (duplicate != -1) {
+                    row.put(PetContract.PetEntry.COLUMN_NAME_DUPLICATE_OF, duplicate);
+                }
+                if (!row.containsKey(PetContract.PetEntry._ID)) {
+                    long reserved = PetArchive.reservedId(database);
+                    if (reserved != 0) {
+                        row.put(PetContract.PetEntry._ID, reserved);
+                    }
+                }
+                // Insert the pet into the database with the given ContentValues
+                // Return the ID of the new row
+                id_value = database.insert(PetContract.PetEntry.TABLE_NAME, null, row);
+            }
+            Integer weight = values.getAsInteger(PetContract.PetEntry.COLUMN_NAME_WEIGHT);
+            if (id_value != -1 && weight != null) {
+                PetWeightHistory.appendCurrent(database, new long[] {id_value},
+                        System.currentTimeMillis());
+            }
+            database.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            database.endTransaction();
+            shard.breeds.onTransactionEnd(database, committed);
+        }
 
         // If the id_value = -1, then the insertion failed. Log an error and return null.
         if (id_value == -1) {
@@ -223,8 +1096,15 @@ public class PetProvider extends ContentProvider {
             return null;
         }
 
+        mQueryCache.invalidate();
+        if (merged) {
+            PetRowCache.getInstance().invalidate(shard.globalId(id_value));
+        }
+        if (values.containsKey(PetContract.PetEntry.COLUMN_NAME_WEIGHT)) {
+            scheduleRollUp(shard);
+        }
         // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
@@ -232,12 +1112,358 @@ public class PetProvider extends ContentProvider {
     }
 
     /**
-     * Update a database entry
+     * Create a pet, or update the existing pet with the same external ID (or _id if no external
+     * ID is given) in the same shelter. Return the pets content URI, with the global ID, for the
+     * row that was written.
+     */
+    private Uri upsertPet(Uri uri, PetShards.Shard shard, ContentValues values) {
+        sanityCheckNewPet(values);
+
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+
+        long id_value;
+        boolean committed = false;
+        PetUpsert upsert = new PetUpsert(database, shard.breeds, PetFingerprint.dedupeMode(uri));
+        database.beginTransaction();
+        try {
+            id_value = upsert.upsert(values);
+            database.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            database.endTransaction();
+            shard.breeds.onTransactionEnd(database, committed);
+            upsert.close();
+        }
+
+        if (id_value == -1) {
+            Log.e(LOG_TAG, "Failed to upsert row for " + uri);
+            return null;
+        }
+
+        long globalId = shard.globalId(id_value);
+        mQueryCache.invalidate();
+        PetRowCache.getInstance().invalidate(globalId);
+        if (values.containsKey(PetContract.PetEntry.COLUMN_NAME_WEIGHT)) {
+            scheduleRollUp(shard);
+        }
+        // Listeners observe the pets URI, not the upsert URI
+        notifyChange(PetContract.PetEntry.CONTENT_URI);
+
+        return ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, globalId);
+    }
+
+    /**
+     * Create or update a batch of pets, in one transaction or, in the background, one per
+     * chunk. Every row is checked before anything is written, so one bad row leaves the table
+     * untouched.
+     *
+     * Returns the number of rows written.
+     */
+    private int upsertPets(Uri uri, PetShards.Shard shard, ContentValues[] values) {
+        for (ContentValues value : values) {
+            sanityCheckNewPet(value);
+        }
+
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+
+        int rowsWritten = 0;
+        int chunkSize = mScheduler.isBackground() ? BACKGROUND_CHUNK_SIZE : values.length;
+        PetUpsert upsert = new PetUpsert(database, shard.breeds, PetFingerprint.dedupeMode(uri));
+        try {
+            for (int start = 0; start < values.length; start += chunkSize) {
+                int end = Math.min(values.length, start + chunkSize);
+                int chunkRows = 0;
+                boolean committed = false;
+                mScheduler.beginChunk();
+                database.beginTransaction();
+                try {
+                    for (int i = start; i < end; i++) {
+                        if (upsert.upsert(values[i]) != -1) {
+                            chunkRows++;
+                        }
+                    }
+                    database.setTransactionSuccessful();
+                    committed = true;
+                } finally {
+                    database.endTransaction();
+                    shard.breeds.onTransactionEnd(database, committed);
+                    mScheduler.endChunk();
+                }
+                rowsWritten += chunkRows;
+            }
+        } finally {
+            upsert.close();
+            // Also after a failed chunk, for the ones committed before it
+            if (rowsWritten > 0) {
+                mQueryCache.invalidate();
+                PetRowCache.getInstance().invalidateAll();
+                scheduleRollUp(shard);
+                notifyChange(PetContract.PetEntry.CONTENT_URI);
+            }
+        }
+        return rowsWritten;
+    }
+
+    /**
+     * Add measurements to a pet's weight history, in one transaction or, in the background,
+     * one per chunk. Every row is checked before anything is written. The pet's current
+     * weight is left as it is.
+     *
+     * Returns the number of measurements added.
+     */
+    private int insertWeights(Uri uri, PetShards.Shard shard, ContentValues[] values) {
+        long now = System.currentTimeMillis();
+        long[][] measurements = new long[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            Integer weight = values[i].getAsInteger(PetContract.WeightEntry.COLUMN_NAME_WEIGHT);
+            if (weight == null || weight < 0) {
+                throw new IllegalArgumentException("Measurement requires a valid weight");
+            }
+            Long measuredAt = values[i].getAsLong(PetContract.WeightEntry.COLUMN_NAME_MEASURED_AT);
+            if (measuredAt == null) {
+                measuredAt = now;
+            } else if (measuredAt < 0) {
+                throw new IllegalArgumentException("Measurement time must not be negative");
+            }
+            measurements[i] = new long[] {measuredAt, weight};
+        }
+
+        long petId = localWeightsId(uri, shard);
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+        int added = 0;
+        int chunkSize = mScheduler.isBackground() ? BACKGROUND_CHUNK_SIZE : measurements.length;
+        PetWeightHistory history = new PetWeightHistory(database);
+        try {
+            for (int start = 0; start < measurements.length; start += chunkSize) {
+                int end = Math.min(measurements.length, start + chunkSize);
+                mScheduler.beginChunk();
+                database.beginTransaction();
+                try {
+                    // Checked in every chunk, as the pet may be deleted or archived in between
+                    PetArchive.restore(database, PetContract.PetEntry._ID + " = ?",
+                            new String[] {String.valueOf(petId)}, now);
+                    if (PetFingerprint.idsMatching(database, PetContract.PetEntry._ID + "=?",
+                            new String[] {String.valueOf(petId)}).length == 0) {
+                        throw new IllegalArgumentException("No pet for " + uri);
+                    }
+                    for (int i = start; i < end; i++) {
+                        history.append(petId, measurements[i][0], measurements[i][1]);
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                    mScheduler.endChunk();
+                }
+                added += end - start;
+            }
+        } finally {
+            history.close();
+            if (added > 0) {
+                mQueryCache.invalidate();
+                scheduleRollUp(shard);
+                notifyChange(uri);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Move an archived pet with the row's _id or external ID back to the pets table
+     */
+    private static void restoreByKey(SQLiteDatabase database, ContentValues row) {
+        long now = row.getAsLong(PetContract.PetEntry.COLUMN_NAME_LAST_MODIFIED);
+        Long id = row.getAsLong(PetContract.PetEntry._ID);
+        if (id != null) {
+            PetArchive.restore(database, PetContract.PetEntry._ID + " = ?",
+                    new String[] {String.valueOf(id)}, now);
+        }
+        String externalId = row.getAsString(PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID);
+        if (externalId != null) {
+            PetArchive.restore(database, PetContract.PetEntry.COLUMN_NAME_EXTERNAL_ID + " = ?",
+                    new String[] {externalId}, now);
+        }
+    }
+
+    /**
+     * A copy of the values with the time of the write, which the archive goes by
+     */
+    private static ContentValues touched(ContentValues values) {
+        ContentValues touched = new ContentValues(values);
+        touched.put(PetContract.PetEntry.COLUMN_NAME_LAST_MODIFIED, System.currentTimeMillis());
+        return touched;
+    }
+
+    /**
+     * Check that the content values describe a complete, valid pet. Throws
+     * IllegalArgumentException if they don't.
+     */
+    private void sanityCheckNewPet(ContentValues values) {
+        // Check that the name is not null
+        String name = values.getAsString(PetContract.PetEntry.COLUMN_NAME_NAME);
+        if (name == null || name.equals("")) {
+            throw new IllegalArgumentException("Pet requires a name");
+        }
+        String breed = values.getAsString(PetContract.PetEntry.COLUMN_NAME_BREED);
+        //if (breed == null || breed.equals("")) {
+        //    throw new IllegalArgumentException("Pet requires a breed");
+        //}
+        // A missing gender is null here, and an invalid pet like any other
+        Integer gender = values.getAsInteger(PetContract.PetEntry.COLUMN_NAME_GENDER);
+        if (gender == null || !isValidGender(gender)) {
+            throw new IllegalArgumentException(
+                    "Pet requires a valid gender or 'unknown' if not known");
+        }
+        if (values.containsKey(PetContract.PetEntry.COLUMN_NAME_ADOPTED)
+                && !isValidAdopted(values.getAsInteger(PetContract.PetEntry.COLUMN_NAME_ADOPTED))) {
+            throw new IllegalArgumentException("Adopted must be 0 or 1");
+        }
+    }
+
+    /**
+     * Update a database entry. Each shelter commits its part on its own; there is no
+     * transaction that spans databases.
+     *
+     * @param restoreArchived whether archived pets the selection matches are moved back to the
+     *                        pets table first, in the same transaction as the update
      */
     private int updatePet(Uri uri,
+                          Collection<PetShards.Shard> shards,
                           ContentValues values,
                           String selection,
-                          String[] selectionArgs) {
+                          String[] selectionArgs,
+                          boolean restoreArchived) {
+        sanityCheckPetChanges(values);
+
+        boolean refingerprint = PetFingerprint.dependsOn(values);
+        boolean weighed = values.containsKey(PetContract.PetEntry.COLUMN_NAME_WEIGHT);
+        values = touched(values);
+        int rowsAffected = 0;
+        for (PetShards.Shard shard : shards) {
+            SQLiteDatabase database = shard.helper.getWritableDatabase();
+
+            boolean committed = false;
+            database.beginTransaction();
+            try {
+                if (restoreArchived) {
+                    PetArchive.restore(database, selection, selectionArgs,
+                            System.currentTimeMillis());
+                }
+                // Found before the update, which may change whether they match
+                long[] ids = refingerprint
+                        ? PetFingerprint.idsMatching(database, selection, selectionArgs) : null;
+                rowsAffected += database.update(PetContract.PetEntry.TABLE_NAME,
+                        internBreed(shard, database, values),
+                        selection,
+                        selectionArgs);
+                if (ids != null) {
+                    PetFingerprint.refresh(database, ids);
+                }
+                // A weight change is a fingerprint change, so the ids were found above
+                if (weighed) {
+                    PetWeightHistory.appendCurrent(database, ids, System.currentTimeMillis());
+                }
+                database.setTransactionSuccessful();
+                committed = true;
+            } finally {
+                database.endTransaction();
+                shard.breeds.onTransactionEnd(database, committed);
+            }
+            if (weighed) {
+                scheduleRollUp(shard);
+            }
+        }
+
+        mQueryCache.invalidate();
+        invalidateCachedRows(uri);
+        // Notify all listeners that the data has changed for the pet content URI
+        notifyChange(uri);
+
+        return rowsAffected;
+    }
+
+    /**
+     * Update every pet in the set of IDs, one bounded IN (...) statement per chunk, with a
+     * single change notification. Each shelter's part is one transaction or, in the
+     * background, one transaction per chunk.
+     *
+     * @param targets each shelter with the local IDs to update in it
+     */
+    private int updatePetsById(ContentValues values,
+                               Map<PetShards.Shard, long[]> targets,
+                               String selection,
+                               String[] selectionArgs) {
+        sanityCheckPetChanges(values);
+
+        boolean refingerprint = PetFingerprint.dependsOn(values);
+        boolean weighed = values.containsKey(PetContract.PetEntry.COLUMN_NAME_WEIGHT);
+        boolean chunked = mScheduler.isBackground();
+        values = touched(values);
+        int rowsAffected = 0;
+        try {
+            for (Map.Entry<PetShards.Shard, long[]> target : targets.entrySet()) {
+                PetShards.Shard shard = target.getKey();
+                long[] ids = target.getValue();
+                SQLiteDatabase database = shard.helper.getWritableDatabase();
+
+                int start = 0;
+                do {
+                    int end = chunked
+                            ? Math.min(ids.length, start + MAX_IDS_PER_STATEMENT) : ids.length;
+                    boolean committed = false;
+                    mScheduler.beginChunk();
+                    database.beginTransaction();
+                    try {
+                        ContentValues interned = internBreed(shard, database, values);
+                        // The pets the caller's selection lets through, found before the
+                        // update changes whether they match
+                        long[] updated = new long[0];
+                        for (; start < end; start += MAX_IDS_PER_STATEMENT) {
+                            int count = Math.min(MAX_IDS_PER_STATEMENT, end - start);
+                            String chunkSelection = appendSelection(idsSelection(count), selection);
+                            String[] chunkArgs = appendSelectionArgs(
+                                    idsSelectionArgs(ids, start, count), selectionArgs);
+                            if (refingerprint) {
+                                updated = concat(updated, PetFingerprint.idsMatching(database,
+                                        chunkSelection, chunkArgs));
+                            }
+                            rowsAffected += database.update(PetContract.PetEntry.TABLE_NAME,
+                                    interned, chunkSelection, chunkArgs);
+                        }
+                        if (refingerprint) {
+                            PetFingerprint.refresh(database, updated);
+                        }
+                        if (weighed) {
+                            PetWeightHistory.appendCurrent(database, updated,
+                                    System.currentTimeMillis());
+                        }
+                        database.setTransactionSuccessful();
+                        committed = true;
+                    } finally {
+                        database.endTransaction();
+                        shard.breeds.onTransactionEnd(database, committed);
+                        mScheduler.endChunk();
+                    }
+                } while (start < ids.length);
+                if (weighed) {
+                    scheduleRollUp(shard);
+                }
+            }
+        } finally {
+            // Also after a failed chunk, for the ones committed before it
+            if (rowsAffected > 0) {
+                mQueryCache.invalidate();
+                PetRowCache.getInstance().invalidateAll();
+                notifyChange(PetContract.PetEntry.CONTENT_URI);
+            }
+        }
+        return rowsAffected;
+    }
+
+    /**
+     * Check the values that an update is about to write. Only the columns present are checked.
+     * Throws IllegalArgumentException if any of them is invalid.
+     */
+    private void sanityCheckPetChanges(ContentValues values) {
         // First, sanity check the data:
         if (values.containsKey(PetContract.PetEntry.COLUMN_NAME_NAME)) {
             String name = values.getAsString(PetContract.PetEntry.COLUMN_NAME_NAME);
@@ -252,41 +1478,536 @@ public class PetProvider extends ContentProvider {
             }
         }
         if (values.containsKey(PetContract.PetEntry.COLUMN_NAME_GENDER)) {
-            int gender = values.getAsInteger(PetContract.PetEntry.COLUMN_NAME_GENDER);
-            if (gender > 2) {
-                throw new IllegalArgumentException("Pet requires a valid gender or 'unknown' if not known");
+            Integer gender = values.getAsInteger(PetContract.PetEntry.COLUMN_NAME_GENDER);
+            if (gender == null || !isValidGender(gender)) {
+                throw new IllegalArgumentException(
+                        "Pet requires a valid gender or 'unknown' if not known");
             }
         }
+        if (values.containsKey(PetContract.PetEntry.COLUMN_NAME_ADOPTED)
+                && !isValidAdopted(values.getAsInteger(PetContract.PetEntry.COLUMN_NAME_ADOPTED))) {
+            throw new IllegalArgumentException("Adopted must be 0 or 1");
+        }
+    }
 
-        SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
+    /**
+     * Delete entries from the database, shelter by shelter
+     */
+    private int deletePet(Uri uri,
+                          Collection<PetShards.Shard> shards,
+                          String selection,
+                          String[] selectionArgs) {
 
-        int rowsAffected = database.update(PetContract.PetEntry.TABLE_NAME,
-                values,
-                selection,
-                selectionArgs);
+        int numberOfRowsDeleted = 0;
+        for (PetShards.Shard shard : shards) {
+            SQLiteDatabase database = shard.helper.getWritableDatabase();
+            // The weight history goes with its pets
+            database.beginTransaction();
+            try {
+                long[] ids = PetFingerprint.idsMatching(database, selection, selectionArgs);
+                numberOfRowsDeleted += database.delete(PetContract.PetEntry.TABLE_NAME,
+                        selection,
+                        selectionArgs);
+                PetWeightHistory.deletePets(database, ids);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
 
+        mQueryCache.invalidate();
+        invalidateCachedRows(uri);
         // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
-        return rowsAffected;
+        return numberOfRowsDeleted;
     }
 
     /**
-     * Delete entries from the database
+     * Delete every pet in the set of IDs, one bounded IN (...) statement per chunk, with a
+     * single change notification. Each shelter's part is one transaction or, in the
+     * background, one transaction per chunk.
+     *
+     * @param targets each shelter with the local IDs to delete from it
      */
-    private int deletePet(Uri uri,
-                          String selection,
-                          String[] selectionArgs) {
-
-        SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
+    private int deletePetsById(Map<PetShards.Shard, long[]> targets,
+                               String selection,
+                               String[] selectionArgs) {
 
-        int numberOfRowsDeleted = database.delete(PetContract.PetEntry.TABLE_NAME,
-                selection,
-                selectionArgs);
+        boolean chunked = mScheduler.isBackground();
+        int numberOfRowsDeleted = 0;
+        try {
+            for (Map.Entry<PetShards.Shard, long[]> target : targets.entrySet()) {
+                long[] ids = target.getValue();
+                SQLiteDatabase database = target.getKey().helper.getWritableDatabase();
 
-        // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+                int start = 0;
+                do {
+                    int end = chunked
+                            ? Math.min(ids.length, start + MAX_IDS_PER_STATEMENT) : ids.length;
+                    mScheduler.beginChunk();
+                    database.beginTransaction();
+                    try {
+                        for (; start < end; start += MAX_IDS_PER_STATEMENT) {
+                            int count = Math.min(MAX_IDS_PER_STATEMENT, end - start);
+                            String chunkSelection = appendSelection(idsSelection(count), selection);
+                            String[] chunkArgs = appendSelectionArgs(
+                                    idsSelectionArgs(ids, start, count), selectionArgs);
+                            long[] deleted = PetFingerprint.idsMatching(database, chunkSelection,
+                                    chunkArgs);
+                            numberOfRowsDeleted += database.delete(
+                                    PetContract.PetEntry.TABLE_NAME, chunkSelection, chunkArgs);
+                            PetWeightHistory.deletePets(database, deleted);
+                        }
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                        mScheduler.endChunk();
+                    }
+                } while (start < ids.length);
+            }
+        } finally {
+            // Also after a failed chunk, for the ones committed before it
+            if (numberOfRowsDeleted > 0) {
+                mQueryCache.invalidate();
+                PetRowCache.getInstance().invalidateAll();
+                notifyChange(PetContract.PetEntry.CONTENT_URI);
+            }
+        }
+        return numberOfRowsDeleted;
+    }
 
+    /**
+     * Delete the archived pets of one shelter that the caller's selection matches, one
+     * transaction per chunk of IDs
+     *
+     * @param ids the local IDs to narrow the selection to, or null for no narrowing
+     */
+    private int deleteArchived(Uri uri,
+                               PetShards.Shard shard,
+                               long[] ids,
+                               String selection,
+                               String[] selectionArgs) {
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+        int numberOfRowsDeleted = 0;
+        try {
+            int start = 0;
+            do {
+                String chunkSelection = selection;
+                String[] chunkArgs = selectionArgs;
+                if (ids != null) {
+                    int count = Math.min(MAX_IDS_PER_STATEMENT, ids.length - start);
+                    chunkSelection = appendSelection(idsSelection(count), selection);
+                    chunkArgs = appendSelectionArgs(idsSelectionArgs(ids, start, count),
+                            selectionArgs);
+                    start += count;
+                }
+                mScheduler.beginChunk();
+                try {
+                    numberOfRowsDeleted += PetArchive.delete(database, chunkSelection, chunkArgs);
+                } finally {
+                    mScheduler.endChunk();
+                }
+            } while (ids != null && start < ids.length);
+        } finally {
+            if (numberOfRowsDeleted > 0) {
+                mQueryCache.invalidate();
+                invalidateCachedRows(uri);
+                notifyChange(uri);
+            }
+        }
         return numberOfRowsDeleted;
     }
+
+    /**
+     * Drop the rows a write may have changed from the {@link PetRowCache}. Called after the
+     * write, so a prefetch racing with it can't put the old row back.
+     */
+    private static void invalidateCachedRows(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case PETS_ID:
+                PetRowCache.getInstance().invalidate(ContentUris.parseId(uri));
+                break;
+            case SHELTER_PETS_ID:
+                PetRowCache.getInstance().invalidate(
+                        PetShards.globalId(parseShelter(uri), ContentUris.parseId(uri)));
+                break;
+            default:
+                PetRowCache.getInstance().invalidateAll();
+                break;
+        }
+    }
+
+    /**
+     * Tell observers that the data at the URI changed. Every pet can be seen through the pets
+     * URI as well as its shelter's URI, so observers of the other kind are told too.
+     */
+    private void notifyChange(Uri uri) {
+        ContentResolver resolver = getContext().getContentResolver();
+        resolver.notifyChange(uri, null);
+        resolver.notifyChange(isShelterUri(uri) ? PetContract.PetEntry.CONTENT_URI
+                : PetContract.PetEntry.SHELTERS_CONTENT_URI, null);
+    }
+
+    private static boolean isShelterUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return !segments.isEmpty() && PetContract.PATH_SHELTERS.equals(segments.get(0));
+    }
+
+    /**
+     * The shelter a URI addresses: the one named in a shelters/ URI, the one holding the pet
+     * for pets/#, pets/#/photo and pets/#/weights, and otherwise shelter 0
+     */
+    private PetShards.Shard shardFor(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case SHELTER_PETS:
+            case SHELTER_PETS_ID:
+            case SHELTER_PETS_UPSERT:
+                return mShards.get(parseShelter(uri));
+            case PETS_ID:
+                return mShards.shardOf(ContentUris.parseId(uri));
+            case PETS_PHOTO:
+            case PETS_WEIGHTS:
+                return mShards.shardOf(Long.parseLong(uri.getPathSegments().get(1)));
+            default:
+                return mShards.get(0);
+        }
+    }
+
+    /**
+     * {@link #shardFor} for queries: a shelters/ URI of a shelter that isn't in use gives null
+     * rather than creating the shelter's database
+     */
+    private PetShards.Shard shardForRead(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case SHELTER_PETS:
+            case SHELTER_PETS_ID:
+                return mShards.find(parseShelter(uri));
+            default:
+                return shardFor(uri);
+        }
+    }
+
+    /**
+     * No rows, with the columns a query of the projection would have
+     */
+    private Cursor emptyResult(String[] projection) {
+        return mShards.get(0).helper.getReadableDatabase().query(PetArchive.VIEW_NAME,
+                projection, "0", null, null, null, null);
+    }
+
+    /**
+     * The ID, within its shelter, of the pet a pets/# or shelters/#/pets/# URI addresses
+     */
+    private static long localIdFor(Uri uri, PetShards.Shard shard) {
+        long id = ContentUris.parseId(uri);
+        return sUriMatcher.match(uri) == PETS_ID ? PetShards.localId(shard, id) : id;
+    }
+
+    /**
+     * The priority of an operation on a URI that doesn't ask for one. Updates and deletes of
+     * whole collections may touch any number of pets, so they run in the background.
+     */
+    private static int defaultPriority(int match) {
+        return match == PETS || match == SHELTER_PETS
+                ? PetScheduler.BACKGROUND : PetScheduler.INTERACTIVE;
+    }
+
+    /**
+     * The local IDs of the pets the selection matches in each of the shelters
+     */
+    private static Map<PetShards.Shard, long[]> matchingTargets(
+            Collection<PetShards.Shard> shards, String selection, String[] selectionArgs) {
+        Map<PetShards.Shard, long[]> targets = new LinkedHashMap<>();
+        for (PetShards.Shard shard : shards) {
+            targets.put(shard, PetFingerprint.idsMatching(shard.helper.getWritableDatabase(),
+                    selection, selectionArgs));
+        }
+        return targets;
+    }
+
+    /**
+     * The ID, within its shelter, of the pet a pets/#/weights URI addresses
+     */
+    private static long localWeightsId(Uri uri, PetShards.Shard shard) {
+        return PetShards.localId(shard, Long.parseLong(uri.getPathSegments().get(1)));
+    }
+
+    /**
+     * The shelters a collection URI covers, each with the local IDs to narrow it to. A
+     * shelters/ URI covers its own shelter and its IDs are already local; the pets URI covers
+     * every shelter, and its global IDs are split up by the shelter that holds them.
+     *
+     * @param ids the IDs from the URI, or null to cover the shelters without narrowing
+     */
+    private Map<PetShards.Shard, long[]> targetsFor(int match, Uri uri, long[] ids) {
+        Map<PetShards.Shard, long[]> targets = new LinkedHashMap<>();
+        if (match != PETS) {
+            targets.put(shardFor(uri), ids);
+            return targets;
+        }
+        for (PetShards.Shard shard : mShards.all()) {
+            if (ids == null) {
+                targets.put(shard, null);
+                continue;
+            }
+            long[] localIds = new long[ids.length];
+            int count = 0;
+            for (long id : ids) {
+                if (mShards.shardOf(id) == shard) {
+                    localIds[count++] = PetShards.localId(shard, id);
+                }
+            }
+            if (count > 0) {
+                targets.put(shard, Arrays.copyOf(localIds, count));
+            }
+        }
+        if (targets.isEmpty()) {
+            // Still run one (empty) query, so the result has the columns the caller asked for
+            targets.put(mShards.get(0), new long[0]);
+        }
+        return targets;
+    }
+
+    /**
+     * Read the shelter number from a shelters/ URI
+     */
+    private static int parseShelter(Uri uri) {
+        try {
+            return Integer.parseInt(uri.getPathSegments().get(1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid shelter in " + uri, e);
+        }
+    }
+
+    /**
+     * Replace the breed label in the values with the key from the shelter's dictionary.
+     * Returns a copy, so the caller's ContentValues are left as they were.
+     */
+    private static ContentValues internBreed(PetShards.Shard shard, SQLiteDatabase database,
+                                             ContentValues values) {
+        if (!values.containsKey(PetContract.PetEntry.COLUMN_NAME_BREED)) {
+            return values;
+        }
+        ContentValues interned = new ContentValues(values);
+        String breed = interned.getAsString(PetContract.PetEntry.COLUMN_NAME_BREED);
+        interned.put(PetContract.PetEntry.COLUMN_NAME_BREED_ID,
+                shard.breeds.idFor(database, breed));
+        // The label now lives in the breeds table; clear any copy left from before version 3
+        interned.putNull(PetContract.PetEntry.COLUMN_NAME_BREED);
+        return interned;
+    }
+
+    /**
+     * Rewrite a caller's selection so it is evaluated against pets_view (where breed is a
+     * label) while the write itself goes to the pets table.
+     */
+    private static String viewSelection(String selection) {
+        if (selection == null || selection.isEmpty()) {
+            return selection;
+        }
+        return PetContract.PetEntry._ID + " IN (SELECT " + PetContract.PetEntry._ID +
+                " FROM " + PetContract.PetEntry.VIEW_NAME + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Whether the gender is one of the GENDER_ constants
+     */
+    private static boolean isValidGender(int gender) {
+        return gender == PetContract.PetEntry.GENDER_UNKNOWN
+                || gender == PetContract.PetEntry.GENDER_MALE
+                || gender == PetContract.PetEntry.GENDER_FEMALE;
+    }
+
+    /**
+     * Whether the adopted value is 0 or 1
+     */
+    private static boolean isValidAdopted(Integer adopted) {
+        return adopted != null && (adopted == 0 || adopted == 1);
+    }
+
+    /**
+     * Whether a query or delete asks for archived pets too; see
+     * {@link PetContract#QUERY_PARAMETER_INCLUDE_ARCHIVE}
+     */
+    private static boolean includesArchive(Uri uri) {
+        return uri.getBooleanQueryParameter(PetContract.QUERY_PARAMETER_INCLUDE_ARCHIVE, false);
+    }
+
+    /**
+     * Build the selection for the gender, minWeight and maxWeight query parameters and add its
+     * arguments to filterArgs. Returns null if the URI has none of them.
+     *
+     * The selection always starts with a gender term, so SQLite can use the (gender, weight)
+     * index for a weight range on its own as well: without a gender it probes each of the
+     * three genders in turn.
+     */
+    private static String filterSelection(Uri uri, List<String> filterArgs) {
+        Integer gender = parseIntParameter(uri, PetContract.QUERY_PARAMETER_GENDER);
+        Integer minWeight = parseIntParameter(uri, PetContract.QUERY_PARAMETER_MIN_WEIGHT);
+        Integer maxWeight = parseIntParameter(uri, PetContract.QUERY_PARAMETER_MAX_WEIGHT);
+        if (gender == null && minWeight == null && maxWeight == null) {
+            return null;
+        }
+
+        StringBuilder selection = new StringBuilder(PetContract.PetEntry.COLUMN_NAME_GENDER);
+        if (gender != null) {
+            if (!isValidGender(gender)) {
+                throw new IllegalArgumentException("Invalid gender in " + uri);
+            }
+            selection.append(" = ?");
+            filterArgs.add(String.valueOf(gender));
+        } else {
+            selection.append(" IN (").append(ALL_GENDERS).append(')');
+        }
+        if (minWeight != null) {
+            selection.append(" AND ").append(PetContract.PetEntry.COLUMN_NAME_WEIGHT)
+                    .append(" >= ?");
+            filterArgs.add(String.valueOf(minWeight));
+        }
+        if (maxWeight != null) {
+            selection.append(" AND ").append(PetContract.PetEntry.COLUMN_NAME_WEIGHT)
+                    .append(" <= ?");
+            filterArgs.add(String.valueOf(maxWeight));
+        }
+        return selection.toString();
+    }
+
+    /**
+     * Read the histogram bucket size from the URI, defaulting to 1 weight unit per bucket
+     */
+    private static int parseBucketSize(Uri uri) {
+        Integer bucketSize = parseIntParameter(uri, PetContract.QUERY_PARAMETER_BUCKET_SIZE);
+        if (bucketSize == null) {
+            return 1;
+        }
+        if (bucketSize <= 0) {
+            throw new IllegalArgumentException("Bucket size must be positive in " + uri);
+        }
+        return bucketSize;
+    }
+
+    /**
+     * Read an integer query parameter, or return null if the URI doesn't have it
+     */
+    private static Integer parseIntParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri, e);
+        }
+    }
+
+    /**
+     * Read the number of points a weight history query asks for, defaulting to
+     * {@link PetContract.WeightEntry#DEFAULT_POINTS}
+     */
+    private static int parsePoints(Uri uri) {
+        Integer points = parseIntParameter(uri, PetContract.QUERY_PARAMETER_POINTS);
+        if (points == null) {
+            return PetContract.WeightEntry.DEFAULT_POINTS;
+        }
+        if (points <= 0) {
+            throw new IllegalArgumentException("Points must be positive in " + uri);
+        }
+        return points;
+    }
+
+    /**
+     * Read a long query parameter, or return null if the URI doesn't have it
+     */
+    private static Long parseLongParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri, e);
+        }
+    }
+
+    /**
+     * Read the set of IDs from the "ids" query parameter, or return null if the URI has none.
+     */
+    private static long[] parseIds(Uri uri) {
+        String joined = uri.getQueryParameter(PetContract.QUERY_PARAMETER_IDS);
+        if (joined == null) {
+            return null;
+        }
+        if (joined.isEmpty()) {
+            return new long[0];
+        }
+        String[] parts = joined.split(",");
+        long[] ids = new long[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                ids[i] = Long.parseLong(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid ids in " + uri, e);
+        }
+        return ids;
+    }
+
+    /**
+     * Build "_id IN (?,?,...)" for the given number of IDs. The list is padded the way
+     * {@link PetQuery} pads it, so windows of similar size share one prepared statement.
+     */
+    private static String idsSelection(int count) {
+        StringBuilder selection = new StringBuilder(PetContract.PetEntry._ID).append(" IN (");
+        for (int i = 0; i < PetQuery.paddedSize(count); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * Convert a slice of the IDs to selection arguments, repeating the last ID to fill the
+     * padding of {@link #idsSelection}
+     */
+    private static String[] idsSelectionArgs(long[] ids, int start, int count) {
+        String[] args = new String[PetQuery.paddedSize(count)];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = String.valueOf(ids[start + Math.min(i, count - 1)]);
+        }
+        return args;
+    }
+
+    /**
+     * The IDs of both arrays, one after the other
+     */
+    private static long[] concat(long[] first, long[] second) {
+        long[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    /**
+     * AND the caller's selection (if any) onto the provider's own selection
+     */
+    private static String appendSelection(String selection, String extraSelection) {
+        if (extraSelection == null || extraSelection.isEmpty()) {
+            return selection;
+        }
+        return selection + " AND (" + extraSelection + ")";
+    }
+
+    /**
+     * Append the caller's selection arguments (if any) after the provider's own
+     */
+    private static String[] appendSelectionArgs(String[] selectionArgs, String[] extraArgs) {
+        if (extraArgs == null || extraArgs.length == 0) {
+            return selectionArgs;
+        }
+        String[] args = new String[selectionArgs.length + extraArgs.length];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        System.arraycopy(extraArgs, 0, args, selectionArgs.length, extraArgs.length);
+        return args;
+    }
 }
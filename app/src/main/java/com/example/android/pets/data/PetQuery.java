@@ -0,0 +1,277 @@
+package com.example.android.pets.data;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * {@link PetQuery} builds the selection, selection arguments and sort order of a provider
+ * call from typed conditions on the pets columns, instead of callers concatenating SQL:
+ *
+ * <pre>
+ * PetQuery query = new PetQuery.Builder()
+ *         .whereEquals(PetEntry.COLUMN_NAME_NAME, "Andy")
+ *         .whereAtLeast(PetEntry.COLUMN_NAME_WEIGHT, 5)
+ *         .orderBy(PetEntry.COLUMN_NAME_NAME)
+ *         .build();
+ * resolver.query(PetEntry.CONTENT_URI, projection, query.getSelection(),
+ *         query.getSelectionArgs(), query.getSortOrder());
+ * </pre>
+ *
+ * The SQL only depends on the shape of the query, never on the values, and conditions are
+ * emitted in a fixed order whatever order they were added in. Queries of the same shape
+ * therefore produce the very same statement text, which SQLite prepares once per connection
+ * and then serves from its statement cache. IN lists are padded to a power of two for the
+ * same reason, so a list of 5 IDs and one of 7 share a statement.
+ *
+ * A ContentResolver only carries text arguments, which SQLite converts back to numbers for
+ * the typed columns. Code that runs the selection on a database itself should bind
+ * {@link #getBindArgs} instead, which keeps numbers as numbers.
+ */
+public final class PetQuery {
+
+    /** Most "?" a statement may have; SQLite refuses more */
+    static final int MAX_VARIABLES = 999;
+
+    /** Columns a condition or sort order may name */
+    private static final Set<String> COLUMNS = new HashSet<>(Arrays.asList(
+            PetEntry._ID,
+            PetEntry.COLUMN_NAME_NAME,
+            PetEntry.COLUMN_NAME_BREED,
+            PetEntry.COLUMN_NAME_GENDER,
+            PetEntry.COLUMN_NAME_WEIGHT,
+            PetEntry.COLUMN_NAME_EXTERNAL_ID,
+            PetEntry.COLUMN_NAME_BREED_ID,
+            PetEntry.COLUMN_NAME_PHOTO,
+            PetEntry.COLUMN_NAME_DUPLICATE_OF,
+            PetEntry.COLUMN_NAME_ADOPTED,
+            PetEntry.COLUMN_NAME_LAST_MODIFIED,
+            PetEntry.COLUMN_NAME_ARCHIVED));
+
+    /**
+     * Columns the views compute without a type, like archived. SQLite compares those with the
+     * text arguments as they are, so 1 would never equal '1'; conditions cast them first.
+     */
+    private static final Set<String> UNTYPED_COLUMNS = new HashSet<>(Collections.singletonList(
+            PetEntry.COLUMN_NAME_ARCHIVED));
+
+    private final String mSelection;
+    private final Object[] mBindArgs;
+    private final String mSortOrder;
+
+    private PetQuery(String selection, Object[] bindArgs, String sortOrder) {
+        mSelection = selection;
+        mBindArgs = bindArgs;
+        mSortOrder = sortOrder;
+    }
+
+    /** The WHERE clause, or null if the query has no conditions */
+    public String getSelection() {
+        return mSelection;
+    }
+
+    /** One argument per "?" in the selection as text, or null if there are none */
+    public String[] getSelectionArgs() {
+        if (mBindArgs == null) {
+            return null;
+        }
+        String[] args = new String[mBindArgs.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = mBindArgs[i].toString();
+        }
+        return args;
+    }
+
+    /**
+     * One argument per "?" in the selection, each a Long or a String, or null if there are
+     * none. For SQLiteDatabase.execSQL or DatabaseUtils.bindObjectToProgram.
+     */
+    public Object[] getBindArgs() {
+        return mBindArgs == null ? null : mBindArgs.clone();
+    }
+
+    /** The ORDER BY clause, or null for the provider's default order */
+    public String getSortOrder() {
+        return mSortOrder;
+    }
+
+    /**
+     * Number of placeholders for an IN list of count values: the next power of two, so only a
+     * handful of list lengths ever reach SQLite, but no further than {@link #MAX_VARIABLES}.
+     * Longer lists aren't padded at all. The extra places repeat the last value.
+     */
+    static int paddedSize(int count) {
+        if (count <= 1) {
+            return count;
+        }
+        return Math.min(Integer.highestOneBit(count - 1) << 1, Math.max(count, MAX_VARIABLES));
+    }
+
+    /**
+     * Builds a {@link PetQuery}. A builder can be reused after {@link #build}.
+     */
+    public static final class Builder {
+
+        private final List<Condition> mConditions = new ArrayList<>();
+        private final StringBuilder mSortOrder = new StringBuilder();
+
+        /** column = value */
+        public Builder whereEquals(String column, String value) {
+            return add(column, " = ?", value);
+        }
+
+        /** column = value */
+        public Builder whereEquals(String column, long value) {
+            return add(column, " = ?", value);
+        }
+
+        /** column >= value */
+        public Builder whereAtLeast(String column, long value) {
+            return add(column, " >= ?", value);
+        }
+
+        /** column <= value */
+        public Builder whereAtMost(String column, long value) {
+            return add(column, " <= ?", value);
+        }
+
+        /** column LIKE pattern, with SQLite's case-insensitive ASCII matching */
+        public Builder whereLike(String column, String pattern) {
+            return add(column, " LIKE ?", pattern);
+        }
+
+        /** column IS NULL */
+        public Builder whereNull(String column) {
+            return add(column, " IS NULL");
+        }
+
+        /** column IS NOT NULL */
+        public Builder whereNotNull(String column) {
+            return add(column, " IS NOT NULL");
+        }
+
+        /**
+         * column IN (values). An empty list matches nothing. Throws IllegalArgumentException
+         * for more than {@link #MAX_VARIABLES} values; split longer lists over several queries.
+         */
+        public Builder whereIn(String column, long[] values) {
+            checkColumn(column);
+            if (values.length > MAX_VARIABLES) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%d values is more than one statement can bind", values.length));
+            }
+            if (values.length == 0) {
+                mConditions.add(new Condition(term(column), " IN ()", new Object[0]));
+                return this;
+            }
+            Object[] args = new Object[paddedSize(values.length)];
+            StringBuilder sql = new StringBuilder(" IN (");
+            for (int i = 0; i < args.length; i++) {
+                args[i] = values[Math.min(i, values.length - 1)];
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            mConditions.add(new Condition(term(column), sql.append(')').toString(), args));
+            return this;
+        }
+
+        /** Sort by the column, ascending. Call again for tie-breakers. */
+        public Builder orderBy(String column) {
+            return appendSort(column, " ASC");
+        }
+
+        /** Sort by the column, descending. Call again for tie-breakers. */
+        public Builder orderByDescending(String column) {
+            return appendSort(column, " DESC");
+        }
+
+        /**
+         * Throws IllegalArgumentException if the conditions need more than
+         * {@link #MAX_VARIABLES} arguments between them
+         */
+        public PetQuery build() {
+            if (mConditions.isEmpty()) {
+                return new PetQuery(null, null, sortOrder());
+            }
+            // A fixed order makes the text depend only on which conditions there are
+            List<Condition> conditions = new ArrayList<>(mConditions);
+            Collections.sort(conditions);
+
+            StringBuilder selection = new StringBuilder();
+            List<Object> args = new ArrayList<>();
+            for (Condition condition : conditions) {
+                if (selection.length() > 0) {
+                    selection.append(" AND ");
+                }
+                selection.append(condition.mColumn).append(condition.mOperator);
+                args.addAll(Arrays.asList(condition.mArgs));
+            }
+            if (args.size() > MAX_VARIABLES) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%d arguments is more than one statement can bind", args.size()));
+            }
+            return new PetQuery(selection.toString(),
+                    args.isEmpty() ? null : args.toArray(), sortOrder());
+        }
+
+        private String sortOrder() {
+            return mSortOrder.length() == 0 ? null : mSortOrder.toString();
+        }
+
+        private Builder add(String column, String operator, Object... args) {
+            checkColumn(column);
+            mConditions.add(new Condition(term(column), operator, args));
+            return this;
+        }
+
+        private Builder appendSort(String column, String direction) {
+            checkColumn(column);
+            if (mSortOrder.length() > 0) {
+                mSortOrder.append(", ");
+            }
+            mSortOrder.append(column).append(direction);
+            return this;
+        }
+
+        /**
+         * The column as a condition compares it: cast to INTEGER if the views leave it untyped
+         */
+        private static String term(String column) {
+            return UNTYPED_COLUMNS.contains(column) ? "CAST(" + column + " AS INTEGER)" : column;
+        }
+
+        private static void checkColumn(String column) {
+            if (!COLUMNS.contains(column)) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%s is not a pets column", column));
+            }
+        }
+    }
+
+    /**
+     * One term of the WHERE clause. Terms sort by their SQL, which leaves the arguments of
+     * each term next to it.
+     */
+    private static final class Condition implements Comparable<Condition> {
+        final String mColumn;
+        final String mOperator;
+        final Object[] mArgs;
+
+        Condition(String column, String operator, Object[] args) {
+            mColumn = column;
+            mOperator = operator;
+            mArgs = args;
+        }
+
+        @Override
+        public int compareTo(Condition other) {
+            int order = mColumn.compareTo(other.mColumn);
+            return order != 0 ? order : mOperator.compareTo(other.mOperator);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.StaleDataException;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * {@link PetQueryCache} remembers the results of recent provider queries, keyed by the full
+ * query signature (URI, projection, selection, selection arguments and sort order).
+ *
+ * Every committed write bumps a generation counter, and an entry is only served while its
+ * generation is current, so a hit is always what the database would have returned. Entries are
+ * evicted least recently used first once the cache holds more than {@link #MAX_BYTES} of
+ * (estimated) row data. A hit returns a light cursor that reads straight from the shared,
+ * immutable rows instead of copying them.
+ *
+ * Results too big to cache keep reading from the database as they are scrolled. The cache
+ * tracks the ones still open, so {@link #detachOpenCursors} can copy them into memory before
+ * the database underneath them is closed.
+ */
+class PetQueryCache {
+
+    /** Upper bound on the estimated size of all cached rows */
+    static final int MAX_BYTES = 1024 * 1024;
+
+    /** Results bigger than this aren't worth evicting everything else for */
+    static final int MAX_ENTRY_BYTES = MAX_BYTES / 4;
+
+    /** Largest result copied into memory when its database is closed; see {@link #detach} */
+    static final int MAX_DETACH_BYTES = 4 * MAX_BYTES;
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mGeneration;
+    private int mBytes;
+
+    /** Results handed back uncopied that haven't been closed yet */
+    private final Set<LargeCursor> mOpenLargeCursors =
+            Collections.newSetFromMap(new WeakHashMap<LargeCursor, Boolean>());
+
+    /**
+     * The current table generation. Read it before running a query, and hand it to
+     * {@link #put} so a write that commits in between makes the result uncacheable.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Mark every cached result as stale. Call after each committed write.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Build the cache key for a query
+     */
+    static String key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                      String sortOrder) {
+        // Every part is length-prefixed, so different queries can't produce the same key
+        StringBuilder key = new StringBuilder();
+        appendPart(key, uri.toString());
+        appendParts(key, projection);
+        appendPart(key, selection);
+        appendParts(key, selectionArgs);
+        appendPart(key, sortOrder);
+        return key.toString();
+    }
+
+    /**
+     * Return a cursor over the cached result for the key, or null on a miss.
+     */
+    synchronized Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        return new CachedCursor(entry.mColumnNames, entry.mRows);
+    }
+
+    /**
+     * Copy the result into the cache if it is small enough and no write has committed since
+     * the generation was read. A result that is already stale isn't copied at all. Returns a
+     * cursor over the same rows, positioned before the first one; the passed cursor is closed
+     * if it was copied.
+     */
+    Cursor put(String key, Cursor cursor, long generation) {
+        // The first getCount() runs the query and fills the cursor window
+        PetTrace.beginSection("PetProvider.fillWindow");
+        int count;
+        try {
+            count = cursor.getCount();
+        } finally {
+            PetTrace.endSection();
+        }
+        if (isStale(generation)) {
+            // A write committed while the query ran; copying the rows would only be wasted
+            return track(cursor);
+        }
+        String[] columnNames = cursor.getColumnNames();
+        if ((long) count * columnNames.length * estimateBytes(null) > MAX_ENTRY_BYTES) {
+            // Too big to cache even if every value were a number
+            return track(cursor);
+        }
+        Object[][] rows = new Object[count][];
+        int bytes = 0;
+        PetTrace.beginSection("PetQueryCache.copy");
+        try {
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[columnNames.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = readValue(cursor, i);
+                    bytes += estimateBytes(row[i]);
+                }
+                rows[cursor.getPosition()] = row;
+                if (bytes > MAX_ENTRY_BYTES) {
+                    // Too big to cache; hand back the original cursor untouched
+                    cursor.moveToPosition(-1);
+                    return track(cursor);
+                }
+            }
+        } finally {
+            PetTrace.endSection();
+        }
+        cursor.close();
+
+        synchronized (this) {
+            // A write may still have committed during the copy
+            if (generation == mGeneration) {
+                Entry previous = mEntries.put(key, new Entry(columnNames, rows, bytes));
+                if (previous != null) {
+                    mBytes -= previous.mBytes;
+                }
+                mBytes += bytes;
+                trimToSize();
+            }
+        }
+        return new CachedCursor(columnNames, rows);
+    }
+
+    /**
+     * Copy the remaining results that were too big to cache into memory and close their
+     * database cursors, however big they are
+     */
+    void detachOpenCursors() {
+        detachOpenCursors(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Copy the results still reading from the database into memory and close their database
+     * cursors, before the database is closed. Results bigger than maxBytes aren't copied but
+     * released; reading them afterwards throws {@link StaleDataException}. Call it again once
+     * every query is shut out, for the results opened since.
+     */
+    void detachOpenCursors(int maxBytes) {
+        List<LargeCursor> open;
+        synchronized (this) {
+            // Each result is detached once; a detached one no longer reads from the database
+            open = new ArrayList<>(mOpenLargeCursors);
+            mOpenLargeCursors.clear();
+        }
+        for (LargeCursor cursor : open) {
+            cursor.detach(maxBytes);
+        }
+    }
+
+    private synchronized boolean isStale(long generation) {
+        return generation != mGeneration;
+    }
+
+    private LargeCursor track(Cursor cursor) {
+        LargeCursor large = new LargeCursor(cursor);
+        synchronized (this) {
+            mOpenLargeCursors.add(large);
+        }
+        return large;
+    }
+
+    private synchronized void untrack(LargeCursor cursor) {
+        mOpenLargeCursors.remove(cursor);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> eldest = mEntries.entrySet().iterator();
+        while (mBytes > MAX_BYTES && eldest.hasNext()) {
+            mBytes -= eldest.next().getValue().mBytes;
+            eldest.remove();
+        }
+    }
+
+    static Object readValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    private static int estimateBytes(Object value) {
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        return 16;
+    }
+
+    private static void appendPart(StringBuilder key, String part) {
+        if (part == null) {
+            key.append("-1:");
+        } else {
+            key.append(part.length()).append(':').append(part);
+        }
+    }
+
+    private static void appendParts(StringBuilder key, String[] parts) {
+        if (parts == null) {
+            key.append("-1;");
+            return;
+        }
+        key.append(parts.length).append(';');
+        for (String part : parts) {
+            appendPart(key, part);
+        }
+    }
+
+    private static class Entry {
+        final String[] mColumnNames;
+        final Object[][] mRows;
+        final int mBytes;
+
+        Entry(String[] columnNames, Object[][] rows, int bytes) {
+            mColumnNames = columnNames;
+            mRows = rows;
+            mBytes = bytes;
+        }
+    }
+
+    /**
+     * Cursor over a result too big to cache, or already stale when it was read. It reads from
+     * the database cursor until {@link #detach} swaps that for a copy of the rows in memory.
+     * Access is synchronized so the swap can happen while another thread reads.
+     */
+    private class LargeCursor extends AbstractCursor {
+        private Cursor mSource;
+
+        /** Set when the result was too big to copy before its database was closed */
+        private boolean mReleased;
+
+        LargeCursor(Cursor source) {
+            mSource = source;
+        }
+
+        /**
+         * Swap the database cursor for a copy of its rows, or just close it if the copy would
+         * be bigger than maxBytes
+         */
+        synchronized void detach(int maxBytes) {
+            if (isClosed()) {
+                return;
+            }
+            Cursor source = mSource;
+            String[] columnNames = source.getColumnNames();
+            int count = source.getCount();
+            if ((long) count * columnNames.length * estimateBytes(null) <= maxBytes) {
+                Object[][] rows = new Object[count][];
+                long bytes = 0;
+                source.moveToPosition(-1);
+                while (bytes <= maxBytes && source.moveToNext()) {
+                    Object[] row = new Object[columnNames.length];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = readValue(source, i);
+                        bytes += estimateBytes(row[i]);
+                    }
+                    rows[source.getPosition()] = row;
+                }
+                if (bytes <= maxBytes) {
+                    source.close();
+                    mSource = new CachedCursor(columnNames, rows);
+                    mSource.moveToPosition(getPosition());
+                    return;
+                }
+            }
+            source.close();
+            mReleased = true;
+        }
+
+        private Cursor source() {
+            if (mReleased) {
+                throw new StaleDataException(
+                        "Result was too big to keep once its database was closed; query again");
+            }
+            return mSource;
+        }
+
+        @Override
+        public synchronized boolean onMove(int oldPosition, int newPosition) {
+            return source().moveToPosition(newPosition);
+        }
+
+        @Override
+        public synchronized int getCount() {
+            return source().getCount();
+        }
+
+        @Override
+        public synchronized String[] getColumnNames() {
+            return source().getColumnNames();
+        }
+
+        @Override
+        public synchronized int getType(int column) {
+            return source().getType(column);
+        }
+
+        @Override
+        public synchronized String getString(int column) {
+            return source().getString(column);
+        }
+
+        @Override
+        public synchronized short getShort(int column) {
+            return source().getShort(column);
+        }
+
+        @Override
+        public synchronized int getInt(int column) {
+            return source().getInt(column);
+        }
+
+        @Override
+        public synchronized long getLong(int column) {
+            return source().getLong(column);
+        }
+
+        @Override
+        public synchronized float getFloat(int column) {
+            return source().getFloat(column);
+        }
+
+        @Override
+        public synchronized double getDouble(int column) {
+            return source().getDouble(column);
+        }
+
+        @Override
+        public synchronized byte[] getBlob(int column) {
+            return source().getBlob(column);
+        }
+
+        @Override
+        public synchronized boolean isNull(int column) {
+            return source().isNull(column);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            synchronized (this) {
+                mSource.close();
+            }
+            untrack(this);
+        }
+    }
+
+    /**
+     * Read-only cursor over cached rows. The rows are shared between every cursor for the same
+     * entry and are never modified.
+     */
+    private static class CachedCursor extends AbstractCursor {
+        private final String[] mColumnNames;
+        private final Object[][] mRows;
+
+        CachedCursor(String[] columnNames, Object[][] rows) {
+            mColumnNames = columnNames;
+            mRows = rows;
+        }
+
+        private Object value(int column) {
+            return mRows[getPosition()][column];
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = value(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            try {
+                return Long.parseLong(value.toString());
+            } catch (NumberFormatException e) {
+                // SQLite reads non-numeric text as 0
+                return 0;
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return (byte[]) value(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return value(column) == null;
+        }
+    }
+}
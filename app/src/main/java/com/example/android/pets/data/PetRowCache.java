@@ -0,0 +1,81 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.util.LruCache;
+
+/**
+ * {@link PetRowCache} is a small, process-wide cache of full pet rows keyed by _id.
+ *
+ * The catalog fills it ahead of time for the rows around the visible window, so the editor
+ * can show a pet without waiting for its own query. Entries are only a head start: the editor
+ * still verifies the row against the provider in the background.
+ */
+public final class PetRowCache {
+
+    /** Number of rows kept. A row is a handful of short strings, so this stays well under 100KB */
+    private static final int MAX_ROWS = 256;
+
+    private static final PetRowCache sInstance = new PetRowCache();
+
+    private final LruCache<Long, ContentValues> mRows = new LruCache<>(MAX_ROWS);
+
+    /**
+     * Bumped on every invalidation, so a prefetch that started before a write can tell that
+     * its rows may be stale and drop them.
+     */
+    private long mGeneration;
+
+    private PetRowCache() {}
+
+    public static PetRowCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Return a copy of the cached row for the pet, or null if it isn't cached.
+     */
+    public synchronized ContentValues get(long id) {
+        ContentValues row = mRows.get(id);
+        return row == null ? null : new ContentValues(row);
+    }
+
+    /**
+     * Return true if the pet's row is cached. Counts as a use of the row for LRU order.
+     */
+    public synchronized boolean contains(long id) {
+        return mRows.get(id) != null;
+    }
+
+    /**
+     * The current generation. Read it before querying and hand it back to {@link #put}.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a row that was read while the cache was at the given generation. The row is
+     * dropped if anything was invalidated since then.
+     */
+    public synchronized void put(long id, ContentValues row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(id, row);
+        }
+    }
+
+    /**
+     * Forget one pet, e.g. after it was updated or deleted.
+     */
+    public synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Forget every pet, e.g. after a write whose rows aren't known up front.
+     */
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * {@link PetSaveLoader} writes one pet from the editor in a single provider transaction, off the
+ * main thread. As a loader it outlives a configuration change: the recreated editor reconnects
+ * to the save in flight instead of starting another one, and gets its result once it lands.
+ *
+ * It only holds the application context, so a save never keeps a destroyed editor alive.
+ */
+public class PetSaveLoader extends AsyncTaskLoader<Boolean> {
+
+    private static final String LOG_TAG = PetSaveLoader.class.getSimpleName();
+
+    private final Uri mPetUri;
+    private final ContentValues mValues;
+
+    /** Whether the save has been started; it must only ever run once */
+    private boolean mStarted = false;
+
+    /** The result once the save has landed, kept for an editor that reconnects later */
+    private Boolean mSaved;
+
+    /**
+     * Constructs a new {@link PetSaveLoader}.
+     *
+     * @param petUri the pet to update, or null to insert a new pet
+     * @param values the pet's values from the form
+     */
+    public PetSaveLoader(Context context, Uri petUri, ContentValues values) {
+        super(context);
+        mPetUri = petUri;
+        mValues = values;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mSaved != null) {
+            deliverResult(mSaved);
+        } else if (!mStarted) {
+            // forceLoad() again would cancel the running save and start a second one
+            mStarted = true;
+            forceLoad();
+        }
+    }
+
+    @Override
+    public Boolean loadInBackground() {
+        ContentProviderOperation operation;
+        if (mPetUri == null) {
+            operation = ContentProviderOperation.newInsert(PetContract.PetEntry.CONTENT_URI)
+                    .withValues(mValues)
+                    .build();
+        } else {
+            operation = ContentProviderOperation.newUpdate(mPetUri)
+                    .withValues(mValues)
+                    .build();
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(operation);
+        try {
+            ContentProviderResult[] results = getContext().getContentResolver()
+                    .applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+            ContentProviderResult result = results[0];
+            return result.uri != null || (result.count != null && result.count > 0);
+        } catch (RemoteException | OperationApplicationException
+                | IllegalArgumentException e) {
+            // The provider rejects invalid pets with an IllegalArgumentException
+            Log.e(LOG_TAG, "Failed to save pet", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void deliverResult(Boolean saved) {
+        mSaved = saved;
+        if (isStarted()) {
+            super.deliverResult(saved);
+        }
+    }
+}
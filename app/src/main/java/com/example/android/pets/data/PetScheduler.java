@@ -0,0 +1,314 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PetScheduler} decides when the provider's operations get to use the database. Every
+ * operation is either interactive (what a screen is waiting for: the catalog query, saving
+ * one pet) or background (imports, bulk updates and deletes, rollups, archiving).
+ *
+ * Interactive operations are admitted straight away. Background operations run one at a
+ * time, from a queue of at most {@link #MAX_QUEUED_BACKGROUND}; past that, callers are held
+ * up until there is room, and given up on after {@link #MAX_QUEUE_WAIT_MILLIS}. A background
+ * operation does its writes in short transactions, each between {@link #beginChunk} and
+ * {@link #endChunk}. A chunk only starts once no interactive operation is running (or after
+ * {@link #MAX_YIELD_MILLIS}, so background work can't starve), and interactive operations
+ * that arrive during a chunk wait for it to end rather than for the whole import.
+ *
+ * The provider's own maintenance (migrations, rollups, archiving) is entered with
+ * {@link #enterMaintenance}. It writes in chunks that yield to interactive operations like any
+ * background operation, but takes no place in the callers' queue, so it can never get their
+ * operations refused. Nor does it wait for the callers' background operation to finish, which
+ * may be an import of any size, so the only wait it has is the bounded one in
+ * {@link #beginChunk}.
+ *
+ * An operation that starts another one on the same thread, like applyBatch calling insert,
+ * keeps the priority of the outer one.
+ */
+final class PetScheduler {
+
+    static final int INTERACTIVE = 0;
+    static final int BACKGROUND = 1;
+
+    /** The provider's own background work; see {@link #enterMaintenance} */
+    private static final int MAINTENANCE = 2;
+
+    /** Background operations that may wait to run, besides the one that is running */
+    static final int MAX_QUEUED_BACKGROUND = 4;
+
+    /** Longest a background operation waits for room in the queue before it is refused */
+    static final long MAX_QUEUE_WAIT_MILLIS = 10000;
+
+    /** Longest a background chunk waits for interactive operations to finish */
+    static final long MAX_YIELD_MILLIS = 100;
+
+    /** Wait times kept per kind, for the percentiles */
+    private static final int SAMPLES = 1024;
+
+    /** Depth of nested operations on each thread, and the priority of the outermost one */
+    private final ThreadLocal<int[]> mCurrent = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
+
+    private int mInteractiveRunning;
+    private boolean mBackgroundRunning;
+    private int mChunksRunning;
+    private int mQueued;
+    private int mMaxQueued;
+    private long mRejected;
+    private final Samples mInteractiveWaits = new Samples();
+    private final Samples mBackgroundWaits = new Samples();
+    private final Samples mYieldWaits = new Samples();
+    private final long mStartNanos = System.nanoTime();
+
+    /**
+     * The priority a URI asks for with {@link PetContract#QUERY_PARAMETER_PRIORITY}, or the
+     * given default. Throws IllegalArgumentException for an unknown priority.
+     */
+    static int priorityOf(Uri uri, int defaultPriority) {
+        String priority = uri.getQueryParameter(PetContract.QUERY_PARAMETER_PRIORITY);
+        if (priority == null) {
+            return defaultPriority;
+        }
+        switch (priority) {
+            case PetContract.PRIORITY_INTERACTIVE:
+                return INTERACTIVE;
+            case PetContract.PRIORITY_BACKGROUND:
+                return BACKGROUND;
+            default:
+                throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+    }
+
+    /**
+     * Wait until an operation of the priority may run. Every call must be paired with
+     * {@link #exit} in a finally block. Throws IllegalStateException if a background
+     * operation can't even join the queue.
+     */
+    void enter(int priority) {
+        int[] current = mCurrent.get();
+        if (current[0]++ > 0) {
+            return;
+        }
+        current[1] = priority;
+
+        long start = System.nanoTime();
+        try {
+            if (priority == INTERACTIVE) {
+                enterInteractive();
+                mInteractiveWaits.add(System.nanoTime() - start);
+            } else {
+                enterBackground();
+                mBackgroundWaits.add(System.nanoTime() - start);
+            }
+        } catch (RuntimeException e) {
+            current[0] = 0;
+            throw e;
+        }
+    }
+
+    /**
+     * Start a maintenance operation of the provider's own. It is admitted straight away and
+     * writes in chunks like a background operation. Pair with {@link #exit} in a finally block.
+     */
+    void enterMaintenance() {
+        int[] current = mCurrent.get();
+        if (current[0]++ > 0) {
+            return;
+        }
+        current[1] = MAINTENANCE;
+    }
+
+    /**
+     * End an operation started with {@link #enter} or {@link #enterMaintenance}
+     */
+    void exit() {
+        int[] current = mCurrent.get();
+        if (--current[0] > 0) {
+            return;
+        }
+        synchronized (this) {
+            if (current[1] == INTERACTIVE) {
+                mInteractiveRunning--;
+            } else if (current[1] == BACKGROUND) {
+                mBackgroundRunning = false;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Whether the operation running on this thread is a background or maintenance one, and
+     * should write in chunks
+     */
+    boolean isBackground() {
+        int[] current = mCurrent.get();
+        return current[0] > 0 && current[1] != INTERACTIVE;
+    }
+
+    /**
+     * Start a chunk of background writes, after letting running interactive operations
+     * finish. Does nothing for an interactive operation. Pair with {@link #endChunk}.
+     */
+    void beginChunk() {
+        if (!isBackground()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(MAX_YIELD_MILLIS);
+        synchronized (this) {
+            boolean interrupted = false;
+            long now = start;
+            while (mInteractiveRunning > 0 && now < deadline) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                now = System.nanoTime();
+            }
+            mChunksRunning++;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mYieldWaits.add(System.nanoTime() - start);
+    }
+
+    /**
+     * End a chunk started with {@link #beginChunk}, letting waiting interactive operations in
+     */
+    void endChunk() {
+        if (!isBackground()) {
+            return;
+        }
+        synchronized (this) {
+            mChunksRunning--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A snapshot of the queue and the wait times so far
+     */
+    Stats getStats() {
+        Stats stats = new Stats();
+        long elapsed = System.nanoTime() - mStartNanos;
+        synchronized (this) {
+            stats.queueDepth = mQueued;
+            stats.maxQueueDepth = mMaxQueued;
+            stats.interactiveRunning = mInteractiveRunning;
+            stats.rejected = mRejected;
+        }
+        stats.interactiveWaits = mInteractiveWaits.summarize(elapsed);
+        stats.backgroundWaits = mBackgroundWaits.summarize(elapsed);
+        stats.yieldWaits = mYieldWaits.summarize(elapsed);
+        return stats;
+    }
+
+    private synchronized void enterInteractive() {
+        // Counted first, so the next chunk holds off while this waits for the current one
+        mInteractiveRunning++;
+        boolean interrupted = false;
+        while (mChunksRunning > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void enterBackground() {
+        boolean interrupted = false;
+        try {
+            long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(MAX_QUEUE_WAIT_MILLIS);
+            while (mQueued >= MAX_QUEUED_BACKGROUND) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    mRejected++;
+                    throw new IllegalStateException("Too many background operations waiting");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            mQueued++;
+            mMaxQueued = Math.max(mMaxQueued, mQueued);
+            while (mBackgroundRunning) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            mQueued--;
+            mBackgroundRunning = true;
+            // There is room in the queue again
+            notifyAll();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The most recent wait times of one kind
+     */
+    private static class Samples {
+        private final long[] mNanos = new long[SAMPLES];
+        private long mCount;
+
+        synchronized void add(long nanos) {
+            mNanos[(int) (mCount++ % SAMPLES)] = nanos;
+        }
+
+        synchronized PetLatencySummary summarize(long elapsedNanos) {
+            return new PetLatencySummary(
+                    Arrays.copyOf(mNanos, (int) Math.min(mCount, SAMPLES)), elapsedNanos);
+        }
+    }
+
+    /**
+     * Queue depth and wait times. The wait times cover the last {@link #SAMPLES} operations
+     * of each kind; their rate is over the scheduler's lifetime.
+     */
+    static class Stats {
+        /** Background operations waiting now, and the most that ever waited at once */
+        int queueDepth;
+        int maxQueueDepth;
+        int interactiveRunning;
+        /** Background operations refused because the queue stayed full */
+        long rejected;
+        /** Time interactive operations waited for a background chunk to end */
+        PetLatencySummary interactiveWaits;
+        /** Time background operations waited in the queue */
+        PetLatencySummary backgroundWaits;
+        /** Time background chunks held off for interactive operations */
+        PetLatencySummary yieldWaits;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "queue %d (max %d), %d rejected, %d interactive running; " +
+                            "interactive waits: %s; background waits: %s; yields: %s",
+                    queueDepth, maxQueueDepth, rejected, interactiveRunning, interactiveWaits,
+                    backgroundWaits, yieldWaits);
+        }
+    }
+}
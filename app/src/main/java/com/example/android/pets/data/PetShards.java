@@ -0,0 +1,616 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link PetShards} keeps each shelter's pets in a database file of its own, so intake at one
+ * shelter never waits for another shelter's writes. Shelter 0 is the original shelter.db;
+ * shelter n lives in shelter_n.db, which is created the first time the shelter is used.
+ *
+ * Each shelter numbers its pets on its own. Outside a shelter's URI a pet is known by its
+ * global ID, which packs the shelter into the bits above {@link #LOCAL_ID_BITS}, so the pets
+ * of shelter 0 keep the IDs they always had.
+ *
+ * {@link #query} runs a query against several shelters in parallel and merges the results,
+ * which SQLite has already sorted per shelter, into one sorted cursor. The merge reads rows
+ * from each shelter's own cursor as they are asked for, so a catalog spanning shelters is
+ * never copied onto the heap.
+ */
+class PetShards {
+
+    /** Bits of a global ID that hold the pet's ID within its shelter */
+    static final int LOCAL_ID_BITS = 40;
+
+    private static final long LOCAL_ID_MASK = (1L << LOCAL_ID_BITS) - 1;
+
+    /** Highest shelter number whose global IDs are still positive */
+    static final int MAX_SHELTER = (1 << (63 - LOCAL_ID_BITS)) - 1;
+
+    /** Database files of every shelter but the first */
+    private static final Pattern SHELTER_DATABASE = Pattern.compile("shelter_(\\d+)\\.db");
+
+    /** Order the merge falls back to when the caller gives none */
+    private static final String DEFAULT_SORT_ORDER = PetEntry._ID;
+
+    /** A column name the merge can compare, without quoting, functions or COLLATE */
+    private static final Pattern SORT_COLUMN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final Context mContext;
+    private final ConcurrentSkipListMap<Integer, Shard> mShards = new ConcurrentSkipListMap<>();
+    private final ExecutorService mQueryExecutor;
+
+    PetShards(Context context) {
+        mContext = context;
+        mShards.put(0, new Shard(0, new PetDbHelper(context)));
+        for (String name : context.databaseList()) {
+            Matcher matcher = SHELTER_DATABASE.matcher(name);
+            if (matcher.matches() && matcher.group(1).length() <= 7) {
+                int shelter = Integer.parseInt(matcher.group(1));
+                if (shelter > 0 && shelter <= MAX_SHELTER) {
+                    get(shelter);
+                }
+            }
+        }
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        mQueryExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "PetShardQuery");
+            }
+        });
+    }
+
+    /**
+     * The shelter's database, opened lazily like any {@link PetDbHelper}
+     *
+     * @throws IllegalArgumentException if there can't be such a shelter
+     */
+    Shard get(int shelter) {
+        if (shelter < 0 || shelter > MAX_SHELTER) {
+            throw new IllegalArgumentException("No shelter " + shelter);
+        }
+        Shard shard = mShards.get(shelter);
+        if (shard == null) {
+            Shard created = new Shard(shelter,
+                    new PetDbHelper(mContext, "shelter_" + shelter + ".db"));
+            shard = mShards.putIfAbsent(shelter, created);
+            if (shard == null) {
+                shard = created;
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * The shelter's database if the shelter is in use, else null. For reads, which have nothing
+     * to find in a shelter that was never written to and shouldn't create its file.
+     *
+     * @throws IllegalArgumentException if there can't be such a shelter
+     */
+    Shard find(int shelter) {
+        if (shelter < 0 || shelter > MAX_SHELTER) {
+            throw new IllegalArgumentException("No shelter " + shelter);
+        }
+        return mShards.get(shelter);
+    }
+
+    /** Every shelter in use, in shelter order */
+    List<Shard> all() {
+        return new ArrayList<>(mShards.values());
+    }
+
+    /** Number of shelters in use; 1 until a second shelter is written to or queried */
+    int size() {
+        return mShards.size();
+    }
+
+    static long globalId(int shelter, long localId) {
+        return ((long) shelter << LOCAL_ID_BITS) | localId;
+    }
+
+    static int shelterOf(long globalId) {
+        return (int) (globalId >>> LOCAL_ID_BITS);
+    }
+
+    /**
+     * The shelter that holds the pet with the global ID. If that shelter isn't in use the pet
+     * can't exist: shelter 0 is returned, and {@link #localId} keeps the ID whole so it matches
+     * nothing there, instead of a database being created just to look it up.
+     */
+    Shard shardOf(long globalId) {
+        Shard shard = mShards.get(shelterOf(globalId));
+        return shard != null ? shard : mShards.get(0);
+    }
+
+    /**
+     * The pet's ID within the shard {@link #shardOf} returned for it
+     */
+    static long localId(Shard shard, long globalId) {
+        return shard.shelter == shelterOf(globalId) ? globalId & LOCAL_ID_MASK : globalId;
+    }
+
+    /**
+     * Query a view in every target shelter at once and merge the rows. _id values come back
+     * as global IDs. Blocks until every shelter has run its query.
+     *
+     * @param targets   the shelters to query, in shelter order, each with the local IDs to
+     *                  narrow it to, or null for no narrowing
+     * @param view      pets_view, or {@link PetArchive#VIEW_NAME} to include archived pets
+     * @param sortOrder a list of plain columns, each optionally ASC or DESC, or null for _id
+     * @throws IllegalArgumentException if the sort order is more than the merge can reproduce
+     */
+    Cursor query(Map<Shard, long[]> targets, final String view, String[] projection,
+                 final String selection, final String[] selectionArgs, String sortOrder) {
+        if (sortOrder == null || sortOrder.trim().isEmpty()) {
+            sortOrder = DEFAULT_SORT_ORDER;
+        }
+        final String shardSortOrder = sortOrder;
+        List<SortKey> sortKeys = parseSortOrder(sortOrder);
+
+        // The merge compares the sort columns, so ask each shelter for any the caller left out
+        final String[] shardProjection = withSortColumns(projection, sortKeys);
+
+        List<Shard> shards = new ArrayList<>();
+        List<Future<Cursor>> futures = new ArrayList<>();
+        for (final Map.Entry<Shard, long[]> target : targets.entrySet()) {
+            shards.add(target.getKey());
+            futures.add(mQueryExecutor.submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    long[] ids = target.getValue();
+                    return target.getKey().query(view, shardProjection,
+                            restrictToIds(selection, ids), restrictToIdsArgs(selectionArgs, ids),
+                            shardSortOrder);
+                }
+            }));
+        }
+
+        Cursor[] results = new Cursor[futures.size()];
+        try {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = futures.get(i).get();
+            }
+        } catch (ExecutionException e) {
+            cancel(futures, results);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Shelter query failed", e.getCause());
+        } catch (InterruptedException e) {
+            cancel(futures, results);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying shelters", e);
+        }
+
+        int outputColumns = projection != null ? projection.length : -1;
+        try {
+            return new SortedMergeCursor(results, shards, sortKeys, outputColumns);
+        } catch (RuntimeException e) {
+            cancel(futures, results);
+            throw e;
+        }
+    }
+
+    /**
+     * Give up on the shelters' queries, closing the cursors of those that already answered
+     */
+    private static void cancel(List<Future<Cursor>> futures, Cursor[] results) {
+        for (int i = 0; i < futures.size(); i++) {
+            if (!futures.get(i).cancel(true) && results[i] == null) {
+                // Finished, but not collected yet
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException | InterruptedException
+                        | CancellationException e) {
+                    continue;
+                }
+            }
+            if (results[i] != null) {
+                results[i].close();
+            }
+        }
+    }
+
+    /**
+     * Compare two values the way SQLite orders them with the BINARY collation: NULL first,
+     * then numbers, then text by code point, then blobs.
+     */
+    static int compareValues(Object a, Object b) {
+        int rankA = typeRank(a);
+        int rankB = typeRank(b);
+        if (rankA != rankB) {
+            return rankA < rankB ? -1 : 1;
+        }
+        if (a instanceof Long && b instanceof Long) {
+            long x = (Long) a;
+            long y = (Long) b;
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+        if (a instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof String) {
+            return compareCodePoints((String) a, (String) b);
+        }
+        if (a instanceof byte[]) {
+            byte[] x = (byte[]) a;
+            byte[] y = (byte[]) b;
+            for (int i = 0; i < Math.min(x.length, y.length); i++) {
+                int order = (x[i] & 0xff) - (y[i] & 0xff);
+                if (order != 0) {
+                    return order;
+                }
+            }
+            return x.length - y.length;
+        }
+        return 0;
+    }
+
+    private static int typeRank(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return 1;
+        } else if (value instanceof String) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * UTF-8 byte order, which is what SQLite compares, is code point order rather than the
+     * UTF-16 order of {@link String#compareTo}
+     */
+    private static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int x = a.codePointAt(i);
+            int y = b.codePointAt(j);
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        return (a.length() - i) - (b.length() - j);
+    }
+
+    private static List<SortKey> parseSortOrder(String sortOrder) {
+        List<SortKey> keys = new ArrayList<>();
+        for (String term : sortOrder.split(",")) {
+            String[] words = term.trim().split("\\s+");
+            boolean descending = words.length == 2 && words[1].equalsIgnoreCase("DESC");
+            if (words.length > 2 || !SORT_COLUMN.matcher(words[0]).matches()
+                    || (words.length == 2 && !descending && !words[1].equalsIgnoreCase("ASC"))) {
+                throw new IllegalArgumentException("Cannot merge sort order " + sortOrder
+                        + " across shelters");
+            }
+            keys.add(new SortKey(words[0], descending));
+        }
+        return keys;
+    }
+
+    private static String[] withSortColumns(String[] projection, List<SortKey> sortKeys) {
+        if (projection == null) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>(Arrays.asList(projection));
+        for (SortKey key : sortKeys) {
+            if (!columns.contains(key.column)) {
+                columns.add(key.column);
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * Narrow the selection to the IDs, with the IN list padded like {@link PetQuery} pads it
+     */
+    private static String restrictToIds(String selection, long[] ids) {
+        if (ids == null) {
+            return selection;
+        }
+        StringBuilder restricted = new StringBuilder(PetEntry._ID).append(" IN (");
+        for (int i = 0; i < PetQuery.paddedSize(ids.length); i++) {
+            restricted.append(i == 0 ? "?" : ",?");
+        }
+        restricted.append(')');
+        if (selection != null && !selection.isEmpty()) {
+            restricted.append(" AND (").append(selection).append(')');
+        }
+        return restricted.toString();
+    }
+
+    /**
+     * The arguments for {@link #restrictToIds}: the padded IDs, then the caller's own
+     */
+    private static String[] restrictToIdsArgs(String[] selectionArgs, long[] ids) {
+        if (ids == null) {
+            return selectionArgs;
+        }
+        int padded = PetQuery.paddedSize(ids.length);
+        int extra = selectionArgs != null ? selectionArgs.length : 0;
+        String[] args = new String[padded + extra];
+        for (int i = 0; i < padded; i++) {
+            args[i] = String.valueOf(ids[Math.min(i, ids.length - 1)]);
+        }
+        if (extra > 0) {
+            System.arraycopy(selectionArgs, 0, args, padded, extra);
+        }
+        return args;
+    }
+
+    /**
+     * One shelter: its database and the breed dictionary for that database's breeds table
+     */
+    static final class Shard {
+        final int shelter;
+        final PetDbHelper helper;
+        final PetBreedDictionary breeds = new PetBreedDictionary();
+
+        Shard(int shelter, PetDbHelper helper) {
+            this.shelter = shelter;
+            this.helper = helper;
+        }
+
+        long globalId(long localId) {
+            return PetShards.globalId(shelter, localId);
+        }
+
+        /**
+         * Run the query and count its rows, which fills the first window, so the work is done
+         * on the calling thread rather than by whoever reads the cursor first
+         */
+        private Cursor query(String view, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder) {
+            PetTrace.beginSection("PetShards.query");
+            try {
+                Cursor cursor = helper.getReadableDatabase().query(view, projection,
+                        selection, selectionArgs, null, null, sortOrder);
+                cursor.getCount();
+                return cursor;
+            } finally {
+                PetTrace.endSection();
+            }
+        }
+    }
+
+    /**
+     * k-way merge of the per-shelter cursors, each already sorted by SQLite. Equal rows keep
+     * shelter order. Rows stay in the shelters' cursor windows; the merge only remembers which
+     * shelter and row each position came from, and merges no further than it was asked to move.
+     */
+    private static final class SortedMergeCursor extends AbstractCursor {
+        private final Cursor[] mSources;
+        private final int[] mShelters;
+        private final String[] mColumnNames;
+        /** The _id column, whose values are turned into global IDs, or -1 */
+        private final int mIdColumn;
+        private final int[] mSortColumns;
+        private final boolean[] mDescending;
+        private final int mCount;
+
+        /** The sort values of each source's next unmerged row */
+        private final Object[][] mHeadKeys;
+        /** Index of each source's next unmerged row */
+        private final int[] mNextRows;
+        /** Sources with rows left to merge, by their next row */
+        private final PriorityQueue<Integer> mHeads;
+
+        /** Source and row of each merged position */
+        private int[] mMergedSources = new int[64];
+        private int[] mMergedRows = new int[64];
+        private int mMerged;
+
+        /** The source of the current position */
+        private int mCurrent = -1;
+
+        SortedMergeCursor(Cursor[] sources, List<Shard> shards, List<SortKey> sortKeys,
+                          int outputColumns) {
+            mSources = sources;
+            mShelters = new int[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                mShelters[i] = shards.get(i).shelter;
+            }
+            String[] sourceColumns = sources.length == 0 ? new String[0]
+                    : sources[0].getColumnNames();
+            mColumnNames = outputColumns >= 0
+                    ? Arrays.copyOf(sourceColumns, outputColumns) : sourceColumns;
+            mIdColumn = Arrays.asList(sourceColumns).indexOf(PetEntry._ID);
+
+            mSortColumns = new int[sortKeys.size()];
+            mDescending = new boolean[sortKeys.size()];
+            if (sources.length > 0) {
+                List<String> columns = Arrays.asList(sourceColumns);
+                for (int i = 0; i < mSortColumns.length; i++) {
+                    mSortColumns[i] = columns.indexOf(sortKeys.get(i).column);
+                    if (mSortColumns[i] < 0) {
+                        throw new IllegalArgumentException("No column "
+                                + sortKeys.get(i).column + " to sort by");
+                    }
+                    mDescending[i] = sortKeys.get(i).descending;
+                }
+            }
+
+            int count = 0;
+            mHeadKeys = new Object[sources.length][];
+            mNextRows = new int[sources.length];
+            mHeads = new PriorityQueue<>(Math.max(1, sources.length), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    Object[] keysA = mHeadKeys[a];
+                    Object[] keysB = mHeadKeys[b];
+                    for (int i = 0; i < keysA.length; i++) {
+                        int order = compareValues(keysA[i], keysB[i]);
+                        if (order != 0) {
+                            return mDescending[i] ? -order : order;
+                        }
+                    }
+                    return a - b;
+                }
+            });
+            for (int i = 0; i < sources.length; i++) {
+                count += sources[i].getCount();
+                advanceHead(i);
+            }
+            mCount = count;
+        }
+
+        /**
+         * Read the sort values of the source's next unmerged row and queue the source, unless
+         * it has none left
+         */
+        private void advanceHead(int source) {
+            Cursor cursor = mSources[source];
+            if (!cursor.moveToPosition(mNextRows[source])) {
+                return;
+            }
+            Object[] keys = new Object[mSortColumns.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = PetQueryCache.readValue(cursor, mSortColumns[i]);
+                if (mSortColumns[i] == mIdColumn && keys[i] instanceof Long) {
+                    keys[i] = PetShards.globalId(mShelters[source], (Long) keys[i]);
+                }
+            }
+            mHeadKeys[source] = keys;
+            mHeads.add(source);
+        }
+
+        private void mergeThrough(int position) {
+            while (mMerged <= position && !mHeads.isEmpty()) {
+                int source = mHeads.poll();
+                if (mMerged == mMergedSources.length) {
+                    mMergedSources = Arrays.copyOf(mMergedSources, mMerged * 2);
+                    mMergedRows = Arrays.copyOf(mMergedRows, mMerged * 2);
+                }
+                mMergedSources[mMerged] = source;
+                mMergedRows[mMerged] = mNextRows[source]++;
+                mMerged++;
+                advanceHead(source);
+            }
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            mergeThrough(newPosition);
+            if (newPosition >= mMerged) {
+                return false;
+            }
+            mCurrent = mMergedSources[newPosition];
+            return mSources[mCurrent].moveToPosition(mMergedRows[newPosition]);
+        }
+
+        private Cursor current() {
+            checkPosition();
+            return mSources[mCurrent];
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            if (column == mIdColumn && !isNull(column)) {
+                return String.valueOf(getLong(column));
+            }
+            return current().getString(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            long value = current().getLong(column);
+            return column == mIdColumn ? PetShards.globalId(mShelters[mCurrent], value) : value;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return current().getFloat(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return column == mIdColumn ? getLong(column) : current().getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return current().getBlob(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            return current().getType(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return current().isNull(column);
+        }
+
+        @Override
+        public void deactivate() {
+            super.deactivate();
+            for (Cursor source : mSources) {
+                source.deactivate();
+            }
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            for (Cursor source : mSources) {
+                source.close();
+            }
+        }
+    }
+
+    private static final class SortKey {
+        final String column;
+        final boolean descending;
+
+        SortKey(String column, boolean descending) {
+            this.column = column;
+            this.descending = descending;
+        }
+    }
+}
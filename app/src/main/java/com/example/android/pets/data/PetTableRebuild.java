@@ -0,0 +1,103 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * {@link PetTableRebuild} changes a table's schema in ways ALTER TABLE can't (dropping or
+ * retyping columns, adding constraints) without taking the table offline.
+ *
+ * The new table is created next to the old one, and triggers mirror every write made to the
+ * old table while the copy is running. Rows are then copied over in chunks, in rowid order.
+ * When the last chunk is done, the old table is dropped and the new one renamed into its place
+ * in one short transaction.
+ */
+class PetTableRebuild extends PetMigration {
+
+    private final String mTable;
+    private final String mNewTable;
+    private final String mCreateNewTable;
+    private final String mColumns;
+    private final String mSelectExpressions;
+    private final String[] mCreateIndexes;
+
+    /**
+     * @param version the schema version this step upgrades to
+     * @param table the table to rebuild
+     * @param createNewTable CREATE TABLE statement for the new schema. It must use the table
+     *                       name returned by {@link #rebuildTableName}.
+     * @param columns comma separated columns of the new table to fill, leaving out its
+     *                INTEGER PRIMARY KEY; every row keeps its old rowid
+     * @param selectExpressions comma separated expressions over the old table, one per column
+     * @param createIndexes CREATE INDEX statements to run once the new table is in place
+     */
+    PetTableRebuild(int version, String table, String createNewTable, String columns,
+                    String selectExpressions, String... createIndexes) {
+        super(version);
+        mTable = table;
+        mNewTable = rebuildTableName(table);
+        mCreateNewTable = createNewTable;
+        mColumns = columns;
+        mSelectExpressions = selectExpressions;
+        mCreateIndexes = createIndexes;
+    }
+
+    /**
+     * Name of the table that holds the new schema while the given table is being rebuilt
+     */
+    static String rebuildTableName(String table) {
+        return table + "_rebuild";
+    }
+
+    @Override
+    void onUpgrade(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + mNewTable);
+        db.execSQL(mCreateNewTable);
+
+        // Copying the row by rowid reuses the select expressions, so the triggers can't drift
+        // from the chunked copy.
+        String copyRow = "INSERT OR REPLACE INTO " + mNewTable + " (rowid, " + mColumns + ")" +
+                " SELECT rowid, " + mSelectExpressions + " FROM " + mTable;
+        db.execSQL("CREATE TRIGGER " + triggerName("insert") + " AFTER INSERT ON " + mTable +
+                " BEGIN " + copyRow + " WHERE rowid = NEW.rowid; END");
+        db.execSQL("CREATE TRIGGER " + triggerName("update") + " AFTER UPDATE ON " + mTable +
+                " BEGIN DELETE FROM " + mNewTable + " WHERE rowid = OLD.rowid; " +
+                copyRow + " WHERE rowid = NEW.rowid; END");
+        db.execSQL("CREATE TRIGGER " + triggerName("delete") + " AFTER DELETE ON " + mTable +
+                " BEGIN DELETE FROM " + mNewTable + " WHERE rowid = OLD.rowid; END");
+    }
+
+    @Override
+    boolean hasBackgroundWork() {
+        return true;
+    }
+
+    @Override
+    long runChunk(SQLiteDatabase db, long checkpoint, int chunkSize) {
+        long last = lastRowIdOfChunk(db, mTable, checkpoint, chunkSize);
+        if (last == DONE) {
+            return DONE;
+        }
+
+        db.execSQL("INSERT OR REPLACE INTO " + mNewTable + " (rowid, " + mColumns + ")" +
+                " SELECT rowid, " + mSelectExpressions + " FROM " + mTable +
+                " WHERE rowid > ? AND rowid <= ?",
+                new Object[] {checkpoint, last});
+        return last;
+    }
+
+    @Override
+    void onComplete(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + triggerName("insert"));
+        db.execSQL("DROP TRIGGER IF EXISTS " + triggerName("update"));
+        db.execSQL("DROP TRIGGER IF EXISTS " + triggerName("delete"));
+        db.execSQL("DROP TABLE " + mTable);
+        db.execSQL("ALTER TABLE " + mNewTable + " RENAME TO " + mTable);
+        for (String createIndex : mCreateIndexes) {
+            db.execSQL(createIndex);
+        }
+    }
+
+    private String triggerName(String operation) {
+        return mNewTable + "_" + operation;
+    }
+}
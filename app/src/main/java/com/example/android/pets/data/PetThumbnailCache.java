@@ -0,0 +1,377 @@
+package com.example.android.pets.data;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.R;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * {@link PetThumbnailCache} shows pet photos in the catalog rows without ever decoding on the
+ * main thread.
+ *
+ * {@link #bind} serves thumbnails from a least-recently-used cache bounded by bytes. On a miss
+ * the row shows a placeholder while a background thread decodes the photo, subsampled close to
+ * the thumbnail size, and center-crops it into a fixed-size bitmap. Because every thumbnail
+ * has the same size, bitmaps evicted from the cache are reused for the next thumbnail instead
+ * of allocating a new one, but only once no row shows them anymore.
+ *
+ * A row that is rebound before its photo was decoded cancels the decode, so a fling doesn't
+ * leave a queue of decodes behind for rows long gone.
+ */
+public class PetThumbnailCache {
+
+    /** Tag for any log messages */
+    private static final String LOG_TAG = PetThumbnailCache.class.getSimpleName();
+
+    /** Evicted bitmaps kept around for reuse */
+    private static final int MAX_REUSABLE = 8;
+
+    /** Fewest thumbnails the cache must hold, a few screens of rows */
+    private static final int MIN_ENTRIES = 64;
+
+    private static PetThumbnailCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final int mThumbnailSize;
+    private final LruCache<String, Bitmap> mCache;
+    private final ArrayDeque<Bitmap> mReusable = new ArrayDeque<>();
+    private final ThreadPoolExecutor mDecoder;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /** Decodes queued or running, by photo. Only touched on the main thread. */
+    private final Map<String, DecodeTask> mPending = new HashMap<>();
+
+    /**
+     * How many views show each thumbnail. Weak, so a view that goes away without being rebound
+     * doesn't pin its bitmap. Only touched on the main thread.
+     */
+    private final Map<Bitmap, Integer> mShown = new WeakHashMap<>();
+
+    /**
+     * Thumbnails evicted while a view still showed them, reused once the last view lets go.
+     * Only touched on the main thread.
+     */
+    private final Map<Bitmap, Boolean> mEvictedWhileShown = new WeakHashMap<>();
+
+    /**
+     * Get the process-wide cache
+     */
+    public static synchronized PetThumbnailCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetThumbnailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetThumbnailCache(Context context) {
+        mResolver = context.getContentResolver();
+        mThumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+
+        // A sixteenth of the app's heap, but always room for MIN_ENTRIES thumbnails
+        int memoryClassBytes = ((ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE)).getMemoryClass() * 1024 * 1024;
+        int maxBytes = Math.max(memoryClassBytes / 16, MIN_ENTRIES * bytesPerThumbnail());
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                // Puts only happen on the main thread, so this does too
+                if (!evicted) {
+                    return;
+                }
+                if (mShown.containsKey(oldValue)) {
+                    // Drawing over it now would show another pet's photo in a visible row
+                    mEvictedWhileShown.put(oldValue, Boolean.TRUE);
+                } else {
+                    recycle(oldValue);
+                }
+            }
+        };
+
+        mDecoder = (ThreadPoolExecutor) Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "PetThumbnails");
+            }
+        });
+    }
+
+    /**
+     * Show the pet's photo in the view, or the placeholder until it is decoded. Call from
+     * the main thread, e.g. in bindView.
+     *
+     * @param photo the pet's photo column, may be null
+     */
+    public void bind(ImageView view, long petId, String photo) {
+        Binding binding = (Binding) view.getTag(R.id.photo);
+        if (binding == null) {
+            binding = new Binding();
+            view.setTag(R.id.photo, binding);
+        }
+        if (binding.task != null && !binding.task.mPhoto.equals(photo)) {
+            // The row moved on before its photo was decoded
+            cancel(binding.task);
+        }
+        binding.task = null;
+
+        if (photo == null) {
+            show(view, binding, null);
+            return;
+        }
+        Bitmap thumbnail = mCache.get(photo);
+        if (thumbnail != null) {
+            show(view, binding, thumbnail);
+            return;
+        }
+        show(view, binding, null);
+        DecodeTask task = mPending.get(photo);
+        if (task == null) {
+            task = new DecodeTask(petId, photo);
+            mPending.put(photo, task);
+            mDecoder.execute(task);
+        }
+        task.target(view);
+        binding.task = task;
+    }
+
+    /**
+     * Show the thumbnail in the view, or the placeholder for null, and count which thumbnails
+     * are on screen
+     */
+    private void show(ImageView view, Binding binding, Bitmap thumbnail) {
+        if (binding.shown == thumbnail && thumbnail != null) {
+            return;
+        }
+        Bitmap previous = binding.shown;
+        binding.shown = thumbnail;
+        if (thumbnail != null) {
+            Integer count = mShown.get(thumbnail);
+            mShown.put(thumbnail, count == null ? 1 : count + 1);
+            view.setImageBitmap(thumbnail);
+        } else {
+            view.setImageResource(R.drawable.thumbnail_placeholder);
+        }
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    /**
+     * One view less shows the thumbnail. Once none does, an evicted thumbnail can be reused.
+     */
+    private void release(Bitmap thumbnail) {
+        Integer count = mShown.get(thumbnail);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mShown.put(thumbnail, count - 1);
+            return;
+        }
+        mShown.remove(thumbnail);
+        if (mEvictedWhileShown.remove(thumbnail) != null) {
+            recycle(thumbnail);
+        }
+    }
+
+    /**
+     * Drop a decode no row waits for anymore. A queued one never runs; a running one lands
+     * without being cached.
+     */
+    private void cancel(DecodeTask task) {
+        task.mCancelled = true;
+        if (mDecoder.remove(task)) {
+            mPending.remove(task.mPhoto);
+        }
+    }
+
+    private int bytesPerThumbnail() {
+        return mThumbnailSize * mThumbnailSize * 2;
+    }
+
+    private void recycle(Bitmap bitmap) {
+        synchronized (mReusable) {
+            if (mReusable.size() < MAX_REUSABLE) {
+                mReusable.push(bitmap);
+            }
+        }
+    }
+
+    /**
+     * A bitmap to draw a new thumbnail into: an evicted one if there is any, else a new one
+     */
+    private Bitmap obtainBitmap() {
+        synchronized (mReusable) {
+            Bitmap bitmap = mReusable.poll();
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(mThumbnailSize, mThumbnailSize, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * Decode the photo into a thumbnail. Runs on a decoder thread.
+     *
+     * @return the thumbnail, or null if the photo is missing or can't be decoded
+     */
+    private Bitmap decode(long petId, String photo) {
+        PetTrace.beginSection("PetThumbnailCache.decode");
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = mResolver.openFileDescriptor(PetContract.PetEntry.buildPhotoUri(petId),
+                    "r");
+            if (descriptor == null) {
+                return null;
+            }
+
+            // Read the size first, to subsample to no less than the thumbnail
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            int sampleSize = 1;
+            while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2)
+                    >= mThumbnailSize) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            Bitmap decoded = BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(),
+                    null, options);
+            if (decoded == null) {
+                return null;
+            }
+
+            // Center-crop into a thumbnail-sized bitmap
+            int side = Math.min(decoded.getWidth(), decoded.getHeight());
+            int left = (decoded.getWidth() - side) / 2;
+            int top = (decoded.getHeight() - side) / 2;
+            Bitmap thumbnail = obtainBitmap();
+            new Canvas(thumbnail).drawBitmap(decoded,
+                    new Rect(left, top, left + side, top + side),
+                    new Rect(0, 0, mThumbnailSize, mThumbnailSize), mPaint);
+            decoded.recycle();
+            return thumbnail;
+        } catch (FileNotFoundException e) {
+            // The photo was replaced or the pet deleted since the row was bound
+            return null;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to close photo " + photo, e);
+                }
+            }
+            PetTrace.endSection();
+        }
+    }
+
+    /**
+     * What the cache knows about one view, kept in its tag
+     */
+    private static class Binding {
+        /** The thumbnail the view shows, or null for the placeholder */
+        Bitmap shown;
+        /** The decode the view waits for, if any */
+        DecodeTask task;
+    }
+
+    private class DecodeTask implements Runnable {
+        private final long mPetId;
+        private final String mPhoto;
+        /** The view waiting for the photo. Only touched on the main thread. */
+        private WeakReference<ImageView> mView;
+        /** Set once no view waits for the photo anymore */
+        private volatile boolean mCancelled = false;
+
+        DecodeTask(long petId, String photo) {
+            mPetId = petId;
+            mPhoto = photo;
+        }
+
+        /**
+         * Hand the thumbnail to this view when it lands, even if the decode had been cancelled
+         */
+        void target(ImageView view) {
+            mView = new WeakReference<>(view);
+            mCancelled = false;
+        }
+
+        @Override
+        public void run() {
+            final boolean skipped = mCancelled;
+            final Bitmap thumbnail = skipped ? null : decode(mPetId, mPhoto);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (skipped && !mCancelled) {
+                        // A row was bound to the photo again after the decode was skipped
+                        mDecoder.execute(DecodeTask.this);
+                        return;
+                    }
+                    mPending.remove(mPhoto);
+                    if (thumbnail == null) {
+                        return;
+                    }
+                    if (mCancelled) {
+                        // No row wants it, and caching it could only evict rows that do
+                        recycle(thumbnail);
+                        return;
+                    }
+                    mCache.put(mPhoto, thumbnail);
+                    // The row may show a different pet by now
+                    ImageView view = mView.get();
+                    if (view == null) {
+                        return;
+                    }
+                    Binding binding = (Binding) view.getTag(R.id.photo);
+                    if (binding != null && binding.task == DecodeTask.this) {
+                        binding.task = null;
+                        show(view, binding, thumbnail);
+                    }
+                }
+            });
+        }
+    }
+}
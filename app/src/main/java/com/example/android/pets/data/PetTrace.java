@@ -0,0 +1,195 @@
+package com.example.android.pets.data;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.JsonWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link PetTrace} marks named sections of the catalog and editor pipelines.
+ *
+ * Every section goes to {@link Trace} on API 18 and up, so it shows up in systrace. While
+ * recording is on, sections are also kept in memory, where tests can read them back with
+ * {@link #getEvents} and {@link #exportChromeTrace} writes them as a timeline that
+ * chrome://tracing (or any viewer for the Chrome trace format) can open.
+ *
+ * Sections nest per thread, so every {@link #beginSection} must be matched by an
+ * {@link #endSection} on the same thread, normally in a finally block.
+ */
+public final class PetTrace {
+
+    /** Recording stops adding events once it holds this many */
+    public static final int MAX_EVENTS = 20000;
+
+    private static volatile boolean sRecording;
+
+    /** Guarded by itself */
+    private static final List<Event> sEvents = new ArrayList<>();
+
+    /** Sections this thread has begun but not ended yet */
+    private static final ThreadLocal<ArrayDeque<OpenSection>> sOpenSections =
+            new ThreadLocal<ArrayDeque<OpenSection>>() {
+                @Override
+                protected ArrayDeque<OpenSection> initialValue() {
+                    return new ArrayDeque<>();
+                }
+            };
+
+    // This class only has static methods
+    private PetTrace() {}
+
+    /**
+     * Begin a section on the calling thread
+     */
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+        // Always push, so an end that comes after recording was switched on still pairs up
+        sOpenSections.get().push(new OpenSection(name, sRecording ? System.nanoTime() : -1));
+    }
+
+    /**
+     * End the section most recently begun on the calling thread
+     */
+    public static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        OpenSection section = sOpenSections.get().poll();
+        if (section == null || section.mStartNanos < 0 || !sRecording) {
+            return;
+        }
+        Thread thread = Thread.currentThread();
+        Event event = new Event(section.mName, thread.getId(), thread.getName(),
+                section.mStartNanos, System.nanoTime() - section.mStartNanos);
+        synchronized (sEvents) {
+            if (sEvents.size() < MAX_EVENTS) {
+                sEvents.add(event);
+            }
+        }
+    }
+
+    /**
+     * Forget every recorded event and start recording new ones
+     */
+    public static void startRecording() {
+        synchronized (sEvents) {
+            sEvents.clear();
+        }
+        sRecording = true;
+    }
+
+    /**
+     * Stop recording. The events recorded so far are kept until the next
+     * {@link #startRecording}.
+     */
+    public static void stopRecording() {
+        sRecording = false;
+    }
+
+    public static boolean isRecording() {
+        return sRecording;
+    }
+
+    /**
+     * A copy of the recorded events, in the order the sections ended
+     */
+    public static List<Event> getEvents() {
+        synchronized (sEvents) {
+            return new ArrayList<>(sEvents);
+        }
+    }
+
+    /**
+     * Write the recorded events to the file in the Chrome trace event format: one complete
+     * ("X") event per section, plus the name of every thread that recorded one.
+     */
+    public static void exportChromeTrace(File file) throws IOException {
+        List<Event> events = getEvents();
+        Map<Long, String> threadNames = new HashMap<>();
+        long originNanos = Long.MAX_VALUE;
+        for (Event event : events) {
+            threadNames.put(event.threadId, event.threadName);
+            originNanos = Math.min(originNanos, event.startNanos);
+        }
+
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8"));
+        try {
+            writer.beginObject();
+            writer.name("displayTimeUnit").value("ms");
+            writer.name("traceEvents").beginArray();
+            for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+                writer.beginObject()
+                        .name("name").value("thread_name")
+                        .name("ph").value("M")
+                        .name("pid").value(0)
+                        .name("tid").value(thread.getKey())
+                        .name("args").beginObject().name("name").value(thread.getValue())
+                        .endObject()
+                        .endObject();
+            }
+            for (Event event : events) {
+                // Timestamps are in microseconds from the first recorded section
+                writer.beginObject()
+                        .name("name").value(event.name)
+                        .name("cat").value("pets")
+                        .name("ph").value("X")
+                        .name("ts").value((event.startNanos - originNanos) / 1000.0)
+                        .name("dur").value(event.durationNanos / 1000.0)
+                        .name("pid").value(0)
+                        .name("tid").value(event.threadId)
+                        .endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * One finished section
+     */
+    public static class Event {
+        public final String name;
+        public final long threadId;
+        public final String threadName;
+        public final long startNanos;
+        public final long durationNanos;
+
+        Event(String name, long threadId, String threadName, long startNanos,
+              long durationNanos) {
+            this.name = name;
+            this.threadId = threadId;
+            this.threadName = threadName;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + " on " + threadName + ": " + durationNanos / 1000 + " us";
+        }
+    }
+
+    private static class OpenSection {
+        final String mName;
+        final long mStartNanos;
+
+        OpenSection(String name, long startNanos) {
+            mName = name;
+            mStartNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link PetUpsert} creates or updates pets using statements that are compiled once and then
+ * re-bound for every row, so a batch of upserts only pays for SQL parsing a single time.
+ *
+ * The key is the external ID when one is given, otherwise the _id. A row that matches no
+ * key is inserted, unless a dedupe mode is set and a pet with the same fingerprint exists:
+ * then it is merged into that pet, or inserted with duplicate_of pointing at it. A row that
+ * carries a weight also appends it to the weight history. A key that only an archived pet
+ * has brings that pet back from the archive, and it is updated like any other. Updating an
+ * existing pet only changes the breed, weight and adopted status when the row has them, so
+ * a partial row doesn't reset them to their defaults. Callers are expected to run this inside
+ * a transaction so the update-then-insert pair can't race with another writer.
+ */
+class PetUpsert {
+
+    /**
+     * The columns written over an existing pet, bound by {@link #bindRow}. A NULL breed key,
+     * weight or adopted keeps what the pet has.
+     */
+    private static final String SQL_SET_ROW = " SET " +
+            PetEntry.COLUMN_NAME_NAME + "=?1, " +
+            PetEntry.COLUMN_NAME_BREED_ID + "=CASE WHEN ?2 IS NULL THEN " +
+            PetEntry.COLUMN_NAME_BREED_ID + " ELSE NULLIF(?2, 0) END, " +
+            PetEntry.COLUMN_NAME_BREED + "=CASE WHEN ?2 IS NULL THEN " +
+            PetEntry.COLUMN_NAME_BREED + " END, " +
+            PetEntry.COLUMN_NAME_GENDER + "=?3, " +
+            PetEntry.COLUMN_NAME_WEIGHT + "=COALESCE(?4, " + PetEntry.COLUMN_NAME_WEIGHT + "), " +
+            PetEntry.COLUMN_NAME_FINGERPRINT + "=?5, " +
+            PetEntry.COLUMN_NAME_LAST_MODIFIED + "=?6, " +
+            PetEntry.COLUMN_NAME_ADOPTED + "=COALESCE(?7, " + PetEntry.COLUMN_NAME_ADOPTED + ")";
+
+    private final SQLiteStatement mUpdateByExternalId;
+    private final SQLiteStatement mUpdateById;
+    private final SQLiteStatement mInsert;
+    private final SQLiteStatement mFindByExternalId;
+    private final SQLiteStatement mFindArchivedByExternalId;
+    private final SQLiteStatement mFindArchivedById;
+    private final SQLiteStatement mReserveId;
+    private final SQLiteStatement mFindByFingerprint;
+    private final SQLiteStatement mMerge;
+    private final SQLiteStatement mAppendWeight;
+    private final SQLiteStatement mRefreshFingerprint;
+    private final SQLiteDatabase mDatabase;
+    private final PetBreedDictionary mBreedDictionary;
+    private final int mDedupe;
+
+    /**
+     * @param dedupe one of the DEDUPE_ modes of {@link PetFingerprint}
+     */
+    PetUpsert(SQLiteDatabase database, PetBreedDictionary breedDictionary, int dedupe) {
+        mDatabase = database;
+        mBreedDictionary = breedDictionary;
+        mDedupe = dedupe;
+        mUpdateByExternalId = database.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                SQL_SET_ROW + " WHERE " + PetEntry.COLUMN_NAME_EXTERNAL_ID + "=?8");
+        mUpdateById = database.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                SQL_SET_ROW + " WHERE " + PetEntry._ID + "=?8");
+        mInsert = database.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_NAME_NAME + ", " +
+                PetEntry.COLUMN_NAME_BREED_ID + ", " +
+                PetEntry.COLUMN_NAME_GENDER + ", " +
+                PetEntry.COLUMN_NAME_WEIGHT + ", " +
+                PetEntry.COLUMN_NAME_FINGERPRINT + ", " +
+                PetEntry.COLUMN_NAME_LAST_MODIFIED + ", " +
+                PetEntry.COLUMN_NAME_ADOPTED + ", " +
+                PetEntry._ID + ", " +
+                PetEntry.COLUMN_NAME_EXTERNAL_ID + ", " +
+                PetEntry.COLUMN_NAME_DUPLICATE_OF +
+                ") VALUES (?, NULLIF(?, 0), ?, COALESCE(?, " + PetEntry.WEIGHT_DEFAULT + ")," +
+                " ?, ?, COALESCE(?, 0), ?, ?, ?)");
+        mFindByExternalId = database.compileStatement("SELECT " + PetEntry._ID +
+                " FROM " + PetEntry.TABLE_NAME +
+                " WHERE " + PetEntry.COLUMN_NAME_EXTERNAL_ID + "=?");
+        mFindArchivedByExternalId = database.compileStatement("SELECT " + PetEntry._ID +
+                " FROM " + PetArchive.SCHEMA + "." + PetEntry.TABLE_NAME +
+                " WHERE " + PetEntry.COLUMN_NAME_EXTERNAL_ID + "=?");
+        mFindArchivedById = database.compileStatement("SELECT " + PetEntry._ID +
+                " FROM " + PetArchive.SCHEMA + "." + PetEntry.TABLE_NAME +
+                " WHERE " + PetEntry._ID + "=?");
+        mReserveId = database.compileStatement(PetArchive.SQL_RESERVED_ID);
+        mFindByFingerprint = database.compileStatement(PetFingerprint.SQL_FIND);
+        // A merged pet keeps the external ID it already has
+        mMerge = database.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                SQL_SET_ROW + ", " +
+                PetEntry.COLUMN_NAME_EXTERNAL_ID + "=COALESCE(" +
+                PetEntry.COLUMN_NAME_EXTERNAL_ID + ", ?8)" +
+                " WHERE " + PetEntry._ID + "=?9");
+        mAppendWeight = database.compileStatement(PetWeightHistory.SQL_APPEND);
+        mRefreshFingerprint = database.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                " SET " + PetEntry.COLUMN_NAME_FINGERPRINT + "=? WHERE " + PetEntry._ID + "=?");
+    }
+
+    /**
+     * Create or update one pet. The values must already have passed the provider's
+     * sanity checks for a new pet.
+     *
+     * @return the _id of the row that was written, or -1 if nothing was written
+     */
+    long upsert(ContentValues values) {
+        long id = write(values);
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_NAME_WEIGHT);
+        if (id != -1 && weight != null) {
+            mAppendWeight.bindLong(1, id);
+            mAppendWeight.bindLong(2, System.currentTimeMillis());
+            mAppendWeight.bindLong(3, weight);
+            mAppendWeight.executeInsert();
+        }
+        return id;
+    }
+
+    private long write(ContentValues values) {
+        String externalId = values.getAsString(PetEntry.COLUMN_NAME_EXTERNAL_ID);
+        Long id = values.getAsLong(PetEntry._ID);
+
+        long fingerprint = PetFingerprint.of(values);
+        long now = System.currentTimeMillis();
+
+        long updated = update(values, externalId, id, fingerprint, now);
+        if (updated == -1 && restoreArchived(externalId, id, now)) {
+            updated = update(values, externalId, id, fingerprint, now);
+        }
+        if (updated != -1) {
+            refreshFingerprint(values, updated);
+            return updated;
+        }
+
+        // Nothing matched the key, so this is a new pet, unless it is one we already have
+        long duplicate = mDedupe == PetFingerprint.DEDUPE_OFF
+                ? -1 : PetFingerprint.findDuplicate(mFindByFingerprint, fingerprint);
+        if (duplicate != -1 && mDedupe == PetFingerprint.DEDUPE_MERGE) {
+            bindRow(mMerge, values, fingerprint, now);
+            if (externalId != null) {
+                mMerge.bindString(8, externalId);
+            } else {
+                mMerge.bindNull(8);
+            }
+            mMerge.bindLong(9, duplicate);
+            mMerge.executeUpdateDelete();
+            refreshFingerprint(values, duplicate);
+            return duplicate;
+        }
+
+        bindRow(mInsert, values, fingerprint, now);
+        if (id == null) {
+            // Zero unless SQLite would pick the _id of an archived pet
+            long reserved = mReserveId.simpleQueryForLong();
+            id = reserved != 0 ? reserved : null;
+        }
+        if (id != null) {
+            mInsert.bindLong(8, id);
+        } else {
+            mInsert.bindNull(8);
+        }
+        if (externalId != null) {
+            mInsert.bindString(9, externalId);
+        } else {
+            mInsert.bindNull(9);
+        }
+        if (duplicate != -1) {
+            mInsert.bindLong(10, duplicate);
+        } else {
+            mInsert.bindNull(10);
+        }
+        return mInsert.executeInsert();
+    }
+
+    /**
+     * Update the pet with the row's key, if there is one
+     *
+     * @return the _id of the pet that was updated, or -1 if no pet has the key
+     */
+    private long update(ContentValues values, String externalId, Long id, long fingerprint,
+                        long now) {
+        if (externalId != null) {
+            bindRow(mUpdateByExternalId, values, fingerprint, now);
+            mUpdateByExternalId.bindString(8, externalId);
+            if (mUpdateByExternalId.executeUpdateDelete() > 0) {
+                mFindByExternalId.bindString(1, externalId);
+                try {
+                    return mFindByExternalId.simpleQueryForLong();
+                } catch (SQLiteDoneException e) {
+                    return -1;
+                }
+            }
+        } else if (id != null) {
+            bindRow(mUpdateById, values, fingerprint, now);
+            mUpdateById.bindLong(8, id);
+            if (mUpdateById.executeUpdateDelete() > 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Recompute the fingerprint of a pet the row was written over if the row left out its
+     * breed or weight, since the one bound from the row assumed their defaults
+     */
+    private void refreshFingerprint(ContentValues values, long id) {
+        if (values.containsKey(PetEntry.COLUMN_NAME_BREED)
+                && values.getAsInteger(PetEntry.COLUMN_NAME_WEIGHT) != null) {
+            return;
+        }
+        PetFingerprint.refreshRows(mDatabase, mRefreshFingerprint, PetEntry._ID + " = ?",
+                new String[] {String.valueOf(id)});
+    }
+
+    /**
+     * Move the archived pet with the row's key back to the pets table
+     *
+     * @return whether there was one
+     */
+    private boolean restoreArchived(String externalId, Long id, long now) {
+        SQLiteStatement find;
+        if (externalId != null) {
+            find = mFindArchivedByExternalId;
+            find.bindString(1, externalId);
+        } else if (id != null) {
+            find = mFindArchivedById;
+            find.bindLong(1, id);
+        } else {
+            return false;
+        }
+        long archivedId;
+        try {
+            archivedId = find.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return false;
+        }
+        return PetArchive.restore(mDatabase, PetEntry._ID + " = ?",
+                new String[] {String.valueOf(archivedId)}, now) > 0;
+    }
+
+    /**
+     * Release the compiled statements
+     */
+    void close() {
+        mUpdateByExternalId.close();
+        mUpdateById.close();
+        mInsert.close();
+        mFindByExternalId.close();
+        mFindArchivedByExternalId.close();
+        mFindArchivedById.close();
+        mReserveId.close();
+        mFindByFingerprint.close();
+        mMerge.close();
+        mAppendWeight.close();
+        mRefreshFingerprint.close();
+    }
+
+    /**
+     * Bind name, breed key, gender, weight, fingerprint, the time of the write and adopted to
+     * the first seven parameters of the statement. Breed, weight and adopted are bound as NULL
+     * when the row doesn't have them, and a breed that is there but empty as key 0.
+     */
+    private void bindRow(SQLiteStatement statement, ContentValues values, long fingerprint,
+                         long now) {
+        statement.clearBindings();
+        statement.bindString(1, values.getAsString(PetEntry.COLUMN_NAME_NAME));
+        if (values.containsKey(PetEntry.COLUMN_NAME_BREED)) {
+            Long breedId = mBreedDictionary.idFor(mDatabase,
+                    values.getAsString(PetEntry.COLUMN_NAME_BREED));
+            statement.bindLong(2, breedId != null ? breedId : 0);
+        } else {
+            statement.bindNull(2);
+        }
+        statement.bindLong(3, values.getAsInteger(PetEntry.COLUMN_NAME_GENDER));
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_NAME_WEIGHT);
+        if (weight != null) {
+            statement.bindLong(4, weight);
+        } else {
+            statement.bindNull(4);
+        }
+        statement.bindLong(5, fingerprint);
+        statement.bindLong(6, now);
+        Integer adopted = values.getAsInteger(PetEntry.COLUMN_NAME_ADOPTED);
+        if (adopted != null) {
+            statement.bindLong(7, adopted);
+        } else {
+            statement.bindNull(7);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.WeightEntry;
+
+/**
+ * {@link PetWeightHistory} keeps the weight measurements of every pet and the daily and weekly
+ * rollups that trend queries are served from.
+ *
+ * Measurements are appended to weight_history in the transaction that writes the pet's
+ * weight. A background pass ({@link #rollUp}) later folds them into weight_rollups: count,
+ * sum, minimum and maximum per pet, resolution and bucket. It walks weight_history by _id
+ * from the checkpoint in weight_rollup_state, one chunk per transaction with the checkpoint
+ * saved alongside, so every measurement is counted exactly once. Queries add the few
+ * measurements past the checkpoint on the fly, so a lagging rollup never changes a result.
+ */
+final class PetWeightHistory {
+
+    /** Aggregates per pet, resolution and bucket */
+    static final String ROLLUPS_TABLE = "weight_rollups";
+    static final String COLUMN_TOTAL_WEIGHT = "total_weight";
+
+    /** Single row holding the last weight_history _id folded into the rollups */
+    static final String STATE_TABLE = "weight_rollup_state";
+    static final String COLUMN_LAST_HISTORY_ID = "last_history_id";
+
+    /** Rollup resolutions, coarsest first */
+    private static final long[] ROLLUP_RESOLUTIONS = {
+            WeightEntry.RESOLUTION_WEEK, WeightEntry.RESOLUTION_DAY};
+
+    /** Measurements folded into the rollups per transaction by default */
+    static final int DEFAULT_CHUNK_SIZE = 2000;
+
+    /** Appends one measurement: pet _id, time and weight */
+    static final String SQL_APPEND = "INSERT INTO " + WeightEntry.TABLE_NAME + " (" +
+            WeightEntry.COLUMN_NAME_PET_ID + ", " +
+            WeightEntry.COLUMN_NAME_MEASURED_AT + ", " +
+            WeightEntry.COLUMN_NAME_WEIGHT + ") VALUES (?, ?, ?)";
+
+    private static final String SQL_CREATE_ROLLUPS_TABLE = "CREATE TABLE " + ROLLUPS_TABLE +
+            " (" +
+            "_id INTEGER PRIMARY KEY," +
+            WeightEntry.COLUMN_NAME_PET_ID + " INTEGER NOT NULL," +
+            WeightEntry.COLUMN_NAME_RESOLUTION + " INTEGER NOT NULL," +
+            WeightEntry.COLUMN_NAME_BUCKET_START + " INTEGER NOT NULL," +
+            WeightEntry.COLUMN_NAME_MEASUREMENT_COUNT + " INTEGER NOT NULL," +
+            COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL," +
+            WeightEntry.COLUMN_NAME_MIN_WEIGHT + " INTEGER NOT NULL," +
+            WeightEntry.COLUMN_NAME_MAX_WEIGHT + " INTEGER NOT NULL," +
+            "UNIQUE (" + WeightEntry.COLUMN_NAME_PET_ID + ", " +
+            WeightEntry.COLUMN_NAME_RESOLUTION + ", " +
+            WeightEntry.COLUMN_NAME_BUCKET_START + "))";
+
+    private static final String SQL_CREATE_STATE_TABLE = "CREATE TABLE " + STATE_TABLE + " (" +
+            "_id INTEGER PRIMARY KEY," +
+            COLUMN_LAST_HISTORY_ID + " INTEGER NOT NULL)";
+
+    private final SQLiteStatement mAppend;
+
+    // This class is only instantiated to append many measurements through one statement
+    PetWeightHistory(SQLiteDatabase db) {
+        mAppend = db.compileStatement(SQL_APPEND);
+    }
+
+    /**
+     * Append one measurement. Call inside the transaction that wrote the weight.
+     */
+    void append(long petId, long measuredAt, long weight) {
+        mAppend.bindLong(1, petId);
+        mAppend.bindLong(2, measuredAt);
+        mAppend.bindLong(3, weight);
+        mAppend.executeInsert();
+    }
+
+    /**
+     * Release the compiled statement
+     */
+    void close() {
+        mAppend.close();
+    }
+
+    /**
+     * Create the history and rollup tables in a database that has none
+     */
+    static void createSchema(SQLiteDatabase db) {
+        db.execSQL(WeightEntry.SQL_CREATE_WEIGHT_HISTORY_TABLE);
+        db.execSQL(WeightEntry.SQL_CREATE_PET_MEASURED_AT_INDEX);
+        db.execSQL(SQL_CREATE_ROLLUPS_TABLE);
+        db.execSQL(SQL_CREATE_STATE_TABLE);
+        db.execSQL("INSERT INTO " + STATE_TABLE + " (_id, " + COLUMN_LAST_HISTORY_ID +
+                ") VALUES (0, 0)");
+    }
+
+    /**
+     * Make sure no measurement appended from now on gets an _id at or below the checkpoint.
+     * AUTOINCREMENT guarantees that within one database, but a restored snapshot holds the
+     * checkpoint of the moment it was taken and only the measurements that still existed
+     * then, so it may have to be pushed forward. Call whenever the database is opened.
+     */
+    static void keepIdsAhead(SQLiteDatabase db) {
+        String checkpoint = "(SELECT " + COLUMN_LAST_HISTORY_ID + " FROM " + STATE_TABLE + ")";
+        db.execSQL("UPDATE sqlite_sequence SET seq = " + checkpoint +
+                " WHERE name = ? AND seq < " + checkpoint, new Object[] {WeightEntry.TABLE_NAME});
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT ?, " + checkpoint +
+                " WHERE NOT EXISTS (SELECT 1 FROM sqlite_sequence WHERE name = ?)",
+                new Object[] {WeightEntry.TABLE_NAME, WeightEntry.TABLE_NAME});
+    }
+
+    /**
+     * Record the current weight of each of the pets as a measurement taken now. Call inside
+     * the transaction that changed them.
+     */
+    static void appendCurrent(SQLiteDatabase db, long[] ids, long measuredAt) {
+        SQLiteStatement append = db.compileStatement("INSERT INTO " + WeightEntry.TABLE_NAME +
+                " (" + WeightEntry.COLUMN_NAME_PET_ID + ", " +
+                WeightEntry.COLUMN_NAME_MEASURED_AT + ", " +
+                WeightEntry.COLUMN_NAME_WEIGHT + ")" +
+                " SELECT " + PetEntry._ID + ", ?, " + PetEntry.COLUMN_NAME_WEIGHT +
+                " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = ?");
+        try {
+            append.bindLong(1, measuredAt);
+            for (long id : ids) {
+                append.bindLong(2, id);
+                append.executeInsert();
+            }
+        } finally {
+            append.close();
+        }
+    }
+
+    /**
+     * Delete the measurements and rollups of pets that are being deleted. Call inside the
+     * transaction that deletes them.
+     */
+    static void deletePets(SQLiteDatabase db, long[] ids) {
+        SQLiteStatement history = db.compileStatement("DELETE FROM " + WeightEntry.TABLE_NAME +
+                " WHERE " + WeightEntry.COLUMN_NAME_PET_ID + " = ?");
+        SQLiteStatement rollups = db.compileStatement("DELETE FROM " + ROLLUPS_TABLE +
+                " WHERE " + WeightEntry.COLUMN_NAME_PET_ID + " = ?");
+        try {
+            for (long id : ids) {
+                history.bindLong(1, id);
+                history.executeUpdateDelete();
+                rollups.bindLong(1, id);
+                rollups.executeUpdateDelete();
+            }
+        } finally {
+            history.close();
+            rollups.close();
+        }
+    }
+
+    /**
+     * Fold every measurement past the checkpoint into the rollups, chunkSize measurements per
+     * transaction. Blocks until done, so call it from a background thread.
+     *
+     * @param scheduler each chunk is run as one of the calling operation's chunks
+     * @return the number of measurements folded in
+     */
+    static int rollUp(SQLiteDatabase db, int chunkSize, PetScheduler scheduler) {
+        int rolledUp = 0;
+        while (true) {
+            scheduler.beginChunk();
+            db.beginTransaction();
+            try {
+                long checkpoint = lastRolledUpId(db);
+                long last = PetMigration.lastRowIdOfChunk(db, WeightEntry.TABLE_NAME, checkpoint,
+                        chunkSize);
+                if (last == PetMigration.DONE) {
+                    db.setTransactionSuccessful();
+                    return rolledUp;
+                }
+                rolledUp += rollUpChunk(db, checkpoint, last);
+                db.execSQL("UPDATE " + STATE_TABLE + " SET " + COLUMN_LAST_HISTORY_ID + " = ?",
+                        new Object[] {last});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                scheduler.endChunk();
+            }
+        }
+    }
+
+    /**
+     * Add the measurements with _id in (checkpoint, last] to every rollup
+     *
+     * @return the number of measurements in the range
+     */
+    private static int rollUpChunk(SQLiteDatabase db, long checkpoint, long last) {
+        SQLiteStatement create = db.compileStatement("INSERT OR IGNORE INTO " + ROLLUPS_TABLE +
+                " (" + WeightEntry.COLUMN_NAME_PET_ID + ", " +
+                WeightEntry.COLUMN_NAME_RESOLUTION + ", " +
+                WeightEntry.COLUMN_NAME_BUCKET_START + ", " +
+                WeightEntry.COLUMN_NAME_MEASUREMENT_COUNT + ", " +
+                COLUMN_TOTAL_WEIGHT + ", " +
+                WeightEntry.COLUMN_NAME_MIN_WEIGHT + ", " +
+                WeightEntry.COLUMN_NAME_MAX_WEIGHT + ") VALUES (?, ?, ?, 0, 0, ?, ?)");
+        SQLiteStatement add = db.compileStatement("UPDATE " + ROLLUPS_TABLE + " SET " +
+                WeightEntry.COLUMN_NAME_MEASUREMENT_COUNT + " = " +
+                WeightEntry.COLUMN_NAME_MEASUREMENT_COUNT + " + ?, " +
+                COLUMN_TOTAL_WEIGHT + " = " + COLUMN_TOTAL_WEIGHT + " + ?, " +
+                WeightEntry.COLUMN_NAME_MIN_WEIGHT + " = MIN(" +
+                WeightEntry.COLUMN_NAME_MIN_WEIGHT + ", ?), " +
+                WeightEntry.COLUMN_NAME_MAX_WEIGHT + " = MAX(" +
+                WeightEntry.COLUMN_NAME_MAX_WEIGHT + ", ?)" +
+                " WHERE " + WeightEntry.COLUMN_NAME_PET_ID + " = ? AND " +
+                WeightEntry.COLUMN_NAME_RESOLUTION + " = ? AND " +
+                WeightEntry.COLUMN_NAME_BUCKET_START + " = ?");
+        int measurements = 0;
+        try {
+            for (long resolution : ROLLUP_RESOLUTIONS) {
+                String size = String.valueOf(resolution);
+                Cursor cursor = db.rawQuery("SELECT " + WeightEntry.COLUMN_NAME_PET_ID +
+                        ", (" + WeightEntry.COLUMN_NAME_MEASURED_AT + " / ?) * ? AS bucket" +
+                        ", COUNT(*), SUM(" + WeightEntry.COLUMN_NAME_WEIGHT + ")" +
+                        ", MIN(" + WeightEntry.COLUMN_NAME_WEIGHT + ")" +
+                        ", MAX(" + WeightEntry.COLUMN_NAME_WEIGHT + ")" +
+                        " FROM " + WeightEntry.TABLE_NAME +
+                        " WHERE " + WeightEntry._ID + " > ? AND " + WeightEntry._ID + " <= ?" +
+                        " GROUP BY " + WeightEntry.COLUMN_NAME_PET_ID + ", bucket",
+                        new String[] {size, size, String.valueOf(checkpoint),
+                                String.valueOf(last)});
+                // Every resolution sees the same measurements; count them once
+                measurements = 0;
+                try {
+                    while (cursor.moveToNext()) {
+                        long petId = cursor.getLong(0);
+                        long bucket = cursor.getLong(1);
+                        long min = cursor.getLong(4);
+                        long max = cursor.getLong(5);
+                        measurements += cursor.getInt(2);
+
+                        create.bindLong(1, petId);
+                        create.bindLong(2, resolution);
+                        create.bindLong(3, bucket);
+                        create.bindLong(4, min);
+                        create.bindLong(5, max);
+                        create.executeInsert();
+
+                        add.bindLong(1, cursor.getLong(2));
+                        add.bindLong(2, cursor.getLong(3));
+                        add.bindLong(3, min);
+                        add.bindLong(4, max);
+                        add.bindLong(5, petId);
+                        add.bindLong(6, resolution);
+                        add.bindLong(7, bucket);
+                        add.executeUpdateDelete();
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            create.close();
+            add.close();
+        }
+        return measurements;
+    }
+
+    private static long lastRolledUpId(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_LAST_HISTORY_ID + " FROM " + STATE_TABLE,
+                null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The coarsest resolution with at least the given number of buckets over the range, or
+     * {@link WeightEntry#RESOLUTION_RAW} if even days are too coarse
+     */
+    static long chooseResolution(long from, long to, int points) {
+        for (long resolution : ROLLUP_RESOLUTIONS) {
+            if ((to - from) / resolution + 1 >= points) {
+                return resolution;
+            }
+        }
+        return WeightEntry.RESOLUTION_RAW;
+    }
+
+    /**
+     * Query a pet's weight trend over a range, with the columns of a {@link WeightEntry}
+     * query.
+     *
+     * @param from the start of the range, or null for the pet's first measurement
+     * @param to   the end of the range, or null for the pet's last measurement
+     */
+    static Cursor query(SQLiteDatabase db, long petId, Long from, Long to, int points) {
+        String pet = String.valueOf(petId);
+        if (from == null || to == null) {
+            // Both are single seeks into the (pet_id, measured_at) index
+            Cursor bounds = db.rawQuery("SELECT" +
+                    " (SELECT MIN(" + WeightEntry.COLUMN_NAME_MEASURED_AT + ") FROM " +
+                    WeightEntry.TABLE_NAME + " WHERE " + WeightEntry.COLUMN_NAME_PET_ID + " = ?)," +
+                    " (SELECT MAX(" + WeightEntry.COLUMN_NAME_MEASURED_AT + ") FROM " +
+                    WeightEntry.TABLE_NAME + " WHERE " + WeightEntry.COLUMN_NAME_PET_ID + " = ?)",
+                    new String[] {pet, pet});
+            try {
+                bounds.moveToFirst();
+                if (from == null) {
+                    from = bounds.isNull(0) ? 0 : bounds.getLong(0);
+                }
+                if (to == null) {
+                    to = bounds.isNull(1) ? 0 : bounds.getLong(1);
+                }
+            } finally {
+                bounds.close();
+            }
+        }
+
+        long resolution = chooseResolution(from, to, points);
+        if (resolution == WeightEntry.RESOLUTION_RAW) {
+            return db.rawQuery("SELECT " +
+                    WeightEntry.COLUMN_NAME_MEASURED_AT + " AS " +
+                    WeightEntry.COLUMN_NAME_BUCKET_START + ", " +
+                    "0 AS " + WeightEntry.COLUMN_NAME_RESOLUTION + ", " +
+                    "1 AS " + WeightEntry.COLUMN_NAME_MEASUREMENT_COUNT + ", " +
+                    WeightEntry.COLUMN_NAME_WEIGHT + " AS " +
+                    WeightEntry.COLUMN_NAME_MEAN_WEIGHT + ", " +
+                    WeightEntry.COLUMN_NAME_WEIGHT + " AS " +
+                    WeightEntry.COLUMN_NAME_MIN_WEIGHT + ", " +
+                    WeightEntry.COLUMN_NAME_WEIGHT + " AS " +
+                    WeightEntry.COLUMN_NAME_MAX_WEIGHT +
+                    " FROM " + WeightEntry.TABLE_NAME +
+                    " WHERE " + WeightEntry.COLUMN_NAME_PET_ID + " = ? AND " +
+                    WeightEntry.COLUMN_NAME_MEASURED_AT + " BETWEEN ? AND ?" +
+                    " ORDER BY " + WeightEntry.COLUMN_NAME_MEASURED_AT,
+                    new String[] {pet, String.valueOf(from), String.valueOf(to)});
+        }
+
+        // Whole buckets: the ones that start in the range or contain its start. Measurements
+        // are never before the epoch.
+        from = Math.max(from, 0);
+        long firstBucket = from - from % resolution;
+        long lastBucket = Math.max(to, 0) - Math.max(to, 0) % resolution;
+        String size = String.valueOf(resolution);
+        // The measurements past the checkpoint come from the end of the history table by _id;
+        // the unary + keeps SQLite from reading this pet's whole history through the index
+        // instead
+        return db.rawQuery("SELECT " +
+                WeightEntry.COLUMN_NAME_BUCKET_START + ", " +
+                resolution + " AS " + WeightEntry.COLUMN_NAME_RESOLUTION + ", " +
+                "SUM(n) AS " + WeightEntry.COLUMN_NAME_MEASUREMENT_COUNT + ", " +
+                "CAST(SUM(total) AS REAL) / SUM(n) AS " +
+                WeightEntry.COLUMN_NAME_MEAN_WEIGHT + ", " +
+                "MIN(lo) AS " + WeightEntry.COLUMN_NAME_MIN_WEIGHT + ", " +
+                "MAX(hi) AS " + WeightEntry.COLUMN_NAME_MAX_WEIGHT +
+                " FROM (" +
+                "SELECT " + WeightEntry.COLUMN_NAME_BUCKET_START + ", " +
+                WeightEntry.COLUMN_NAME_MEASUREMENT_COUNT + " AS n, " +
+                COLUMN_TOTAL_WEIGHT + " AS total, " +
+                WeightEntry.COLUMN_NAME_MIN_WEIGHT + " AS lo, " +
+                WeightEntry.COLUMN_NAME_MAX_WEIGHT + " AS hi" +
+                " FROM " + ROLLUPS_TABLE +
+                " WHERE " + WeightEntry.COLUMN_NAME_PET_ID + " = ? AND " +
+                WeightEntry.COLUMN_NAME_RESOLUTION + " = ? AND " +
+                WeightEntry.COLUMN_NAME_BUCKET_START + " BETWEEN ? AND ?" +
+                " UNION ALL " +
+                "SELECT (" + WeightEntry.COLUMN_NAME_MEASURED_AT + " / ?) * ?, 1, " +
+                WeightEntry.COLUMN_NAME_WEIGHT + ", " +
+                WeightEntry.COLUMN_NAME_WEIGHT + ", " +
+                WeightEntry.COLUMN_NAME_WEIGHT +
+                " FROM " + WeightEntry.TABLE_NAME +
+                " WHERE " + WeightEntry._ID + " > (SELECT " + COLUMN_LAST_HISTORY_ID +
+                " FROM " + STATE_TABLE + ") AND +" +
+                WeightEntry.COLUMN_NAME_PET_ID + " = ? AND +" +
+                WeightEntry.COLUMN_NAME_MEASURED_AT + " >= ? AND +" +
+                WeightEntry.COLUMN_NAME_MEASURED_AT + " < ?" +
+                ") GROUP BY " + WeightEntry.COLUMN_NAME_BUCKET_START +
+                " ORDER BY " + WeightEntry.COLUMN_NAME_BUCKET_START,
+                new String[] {
+                        pet, size, String.valueOf(firstBucket), String.valueOf(lastBucket),
+                        size, size,
+                        pet, String.valueOf(firstBucket), String.valueOf(lastBucket + resolution)});
+    }
+}
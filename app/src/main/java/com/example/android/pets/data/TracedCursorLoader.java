@@ -0,0 +1,33 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+/**
+ * {@link TracedCursorLoader} is a {@link CursorLoader} whose background load shows up as a
+ * {@link PetTrace} section, so the time between onCreateLoader and onLoadFinished can be split
+ * into waiting, querying and filling the cursor.
+ */
+public class TracedCursorLoader extends CursorLoader {
+
+    private final String mSectionName;
+
+    public TracedCursorLoader(Context context, String sectionName, Uri uri, String[] projection,
+                              String selection, String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        mSectionName = sectionName;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PetTrace.beginSection(mSectionName);
+        try {
+            // Includes the provider query and CursorLoader's getCount(), which fills the window
+            return super.loadInBackground();
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+}
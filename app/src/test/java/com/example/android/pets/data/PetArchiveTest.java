@@ -0,0 +1,149 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that pets moved to the archive can be found again through {@link PetArchive#VIEW_NAME},
+ * and that only an update that goes through brings one back
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetArchiveTest {
+
+    private PetDbHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mHelper = new PetDbHelper(RuntimeEnvironment.application);
+        mDatabase = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+    }
+
+    @Test
+    public void archivedColumnFiltersArchivedPets() {
+        long now = System.currentTimeMillis();
+        // Adopted long ago, so due for the archive
+        insertPet("Rex", true, 0);
+        insertPet("Fido", false, now);
+        assertEquals(1, PetArchive.archive(mDatabase, now, PetArchive.DEFAULT_BATCH_SIZE,
+                new PetScheduler()));
+
+        assertEquals(Collections.singletonList("Rex"), names(new PetQuery.Builder()
+                .whereEquals(PetEntry.COLUMN_NAME_ARCHIVED, 1)
+                .build()));
+        assertEquals(Collections.singletonList("Fido"), names(new PetQuery.Builder()
+                .whereEquals(PetEntry.COLUMN_NAME_ARCHIVED, 0)
+                .build()));
+        assertEquals(Collections.singletonList("Rex"), names(new PetQuery.Builder()
+                .whereIn(PetEntry.COLUMN_NAME_ARCHIVED, new long[] {1})
+                .build()));
+        assertEquals(Arrays.asList("Fido", "Rex"), names(new PetQuery.Builder()
+                .whereAtMost(PetEntry.COLUMN_NAME_ARCHIVED, 1)
+                .orderBy(PetEntry.COLUMN_NAME_NAME)
+                .build()));
+    }
+
+    @Test
+    public void invalidUpdateLeavesPetInArchive() {
+        long now = System.currentTimeMillis();
+        long id = insertPet("Rex", true, 0);
+        PetArchive.archive(mDatabase, now, PetArchive.DEFAULT_BATCH_SIZE, new PetScheduler());
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_NAME_NAME, "Rexy");
+        values.put(PetEntry.COLUMN_NAME_GENDER, 42);
+        try {
+            updateThroughProvider(id, values);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(Collections.singletonList("Rex"), names(new PetQuery.Builder()
+                .whereEquals(PetEntry.COLUMN_NAME_ARCHIVED, 1)
+                .build()));
+    }
+
+    @Test
+    public void updateRestoresArchivedPet() {
+        long now = System.currentTimeMillis();
+        long id = insertPet("Rex", true, 0);
+        PetArchive.archive(mDatabase, now, PetArchive.DEFAULT_BATCH_SIZE, new PetScheduler());
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_NAME_NAME, "Rexy");
+        assertEquals(1, updateThroughProvider(id, values));
+
+        assertEquals(Collections.singletonList("Rexy"), names(new PetQuery.Builder()
+                .whereEquals(PetEntry.COLUMN_NAME_ARCHIVED, 0)
+                .build()));
+        assertEquals(Collections.emptyList(), names(new PetQuery.Builder()
+                .whereEquals(PetEntry.COLUMN_NAME_ARCHIVED, 1)
+                .build()));
+    }
+
+    /**
+     * Update one pet through a provider on this test's database, then reopen it here
+     */
+    private int updateThroughProvider(long id, ContentValues values) {
+        mHelper.close();
+        PetProvider provider = PetProviders.create();
+        try {
+            return RuntimeEnvironment.application.getContentResolver().update(
+                    ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), values, null, null);
+        } finally {
+            provider.shutdown();
+            mDatabase = mHelper.getWritableDatabase();
+        }
+    }
+
+    private long insertPet(String name, boolean adopted, long lastModified) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_NAME_NAME, name);
+        values.put(PetEntry.COLUMN_NAME_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_NAME_ADOPTED, adopted ? 1 : 0);
+        values.put(PetEntry.COLUMN_NAME_LAST_MODIFIED, lastModified);
+        return mDatabase.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+    }
+
+    private List<String> names(PetQuery query) {
+        Cursor cursor = mDatabase.query(PetArchive.VIEW_NAME,
+                new String[] {PetEntry.COLUMN_NAME_NAME}, query.getSelection(),
+                query.getSelectionArgs(), null, null, query.getSortOrder());
+        try {
+            List<String> names = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+}
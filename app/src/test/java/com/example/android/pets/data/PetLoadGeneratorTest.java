@@ -0,0 +1,115 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link PetLoadGenerator} with writers and readers against a provider of its own, so
+ * the seeded pets go away with the test
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetLoadGeneratorTest {
+
+    private PetProvider mProvider;
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = PetProviders.create();
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void seedsTheRequestedPets() throws InterruptedException {
+        PetLoadGenerator.Report report = new PetLoadGenerator(mContentResolver)
+                .setPetCount(1200)
+                .run();
+
+        // More than one bulkInsert batch, and no concurrent phase without threads
+        assertEquals(1200, report.petsInserted);
+        assertNull(report.writes);
+        assertEquals(1200, countPets());
+    }
+
+    @Test
+    public void concurrentLoadRunsWithoutFailures() throws InterruptedException {
+        PetLoadGenerator.Report report = new PetLoadGenerator(mContentResolver)
+                .setPetCount(1000)
+                .setWriterThreads(2)
+                .setReaderThreads(2)
+                .setTargetOpsPerSecond(50)
+                .setDurationMillis(2000)
+                .run();
+
+        assertEquals(1000, report.petsInserted);
+        assertEquals(0, report.failures);
+        assertTrue(report.writes.toString(), report.writes.operations > 0);
+        assertTrue(report.reads.toString(), report.reads.operations > 0);
+        // Writers add the occasional intake on top of the seeded pets
+        assertTrue(countPets() >= 1000);
+    }
+
+    @Test
+    public void reportsProgress() throws InterruptedException {
+        final List<Integer> seeded = new ArrayList<>();
+        final long[] lastElapsed = {-1};
+        new PetLoadGenerator(mContentResolver)
+                .setPetCount(1200)
+                .setReaderThreads(1)
+                .setDurationMillis(1500)
+                .setProgressListener(new PetLoadGenerator.ProgressListener() {
+                    @Override
+                    public void onSeedProgress(int inserted, int petCount) {
+                        assertEquals(1200, petCount);
+                        seeded.add(inserted);
+                    }
+
+                    @Override
+                    public void onLoadProgress(long elapsedMillis, long durationMillis) {
+                        assertEquals(1500, durationMillis);
+                        assertTrue(elapsedMillis >= lastElapsed[0]);
+                        lastElapsed[0] = elapsedMillis;
+                    }
+                })
+                .run();
+
+        // One call per bulkInsert batch
+        assertEquals(Arrays.asList(500, 1000, 1200), seeded);
+        assertTrue(lastElapsed[0] > 0);
+    }
+
+    private int countPets() {
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI,
+                new String[] {PetEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
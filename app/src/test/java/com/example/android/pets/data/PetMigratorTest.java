@@ -0,0 +1,367 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that an upgrade interrupted part way through its chunked work picks up where it
+ * stopped, without losing rows written in the meantime
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetMigratorTest {
+
+    /**
+     * Pets in the version 1 database: enough for ten chunks, so the kill lands mid-step.
+     * ./gradlew test -Ppets.upgradeRows=1000000 for the shelter-sized run.
+     */
+    private static final int ROWS = Integer.getInteger("pets.upgradeRows", 20000);
+
+    /** Pets in the table rebuilt by {@link PetTableRebuild} */
+    private static final int REBUILD_ROWS = 10000;
+
+    private static final int REBUILD_CHUNK_SIZE = 1000;
+
+    private static final String DATABASE_NAME = "upgrade.db";
+
+    /** The schema of version 1, before any migration */
+    private static final String SQL_CREATE_PETS_TABLE_V1 = "CREATE TABLE " +
+            PetEntry.TABLE_NAME + " (" +
+            PetEntry._ID + " INTEGER PRIMARY KEY," +
+            PetEntry.COLUMN_NAME_NAME + " TEXT NOT NULL," +
+            PetEntry.COLUMN_NAME_BREED + " TEXT," +
+            PetEntry.COLUMN_NAME_GENDER + " INTEGER NOT NULL," +
+            PetEntry.COLUMN_NAME_WEIGHT + " INTEGER NOT NULL DEFAULT 0)";
+
+    private Context mContext;
+    private PetDbHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion1ResumesAfterBeingKilled() {
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(DATABASE_NAME, 0, null);
+        v1.execSQL(SQL_CREATE_PETS_TABLE_V1);
+        insertPets(v1, ROWS);
+        v1.setVersion(1);
+        v1.close();
+
+        // Opening runs the quick part of every step and leaves the backfills for resume()
+        mHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertEquals(PetDbHelper.DATABASE_VERSION, db.getVersion());
+        assertTrue(PetMigrator.hasPendingSteps(db));
+
+        long killedAt = killDuringStep(db, 3, ROWS / 2);
+        assertTrue(PetMigrator.hasPendingSteps(db));
+        assertEquals(killedAt, checkpoint(db, 3));
+
+        // The provider keeps writing between the kill and the restart: rows on both sides of
+        // the checkpoint, some of them with the breed still as text
+        db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " IN (1, ?)",
+                new String[] {String.valueOf(ROWS)});
+        ContentValues weight = new ContentValues();
+        weight.put(PetEntry.COLUMN_NAME_WEIGHT, 99);
+        db.update(PetEntry.TABLE_NAME, weight, PetEntry._ID + " IN (2, ?)",
+                new String[] {String.valueOf(ROWS - 1)});
+        long late = db.insertOrThrow(PetEntry.TABLE_NAME, null, pet("Late", "Terrier"));
+
+        // A new process finishes the upgrade from the saved checkpoint
+        mHelper.close();
+        mHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        assertTrue(mHelper.resumeMigrations(new PetScheduler(), new ReentrantLock()));
+        db = mHelper.getWritableDatabase();
+        assertFalse(PetMigrator.hasPendingSteps(db));
+
+        assertEquals(ROWS - 2 + 1, DatabaseUtils.queryNumEntries(db, PetEntry.VIEW_NAME));
+        // Every breed moved to the dictionary, and every pet has a fingerprint
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_NAME_BREED + " IS NOT NULL"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_NAME_FINGERPRINT + " IS NULL"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, PetEntry.VIEW_NAME,
+                PetEntry.COLUMN_NAME_BREED + " != 'breed-' || (" + PetEntry._ID + " % 50)" +
+                " AND " + PetEntry._ID + " != " + late));
+        assertPet(db, 2, "pet-2", "breed-2", 99);
+        assertPet(db, ROWS - 1, "pet-" + (ROWS - 1), "breed-" + ((ROWS - 1) % 50), 99);
+        assertPet(db, late, "Late", "Terrier", 7);
+
+        // Each step's deferred index was built
+        assertIndexExists(db, PetEntry.INDEX_GENDER_WEIGHT);
+        assertIndexExists(db, PetEntry.INDEX_FINGERPRINT);
+        assertIndexExists(db, PetEntry.INDEX_ADOPTED_LAST_MODIFIED);
+    }
+
+    @Test
+    public void restoreGetsInBetweenChunksAndStopsTheUpgrade() throws InterruptedException {
+        SQLiteDatabase v1 = mContext.openOrCreateDatabase(DATABASE_NAME, 0, null);
+        v1.execSQL(SQL_CREATE_PETS_TABLE_V1);
+        insertPets(v1, ROWS);
+        v1.setVersion(1);
+        v1.close();
+
+        mHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final AtomicBoolean restored = new AtomicBoolean();
+        PetMigrator.ProgressListener restore = new PetMigrator.ProgressListener() {
+            @Override
+            public void onProgress(int step, long checkpoint) {
+                if (restored.get()) {
+                    fail("Chunk run after the database was closed");
+                }
+                // The provider's restore, from another thread while the migration is between
+                // chunks: it must not wait for the rest of the upgrade
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (lock.writeLock().tryLock(1, TimeUnit.SECONDS)) {
+                                try {
+                                    db.close();
+                                    restored.set(true);
+                                } finally {
+                                    lock.writeLock().unlock();
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                thread.start();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+
+        assertFalse(PetDbHelper.MIGRATOR.resume(db, PetMigrator.DEFAULT_CHUNK_SIZE,
+                new PetScheduler(), lock.readLock(), restore));
+        assertTrue(restored.get());
+        assertEquals(0, lock.getReadLockCount());
+
+        // The next open picks the upgrade up from the chunk the restore interrupted
+        mHelper.close();
+        mHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        assertTrue(mHelper.resumeMigrations(new PetScheduler(), lock.readLock()));
+        assertFalse(PetMigrator.hasPendingSteps(mHelper.getWritableDatabase()));
+    }
+
+    @Test
+    public void tableRebuildKeepsWritesMadeDuringTheCopy() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL(SQL_CREATE_PETS_TABLE_V1);
+            insertPets(db, REBUILD_ROWS);
+
+            // Breed becomes NOT NULL, which ALTER TABLE can't do
+            String newTable = PetTableRebuild.rebuildTableName(PetEntry.TABLE_NAME);
+            PetMigrator migrator = new PetMigrator(new PetTableRebuild(2, PetEntry.TABLE_NAME,
+                    "CREATE TABLE " + newTable + " (" +
+                            PetEntry._ID + " INTEGER PRIMARY KEY," +
+                            PetEntry.COLUMN_NAME_NAME + " TEXT NOT NULL," +
+                            PetEntry.COLUMN_NAME_BREED + " TEXT NOT NULL," +
+                            PetEntry.COLUMN_NAME_GENDER + " INTEGER NOT NULL," +
+                            PetEntry.COLUMN_NAME_WEIGHT + " INTEGER NOT NULL DEFAULT 0)",
+                    PetEntry.COLUMN_NAME_NAME + ", " + PetEntry.COLUMN_NAME_BREED + ", " +
+                            PetEntry.COLUMN_NAME_GENDER + ", " + PetEntry.COLUMN_NAME_WEIGHT,
+                    PetEntry.COLUMN_NAME_NAME + ", COALESCE(" + PetEntry.COLUMN_NAME_BREED +
+                            ", ''), " + PetEntry.COLUMN_NAME_GENDER + ", " +
+                            PetEntry.COLUMN_NAME_WEIGHT));
+            db.beginTransaction();
+            try {
+                migrator.onUpgrade(db, 1, 2);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            long killedAt = kill(db, migrator, REBUILD_CHUNK_SIZE, 2, REBUILD_ROWS / 2);
+
+            // Writes to the old table while the copy is stopped, which only the triggers carry
+            // over: copied rows, rows still to copy, and a row past the end of the table
+            long copied = killedAt / 2;
+            long uncopied = killedAt + REBUILD_CHUNK_SIZE;
+            ContentValues weight = new ContentValues();
+            weight.put(PetEntry.COLUMN_NAME_WEIGHT, 99);
+            weight.putNull(PetEntry.COLUMN_NAME_BREED);
+            assertEquals(2, db.update(PetEntry.TABLE_NAME, weight, PetEntry._ID + " IN (?, ?)",
+                    new String[] {String.valueOf(copied), String.valueOf(uncopied)}));
+            assertEquals(2, db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " IN (?, ?)",
+                    new String[] {String.valueOf(copied + 1), String.valueOf(uncopied + 1)}));
+            long late = db.insertOrThrow(PetEntry.TABLE_NAME, null, pet("Late", "Terrier"));
+            assertPet(db, newTable, copied, "pet-" + copied, "", 99);
+            assertPet(db, newTable, late, "Late", "Terrier", 7);
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, newTable,
+                    PetEntry._ID + " = " + (copied + 1)));
+
+            migrator.resume(db, REBUILD_CHUNK_SIZE, new PetScheduler(), new ReentrantLock(), null);
+
+            assertFalse(PetMigrator.hasPendingSteps(db));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "sqlite_master",
+                    "name LIKE '" + newTable + "%'"));
+            assertEquals(REBUILD_ROWS - 2 + 1,
+                    DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME));
+            assertPet(db, PetEntry.TABLE_NAME, copied, "pet-" + copied, "", 99);
+            assertPet(db, PetEntry.TABLE_NAME, uncopied, "pet-" + uncopied, "", 99);
+            assertPet(db, PetEntry.TABLE_NAME, late, "Late", "Terrier", 7);
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME,
+                    PetEntry._ID + " IN (" + (copied + 1) + ", " + (uncopied + 1) + ")"));
+            // Rows the chunks copied, with the NULL breeds of version 1 filled in
+            assertPet(db, PetEntry.TABLE_NAME, REBUILD_ROWS, "pet-" + REBUILD_ROWS,
+                    "breed-" + (REBUILD_ROWS % 50), REBUILD_ROWS % 30);
+            assertEquals(REBUILD_ROWS / 97, DatabaseUtils.queryNumEntries(db,
+                    PetEntry.TABLE_NAME, PetEntry.COLUMN_NAME_BREED + " = '' AND " +
+                            PetEntry.COLUMN_NAME_WEIGHT + " != 99"));
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Run the pending steps with the default chunk size until the given step has passed the
+     * rowid, then stop as if the process had been killed. Returns the saved checkpoint.
+     */
+    private static long killDuringStep(SQLiteDatabase db, int version, long rowId) {
+        return kill(db, PetDbHelper.MIGRATOR, PetMigrator.DEFAULT_CHUNK_SIZE, version, rowId);
+    }
+
+    private static long kill(SQLiteDatabase db, PetMigrator migrator, int chunkSize,
+                             final int version, final long rowId) {
+        try {
+            PetMigrator.ProgressListener killer = new PetMigrator.ProgressListener() {
+                @Override
+                public void onProgress(int step, long checkpoint) {
+                    if (step == version && checkpoint >= rowId) {
+                        throw new Killed(checkpoint);
+                    }
+                }
+            };
+            migrator.resume(db, chunkSize, new PetScheduler(), new ReentrantLock(), killer);
+            fail("Step " + version + " finished before reaching rowid " + rowId);
+            return 0;
+        } catch (Killed killed) {
+            return killed.checkpoint;
+        }
+    }
+
+    private static long checkpoint(SQLiteDatabase db, int version) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + PetMigrator.COLUMN_CHECKPOINT +
+                " FROM " + PetMigrator.TABLE_NAME + " WHERE " + PetMigrator.COLUMN_VERSION +
+                " = ?", new String[] {String.valueOf(version)});
+    }
+
+    /**
+     * Fill a version 1 pets table. Pet i is named pet-i with breed breed-(i % 50), except that
+     * every 97th pet has no breed.
+     */
+    private static void insertPets(SQLiteDatabase db, int count) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME +
+                " (" + PetEntry._ID + ", " + PetEntry.COLUMN_NAME_NAME + ", " +
+                PetEntry.COLUMN_NAME_BREED + ", " + PetEntry.COLUMN_NAME_GENDER + ", " +
+                PetEntry.COLUMN_NAME_WEIGHT + ") VALUES (?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 1; i <= count; i++) {
+                insert.bindLong(1, i);
+                insert.bindString(2, "pet-" + i);
+                if (i % 97 == 0) {
+                    insert.bindNull(3);
+                } else {
+                    insert.bindString(3, "breed-" + (i % 50));
+                }
+                insert.bindLong(4, i % 3);
+                insert.bindLong(5, i % 30);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    private static ContentValues pet(String name, String breed) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_NAME_NAME, name);
+        values.put(PetEntry.COLUMN_NAME_BREED, breed);
+        values.put(PetEntry.COLUMN_NAME_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_NAME_WEIGHT, 7);
+        return values;
+    }
+
+    private static void assertPet(SQLiteDatabase db, long id, String name, String breed,
+                                  int weight) {
+        assertPet(db, PetEntry.VIEW_NAME, id, name, breed, weight);
+    }
+
+    private static void assertPet(SQLiteDatabase db, String table, long id, String name,
+                                  String breed, int weight) {
+        Cursor cursor = db.query(table, new String[] {PetEntry.COLUMN_NAME_NAME,
+                        PetEntry.COLUMN_NAME_BREED, PetEntry.COLUMN_NAME_WEIGHT},
+                PetEntry._ID + " = ?", new String[] {String.valueOf(id)}, null, null, null);
+        try {
+            assertTrue("pet " + id + " is missing from " + table, cursor.moveToFirst());
+            assertEquals(name, cursor.getString(0));
+            assertEquals(breed, cursor.getString(1));
+            assertEquals(weight, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void assertIndexExists(SQLiteDatabase db, String index) {
+        assertEquals(index, 1, DatabaseUtils.queryNumEntries(db, "sqlite_master",
+                "type = 'index' AND name = ?", new String[] {index}));
+    }
+
+    /**
+     * Thrown from the progress listener to stop a migration between two chunks
+     */
+    private static class Killed extends RuntimeException {
+        final long checkpoint;
+
+        Killed(long checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers the provider with inserts, updates, deletes and queries from several threads at once
+ * and checks that the results stay consistent:
+ *
+ * - no lost updates: every thread owns a set of pets, and each pet must end up with the last
+ *   value its owner wrote;
+ * - counts match: the number of rows equals what was inserted minus what was deleted;
+ * - no torn rows: writers always change name and breed together in one update, so a reader
+ *   must never see a row whose name and breed come from different writes.
+ *
+ * It also records how throughput and the time threads spend waiting for locks change from one
+ * to {@link #MAX_THREADS} threads, and checks that queries keep getting in during a background
+ * import.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetProviderStressTest {
+
+    /** Pets each thread creates and then owns for the rest of the round */
+    private static final int PETS_PER_THREAD = 20;
+
+    /** Operations each thread runs after creating its pets */
+    private static final int OPERATIONS_PER_THREAD = 300;
+
+    private static final String TAG = "stress-";
+
+    /** Most threads of the scaling run, which doubles the thread count from one */
+    private static final int MAX_THREADS = 8;
+
+    /** Pets in the background import: enough for eighty of its chunks */
+    private static final int IMPORT_ROWS = 20000;
+
+    private PetProvider mProvider;
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = PetProviders.create();
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void singleThreadKeepsInvariants() throws InterruptedException {
+        assertNoViolations(runRound(1, TAG));
+    }
+
+    @Test
+    public void concurrentThreadsKeepInvariants() throws InterruptedException {
+        assertNoViolations(runRound(4, TAG));
+    }
+
+    /**
+     * Runs a round at each thread count and prints its throughput and lock waits. Lock waits
+     * are the time the round's threads spent blocked or parked, as the JVM counts it, which
+     * includes waiting for the SQLite connection and the provider's scheduler.
+     */
+    @Test
+    public void recordsThroughputAndLockWaitsFromOneToMaxThreads() throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean monitored = threads.isThreadContentionMonitoringSupported();
+        if (monitored) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+        System.out.println("threads  ops/s  lock wait ms (total)  lock wait ms (per op)");
+        for (int count = 1; count <= MAX_THREADS; count *= 2) {
+            Round round = runRound(count, TAG + "scale" + count + "-");
+            assertNoViolations(round);
+            double operations = count * (PETS_PER_THREAD + OPERATIONS_PER_THREAD);
+            System.out.println(String.format(Locale.US, "%7d  %5.0f  %20s  %21s",
+                    count, operations * 1e9 / round.elapsedNanos,
+                    monitored ? String.valueOf(round.lockWaitMillis()) : "n/a",
+                    monitored ? String.format(Locale.US, "%.3f",
+                            round.lockWaitMillis() / operations) : "n/a"));
+        }
+    }
+
+    /**
+     * Queries during a background import only wait for the chunk that is running, never for
+     * the import. A chunk is a few hundred inserts, so the p99 of their waits, as the
+     * provider reports it, stays under the longest a chunk ever yields to them.
+     */
+    @Test
+    public void queriesOnlyWaitForAChunkOfABackgroundImport() throws InterruptedException {
+        final ContentValues[] pets = new ContentValues[IMPORT_ROWS];
+        for (int i = 0; i < IMPORT_ROWS; i++) {
+            pets[i] = consistentPet(TAG + "import-" + i, i % 50);
+        }
+        final Uri background = PetEntry.buildPriorityUri(PetEntry.UPSERT_URI,
+                PetContract.PRIORITY_BACKGROUND);
+        final AtomicInteger imported = new AtomicInteger(-1);
+        Thread importer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                imported.set(mContentResolver.bulkInsert(background, pets));
+            }
+        }, "PetStress-import");
+        importer.start();
+
+        int queries = 0;
+        while (importer.isAlive()) {
+            // A different pet each time, so no query is served from the result cache
+            Cursor cursor = mContentResolver.query(
+                    ContentUris.withAppendedId(PetEntry.CONTENT_URI, queries + 1),
+                    new String[] {PetEntry.COLUMN_NAME_WEIGHT}, null, null, null);
+            if (cursor != null) {
+                cursor.close();
+            }
+            queries++;
+        }
+        importer.join();
+        assertEquals(IMPORT_ROWS, imported.get());
+        assertTrue("no query ran during the import", queries > 1);
+
+        Bundle stats = mProvider.call(PetContract.METHOD_SCHEDULER_STATS, null, null);
+        long p99Micros = stats.getLong(PetContract.KEY_INTERACTIVE_WAIT_P99_MICROS);
+        assertTrue(queries + " queries, p99 wait " + p99Micros + " us",
+                p99Micros <= TimeUnit.MILLISECONDS.toMicros(PetScheduler.MAX_YIELD_MILLIS));
+    }
+
+    private static void assertNoViolations(Round round) {
+        assertTrue(round.violations.toString(), round.violations.isEmpty());
+    }
+
+    /**
+     * Run one round with the given number of threads, on pets whose external IDs start with
+     * the tag
+     */
+    private Round runRound(int threads, final String tag) throws InterruptedException {
+        final Round round = new Round();
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        hammer(tag + thread + "-", tag, new Random(thread), round);
+                    } catch (RuntimeException e) {
+                        round.addViolation("thread " + thread + " failed: " + e);
+                    } finally {
+                        round.addLockWait(ManagementFactory.getThreadMXBean()
+                                .getThreadInfo(Thread.currentThread().getId()));
+                        done.countDown();
+                    }
+                }
+            }, "PetStress-" + t).start();
+        }
+        assertTrue("round timed out", done.await(2, TimeUnit.MINUTES));
+        round.elapsedNanos = System.nanoTime() - start;
+
+        // The count invariant can only be checked once every thread has stopped
+        assertEquals(round.expectedRows(), countTagged(tag));
+        return round;
+    }
+
+    /**
+     * One thread's share of a round
+     */
+    private void hammer(String tag, String roundTag, Random random, Round round) {
+        List<Long> owned = new ArrayList<>();
+        List<Integer> lastWritten = new ArrayList<>();
+
+        for (int i = 0; i < PETS_PER_THREAD; i++) {
+            Uri uri = mContentResolver.insert(PetEntry.CONTENT_URI, consistentPet(tag + i, 0));
+            owned.add(ContentUris.parseId(uri));
+            lastWritten.add(0);
+            round.addInserted();
+        }
+
+        int extra = 0;
+        for (int n = 0; n < OPERATIONS_PER_THREAD; n++) {
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                // Update one of our own pets to a new, consistent name/breed/weight
+                int index = random.nextInt(owned.size());
+                int value = lastWritten.get(index) + 1;
+                mContentResolver.update(
+                        ContentUris.withAppendedId(PetEntry.CONTENT_URI, owned.get(index)),
+                        consistentPet(null, value), null, null);
+                lastWritten.set(index, value);
+            } else if (operation < 6) {
+                // Insert and immediately delete a short-lived pet
+                Uri uri = mContentResolver.insert(PetEntry.CONTENT_URI,
+                        consistentPet(tag + "extra-" + extra++, 0));
+                round.addInserted();
+                if (mContentResolver.delete(uri, null, null) == 1) {
+                    round.addDeleted();
+                }
+            } else {
+                checkNoTornRows(roundTag, round);
+            }
+        }
+
+        // Lost update check: every owned pet must hold the last value this thread wrote
+        for (int i = 0; i < owned.size(); i++) {
+            Cursor cursor = mContentResolver.query(
+                    ContentUris.withAppendedId(PetEntry.CONTENT_URI, owned.get(i)),
+                    new String[] {PetEntry.COLUMN_NAME_WEIGHT}, null, null, null);
+            try {
+                if (cursor == null || !cursor.moveToFirst()) {
+                    round.addViolation("pet " + owned.get(i) + " disappeared");
+                } else if (cursor.getInt(0) != lastWritten.get(i)) {
+                    round.addViolation("lost update on pet " + owned.get(i) + ": expected "
+                            + lastWritten.get(i) + ", found " + cursor.getInt(0));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Scan all stress rows and check that each row's name and breed came from the same write
+     */
+    private void checkNoTornRows(String roundTag, Round round) {
+        PetQuery tagged = taggedRows(roundTag);
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI,
+                new String[] {PetEntry.COLUMN_NAME_NAME, PetEntry.COLUMN_NAME_BREED,
+                        PetEntry.COLUMN_NAME_WEIGHT},
+                tagged.getSelection(), tagged.getSelectionArgs(), null);
+        if (cursor == null) {
+            round.addViolation("query returned no cursor");
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String expectedBreed = "breed-" + cursor.getInt(2);
+                if (!("pet-" + cursor.getInt(2)).equals(cursor.getString(0))
+                        || !expectedBreed.equals(cursor.getString(1))) {
+                    round.addViolation("torn row: " + cursor.getString(0) + " / "
+                            + cursor.getString(1) + " / " + cursor.getInt(2));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countTagged(String roundTag) {
+        PetQuery tagged = taggedRows(roundTag);
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI,
+                new String[] {PetEntry._ID}, tagged.getSelection(), tagged.getSelectionArgs(),
+                null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static PetQuery taggedRows(String roundTag) {
+        return new PetQuery.Builder()
+                .whereLike(PetEntry.COLUMN_NAME_EXTERNAL_ID, roundTag + "%")
+                .build();
+    }
+
+    /**
+     * A pet whose name, breed and weight all encode the same value
+     */
+    private static ContentValues consistentPet(String externalId, int value) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_NAME_NAME, "pet-" + value);
+        values.put(PetEntry.COLUMN_NAME_BREED, "breed-" + value);
+        values.put(PetEntry.COLUMN_NAME_WEIGHT, value);
+        if (externalId != null) {
+            values.put(PetEntry.COLUMN_NAME_GENDER, PetEntry.GENDER_UNKNOWN);
+            values.put(PetEntry.COLUMN_NAME_EXTERNAL_ID, externalId);
+        }
+        return values;
+    }
+
+    /**
+     * What the threads of one round did, and what they saw go wrong
+     */
+    private static class Round {
+        final List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+        long elapsedNanos;
+        private int mInserted;
+        private int mDeleted;
+        private long mLockWaitMillis;
+
+        void addViolation(String violation) {
+            violations.add(violation);
+        }
+
+        synchronized void addInserted() {
+            mInserted++;
+        }
+
+        synchronized void addDeleted() {
+            mDeleted++;
+        }
+
+        synchronized int expectedRows() {
+            return mInserted - mDeleted;
+        }
+
+        /**
+         * Add the time a finishing thread spent blocked on monitors and parked on locks. The
+         * JVM reports -1 while contention monitoring is off.
+         */
+        synchronized void addLockWait(ThreadInfo info) {
+            if (info != null && info.getBlockedTime() >= 0) {
+                mLockWaitMillis += info.getBlockedTime() + info.getWaitedTime();
+            }
+        }
+
+        synchronized long lockWaitMillis() {
+            return mLockWaitMillis;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.android.pets.data;
+
+import android.content.pm.ProviderInfo;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+
+/**
+ * {@link PetProviders} sets up a {@link PetProvider} for a Robolectric test, the way the
+ * framework would: attached to the test application, which runs onCreate, and registered so
+ * the application's ContentResolver reaches it.
+ */
+final class PetProviders {
+
+    private PetProviders() {
+    }
+
+    static PetProvider create() {
+        ProviderInfo info = new ProviderInfo();
+        info.authority = PetContract.CONTENT_AUTHORITY;
+        PetProvider provider = new PetProvider();
+        provider.attachInfo(RuntimeEnvironment.application, info);
+        // registerProvider would call onCreate a second time, leaving two helpers (and two
+        // migration threads) on the same database file
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY, provider);
+        return provider;
+    }
+}
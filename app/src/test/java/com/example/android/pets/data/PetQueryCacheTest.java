@@ -0,0 +1,139 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.StaleDataException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that results too big for {@link PetQueryCache} survive their database being closed
+ * once they are detached, as a restore does, unless they are too big to copy, and that stale
+ * results aren't copied
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetQueryCacheTest {
+
+    /** Enough rows of long names to go over {@link PetQueryCache#MAX_ENTRY_BYTES} */
+    private static final int ROWS = 3000;
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE pets (name TEXT NOT NULL)");
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                mDatabase.execSQL("INSERT INTO pets (name) VALUES (?)", new Object[] {name(i)});
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mDatabase.isOpen()) {
+            mDatabase.close();
+        }
+    }
+
+    @Test
+    public void detachedCursorOutlivesTheDatabase() {
+        PetQueryCache cache = new PetQueryCache();
+        Cursor cursor = cache.put("pets", mDatabase.rawQuery(
+                "SELECT name FROM pets ORDER BY rowid", null), cache.getGeneration());
+        try {
+            assertTrue(cursor.moveToPosition(10));
+
+            cache.detachOpenCursors();
+            mDatabase.close();
+
+            // Still where it was, and every row can be read
+            assertEquals(10, cursor.getPosition());
+            assertEquals(name(10), cursor.getString(0));
+            assertEquals(ROWS, cursor.getCount());
+            cursor.moveToPosition(-1);
+            for (int i = 0; cursor.moveToNext(); i++) {
+                assertEquals(name(i), cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void closedCursorsAreNotDetached() {
+        PetQueryCache cache = new PetQueryCache();
+        Cursor cursor = cache.put("pets", mDatabase.rawQuery("SELECT name FROM pets", null),
+                cache.getGeneration());
+        cursor.close();
+
+        // Nothing left to copy, so nothing reads from the database
+        mDatabase.close();
+        cache.detachOpenCursors();
+        assertTrue(cursor.isClosed());
+    }
+
+    @Test
+    public void resultTooBigToDetachIsReleased() {
+        PetQueryCache cache = new PetQueryCache();
+        Cursor cursor = cache.put("pets", mDatabase.rawQuery(
+                "SELECT name FROM pets ORDER BY rowid", null), cache.getGeneration());
+        try {
+            cache.detachOpenCursors(PetQueryCache.MAX_ENTRY_BYTES);
+            mDatabase.close();
+            try {
+                cursor.moveToFirst();
+                fail("A released result must be queried again");
+            } catch (StaleDataException expected) {
+                // Nothing was copied
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void staleResultIsNotCopied() {
+        PetQueryCache cache = new PetQueryCache();
+        long generation = cache.getGeneration();
+        cache.invalidate();
+        Cursor source = mDatabase.rawQuery("SELECT name FROM pets WHERE rowid = 1", null);
+        Cursor cursor = cache.put("pet", source, generation);
+        try {
+            // A copied result closes its source straight away
+            assertFalse(source.isClosed());
+            assertNull(cache.get("pet"));
+            assertTrue(cursor.moveToFirst());
+            assertEquals(name(0), cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String name(int i) {
+        StringBuilder name = new StringBuilder("pet-").append(i).append('-');
+        while (name.length() < 100) {
+            name.append('x');
+        }
+        return name.toString();
+    }
+}
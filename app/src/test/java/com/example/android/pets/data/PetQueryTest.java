@@ -0,0 +1,281 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PetQuery} gives queries of the same shape the same statement text, and
+ * how well that text reuses the prepared statement cache of a database opened like the
+ * provider's
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetQueryTest {
+
+    private static final String DATABASE_NAME = "statements.db";
+
+    /** Queries run per statement cache test */
+    private static final int QUERIES = 10000;
+
+    private static final String[] PROJECTION = {PetEntry._ID, PetEntry.COLUMN_NAME_NAME};
+
+    private Context mContext;
+    private PetDbHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+    }
+
+    @Test
+    public void sameShapeGivesSameSql() {
+        PetQuery first = new PetQuery.Builder()
+                .whereEquals(PetEntry.COLUMN_NAME_NAME, "Andy")
+                .whereAtLeast(PetEntry.COLUMN_NAME_WEIGHT, 5)
+                .build();
+        PetQuery second = new PetQuery.Builder()
+                .whereAtLeast(PetEntry.COLUMN_NAME_WEIGHT, 9)
+                .whereEquals(PetEntry.COLUMN_NAME_NAME, "Bella")
+                .build();
+
+        assertEquals(first.getSelection(), second.getSelection());
+        // The arguments follow the conditions in the order of the SQL
+        assertArrayEquals(new String[] {"Bella", "9"}, second.getSelectionArgs());
+    }
+
+    @Test
+    public void longsAreBoundAsLongs() {
+        PetQuery query = new PetQuery.Builder()
+                .whereEquals(PetEntry.COLUMN_NAME_NAME, "Andy")
+                .whereEquals(PetEntry.COLUMN_NAME_GENDER, PetEntry.GENDER_MALE)
+                .whereIn(PetEntry._ID, new long[] {3, 4})
+                .build();
+
+        assertArrayEquals(new Object[] {3L, 4L, (long) PetEntry.GENDER_MALE, "Andy"},
+                query.getBindArgs());
+        assertArrayEquals(new String[] {"3", "4", String.valueOf(PetEntry.GENDER_MALE), "Andy"},
+                query.getSelectionArgs());
+    }
+
+    @Test
+    public void untypedColumnsAreCast() {
+        PetQuery query = new PetQuery.Builder()
+                .whereEquals(PetEntry.COLUMN_NAME_ARCHIVED, 1)
+                .build();
+
+        assertEquals("CAST(" + PetEntry.COLUMN_NAME_ARCHIVED + " AS INTEGER) = ?",
+                query.getSelection());
+    }
+
+    @Test
+    public void inListsArePaddedToPowersOfTwo() {
+        PetQuery five = new PetQuery.Builder()
+                .whereIn(PetEntry._ID, new long[] {1, 2, 3, 4, 5})
+                .build();
+        PetQuery seven = new PetQuery.Builder()
+                .whereIn(PetEntry._ID, new long[] {1, 2, 3, 4, 5, 6, 7})
+                .build();
+
+        assertEquals(five.getSelection(), seven.getSelection());
+        assertArrayEquals(new Object[] {1L, 2L, 3L, 4L, 5L, 5L, 5L, 5L}, five.getBindArgs());
+    }
+
+    @Test
+    public void paddingStopsAtTheVariableLimit() {
+        assertEquals(512, PetQuery.paddedSize(500));
+        assertEquals(PetQuery.MAX_VARIABLES, PetQuery.paddedSize(600));
+        assertEquals(PetQuery.MAX_VARIABLES, PetQuery.paddedSize(PetQuery.MAX_VARIABLES));
+        // Longer lists aren't padded
+        assertEquals(1500, PetQuery.paddedSize(1500));
+
+        PetQuery query = new PetQuery.Builder()
+                .whereIn(PetEntry._ID, ids(600))
+                .build();
+        assertEquals(PetQuery.MAX_VARIABLES, query.getBindArgs().length);
+    }
+
+    @Test
+    public void inListOverTheVariableLimitIsRejected() {
+        try {
+            new PetQuery.Builder().whereIn(PetEntry._ID, ids(PetQuery.MAX_VARIABLES + 1));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void queryOverTheVariableLimitIsRejected() {
+        PetQuery.Builder builder = new PetQuery.Builder()
+                .whereIn(PetEntry._ID, ids(PetQuery.MAX_VARIABLES))
+                .whereEquals(PetEntry.COLUMN_NAME_NAME, "Andy");
+        try {
+            builder.build();
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void statementCacheHitRate() throws Exception {
+        // The catalog's kinds of query, with varying values, window sizes and condition
+        // order: after the first of each shape, everything should come from the cache
+        SQLiteDatabase db = openDatabase();
+        Random random = new Random(42);
+        Set<String> shapes = new HashSet<>();
+        long[] before = statementCache(db);
+        for (int i = 0; i < QUERIES; i++) {
+            PetQuery query = randomQuery(random);
+            run(db, query.getSelection(), query.getSelectionArgs(), query.getSortOrder());
+            shapes.add(query.getSelection() + " ORDER BY " + query.getSortOrder());
+        }
+        long hits = statementCache(db)[0] - before[0];
+        long misses = statementCache(db)[1] - before[1];
+        System.out.println("PetQuery: " + hits + " hits, " + misses + " misses");
+
+        // Windows of 1 to 40 IDs pad to 7 sizes, and each other kind has one shape
+        assertEquals(10, shapes.size());
+        assertEquals(hits + " hits", shapes.size(), misses);
+        assertTrue(hits + " hits", (double) hits / (hits + misses) >= 0.99);
+    }
+
+    @Test
+    public void unpaddedInListsMissTheCache() throws Exception {
+        // The same windows with one "?" per ID, as the provider bound them before
+        SQLiteDatabase db = openDatabase();
+        Random random = new Random(42);
+        long[] before = statementCache(db);
+        for (int i = 0; i < QUERIES; i++) {
+            int size = 1 + random.nextInt(40);
+            StringBuilder sql = new StringBuilder(PetEntry._ID + " IN (?");
+            String[] args = new String[size];
+            args[0] = String.valueOf(random.nextInt(100000));
+            for (int n = 1; n < size; n++) {
+                sql.append(",?");
+                args[n] = String.valueOf(random.nextInt(100000));
+            }
+            run(db, sql.append(')').toString(), args, null);
+        }
+        long hits = statementCache(db)[0] - before[0];
+        long misses = statementCache(db)[1] - before[1];
+        System.out.println("Unpadded: " + hits + " hits, " + misses + " misses");
+
+        // 40 shapes instead of 7
+        assertEquals(hits + " hits", 40, misses);
+    }
+
+    private static PetQuery randomQuery(Random random) {
+        PetQuery.Builder builder = new PetQuery.Builder();
+        switch (random.nextInt(4)) {
+            case 0:
+                // A window of the list, like the prefetcher's
+                long[] window = new long[1 + random.nextInt(40)];
+                for (int i = 0; i < window.length; i++) {
+                    window[i] = random.nextInt(100000);
+                }
+                builder.whereIn(PetEntry._ID, window);
+                break;
+            case 1:
+                builder.whereEquals(PetEntry.COLUMN_NAME_NAME, "pet-" + random.nextInt(1000));
+                break;
+            case 2:
+                // A weight filter, its bounds added in either order
+                long low = random.nextInt(50);
+                if (random.nextBoolean()) {
+                    builder.whereAtLeast(PetEntry.COLUMN_NAME_WEIGHT, low)
+                            .whereAtMost(PetEntry.COLUMN_NAME_WEIGHT, low + 10);
+                } else {
+                    builder.whereAtMost(PetEntry.COLUMN_NAME_WEIGHT, low + 10)
+                            .whereAtLeast(PetEntry.COLUMN_NAME_WEIGHT, low);
+                }
+                break;
+            default:
+                builder.whereLike(PetEntry.COLUMN_NAME_NAME, random.nextInt(10) + "%")
+                        .whereEquals(PetEntry.COLUMN_NAME_GENDER, random.nextInt(3))
+                        .orderBy(PetEntry.COLUMN_NAME_NAME);
+                break;
+        }
+        return builder.build();
+    }
+
+    private static long[] ids(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i + 1;
+        }
+        return ids;
+    }
+
+    /**
+     * Open an empty database with the provider's helper, so the connection has the provider's
+     * statement cache size
+     */
+    private SQLiteDatabase openDatabase() {
+        mHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        return mHelper.getReadableDatabase();
+    }
+
+    /**
+     * Query pets_view the way the provider does, and read the whole result
+     */
+    private static void run(SQLiteDatabase db, String selection, String[] selectionArgs,
+                            String sortOrder) {
+        Cursor cursor = db.query(PetEntry.VIEW_NAME, PROJECTION, selection, selectionArgs,
+                null, null, sortOrder);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Hits and misses so far of the prepared statement cache of the database's one connection.
+     * They come from the framework's SQLiteConnection, whose Java code Robolectric runs as it
+     * is; only its native calls are replaced. Each query prepares its statement twice, once to
+     * read the columns and once to fill the window, so every query after the first of its
+     * shape is two hits.
+     */
+    private static long[] statementCache(SQLiteDatabase db) throws Exception {
+        Object pool = field(db, "mConnectionPoolLocked");
+        Object connection = field(pool, "mAvailablePrimaryConnection");
+        LruCache<?, ?> cache = (LruCache<?, ?>) field(connection, "mPreparedStatementCache");
+        return new long[] {cache.hitCount(), cache.missCount()};
+    }
+
+    private static Object field(Object owner, String name) throws Exception {
+        Field field = owner.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(owner);
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that reads leave unused shelters alone, and that the catalog merges the shelters'
+ * rows in order without losing their global IDs
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetShardsTest {
+
+    private PetProvider mProvider;
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = PetProviders.create();
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void queryingAnUnusedShelterCreatesNoDatabase() {
+        Cursor cursor = mContentResolver.query(PetEntry.buildShelterUri(7),
+                null, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        assertFalse(Arrays.asList(RuntimeEnvironment.application.databaseList())
+                .contains("shelter_7.db"));
+    }
+
+    @Test
+    public void catalogMergesSheltersInSortOrder() {
+        mContentResolver.insert(PetEntry.CONTENT_URI, pet("Bella"));
+        mContentResolver.insert(PetEntry.CONTENT_URI, pet("Daisy"));
+        mContentResolver.insert(PetEntry.buildShelterUri(3), pet("Andy"));
+        mContentResolver.insert(PetEntry.buildShelterUri(3), pet("Cooper"));
+
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI,
+                new String[] {PetEntry._ID, PetEntry.COLUMN_NAME_NAME}, null, null,
+                PetEntry.COLUMN_NAME_NAME);
+        try {
+            assertEquals(4, cursor.getCount());
+            String[] names = {"Andy", "Bella", "Cooper", "Daisy"};
+            int[] shelters = {3, 0, 3, 0};
+            // Backwards too, as a list scrolling up does
+            for (int i = names.length - 1; i >= 0; i--) {
+                assertTrue(cursor.moveToPosition(i));
+                assertEquals(names[i], cursor.getString(1));
+                assertEquals(shelters[i], PetShards.shelterOf(cursor.getLong(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues pet(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_NAME_NAME, name);
+        values.put(PetEntry.COLUMN_NAME_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_NAME_WEIGHT, 5);
+        return values;
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an upsert over an existing pet only changes the columns it has values for, and
+ * that an upsert without a gender is rejected like any other invalid pet
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetUpsertTest {
+
+    private PetProvider mProvider;
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = PetProviders.create();
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void missingColumnsKeepTheirValues() {
+        ContentValues full = pet("Rex");
+        full.put(PetEntry.COLUMN_NAME_BREED, "Terrier");
+        full.put(PetEntry.COLUMN_NAME_WEIGHT, 12);
+        Uri uri = mContentResolver.insert(PetEntry.UPSERT_URI, full);
+
+        assertEquals(uri, mContentResolver.insert(PetEntry.UPSERT_URI, pet("Rexy")));
+        assertPet(uri, "Rexy", "Terrier", 12);
+    }
+
+    @Test
+    public void givenColumnsAreReplaced() {
+        ContentValues full = pet("Rex");
+        full.put(PetEntry.COLUMN_NAME_BREED, "Terrier");
+        full.put(PetEntry.COLUMN_NAME_WEIGHT, 12);
+        Uri uri = mContentResolver.insert(PetEntry.UPSERT_URI, full);
+
+        ContentValues weighed = pet("Rex");
+        weighed.put(PetEntry.COLUMN_NAME_WEIGHT, 14);
+        mContentResolver.insert(PetEntry.UPSERT_URI, weighed);
+        assertPet(uri, "Rex", "Terrier", 14);
+
+        // An empty breed is a value too
+        ContentValues unknownBreed = pet("Rex");
+        unknownBreed.put(PetEntry.COLUMN_NAME_BREED, "");
+        mContentResolver.insert(PetEntry.UPSERT_URI, unknownBreed);
+        assertPet(uri, "Rex", null, 14);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingGenderIsRejected() {
+        ContentValues values = pet("Rex");
+        values.remove(PetEntry.COLUMN_NAME_GENDER);
+        mContentResolver.insert(PetEntry.UPSERT_URI, values);
+    }
+
+    private static ContentValues pet(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_NAME_EXTERNAL_ID, "upsert-1");
+        values.put(PetEntry.COLUMN_NAME_NAME, name);
+        values.put(PetEntry.COLUMN_NAME_GENDER, PetEntry.GENDER_MALE);
+        return values;
+    }
+
+    private void assertPet(Uri uri, String name, String breed, int weight) {
+        Cursor cursor = mContentResolver.query(uri, new String[] {PetEntry.COLUMN_NAME_NAME,
+                PetEntry.COLUMN_NAME_BREED, PetEntry.COLUMN_NAME_WEIGHT}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(name, cursor.getString(0));
+            assertEquals(breed, cursor.getString(1));
+            assertEquals(weight, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+    }
+}